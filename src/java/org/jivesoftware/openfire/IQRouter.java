@@ -21,10 +21,8 @@
 package org.jivesoftware.openfire;
 
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.TimerTask;
 import java.util.concurrent.ConcurrentHashMap;
 
 import org.dom4j.Element;
@@ -37,9 +35,10 @@ import org.jivesoftware.openfire.privacy.PrivacyListManager;
 import org.jivesoftware.openfire.session.ClientSession;
 import org.jivesoftware.openfire.session.LocalClientSession;
 import org.jivesoftware.openfire.session.Session;
+import org.jivesoftware.openfire.stats.PacketLatency;
 import org.jivesoftware.openfire.user.UserManager;
+import org.jivesoftware.util.HashedWheelTimer;
 import org.jivesoftware.util.LocaleUtils;
-import org.jivesoftware.util.TaskEngine;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xmpp.component.IQResultListener;
@@ -67,7 +66,7 @@ public class IQRouter extends BasicModule {
     private List<IQHandler> iqHandlers = new ArrayList<IQHandler>();
     private Map<String, IQHandler> namespace2Handlers = new ConcurrentHashMap<String, IQHandler>();
     private Map<String, IQResultListener> resultListeners = new ConcurrentHashMap<String, IQResultListener>();
-    private Map<String, Long> resultTimeout = new ConcurrentHashMap<String, Long>();
+    private Map<String, HashedWheelTimer.Timeout> resultTimeout = new ConcurrentHashMap<String, HashedWheelTimer.Timeout>();
     private SessionManager sessionManager;
     private UserManager userManager;
 
@@ -92,6 +91,16 @@ public class IQRouter extends BasicModule {
      * @throws NullPointerException If the packet is null
      */
     public void route(IQ packet) {
+        long start = PacketLatency.start();
+        try {
+            routePacket(packet);
+        }
+        finally {
+            PacketLatency.record(PacketLatency.Stage.iqRouter, packet, start);
+        }
+    }
+
+    private void routePacket(IQ packet) {
         if (packet == null) {
             throw new NullPointerException();
         }
@@ -230,9 +239,9 @@ public class IQRouter extends BasicModule {
 	 * be removed from the list of listeners.<p>
 	 *
 	 * Note that the listener will remain active for <em>at least</em> the
-	 * specified timeout value. The listener will not be removed at the exact
-	 * moment it times out. Instead, purging of timed out listeners is a
-	 * periodic scheduled job.
+	 * specified timeout value. The timeout is tracked by the shared
+	 * {@link HashedWheelTimer}, so the listener is removed within one tick of
+	 * the timer after it timed out.
 	 *
 	 * @param id
 	 *            the id of the IQ packet being sent from the server to an XMPP
@@ -245,14 +254,22 @@ public class IQRouter extends BasicModule {
 	 *            should be stopped.
 	 */
     public void addIQResultListener(String id, IQResultListener listener, long timeoutmillis) {
-        resultListeners.put(id, listener);
-        resultTimeout.put(id, System.currentTimeMillis() + timeoutmillis);
+        TimeoutTask task = new TimeoutTask(id, listener);
+        // The task waits for the lock, so it does not run before both entries were stored.
+        // The timeout is stored first so that an answer always finds it with the listener.
+        synchronized (task) {
+            task.timeout = HashedWheelTimer.getInstance().schedule(task, timeoutmillis);
+            HashedWheelTimer.Timeout previous = resultTimeout.put(id, task.timeout);
+            if (previous != null) {
+                previous.cancel();
+            }
+            resultListeners.put(id, listener);
+        }
     }
 
     @Override
 	public void initialize(XMPPServer server) {
         super.initialize(server);
-        TaskEngine.getInstance().scheduleAtFixedRate(new TimeoutTask(), 5000, 5000);
         serverName = server.getServerInfo().getXMPPDomain();
         routingTable = server.getRoutingTable();
         multicastRouter = server.getMulticastRouter();
@@ -304,7 +321,10 @@ public class IQRouter extends BasicModule {
             // The server got an answer to an IQ packet that was sent from the server
             IQResultListener iqResultListener = resultListeners.remove(packet.getID());
             if (iqResultListener != null) {
-                resultTimeout.remove(packet.getID());
+                HashedWheelTimer.Timeout timeout = resultTimeout.remove(packet.getID());
+                if (timeout != null) {
+                    timeout.cancel();
+                }
                 if (iqResultListener != null) {
                     try {
                         iqResultListener.receivedAnswer(packet);
@@ -476,48 +496,35 @@ public class IQRouter extends BasicModule {
     }
 
     /**
-	 * Timer task that will remove Listeners that wait for results to IQ stanzas
-	 * that have timed out. Time out values can be set to each listener
+	 * Timer task that will remove a Listener that waits for the result to an IQ
+	 * stanza that has timed out. Time out values can be set to each listener
 	 * individually by adjusting the timeout value in the third parameter of
 	 * {@link IQRouter#addIQResultListener(String, IQResultListener, long)}.
 	 *
 	 * @author Guus der Kinderen, guus@nimbuzz.com
 	 */
-    private class TimeoutTask extends TimerTask {
+    private class TimeoutTask implements Runnable {
 
-        /**
-         * Iterates over and removes all timed out results.<p>
-         *
-         * The map that keeps track of timeout values is ordered by timeout
-         * date. This way, iteration can be stopped as soon as the first value
-         * has been found that didn't timeout yet.
-         */
-        @Override
-        public void run() {
-            // Use an Iterator to allow changes to the Map that is backing
-            // the Iterator.
-            final Iterator<Map.Entry<String, Long>> it = resultTimeout.entrySet().iterator();
+        private final String packetId;
+        private final IQResultListener listener;
+        private HashedWheelTimer.Timeout timeout;
 
-            while (it.hasNext()) {
-                final Map.Entry<String, Long> pointer = it.next();
-
-                if (System.currentTimeMillis() < pointer.getValue()) {
-                    // This entry has not expired yet. Ignore it.
-                    continue;
-                }
-
-                final String packetId = pointer.getKey();
-
-                // remove this listener from the list
-                final IQResultListener listener = resultListeners.remove(packetId);
-                if (listener != null) {
-                    // notify listener of the timeout.
-                    listener.answerTimeout(packetId);
-                }
+        TimeoutTask(String packetId, IQResultListener listener) {
+            this.packetId = packetId;
+            this.listener = listener;
+        }
 
-                // remove the packet from the list that's used to track
-                // timeouts
-                it.remove();
+        public void run() {
+            HashedWheelTimer.Timeout expired;
+            synchronized (this) {
+                expired = timeout;
+            }
+            // Only remove the entries that were not replaced by a listener for
+            // a packet with the same ID
+            resultTimeout.remove(packetId, expired);
+            if (resultListeners.remove(packetId, listener)) {
+                // notify listener of the timeout.
+                listener.answerTimeout(packetId);
             }
         }
 	}
@@ -29,6 +29,7 @@ import org.jivesoftware.openfire.interceptor.PacketRejectedException;
 import org.jivesoftware.openfire.session.ClientSession;
 import org.jivesoftware.openfire.session.LocalClientSession;
 import org.jivesoftware.openfire.session.Session;
+import org.jivesoftware.openfire.stats.PacketLatency;
 import org.jivesoftware.openfire.user.UserManager;
 import org.jivesoftware.util.JiveGlobals;
 import org.slf4j.Logger;
@@ -83,6 +84,16 @@ public class MessageRouter extends BasicModule {
      * @throws NullPointerException If the packet is null
      */
     public void route(Message packet) {
+        long start = PacketLatency.start();
+        try {
+            routePacket(packet);
+        }
+        finally {
+            PacketLatency.record(PacketLatency.Stage.messageRouter, packet, start);
+        }
+    }
+
+    private void routePacket(Message packet) {
         if (packet == null) {
             throw new NullPointerException();
         }
@@ -32,8 +32,10 @@ import org.jivesoftware.openfire.event.UserEventListener;
 import org.jivesoftware.openfire.user.User;
 import org.jivesoftware.openfire.user.UserManager;
 import org.jivesoftware.util.JiveConstants;
+import org.jivesoftware.util.JiveGlobals;
 import org.jivesoftware.util.LocaleUtils;
 import org.jivesoftware.util.StringUtils;
+import org.jivesoftware.util.TaskEngine;
 import org.jivesoftware.util.XMPPDateTimeFormat;
 import org.jivesoftware.util.cache.Cache;
 import org.jivesoftware.util.cache.CacheFactory;
@@ -46,9 +48,13 @@ import java.io.StringReader;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.util.*;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -57,7 +63,13 @@ import java.util.regex.Pattern;
  * sent to the user while they were unavailable. The user can retrieve their messages by
  * setting their presence to "available". The messages will then be delivered normally.
  * Offline message storage is optional, in which case a null implementation is returned that
- * always throws UnauthorizedException when adding messages to the store.
+ * always throws UnauthorizedException when adding messages to the store.<p>
+ *
+ * When the <tt>xmpp.offline.writeBehind.enabled</tt> property is true, messages are not
+ * written to the database by the thread that adds them. Instead they are queued and written
+ * in batches by a background task. Messages that are still queued are written to the database
+ * before the messages of their recipient are read or deleted, so write-behind does not change
+ * what the other methods of this class return.
  *
  * @author Iain Shigeoka
  */
@@ -85,6 +97,36 @@ public class OfflineMessageStore extends BasicModule implements UserEventListene
     
     private Cache<String, Integer> sizeCache;
 
+    /**
+     * True if messages are queued and written to the database in batches.
+     */
+    private boolean writeBehind = false;
+    /**
+     * Maximum number of messages to write to the database in a single batch.
+     */
+    private int batchSize = 100;
+    /**
+     * Messages waiting to be written to the database when write-behind is enabled.
+     */
+    private BlockingQueue<PendingMessage> pendingMessages;
+    /**
+     * Number of messages waiting to be written to the database for each username. A username
+     * is not removed until its messages have been written.
+     */
+    private final Map<String, Integer> pendingUsers = new HashMap<String, Integer>();
+    /**
+     * Lock held while writing queued messages so that batches are written in order.
+     */
+    private final Lock flushLock = new ReentrantLock();
+    /**
+     * True if a flush has been submitted because a full batch of messages is waiting.
+     */
+    private final AtomicBoolean flushSubmitted = new AtomicBoolean(false);
+    /**
+     * Task that writes queued messages to the database from time to time.
+     */
+    private TimerTask flushTask;
+
     /**
      * Pattern to use for detecting invalid XML characters. Invalid XML characters will
      * be removed from the stored offline messages.
@@ -143,25 +185,8 @@ public class OfflineMessageStore extends BasicModule implements UserEventListene
         // Get the message in XML format.
         String msgXML = message.getElement().asXML();
 
-        Connection con = null;
-        PreparedStatement pstmt = null;
-        try {
-            con = DbConnectionManager.getConnection();
-            pstmt = con.prepareStatement(INSERT_OFFLINE);
-            pstmt.setString(1, username);
-            pstmt.setLong(2, messageID);
-            pstmt.setString(3, StringUtils.dateToMillis(new java.util.Date()));
-            pstmt.setInt(4, msgXML.length());
-            pstmt.setString(5, msgXML);
-            pstmt.executeUpdate();
-        }
-
-        catch (Exception e) {
-            Log.error(LocaleUtils.getLocalizedString("admin.error"), e);
-        }
-        finally {
-            DbConnectionManager.closeConnection(pstmt, con);
-        }
+        storeMessage(new PendingMessage(username, messageID,
+                StringUtils.dateToMillis(new java.util.Date()), msgXML));
 
         // Update the cached size if it exists.
         if (sizeCache.containsKey(username)) {
@@ -182,47 +207,85 @@ public class OfflineMessageStore extends BasicModule implements UserEventListene
      */
     public Collection<OfflineMessage> getMessages(String username, boolean delete) {
         List<OfflineMessage> messages = new ArrayList<OfflineMessage>();
-        SAXReader xmlReader = null;
+        for (Iterator<OfflineMessage> it = streamMessages(username, delete); it.hasNext();) {
+            messages.add(it.next());
+        }
+        return messages;
+    }
+
+    /**
+     * Returns an Iterator over all messages in the store for a user. Stored stanzas are
+     * loaded from the database at once but each of them is parsed only when the iterator
+     * returns it, so messages can be sent to the user while the rest are parsed. Messages
+     * may be deleted after being selected from the database depending on the delete param.
+     *
+     * @param username the username of the user who's messages you'd like to receive.
+     * @param delete true if the offline messages should be deleted.
+     * @return An iterator of packets containing all offline messages.
+     */
+    public Iterator<OfflineMessage> streamMessages(String username, boolean delete) {
+        // Make sure that messages still waiting to be written are returned (and deleted)
+        flushPendingMessages(username);
+        final List<String[]> stanzas = loadMessages(username, delete);
+        return new Iterator<OfflineMessage>() {
+            private int index = 0;
+            private OfflineMessage next;
+
+            public boolean hasNext() {
+                while (next == null && index < stanzas.size()) {
+                    String[] stanza = stanzas.get(index);
+                    // Let the stanza be garbage collected once parsed
+                    stanzas.set(index++, null);
+                    Date creationDate = new Date(Long.parseLong(stanza[1]));
+                    try {
+                        next = parseMessage(stanza[0], creationDate);
+                    }
+                    catch (Exception e) {
+                        Log.error("Error parsing offline message: " + stanza[0], e);
+                    }
+                }
+                return next != null;
+            }
+
+            public OfflineMessage next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                OfflineMessage message = next;
+                next = null;
+                return message;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Loads the stored stanzas of a user and their creation dates from the database.
+     * The stored messages are deleted depending on the delete param.
+     *
+     * @param username the username of the user who's messages you'd like to load.
+     * @param delete true if the offline messages should be deleted.
+     * @return the stanzas and creation dates of the stored messages.
+     */
+    List<String[]> loadMessages(String username, boolean delete) {
+        List<String[]> stanzas = new ArrayList<String[]>();
         Connection con = null;
         PreparedStatement pstmt = null;
         ResultSet rs = null;
         try {
-            // Get a sax reader from the pool
-            xmlReader = xmlReaders.take();
             con = DbConnectionManager.getConnection();
             pstmt = con.prepareStatement(LOAD_OFFLINE);
             pstmt.setString(1, username);
             rs = pstmt.executeQuery();
             while (rs.next()) {
-                String msgXML = rs.getString(1);
-                Date creationDate = new Date(Long.parseLong(rs.getString(2).trim()));
-                OfflineMessage message;
-                try {
-                    message = new OfflineMessage(creationDate,
-                            xmlReader.read(new StringReader(msgXML)).getRootElement());
-                } catch (DocumentException e) {
-                    // Try again after removing invalid XML chars (e.g. &#12;)
-                    Matcher matcher = pattern.matcher(msgXML);
-                    if (matcher.find()) {
-                        msgXML = matcher.replaceAll("");
-                    }
-                    message = new OfflineMessage(creationDate,
-                            xmlReader.read(new StringReader(msgXML)).getRootElement());
-                }
-
-                // Add a delayed delivery (XEP-0203) element to the message.
-                Element delay = message.addChildElement("delay", "urn:xmpp:delay");
-                delay.addAttribute("from", XMPPServer.getInstance().getServerInfo().getXMPPDomain());
-                delay.addAttribute("stamp", XMPPDateTimeFormat.format(creationDate));
-                // Add a legacy delayed delivery (XEP-0091) element to the message. XEP is obsolete and support should be dropped in future.
-                delay = message.addChildElement("x", "jabber:x:delay");
-                delay.addAttribute("from", XMPPServer.getInstance().getServerInfo().getXMPPDomain());
-                delay.addAttribute("stamp", XMPPDateTimeFormat.formatOld(creationDate));
-                messages.add(message);
+                stanzas.add(new String[] {rs.getString(1), rs.getString(2).trim()});
             }
             // Check if the offline messages loaded should be deleted, and that there are
             // messages to delete.
-            if (delete && !messages.isEmpty()) {
+            if (delete && !stanzas.isEmpty()) {
                 PreparedStatement pstmt2 = null;
                 try {
                     pstmt2 = con.prepareStatement(DELETE_OFFLINE);
@@ -243,12 +306,53 @@ public class OfflineMessageStore extends BasicModule implements UserEventListene
         }
         finally {
             DbConnectionManager.closeConnection(rs, pstmt, con);
-            // Return the sax reader to the pool
-            if (xmlReader != null) {
-                xmlReaders.add(xmlReader);
+        }
+        return stanzas;
+    }
+
+    /**
+     * Parses a stored stanza and adds the delayed delivery information to the message.
+     *
+     * @param msgXML the stored stanza.
+     * @param creationDate the date when the offline message was stored in the database.
+     * @return the parsed offline message.
+     * @throws DocumentException if the stored stanza is not valid XML.
+     * @throws InterruptedException if interrupted while waiting for a SAX reader.
+     */
+    OfflineMessage parseMessage(String msgXML, Date creationDate)
+            throws DocumentException, InterruptedException
+    {
+        OfflineMessage message;
+        // Get a sax reader from the pool
+        SAXReader xmlReader = xmlReaders.take();
+        try {
+            try {
+                message = new OfflineMessage(creationDate,
+                        xmlReader.read(new StringReader(msgXML)).getRootElement());
+            } catch (DocumentException e) {
+                // Try again after removing invalid XML chars (e.g. &#12;)
+                Matcher matcher = pattern.matcher(msgXML);
+                if (matcher.find()) {
+                    msgXML = matcher.replaceAll("");
+                }
+                message = new OfflineMessage(creationDate,
+                        xmlReader.read(new StringReader(msgXML)).getRootElement());
             }
         }
-        return messages;
+        finally {
+            // Return the sax reader to the pool
+            xmlReaders.add(xmlReader);
+        }
+
+        // Add a delayed delivery (XEP-0203) element to the message.
+        Element delay = message.addChildElement("delay", "urn:xmpp:delay");
+        delay.addAttribute("from", XMPPServer.getInstance().getServerInfo().getXMPPDomain());
+        delay.addAttribute("stamp", XMPPDateTimeFormat.format(creationDate));
+        // Add a legacy delayed delivery (XEP-0091) element to the message. XEP is obsolete and support should be dropped in future.
+        delay = message.addChildElement("x", "jabber:x:delay");
+        delay.addAttribute("from", XMPPServer.getInstance().getServerInfo().getXMPPDomain());
+        delay.addAttribute("stamp", XMPPDateTimeFormat.formatOld(creationDate));
+        return message;
     }
 
     /**
@@ -260,6 +364,7 @@ public class OfflineMessageStore extends BasicModule implements UserEventListene
      * @return the offline message of the specified user with the given creation stamp.
      */
     public OfflineMessage getMessage(String username, Date creationDate) {
+        flushPendingMessages(username);
         OfflineMessage message = null;
         Connection con = null;
         PreparedStatement pstmt = null;
@@ -307,6 +412,7 @@ public class OfflineMessageStore extends BasicModule implements UserEventListene
      * @param username the username of the user who's messages are going to be deleted.
      */
     public void deleteMessages(String username) {
+        flushPendingMessages(username);
         Connection con = null;
         PreparedStatement pstmt = null;
         try {
@@ -340,6 +446,7 @@ public class OfflineMessageStore extends BasicModule implements UserEventListene
      * @param creationDate the date when the offline message was stored in the database.
      */
     public void deleteMessage(String username, Date creationDate) {
+        flushPendingMessages(username);
         Connection con = null;
         PreparedStatement pstmt = null;
         try {
@@ -375,6 +482,7 @@ public class OfflineMessageStore extends BasicModule implements UserEventListene
         if (sizeCache.containsKey(username)) {
             return sizeCache.get(username);
         }
+        flushPendingMessages(username);
         int size = 0;
         Connection con = null;
         PreparedStatement pstmt = null;
@@ -406,6 +514,7 @@ public class OfflineMessageStore extends BasicModule implements UserEventListene
      * @return the approximate size of all stored messages (in bytes).
      */
     public int getSize() {
+        flushPendingMessages();
         int size = 0;
         Connection con = null;
         PreparedStatement pstmt = null;
@@ -452,17 +561,229 @@ public class OfflineMessageStore extends BasicModule implements UserEventListene
         // Add this module as a user event listener so we can delete
         // all offline messages when a user is deleted
         UserEventDispatcher.addListener(this);
+        // Queue messages and write them in batches if write-behind is enabled
+        if (JiveGlobals.getBooleanProperty("xmpp.offline.writeBehind.enabled", false)) {
+            startWriteBehind(JiveGlobals.getIntProperty("xmpp.offline.writeBehind.batchSize", 100),
+                    JiveGlobals.getIntProperty("xmpp.offline.writeBehind.queueSize", 10000),
+                    JiveGlobals.getLongProperty("xmpp.offline.writeBehind.interval", 1000));
+        }
+    }
+
+    /**
+     * Queues the messages added from now on and writes them to the database in batches.
+     *
+     * @param batchSize maximum number of messages to write in a single batch.
+     * @param queueSize maximum number of queued messages.
+     * @param interval milliseconds between two writes of the queued messages.
+     */
+    void startWriteBehind(int batchSize, int queueSize, long interval) {
+        this.batchSize = Math.max(1, batchSize);
+        pendingMessages = new LinkedBlockingQueue<PendingMessage>(queueSize);
+        flushTask = new TimerTask() {
+            @Override
+            public void run() {
+                flushPendingMessages();
+            }
+        };
+        TaskEngine.getInstance().schedule(flushTask, interval, interval);
+        writeBehind = true;
     }
 
     @Override
 	public void stop() {
         super.stop();
+        if (writeBehind) {
+            // Write the messages that are still queued
+            TaskEngine.getInstance().cancelScheduledTask(flushTask);
+            flushPendingMessages();
+            writeBehind = false;
+        }
         // Clean up the pool of sax readers
         xmlReaders.clear();
         // Remove this module as a user event listener
         UserEventDispatcher.removeListener(this);
     }
 
+    /**
+     * Writes a message to the database, or queues it if write-behind is enabled.
+     *
+     * @param message the message to write to the database.
+     */
+    void storeMessage(PendingMessage message) {
+        if (writeBehind) {
+            queueMessage(message);
+        }
+        else {
+            insertMessage(message);
+        }
+    }
+
+    /**
+     * Queues a message that will be written to the database by a background task. A flush
+     * is submitted as soon as a full batch of messages is waiting. If the queue is full the
+     * queued messages and then the new message are written by the current thread.
+     *
+     * @param message the message to write to the database.
+     */
+    private void queueMessage(PendingMessage message) {
+        synchronized (pendingUsers) {
+            Integer count = pendingUsers.get(message.username);
+            pendingUsers.put(message.username, count == null ? 1 : count + 1);
+        }
+        if (!pendingMessages.offer(message)) {
+            flushLock.lock();
+            try {
+                // Write the queued messages first to keep the messages of the user in order
+                flushPendingMessages();
+                insertMessage(message);
+            }
+            finally {
+                flushLock.unlock();
+            }
+            releasePendingMessages(Collections.singletonList(message));
+            return;
+        }
+        if (pendingMessages.size() >= batchSize && flushSubmitted.compareAndSet(false, true)) {
+            TaskEngine.getInstance().submit(new Runnable() {
+                public void run() {
+                    flushSubmitted.set(false);
+                    flushPendingMessages();
+                }
+            });
+        }
+    }
+
+    /**
+     * Writes the queued messages to the database if there are queued messages for the
+     * specified user. Messages are written in the same order that they were queued.
+     *
+     * @param username the username of the user.
+     */
+    void flushPendingMessages(String username) {
+        if (!writeBehind) {
+            return;
+        }
+        synchronized (pendingUsers) {
+            if (!pendingUsers.containsKey(username)) {
+                return;
+            }
+        }
+        flushPendingMessages();
+    }
+
+    /**
+     * Writes all the queued messages to the database in batches.
+     */
+    private void flushPendingMessages() {
+        if (pendingMessages == null) {
+            return;
+        }
+        flushLock.lock();
+        try {
+            List<PendingMessage> batch = new ArrayList<PendingMessage>(batchSize);
+            while (pendingMessages.drainTo(batch, batchSize) > 0) {
+                insertMessages(batch);
+                releasePendingMessages(batch);
+                batch.clear();
+            }
+        }
+        finally {
+            flushLock.unlock();
+        }
+    }
+
+    private void releasePendingMessages(List<PendingMessage> messages) {
+        synchronized (pendingUsers) {
+            for (PendingMessage message : messages) {
+                Integer count = pendingUsers.get(message.username);
+                if (count == null || count <= 1) {
+                    pendingUsers.remove(message.username);
+                }
+                else {
+                    pendingUsers.put(message.username, count - 1);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the specified messages to the database within a single transaction. Each message
+     * is written on its own if the batch could not be written.
+     *
+     * @param messages the messages to write.
+     */
+    void insertMessages(List<PendingMessage> messages) {
+        if (messages.size() > 1 && DbConnectionManager.isBatchUpdatesSupported()) {
+            Connection con = null;
+            PreparedStatement pstmt = null;
+            boolean abortTransaction = true;
+            try {
+                con = DbConnectionManager.getTransactionConnection();
+                pstmt = con.prepareStatement(INSERT_OFFLINE);
+                for (PendingMessage message : messages) {
+                    message.setParameters(pstmt);
+                    pstmt.addBatch();
+                }
+                pstmt.executeBatch();
+                abortTransaction = false;
+                return;
+            }
+            catch (Exception e) {
+                Log.warn("Failed to store offline messages as batch; will retry individually", e);
+            }
+            finally {
+                DbConnectionManager.closeTransactionConnection(pstmt, con, abortTransaction);
+            }
+        }
+        for (PendingMessage message : messages) {
+            insertMessage(message);
+        }
+    }
+
+    void insertMessage(PendingMessage message) {
+        Connection con = null;
+        PreparedStatement pstmt = null;
+        try {
+            con = DbConnectionManager.getConnection();
+            pstmt = con.prepareStatement(INSERT_OFFLINE);
+            message.setParameters(pstmt);
+            pstmt.executeUpdate();
+        }
+
+        catch (Exception e) {
+            Log.error(LocaleUtils.getLocalizedString("admin.error"), e);
+        }
+        finally {
+            DbConnectionManager.closeConnection(pstmt, con);
+        }
+    }
+
+    /**
+     * Offline message that has not been written to the database yet.
+     */
+    static class PendingMessage {
+
+        final String username;
+        final long messageID;
+        final String creationDate;
+        final String msgXML;
+
+        PendingMessage(String username, long messageID, String creationDate, String msgXML) {
+            this.username = username;
+            this.messageID = messageID;
+            this.creationDate = creationDate;
+            this.msgXML = msgXML;
+        }
+
+        void setParameters(PreparedStatement pstmt) throws SQLException {
+            pstmt.setString(1, username);
+            pstmt.setLong(2, messageID);
+            pstmt.setString(3, creationDate);
+            pstmt.setInt(4, msgXML.length());
+            pstmt.setString(5, msgXML);
+        }
+    }
+
     /**
      * Decide whether a message should be stored offline according to XEP-0160 and XEP-0334.
      *
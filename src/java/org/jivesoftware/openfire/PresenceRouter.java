@@ -28,6 +28,7 @@ import org.jivesoftware.openfire.interceptor.InterceptorManager;
 import org.jivesoftware.openfire.interceptor.PacketRejectedException;
 import org.jivesoftware.openfire.session.ClientSession;
 import org.jivesoftware.openfire.session.Session;
+import org.jivesoftware.openfire.stats.PacketLatency;
 import org.jivesoftware.util.LocaleUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -73,6 +74,16 @@ public class PresenceRouter extends BasicModule {
      * @throws NullPointerException if the packet is null.
      */
     public void route(Presence packet) {
+        long start = PacketLatency.start();
+        try {
+            routePacket(packet);
+        }
+        finally {
+            PacketLatency.record(PacketLatency.Stage.presenceRouter, packet, start);
+        }
+    }
+
+    private void routePacket(Presence packet) {
         if (packet == null) {
             throw new NullPointerException();
         }
@@ -20,9 +20,15 @@
 
 package org.jivesoftware.openfire;
 
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import org.jivesoftware.openfire.cluster.NodeID;
 import org.xmpp.packet.JID;
 import org.xmpp.packet.Message;
 import org.xmpp.packet.Packet;
+import org.xmpp.packet.Presence;
 
 /**
  * A RemotePacketRouter is responsible for deliverying packets to entities hosted
@@ -49,4 +55,16 @@ public interface RemotePacketRouter {
      * @param packet the message to broadcast.
      */
     void broadcastPacket(Message packet);
+
+    /**
+     * Routes a presence to sessions hosted in remote nodes of the cluster. Each node gets a
+     * single request with all its recipients and routes the presence to each of them, with
+     * the 'to' attribute set to the bare JID of the recipient. The presence should be
+     * serialized only once for all the nodes.
+     *
+     * @param recipients the full JIDs of the recipients grouped by the node hosting them.
+     * @param packet the presence to send.
+     * @return the nodes that were not found.
+     */
+    Collection<NodeID> broadcastPresence(Map<NodeID, List<JID>> recipients, Presence packet);
 }
@@ -27,6 +27,7 @@ import org.jivesoftware.openfire.session.OutgoingServerSession;
 import org.xmpp.packet.JID;
 import org.xmpp.packet.Message;
 import org.xmpp.packet.Packet;
+import org.xmpp.packet.Presence;
 
 import java.util.Collection;
 import java.util.List;
@@ -363,4 +364,18 @@ public interface RoutingTable {
      * @param onlyLocal true if only client sessions connecte to the local JVM will get the message.
      */
     void broadcastPacket(Message packet, boolean onlyLocal);
+
+    /**
+     * Routes a presence to the available sessions of each of the specified users. This is
+     * equivalent to routing the presence to each route returned by {@link #getRoutes(JID, JID)}
+     * for each recipient, with the 'to' attribute set to the recipient, but the routes of all
+     * the users of the local domain are resolved with a few bulk cache lookups and the users
+     * hosted in other cluster nodes get the presence with a single request per node.<p>
+     *
+     * The 'to' attribute of the presence is modified while the presence is being routed.
+     *
+     * @param recipients the bare JIDs of the users that will get the presence.
+     * @param packet the presence to route.
+     */
+    void broadcastPresence(Collection<JID> recipients, Presence packet);
 }
@@ -695,9 +695,10 @@ public class SessionManager extends BasicModule implements ClusterEventListener
         // User sessions had negative presence before this change so deliver messages
         if (session.canFloodOfflineMessages()) {
             OfflineMessageStore messageStore = server.getOfflineMessageStore();
-            Collection<OfflineMessage> messages = messageStore.getMessages(session.getAuthToken().getUsername(), true);
-            for (Message message : messages) {
-                session.process(message);
+            Iterator<OfflineMessage> messages =
+                    messageStore.streamMessages(session.getAuthToken().getUsername(), true);
+            while (messages.hasNext()) {
+                session.process(messages.next());
             }
         }
     }
@@ -70,6 +70,8 @@ import org.jivesoftware.openfire.muc.MultiUserChatManager;
 import org.jivesoftware.openfire.net.MulticastDNSService;
 import org.jivesoftware.openfire.net.SSLConfig;
 import org.jivesoftware.openfire.net.ServerTrafficCounter;
+import org.jivesoftware.openfire.nio.BufferPool;
+import org.jivesoftware.openfire.nio.WriteCoalescing;
 import org.jivesoftware.openfire.pep.IQPEPHandler;
 import org.jivesoftware.openfire.pep.IQPEPOwnerHandler;
 import org.jivesoftware.openfire.pubsub.PubSubModule;
@@ -82,11 +84,13 @@ import org.jivesoftware.openfire.spi.PacketTransporterImpl;
 import org.jivesoftware.openfire.spi.PresenceManagerImpl;
 import org.jivesoftware.openfire.spi.RoutingTableImpl;
 import org.jivesoftware.openfire.spi.XMPPServerInfoImpl;
+import org.jivesoftware.openfire.stats.PacketLatency;
 import org.jivesoftware.openfire.transport.TransportHandler;
 import org.jivesoftware.openfire.update.UpdateManager;
 import org.jivesoftware.openfire.user.UserManager;
 import org.jivesoftware.openfire.vcard.VCardManager;
 import org.jivesoftware.util.CertificateManager;
+import org.jivesoftware.util.HashedWheelTimer;
 import org.jivesoftware.util.InitializationException;
 import org.jivesoftware.util.JiveGlobals;
 import org.jivesoftware.util.LocaleUtils;
@@ -480,6 +484,11 @@ public class XMPPServer {
             }
             // Initialize statistics
             ServerTrafficCounter.initStatistics();
+            if (JMXManager.isEnabled()) {
+                PacketLatency.registerMBeans();
+                WriteCoalescing.registerMBean();
+                BufferPool.registerMBean();
+            }
 
             // Load plugins (when in setup mode only the admin console will be loaded)
             pluginManager.start();
@@ -957,6 +966,11 @@ public class XMPPServer {
         		Log.error("Exception during listener shutdown", ex);
         	}
         }
+        if (JMXManager.isEnabled()) {
+            PacketLatency.unregisterMBeans();
+            WriteCoalescing.unregisterMBean();
+            BufferPool.unregisterMBean();
+        }
         // If we don't have modules then the server has already been shutdown
         if (modules.isEmpty()) {
             return;
@@ -988,7 +1002,8 @@ public class XMPPServer {
     		Log.error("Exception during DB shutdown", ex);
         }
 
-        // Shutdown the task engine.
+        // Shutdown the timer and the task engine.
+        HashedWheelTimer.getInstance().shutdown();
         TaskEngine.getInstance().shutdown();
 
         // hack to allow safe stopping
@@ -31,6 +31,8 @@ import org.jivesoftware.openfire.cluster.ClusterEventListener;
 import org.jivesoftware.openfire.cluster.ClusterManager;
 import org.jivesoftware.openfire.cluster.NodeID;
 import org.jivesoftware.openfire.handler.IQHandler;
+import org.jivesoftware.openfire.resultsetmanager.PageRequest;
+import org.jivesoftware.openfire.resultsetmanager.ResultPage;
 import org.jivesoftware.openfire.roster.RosterItem;
 import org.jivesoftware.openfire.session.Session;
 import org.jivesoftware.openfire.user.User;
@@ -127,6 +129,35 @@ public class IQDiscoItemsHandler extends IQHandler implements ServerFeaturesProv
             Element iq = packet.getChildElement();
             String node = iq.attributeValue("node");
 
+            if (itemsProvider instanceof PagedDiscoItemsProvider) {
+                // Let the provider return only the requested page of items
+                final Element rsmElement = iq.element(
+                        QName.get("set", ResultSet.NAMESPACE_RESULT_SET_MANAGEMENT));
+                if (rsmElement != null) {
+                    if (!ResultSet.isValidRSMRequest(rsmElement)) {
+                        reply.setChildElement(iq.createCopy());
+                        reply.setError(PacketError.Condition.bad_request);
+                        return reply;
+                    }
+                    ResultPage<DiscoItem> page = ((PagedDiscoItemsProvider) itemsProvider)
+                            .getItems(name, node, packet.getFrom(), PageRequest.parse(rsmElement));
+                    if (page != null) {
+                        reply.setChildElement(iq.createCopy());
+                        Element queryElement = reply.getChildElement();
+                        queryElement.remove(queryElement.element(
+                                QName.get("set", ResultSet.NAMESPACE_RESULT_SET_MANAGEMENT)));
+                        for (DiscoItem item : page.getItems()) {
+                            Element resultElement = item.getElement();
+                            resultElement.setQName(new QName(resultElement.getName(),
+                                    queryElement.getNamespace()));
+                            queryElement.add(resultElement.createCopy());
+                        }
+                        queryElement.add(page.createSetElement());
+                        return reply;
+                    }
+                }
+            }
+
             // Check if we have items associated with the requested name and node
             Iterator<DiscoItem> itemsItr = itemsProvider.getItems(name, node, packet.getFrom());
             if (itemsItr != null) {
@@ -0,0 +1,48 @@
+/**
+ * Copyright (C) 2004-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.disco;
+
+import org.jivesoftware.openfire.resultsetmanager.PageRequest;
+import org.jivesoftware.openfire.resultsetmanager.ResultPage;
+import org.xmpp.packet.JID;
+
+/**
+ * A DiscoItemsProvider that can answer disco#items requests that include 'result set
+ * management' directives (XEP-0059) with just the requested page of items. Providers
+ * with many items (e.g. the rooms of a MUC service) should implement this interface so
+ * that the full list of items is not created for each request.<p>
+ *
+ * The UIDs used as cursors are chosen by the provider. {@link IQDiscoItemsHandler} uses
+ * {@link #getItems(String, String, JID)} for requests without RSM directives and for the
+ * names and nodes whose items are not paged.
+ */
+public interface PagedDiscoItemsProvider extends DiscoItemsProvider {
+
+    /**
+     * Returns the requested page of the target entity's items, or null if the items of
+     * the name and node are not paged. In that case the items will be retrieved with
+     * {@link #getItems(String, String, JID)}, which is also responsible for reporting
+     * that there are no items or that the sender is not authorized.
+     *
+     * @param name the recipient JID's name.
+     * @param node the requested disco node.
+     * @param senderJID the XMPPAddress of user that sent the disco items request.
+     * @param request the requested page.
+     * @return the requested page of items or null if the items are not paged.
+     */
+    ResultPage<DiscoItem> getItems(String name, String node, JID senderJID, PageRequest request);
+}
@@ -22,6 +22,7 @@ package org.jivesoftware.openfire.filetransfer.proxy;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.SocketChannel;
 import java.util.concurrent.Future;
 
 import org.jivesoftware.util.cache.CacheSizes;
@@ -42,6 +43,10 @@ public class DefaultProxyTransfer implements ProxyTransfer {
 
     private OutputStream outputStream;
 
+    private SocketChannel inputChannel;
+
+    private SocketChannel outputChannel;
+
     private String target;
 
     private String transferDigest;
@@ -50,7 +55,7 @@ public class DefaultProxyTransfer implements ProxyTransfer {
 
     private Future<?> future;
 
-    private long amountWritten;
+    private volatile long amountWritten;
 
     private static final int BUFFER_SIZE = 8000;
 
@@ -81,6 +86,44 @@ public class DefaultProxyTransfer implements ProxyTransfer {
         this.outputStream = outputStream;
     }
 
+    /**
+     * Sets the channel of the initiator's connection, which allows the transfer to be relayed
+     * by a {@link ProxyRelay} instead of {@link #doTransfer()}.
+     *
+     * @param inputChannel the channel of the initiator's connection.
+     */
+    void setInputChannel(SocketChannel inputChannel) {
+        this.inputChannel = inputChannel;
+    }
+
+    SocketChannel getInputChannel() {
+        return inputChannel;
+    }
+
+    /**
+     * Sets the channel of the target's connection, which allows the transfer to be relayed
+     * by a {@link ProxyRelay} instead of {@link #doTransfer()}.
+     *
+     * @param outputChannel the channel of the target's connection.
+     */
+    void setOutputChannel(SocketChannel outputChannel) {
+        this.outputChannel = outputChannel;
+    }
+
+    SocketChannel getOutputChannel() {
+        return outputChannel;
+    }
+
+    /**
+     * Returns true if the channels of both connections are known, so that the transfer can be
+     * relayed by a {@link ProxyRelay}.
+     *
+     * @return true if the transfer can be relayed by a {@link ProxyRelay}.
+     */
+    boolean isRelayable() {
+        return inputChannel != null && outputChannel != null;
+    }
+
     public String getTarget() {
         return target;
     }
@@ -121,6 +164,15 @@ public class DefaultProxyTransfer implements ProxyTransfer {
         return amountWritten;
     }
 
+    /**
+     * Adds to the amount transfered when the transfer is relayed by a {@link ProxyRelay}.
+     *
+     * @param amount the number of bytes that were relayed.
+     */
+    void addAmountTransfered(long amount) {
+        amountWritten += amount;
+    }
+
     public void doTransfer() throws IOException {
         if (!isActivatable()) {
             throw new IOException("Transfer missing party");
@@ -178,6 +230,8 @@ public class DefaultProxyTransfer implements ProxyTransfer {
         size += CacheSizes.sizeOfLong();  // Amount written
         size += CacheSizes.sizeOfObject(); // Initiatior Socket
         size += CacheSizes.sizeOfObject(); // Target socket
+        size += CacheSizes.sizeOfObject(); // Initiator channel
+        size += CacheSizes.sizeOfObject(); // Target channel
         size += CacheSizes.sizeOfObject(); // Future
         return size;
     }
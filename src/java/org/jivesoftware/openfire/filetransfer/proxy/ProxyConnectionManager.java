@@ -25,13 +25,16 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
 import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 
+import org.jivesoftware.openfire.JMXManager;
 import org.jivesoftware.openfire.auth.UnauthorizedException;
 import org.jivesoftware.openfire.filetransfer.FileTransferManager;
 import org.jivesoftware.openfire.filetransfer.FileTransferRejectedException;
@@ -50,7 +53,11 @@ import org.xmpp.packet.JID;
  * Manages the connections to the proxy server. The connections go through two stages before
  * file transfer begins. The first stage is when the file transfer target initiates a connection
  * to this manager. Stage two is when the initiator connects, the manager will then match the two
- * connections using the unique SHA-1 hash defined in the SOCKS5 protocol.
+ * connections using the unique SHA-1 hash defined in the SOCKS5 protocol.<p>
+ *
+ * When <tt>xmpp.proxy.relay.enabled</tt> is true, activated transfers are relayed by a
+ * {@link ProxyRelay} that multiplexes them over a few threads, instead of running each transfer
+ * on a thread of its own.
  *
  * @author Alexander Wenckus
  */
@@ -60,6 +67,12 @@ public class ProxyConnectionManager {
 
     private static final String proxyTransferRate = "proxyTransferRate";
 
+    private static final String RELAY_ENABLED_PROPERTY = "xmpp.proxy.relay.enabled";
+    private static final String RELAY_THREADS_PROPERTY = "xmpp.proxy.relay.threads";
+    private static final String RELAY_BUFFER_PROPERTY = "xmpp.proxy.relay.buffer";
+    private static final String RELAY_RATE_PROPERTY = "xmpp.proxy.relay.rate";
+    private static final String RELAY_TRANSFER_RATE_PROPERTY = "xmpp.proxy.relay.transfer.rate";
+
     private Map<String, ProxyTransfer> connectionMap;
 
     private final Object connectionLock = new Object();
@@ -76,6 +89,8 @@ public class ProxyConnectionManager {
 
     private String className;
 
+    private ProxyRelay relay;
+
     public ProxyConnectionManager(FileTransferManager manager) {
         String cacheName = "File Transfer";
         connectionMap = CacheFactory.createCache(cacheName);
@@ -101,7 +116,10 @@ public class ProxyConnectionManager {
         socketProcess = executor.submit(new Runnable() {
             public void run() {
                 try {
-                    serverSocket = new ServerSocket(port, -1, bindInterface);
+                    // Sockets accepted by a channel can be handed to the relay after the handshake
+                    ServerSocketChannel serverChannel = ServerSocketChannel.open();
+                    serverSocket = serverChannel.socket();
+                    serverSocket.bind(new InetSocketAddress(bindInterface, port));
                 }
                 catch (IOException e) {
                     Log.error("Error creating server socket", e);
@@ -196,6 +214,9 @@ public class ProxyConnectionManager {
                 }
                 else {
                     transfer.setInputStream(connection.getInputStream());
+                    if (transfer instanceof DefaultProxyTransfer) {
+                        ((DefaultProxyTransfer) transfer).setInputChannel(connection.getChannel());
+                    }
                 }
             }
             cmd = createOutgoingSocks5Message(0, responseDigest);
@@ -222,6 +243,9 @@ public class ProxyConnectionManager {
 
         provider.setTransferDigest(transferDigest);
         provider.setOutputStream(targetSocket.getOutputStream());
+        if (provider instanceof DefaultProxyTransfer) {
+            ((DefaultProxyTransfer) provider).setOutputChannel(targetSocket.getChannel());
+        }
         return provider;
     }
 
@@ -269,6 +293,11 @@ public class ProxyConnectionManager {
     synchronized void shutdown() {
         disable();
         executor.shutdown();
+        if (relay != null) {
+            relay.unregisterMBean();
+            relay.shutdown();
+            relay = null;
+        }
         StatisticsManager.getInstance().removeStatistic(proxyTransferRate);
     }
 
@@ -300,6 +329,7 @@ public class ProxyConnectionManager {
         transfer.setInitiator(initiator.toString());
         transfer.setTarget(target.toString());
         transfer.setSessionID(sid);
+        final ProxyRelay relay = getRelay(transfer);
         transfer.setTransferFuture(executor.submit(new Runnable() {
             public void run() {
                 try {
@@ -309,6 +339,17 @@ public class ProxyConnectionManager {
                     notifyFailure(transfer, e);
                     return;
                 }
+                if (relay != null) {
+                    // Bytes are relayed by the selector threads, this thread is released
+                    DefaultProxyTransfer relayed = (DefaultProxyTransfer) transfer;
+                    relay.relay(relayed, relayed.getInputChannel(), relayed.getOutputChannel(),
+                            new Runnable() {
+                                public void run() {
+                                    connectionMap.remove(digest);
+                                }
+                            });
+                    return;
+                }
                 try {
                     transfer.doTransfer();
                 }
@@ -322,6 +363,34 @@ public class ProxyConnectionManager {
         }));
     }
 
+    /**
+     * Returns the relay for the transfer, or null if the transfer is to be carried out by
+     * {@link ProxyTransfer#doTransfer()} on a thread of its own.
+     */
+    private synchronized ProxyRelay getRelay(ProxyTransfer transfer) {
+        if (!JiveGlobals.getBooleanProperty(RELAY_ENABLED_PROPERTY, false)
+                || !(transfer instanceof DefaultProxyTransfer)
+                || !((DefaultProxyTransfer) transfer).isRelayable()) {
+            return null;
+        }
+        if (relay == null) {
+            try {
+                relay = new ProxyRelay(JiveGlobals.getIntProperty(RELAY_THREADS_PROPERTY, 2),
+                        JiveGlobals.getIntProperty(RELAY_BUFFER_PROPERTY, 16384),
+                        JiveGlobals.getLongProperty(RELAY_RATE_PROPERTY, 0),
+                        JiveGlobals.getLongProperty(RELAY_TRANSFER_RATE_PROPERTY, 0));
+            }
+            catch (IOException e) {
+                Log.error("Error starting proxy relay, transfers use a thread each", e);
+                return null;
+            }
+            if (JMXManager.isEnabled()) {
+                relay.registerMBean();
+            }
+        }
+        return relay;
+    }
+
     private void notifyFailure(ProxyTransfer transfer, FileTransferRejectedException e) {
 
     }
@@ -0,0 +1,567 @@
+/**
+ * Copyright (C) 2004-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.filetransfer.proxy;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Relays the bytes of proxy transfers from the initiator to the target over non-blocking
+ * channels. A few selector threads multiplex all active transfers instead of dedicating a
+ * thread to each one, and the bytes are moved through pooled direct buffers so that they are
+ * not copied onto the Java heap.<p>
+ *
+ * The rate of each transfer and the combined rate of all transfers can be limited. Each limit
+ * is a token bucket that allows bursts of up to one second; a transfer that runs out of tokens
+ * stops reading from the initiator until enough tokens are available again. The counters are
+ * registered as an MBean named <tt>org.jivesoftware.openfire:type=ProxyRelay</tt>.
+ */
+class ProxyRelay implements ProxyRelayMBean {
+
+    private static final Logger Log = LoggerFactory.getLogger(ProxyRelay.class);
+
+    /**
+     * Shortest pause of a throttled transfer.
+     */
+    private static final long MIN_THROTTLE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final Reactor[] reactors;
+    private final AtomicInteger nextReactor = new AtomicInteger();
+    private final int bufferSize;
+    private final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<ByteBuffer>();
+    private final Shaper globalShaper;
+    private final long globalRate;
+    private final long transferRate;
+
+    private final AtomicInteger activeTransfers = new AtomicInteger();
+    private final AtomicLong completedTransfers = new AtomicLong();
+    private final AtomicLong failedTransfers = new AtomicLong();
+    private final AtomicLong bytesRelayed = new AtomicLong();
+    private final AtomicLong throttles = new AtomicLong();
+    private long lastSampleTime = System.currentTimeMillis();
+    private long lastSampleBytes;
+
+    /**
+     * Creates a relay and starts its selector threads.
+     *
+     * @param threads the number of selector threads.
+     * @param bufferSize the size of the buffer of each transfer.
+     * @param globalRate the maximum number of bytes per second of all transfers combined, or 0
+     *        for no limit.
+     * @param transferRate the maximum number of bytes per second of each transfer, or 0 for no
+     *        limit.
+     * @throws IOException if a selector could not be opened.
+     */
+    ProxyRelay(int threads, int bufferSize, long globalRate, long transferRate) throws IOException {
+        this.bufferSize = bufferSize;
+        this.globalRate = Math.max(globalRate, 0);
+        this.transferRate = Math.max(transferRate, 0);
+        this.globalShaper = this.globalRate > 0 ? new Shaper(this.globalRate) : null;
+        reactors = new Reactor[Math.max(threads, 1)];
+        for (int i = 0; i < reactors.length; i++) {
+            reactors[i] = new Reactor(Selector.open());
+            Thread thread = new Thread(reactors[i], "proxy-relay-" + (i + 1));
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Starts relaying the bytes that the initiator sends to the target. Both channels are
+     * switched to non-blocking mode and are closed once the initiator closed its channel and
+     * everything it sent was written to the target, or when either channel fails.
+     *
+     * @param transfer the transfer whose progress is updated.
+     * @param source the channel of the initiator.
+     * @param target the channel of the target.
+     * @param onComplete run once the transfer ended, successfully or not.
+     */
+    void relay(DefaultProxyTransfer transfer, SocketChannel source, SocketChannel target,
+            Runnable onComplete) {
+        Relay relay = new Relay(transfer, source, target, onComplete);
+        activeTransfers.incrementAndGet();
+        reactors[(nextReactor.getAndIncrement() & Integer.MAX_VALUE) % reactors.length].add(relay);
+    }
+
+    /**
+     * Stops the selector threads and closes the channels of all transfers in progress.
+     */
+    void shutdown() {
+        for (Reactor reactor : reactors) {
+            reactor.shutdown();
+        }
+    }
+
+    /**
+     * Registers the counters with the platform MBean server.
+     */
+    void registerMBean() {
+        try {
+            MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = getObjectName();
+            if (!mbs.isRegistered(name)) {
+                mbs.registerMBean(this, name);
+            }
+        }
+        catch (JMException e) {
+            Log.warn("Failed to register proxy relay mbean (JMX): " + e);
+        }
+    }
+
+    /**
+     * Removes the counters from the platform MBean server.
+     */
+    void unregisterMBean() {
+        try {
+            MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = getObjectName();
+            if (mbs.isRegistered(name)) {
+                mbs.unregisterMBean(name);
+            }
+        }
+        catch (JMException e) {
+            Log.warn("Failed to unregister proxy relay mbean (JMX): " + e);
+        }
+    }
+
+    private static ObjectName getObjectName() throws JMException {
+        return new ObjectName("org.jivesoftware.openfire:type=ProxyRelay");
+    }
+
+    public int getActiveTransfers() {
+        return activeTransfers.get();
+    }
+
+    public long getCompletedTransfers() {
+        return completedTransfers.get();
+    }
+
+    public long getFailedTransfers() {
+        return failedTransfers.get();
+    }
+
+    public long getBytesRelayed() {
+        return bytesRelayed.get();
+    }
+
+    public synchronized long getThroughput() {
+        long now = System.currentTimeMillis();
+        long bytes = bytesRelayed.get();
+        long elapsed = now - lastSampleTime;
+        long throughput = elapsed > 0 ? (bytes - lastSampleBytes) * 1000 / elapsed : 0;
+        lastSampleTime = now;
+        lastSampleBytes = bytes;
+        return throughput;
+    }
+
+    public long getThrottles() {
+        return throttles.get();
+    }
+
+    public long getTransferRate() {
+        return transferRate;
+    }
+
+    public long getGlobalRate() {
+        return globalRate;
+    }
+
+    private ByteBuffer acquireBuffer() {
+        ByteBuffer buffer = buffers.poll();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(bufferSize);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Token bucket limiting a rate in bytes per second, allowing bursts of up to one second.
+     */
+    static final class Shaper {
+
+        private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+        private final long rate;
+        private long tokens;
+        private long lastRefill;
+
+        Shaper(long rate) {
+            this.rate = rate;
+            this.tokens = rate;
+            this.lastRefill = System.nanoTime();
+        }
+
+        /**
+         * Takes up to the wanted number of tokens.
+         *
+         * @return the number of tokens taken, 0 if none are available.
+         */
+        synchronized long acquire(long wanted, long now) {
+            refill(now);
+            long granted = Math.min(wanted, tokens);
+            tokens -= granted;
+            return granted;
+        }
+
+        /**
+         * Returns tokens that were taken but not used.
+         */
+        synchronized void release(long unused) {
+            tokens = Math.min(rate, tokens + unused);
+        }
+
+        /**
+         * Returns the time until the wanted number of tokens is available.
+         */
+        synchronized long nanosUntil(long wanted, long now) {
+            refill(now);
+            wanted = Math.min(wanted, rate);
+            return tokens >= wanted ? 0 : (wanted - tokens) * NANOS_PER_SECOND / rate;
+        }
+
+        /**
+         * Returns the number of tokens worth waiting for, so that throttled transfers do not
+         * wake up for every single byte.
+         */
+        long getChunk(int bufferSize) {
+            return Math.max(1, Math.min(bufferSize, rate / 50));
+        }
+
+        private void refill(long now) {
+            long elapsed = now - lastRefill;
+            if (elapsed >= NANOS_PER_SECOND) {
+                tokens = rate;
+                lastRefill = now;
+            }
+            else if (elapsed > 0) {
+                long added = elapsed * rate / NANOS_PER_SECOND;
+                // Keep the remainder for the next refill when not even one token was added
+                if (added > 0) {
+                    tokens = Math.min(rate, tokens + added);
+                    lastRefill = now;
+                }
+            }
+        }
+    }
+
+    /**
+     * State of one transfer. Only used by the thread of its reactor once registered.
+     */
+    private final class Relay {
+
+        private final DefaultProxyTransfer transfer;
+        private final SocketChannel source;
+        private final SocketChannel target;
+        private final Runnable onComplete;
+        private final Shaper shaper;
+        private final ByteBuffer buffer;
+        private SelectionKey sourceKey;
+        private SelectionKey targetKey;
+        private boolean endOfStream;
+        private boolean completed;
+        private long resumeAt;
+
+        Relay(DefaultProxyTransfer transfer, SocketChannel source, SocketChannel target,
+                Runnable onComplete) {
+            this.transfer = transfer;
+            this.source = source;
+            this.target = target;
+            this.onComplete = onComplete;
+            this.shaper = transferRate > 0 ? new Shaper(transferRate) : null;
+            this.buffer = acquireBuffer();
+        }
+
+        void register(Selector selector) throws IOException {
+            source.configureBlocking(false);
+            target.configureBlocking(false);
+            sourceKey = source.register(selector, SelectionKey.OP_READ, this);
+            targetKey = target.register(selector, 0, this);
+        }
+
+        /**
+         * Reads as many bytes as the rate limits allow and writes them to the target.
+         */
+        void read(Reactor reactor) throws IOException {
+            long now = System.nanoTime();
+            long allowed = acquire(buffer.capacity(), now);
+            if (allowed == 0) {
+                throttle(reactor, now);
+                return;
+            }
+            buffer.clear();
+            buffer.limit((int) allowed);
+            int read = source.read(buffer);
+            if (read < 0) {
+                endOfStream = true;
+            }
+            long unused = allowed - Math.max(read, 0);
+            if (unused > 0) {
+                release(unused);
+            }
+            if (read > 0) {
+                bytesRelayed.addAndGet(read);
+                ProxyOutputStream.amountTransfered.addAndGet(read);
+                transfer.addAmountTransfered(read);
+            }
+            buffer.flip();
+            write();
+        }
+
+        /**
+         * Writes the buffered bytes to the target. Reading from the initiator resumes once
+         * the buffer was completely written.
+         */
+        void write() throws IOException {
+            if (buffer.hasRemaining()) {
+                target.write(buffer);
+            }
+            if (buffer.hasRemaining()) {
+                sourceKey.interestOps(0);
+                targetKey.interestOps(SelectionKey.OP_WRITE);
+            }
+            else if (endOfStream) {
+                complete(true);
+            }
+            else {
+                targetKey.interestOps(0);
+                sourceKey.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        private long acquire(long wanted, long now) {
+            long granted = wanted;
+            if (shaper != null) {
+                granted = shaper.acquire(granted, now);
+            }
+            if (globalShaper != null && granted > 0) {
+                long globalGranted = globalShaper.acquire(granted, now);
+                if (shaper != null && globalGranted < granted) {
+                    shaper.release(granted - globalGranted);
+                }
+                granted = globalGranted;
+            }
+            return granted;
+        }
+
+        private void release(long unused) {
+            if (shaper != null) {
+                shaper.release(unused);
+            }
+            if (globalShaper != null) {
+                globalShaper.release(unused);
+            }
+        }
+
+        private void throttle(Reactor reactor, long now) {
+            long delay = MIN_THROTTLE_NANOS;
+            if (shaper != null) {
+                delay = Math.max(delay, shaper.nanosUntil(shaper.getChunk(bufferSize), now));
+            }
+            if (globalShaper != null) {
+                delay = Math.max(delay, globalShaper.nanosUntil(globalShaper.getChunk(bufferSize), now));
+            }
+            resumeAt = now + delay;
+            sourceKey.interestOps(0);
+            throttles.incrementAndGet();
+            reactor.throttled.add(this);
+        }
+
+        void resume() {
+            if (sourceKey.isValid()) {
+                sourceKey.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        void complete(boolean success) {
+            if (completed) {
+                return;
+            }
+            completed = true;
+            close(source);
+            close(target);
+            buffers.offer(buffer);
+            activeTransfers.decrementAndGet();
+            if (success) {
+                completedTransfers.incrementAndGet();
+            }
+            else {
+                failedTransfers.incrementAndGet();
+            }
+            try {
+                onComplete.run();
+            }
+            catch (Exception e) {
+                Log.error("Error completing file transfer " + transfer.getTransferDigest(), e);
+            }
+        }
+
+        private void close(SocketChannel channel) {
+            try {
+                channel.close();
+            }
+            catch (IOException e) {
+                Log.debug("Error closing proxy connection", e);
+            }
+        }
+    }
+
+    /**
+     * Selector thread relaying a share of the transfers.
+     */
+    private final class Reactor implements Runnable {
+
+        private final Selector selector;
+        private final Queue<Relay> registrations = new ConcurrentLinkedQueue<Relay>();
+        private final List<Relay> throttled = new ArrayList<Relay>();
+        private volatile boolean running = true;
+
+        Reactor(Selector selector) {
+            this.selector = selector;
+        }
+
+        void add(Relay relay) {
+            registrations.add(relay);
+            selector.wakeup();
+            if (!running) {
+                // Raced with shutdown, the reactor no longer picks up registrations
+                registerPending();
+            }
+        }
+
+        void shutdown() {
+            running = false;
+            selector.wakeup();
+        }
+
+        public void run() {
+            try {
+                while (running) {
+                    selector.select(getSelectTimeout());
+                    registerPending();
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Relay relay = (Relay) key.attachment();
+                        try {
+                            if (key == relay.sourceKey && key.isReadable()) {
+                                relay.read(this);
+                            }
+                            else if (key == relay.targetKey && key.isWritable()) {
+                                relay.write();
+                            }
+                        }
+                        catch (IOException e) {
+                            Log.debug("Error relaying file transfer " +
+                                    relay.transfer.getTransferDigest(), e);
+                            relay.complete(false);
+                        }
+                        catch (CancelledKeyException e) {
+                            relay.complete(false);
+                        }
+                    }
+                    resumeThrottled();
+                }
+            }
+            catch (Throwable t) {
+                Log.error("Error in proxy relay, transfers of this thread are closed", t);
+            }
+            finally {
+                running = false;
+                for (SelectionKey key : selector.keys()) {
+                    ((Relay) key.attachment()).complete(false);
+                }
+                registerPending();
+                try {
+                    selector.close();
+                }
+                catch (IOException e) {
+                    Log.debug("Error closing proxy relay selector", e);
+                }
+            }
+        }
+
+        private void registerPending() {
+            Relay relay;
+            while ((relay = registrations.poll()) != null) {
+                if (!running) {
+                    relay.complete(false);
+                    continue;
+                }
+                try {
+                    relay.register(selector);
+                }
+                catch (IOException e) {
+                    Log.warn("Error starting relay of file transfer " +
+                            relay.transfer.getTransferDigest(), e);
+                    relay.complete(false);
+                }
+            }
+        }
+
+        private long getSelectTimeout() {
+            if (throttled.isEmpty()) {
+                return 0;
+            }
+            long now = System.nanoTime();
+            long next = Long.MAX_VALUE;
+            for (Relay relay : throttled) {
+                next = Math.min(next, relay.resumeAt);
+            }
+            return Math.max(1, TimeUnit.NANOSECONDS.toMillis(next - now));
+        }
+
+        private void resumeThrottled() {
+            if (throttled.isEmpty()) {
+                return;
+            }
+            long now = System.nanoTime();
+            Iterator<Relay> it = throttled.iterator();
+            while (it.hasNext()) {
+                Relay relay = it.next();
+                if (relay.completed) {
+                    it.remove();
+                }
+                else if (now - relay.resumeAt >= 0) {
+                    it.remove();
+                    relay.resume();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/**
+ * Copyright (C) 2004-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.filetransfer.proxy;
+
+/**
+ * JMX view of the counters of {@link ProxyRelay}.
+ */
+public interface ProxyRelayMBean {
+
+    /**
+     * Returns the number of transfers currently being relayed.
+     *
+     * @return the number of transfers currently being relayed.
+     */
+    int getActiveTransfers();
+
+    /**
+     * Returns the number of transfers that were relayed to the end.
+     *
+     * @return the number of transfers that were relayed to the end.
+     */
+    long getCompletedTransfers();
+
+    /**
+     * Returns the number of transfers that ended with an error.
+     *
+     * @return the number of transfers that ended with an error.
+     */
+    long getFailedTransfers();
+
+    /**
+     * Returns the number of bytes relayed by all transfers.
+     *
+     * @return the number of bytes relayed by all transfers.
+     */
+    long getBytesRelayed();
+
+    /**
+     * Returns the number of bytes relayed per second since the previous call of this method.
+     *
+     * @return the number of bytes relayed per second since the previous call.
+     */
+    long getThroughput();
+
+    /**
+     * Returns the number of times a transfer was paused to stay within a rate limit.
+     *
+     * @return the number of times a transfer was paused to stay within a rate limit.
+     */
+    long getThrottles();
+
+    /**
+     * Returns the maximum number of bytes per second relayed by a single transfer, or 0 if
+     * transfers are not limited.
+     *
+     * @return the maximum rate of a single transfer.
+     */
+    long getTransferRate();
+
+    /**
+     * Returns the maximum number of bytes per second relayed by all transfers combined, or 0 if
+     * the combined rate is not limited.
+     *
+     * @return the maximum rate of all transfers combined.
+     */
+    long getGlobalRate();
+}
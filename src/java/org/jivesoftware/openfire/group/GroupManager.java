@@ -22,6 +22,7 @@ package org.jivesoftware.openfire.group;
 
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
 
@@ -481,7 +482,9 @@ public class GroupManager {
                 }
             }
         }
-        // Now get all visible groups to the given group.
+        // Now get all visible groups to the given group. Copy the cached public groups
+        // so they are not modified.
+        groupNames = new HashSet<String>(groupNames);
         groupNames.addAll(provider.getVisibleGroupNames(groupToCheck.getName()));
         return new GroupCollection(groupNames);
     }
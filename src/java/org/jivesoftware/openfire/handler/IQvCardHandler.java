@@ -20,6 +20,7 @@
 
 package org.jivesoftware.openfire.handler;
 
+import java.io.IOException;
 import java.util.Iterator;
 
 import org.dom4j.Element;
@@ -28,9 +29,14 @@ import org.jivesoftware.openfire.IQHandlerInfo;
 import org.jivesoftware.openfire.PacketException;
 import org.jivesoftware.openfire.XMPPServer;
 import org.jivesoftware.openfire.auth.UnauthorizedException;
+import org.jivesoftware.openfire.nio.NIOConnection;
+import org.jivesoftware.openfire.nio.SerializedStanza;
+import org.jivesoftware.openfire.session.ClientSession;
+import org.jivesoftware.openfire.session.LocalClientSession;
 import org.jivesoftware.openfire.user.User;
 import org.jivesoftware.openfire.user.UserManager;
 import org.jivesoftware.openfire.user.UserNotFoundException;
+import org.jivesoftware.openfire.vcard.SerializedVCard;
 import org.jivesoftware.openfire.vcard.VCardManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -47,6 +53,12 @@ import org.xmpp.packet.PacketError;
  * A 'set' query sets the vcard information for the sender's account.
  * </p>
  * <p>
+ * When the vCard cache keeps serialized vCards, unfiltered 'get' queries of clients connected
+ * to this node are answered with the cached bytes of the vCard, without building or
+ * serializing its element tree. The packet seen by outgoing interceptors then holds an empty
+ * vCard.
+ * </p>
+ * <p>
  * Currently an empty implementation to allow usage with normal
  * clients. Future implementation needed.
  * </p>
@@ -116,11 +128,19 @@ public class IQvCardHandler extends IQHandler {
             if (recipient != null) {
                 if (recipient.getNode() != null && server.isLocal(recipient)) {
                     VCardManager vManager = VCardManager.getInstance();
+                    // Check if the requester wants to ignore some vCard's fields
+                    Element filter = packet.getChildElement()
+                            .element(QName.get("filter", "vcard-temp-filter"));
+                    if (filter == null && vManager.isSerializedCacheEnabled()
+                            && isLocalNIOClient(packet.getFrom())) {
+                        SerializedVCard cachedVCard = vManager.getSerializedVCard(recipient.getNode());
+                        if (cachedVCard != null) {
+                            deliverSerialized(result, cachedVCard);
+                            return null;
+                        }
+                    }
                     Element userVCard = vManager.getVCard(recipient.getNode());
                     if (userVCard != null) {
-                        // Check if the requester wants to ignore some vCard's fields
-                        Element filter = packet.getChildElement()
-                                .element(QName.get("filter", "vcard-temp-filter"));
                         if (filter != null) {
                             // Create a copy so we don't modify the original vCard
                             userVCard = userVCard.createCopy();
@@ -155,6 +175,48 @@ public class IQvCardHandler extends IQHandler {
         return result;
     }
 
+    /**
+     * Returns true if the address belongs to a client session of this node whose connection
+     * writes stanzas with {@link NIOConnection}, which is able to write serialized stanzas.
+     */
+    private boolean isLocalNIOClient(JID address) {
+        if (address == null) {
+            return false;
+        }
+        ClientSession session = sessionManager.getSession(address);
+        return session instanceof LocalClientSession
+                && ((LocalClientSession) session).getConnection() instanceof NIOConnection;
+    }
+
+    /**
+     * Delivers a vCard result whose vCard is written from the cached bytes. The result is
+     * delivered by the current thread so that the connection of the requester finds the
+     * serialized stanza.
+     */
+    private void deliverSerialized(IQ result, SerializedVCard vCard) throws UnauthorizedException {
+        result.setChildElement("vCard", "vcard-temp");
+        SerializedStanza stanza;
+        try {
+            stanza = SerializedStanza.serialize(result, vCard.getBytes());
+        }
+        catch (IOException e) {
+            Log.error("Error serializing vCard result", e);
+            Element vCardElement = vCard.toElement();
+            if (vCardElement != null) {
+                result.setChildElement(vCardElement);
+            }
+            deliverer.deliver(result);
+            return;
+        }
+        SerializedStanza.setCurrent(stanza);
+        try {
+            deliverer.deliver(result);
+        }
+        finally {
+            SerializedStanza.clearCurrent();
+        }
+    }
+
     @Override
 	public void initialize(XMPPServer server) {
         super.initialize(server);
@@ -547,7 +547,10 @@ public final class HttpBindManager {
     private void createBoshHandler(ContextHandlerCollection contexts, String boshPath)
     {
         ServletContextHandler context = new ServletContextHandler(contexts, boshPath, ServletContextHandler.SESSIONS);
-        context.addServlet(new ServletHolder(new HttpBindServlet()),"/*");
+        ServletHolder holder = new ServletHolder(new HttpBindServlet());
+        // Held requests are suspended instead of occupying a thread of the pool
+        holder.setAsyncSupported(true);
+        context.addServlet(holder, "/*");
     }
 
     private void createCrossDomainHandler(ContextHandlerCollection contexts, String crossPath)
@@ -20,15 +20,23 @@
 package org.jivesoftware.openfire.http;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.InetAddress;
 import java.net.URLDecoder;
 import java.security.cert.X509Certificate;
 import java.util.Date;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.ReadListener;
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -40,7 +48,6 @@ import org.dom4j.DocumentHelper;
 import org.dom4j.Element;
 import org.dom4j.QName;
 import org.dom4j.io.XMPPPacketReader;
-import org.eclipse.jetty.continuation.ContinuationSupport;
 import org.jivesoftware.openfire.auth.UnauthorizedException;
 import org.jivesoftware.openfire.net.MXParser;
 import org.jivesoftware.util.JiveGlobals;
@@ -53,7 +60,11 @@ import org.xmlpull.v1.XmlPullParserFactory;
  * Servlet which handles requests to the HTTP binding service. It determines if there is currently
  * an {@link HttpSession} related to the connection or if one needs to be created and then passes it
  * off to the {@link HttpBindManager} for processing of the client request and formulating of the
- * response.
+ * response.<p>
+ *
+ * Requests are processed asynchronously: the request body is read and the response is written
+ * with non-blocking listeners, and a request that is held by the session does not occupy a
+ * container thread while it waits for a response.
  *
  * @author Alexander Wenckus
  */
@@ -61,6 +72,11 @@ public class HttpBindServlet extends HttpServlet {
 	
 	private static final Logger Log = LoggerFactory.getLogger(HttpBindServlet.class);
 
+    /**
+     * Number of packet readers kept around for parsing request bodies.
+     */
+    private static final int READER_POOL_SIZE = 50;
+
     private HttpSessionManager sessionManager;
     private HttpBindManager boshManager;
 
@@ -75,7 +91,12 @@ public class HttpBindServlet extends HttpServlet {
         }
     }
 
-    private ThreadLocal<XMPPPacketReader> localReader = new ThreadLocal<XMPPPacketReader>();
+    /**
+     * Pool of readers; requests are parsed on whatever thread completes reading them, so the
+     * readers are shared rather than bound to a thread.
+     */
+    private final BlockingQueue<XMPPPacketReader> readerPool =
+            new LinkedBlockingQueue<XMPPPacketReader>(READER_POOL_SIZE);
 
     public HttpBindServlet() {
     }
@@ -115,9 +136,6 @@ public class HttpBindServlet extends HttpServlet {
             return;
         }
 
-        if (isContinuation(request, response)) {
-            return;
-        }
         String queryString = request.getQueryString();
         if (queryString == null || "".equals(queryString)) {
             sendLegacyError(response, BoshBindingError.badRequest);
@@ -125,44 +143,100 @@ public class HttpBindServlet extends HttpServlet {
         }
         queryString = URLDecoder.decode(queryString, "UTF-8");
 
-        parseDocument(request, response, new ByteArrayInputStream(queryString.getBytes("UTF-8")));
+        AsyncContext context = startAsync(request);
+        parseDocument(context, new ByteArrayInputStream(queryString.getBytes("UTF-8")));
     }
 
-    private void sendLegacyError(HttpServletResponse response, BoshBindingError error)
+    private static void sendLegacyError(HttpServletResponse response, BoshBindingError error)
             throws IOException
     {
         response.sendError(error.getLegacyErrorCode());
     }
 
+    private static void sendLegacyError(AsyncContext context, BoshBindingError error) {
+        sendError(context, error.getLegacyErrorCode(), null);
+    }
+
+    /**
+     * Sends an HTTP error and completes the asynchronous request.
+     */
+    private static void sendError(AsyncContext context, int code, String message) {
+        HttpServletResponse response = (HttpServletResponse) context.getResponse();
+        try {
+            if (message == null) {
+                response.sendError(code);
+            }
+            else {
+                response.sendError(code, message);
+            }
+        }
+        catch (IOException e) {
+            Log.debug("Error sending HTTP error " + code + " to client.", e);
+        }
+        finally {
+            context.complete();
+        }
+    }
 
     @Override
     protected void doPost(HttpServletRequest request, HttpServletResponse response)
             throws ServletException, IOException {
-        if (isContinuation(request, response)) {
-            return;
-        }
+        final AsyncContext context = startAsync(request);
+        final ServletInputStream input = request.getInputStream();
+        final int contentLength = request.getContentLength();
+        input.setReadListener(new ReadListener() {
+            private final byte[] buffer = new byte[4096];
+            private final ByteArrayOutputStream content =
+                    new ByteArrayOutputStream(contentLength > 0 ? contentLength : buffer.length);
+
+            @Override
+            public void onDataAvailable() throws IOException {
+                // Only read what is available, returning releases the thread until more arrives
+                while (input.isReady() && !input.isFinished()) {
+                    int read = input.read(buffer);
+                    if (read > 0) {
+                        content.write(buffer, 0, read);
+                    }
+                }
+            }
 
-        parseDocument(request, response, request.getInputStream());
+            @Override
+            public void onAllDataRead() throws IOException {
+                parseDocument(context, new ByteArrayInputStream(content.toByteArray()));
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                Log.debug("Error reading request from client. [" +
+                        context.getRequest().getRemoteAddr() + "]", t);
+                context.complete();
+            }
+        });
     }
 
-    private void parseDocument(HttpServletRequest request, HttpServletResponse response,
-                               InputStream documentContent)
-            throws IOException {
+    private static AsyncContext startAsync(HttpServletRequest request) {
+        AsyncContext context = request.startAsync();
+        // The wait time of held requests is enforced by the connections of the sessions
+        context.setTimeout(0);
+        return context;
+    }
 
+    private void parseDocument(AsyncContext context, InputStream documentContent) {
+        HttpServletRequest request = (HttpServletRequest) context.getRequest();
         Document document;
         try {
             document = createDocument(documentContent);
         }
         catch (Exception e) {
             Log.warn("Error parsing user request. [" + request.getRemoteAddr() + "]");
-            sendLegacyError(response, BoshBindingError.badRequest);
+            sendLegacyError(context, BoshBindingError.badRequest);
             return;
         }
 
         Element node = document.getRootElement();
         if (node == null || !"body".equals(node.getName())) {
             Log.warn("Body missing from request content. [" + request.getRemoteAddr() + "]");
-            sendLegacyError(response, BoshBindingError.badRequest);
+            sendLegacyError(context, BoshBindingError.badRequest);
             return;
         }
 
@@ -170,47 +244,25 @@ public class HttpBindServlet extends HttpServlet {
 
         // We have a new session
         if (sid == null) {
-            createNewSession(request, response, node);
+            createNewSession(context, node);
         }
         else {
-            handleSessionRequest(sid, request, response, node);
-        }
-    }
-
-    private boolean isContinuation(HttpServletRequest request, HttpServletResponse response)
-            throws IOException
-    {
-        HttpSession session = (HttpSession) request.getAttribute("request-session");
-        if (session == null) {
-            return false;
-        }
-        synchronized (session) {
-            try {
-                respond(session, request, response, session.consumeResponse((HttpConnection) request.getAttribute("connection")),
-                        request.getMethod());
-            }
-            catch (HttpBindException e) {
-                sendError(request, response, e.getBindingError(), session);
-            }
+            handleSessionRequest(sid, context, node);
         }
-        return true;
     }
 
-    private void sendError(HttpServletRequest request, HttpServletResponse response,
-                           BoshBindingError bindingError, HttpSession session)
-            throws IOException
-    {
+    static void sendError(HttpSession session, AsyncContext context, BoshBindingError bindingError) {
         if (JiveGlobals.getBooleanProperty("log.httpbind.enabled", false)) {
             System.out.println(new Date()+": HTTP ERR("+session.getStreamID().getID() + "): " + bindingError.getErrorType().getType() + ", " + bindingError.getCondition() + ".");
         }
         try {
         	if ((session.getMajorVersion() == 1 && session.getMinorVersion() >= 6) ||
                 	session.getMajorVersion() > 1) {
-                respond(session, request, response, createErrorBody(bindingError.getErrorType().getType(),
-                        bindingError.getCondition()), request.getMethod());
+                respond(session, context, createErrorBody(bindingError.getErrorType().getType(),
+                        bindingError.getCondition()));
             }
             else {
-                sendLegacyError(response, bindingError);
+                sendLegacyError(context, bindingError);
             }
         }
         finally {
@@ -220,7 +272,7 @@ public class HttpBindServlet extends HttpServlet {
         }
     }
 
-    private String createErrorBody(String type, String condition) {
+    private static String createErrorBody(String type, String condition) {
         Element body = DocumentHelper.createElement("body");
         body.addNamespace("", "http://jabber.org/protocol/httpbind");
         body.addAttribute("type", type);
@@ -228,16 +280,14 @@ public class HttpBindServlet extends HttpServlet {
         return body.asXML();
     }
 
-    private void handleSessionRequest(String sid, HttpServletRequest request,
-                                      HttpServletResponse response, Element rootNode)
-            throws IOException
-    {
+    private void handleSessionRequest(String sid, AsyncContext context, Element rootNode) {
+        HttpServletRequest request = (HttpServletRequest) context.getRequest();
         if (JiveGlobals.getBooleanProperty("log.httpbind.enabled", false)) {
             System.out.println(new Date()+": HTTP RECV(" + sid + "): " + rootNode.asXML());
         }
         long rid = getLongAttribue(rootNode.attributeValue("rid"), -1);
         if (rid <= 0) {
-            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Body missing RID (Request ID)");
+            sendError(context, HttpServletResponse.SC_BAD_REQUEST, "Body missing RID (Request ID)");
             return;
         }
 
@@ -245,21 +295,22 @@ public class HttpBindServlet extends HttpServlet {
         if (session == null) {
             Log.warn("Client provided invalid session: " + sid + ". [" +
                     request.getRemoteAddr() + "]");
-            response.sendError(HttpServletResponse.SC_NOT_FOUND, "Invalid SID.");
+            sendError(context, HttpServletResponse.SC_NOT_FOUND, "Invalid SID.");
             return;
         }
+        HttpConnection connection;
         synchronized (session) {
-            HttpConnection connection;
             try {
                 connection = sessionManager.forwardRequest(rid, session,
                         request.isSecure(), rootNode);
             }
             catch (HttpBindException e) {
-                sendError(request, response, e.getBindingError(), session);
+                sendError(session, context, e.getBindingError());
                 return;
             }
             catch (HttpConnectionClosedException nc) {
                 Log.error("Error sending packet to client.", nc);
+                context.complete();
                 return;
             }
 
@@ -269,36 +320,29 @@ public class HttpBindServlet extends HttpServlet {
 
             if ("terminate".equals(type)) {
                 session.close();
-                respond(session, request, response, createEmptyBody(true), request.getMethod());
+                respond(session, context, createEmptyBody(true));
+                return;
             }
             else if ("true".equals(restartStream) && rootNode.elements().size() == 0) {
                 try {
-					respond(session, request, response, createSessionRestartResponse(session), request.getMethod());
+					respond(session, context, createSessionRestartResponse(session));
 				}
 				catch (DocumentException e) {
 					Log.error("Error sending session restart response to client.", e);
+					context.complete();
 				}
+                return;
             }
             else if (pauseDuration > 0 && pauseDuration <= session.getMaxPause()) {
             	session.pause(pauseDuration);
-                respond(session, request, response, createEmptyBody(false), request.getMethod());
+                respond(session, context, createEmptyBody(false));
                 session.setLastResponseEmpty(true);
+                return;
             }
-            else {
-                session.resetInactivityTimeout();
-                connection.setContinuation(ContinuationSupport.getContinuation(request));
-                request.setAttribute("request-session", connection.getSession());
-                request.setAttribute("request", connection.getRequestId());
-                request.setAttribute("connection", connection);
-                try {
-                    respond(session, request, response, session.consumeResponse(connection),
-                            request.getMethod());
-                }
-                catch (HttpBindException e) {
-                    sendError(request, response, e.getBindingError(), session);
-                }
-            }
+            session.resetInactivityTimeout();
         }
+        // Responds right away if a deliverable is available, otherwise holds the request
+        connection.setAsyncContext(context);
     }
 
     private String createSessionRestartResponse(HttpSession session) throws DocumentException {
@@ -314,13 +358,11 @@ public class HttpBindServlet extends HttpServlet {
         return response.asXML();
     }
 
-    private void createNewSession(HttpServletRequest request, HttpServletResponse response,
-                                  Element rootNode)
-            throws IOException
-    {
+    private void createNewSession(AsyncContext context, Element rootNode) {
+        HttpServletRequest request = (HttpServletRequest) context.getRequest();
         long rid = getLongAttribue(rootNode.attributeValue("rid"), -1);
         if (rid <= 0) {
-            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Body missing RID (Request ID)");
+            sendError(context, HttpServletResponse.SC_BAD_REQUEST, "Body missing RID (Request ID)");
             return;
         }
 
@@ -333,23 +375,23 @@ public class HttpBindServlet extends HttpServlet {
             if (JiveGlobals.getBooleanProperty("log.httpbind.enabled", false)) {
                 System.out.println(new Date()+": HTTP RECV(" + connection.getSession().getStreamID().getID() + "): " + rootNode.asXML());
             }
-            respond(request, response, connection, request.getMethod());
+            respond(context, connection);
         }
         catch (UnauthorizedException e) {
             // Server wasn't initialized yet.
-            response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+            sendError(context, HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
                     "Server Not initialized");
         }
         catch (HttpBindException e) {
-            response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            sendError(context, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, null);
+        }
+        catch (IOException e) {
+            Log.warn("Error creating session for client. [" + request.getRemoteAddr() + "]", e);
+            sendError(context, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, null);
         }
-
     }
 
-    // add request argument
-    private void respond(HttpServletRequest request, HttpServletResponse response, HttpConnection connection, String method)
-            throws IOException
-    {
+    private void respond(AsyncContext context, HttpConnection connection) {
         String content;
         try {
             content = connection.getResponse();
@@ -359,12 +401,17 @@ public class HttpBindServlet extends HttpServlet {
             connection.getSession().setLastResponseEmpty(true);
         }
 
-        respond(connection.getSession(), request, response, content, method);
+        respond(connection.getSession(), context, content);
     }
 
-    // add request argument
-    private void respond(HttpSession session, HttpServletRequest request, HttpServletResponse response, String content, String method)
-            throws IOException {
+    /**
+     * Writes the content to the client without blocking and completes the asynchronous request
+     * once all of it has been written.
+     */
+    static void respond(HttpSession session, final AsyncContext context, String content) {
+        HttpServletRequest request = (HttpServletRequest) context.getRequest();
+        HttpServletResponse response = (HttpServletResponse) context.getResponse();
+        String method = request.getMethod();
         response.setStatus(HttpServletResponse.SC_OK);
         response.setContentType("GET".equals(method) ? "text/javascript" : "text/xml");
         response.setCharacterEncoding("UTF-8");
@@ -382,10 +429,36 @@ public class HttpBindServlet extends HttpServlet {
         if (JiveGlobals.getBooleanProperty("log.httpbind.enabled", false)) {
             System.out.println(new Date()+": HTTP SENT(" + session.getStreamID().getID() + "): " + content);
         }
-        byte[] byteContent = content.getBytes("UTF-8");
-        response.setContentLength(byteContent.length);
-        response.getOutputStream().write(byteContent);
-        response.getOutputStream().close();
+        try {
+            final byte[] byteContent = content.getBytes("UTF-8");
+            response.setContentLength(byteContent.length);
+            final ServletOutputStream output = response.getOutputStream();
+            output.setWriteListener(new WriteListener() {
+                private boolean written;
+
+                @Override
+                public void onWritePossible() throws IOException {
+                    if (!written) {
+                        written = true;
+                        output.write(byteContent);
+                    }
+                    // Called again once a pending write has completed
+                    if (output.isReady()) {
+                        context.complete();
+                    }
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                    Log.debug("Error writing response to client.", t);
+                    context.complete();
+                }
+            });
+        }
+        catch (IOException e) {
+            Log.debug("Error writing response to client.", e);
+            context.complete();
+        }
     }
 
     private void setCORSHeaders(HttpServletRequest request, HttpServletResponse response) {
@@ -439,20 +512,19 @@ public class HttpBindServlet extends HttpServlet {
         }
     }
 
-    private XMPPPacketReader getPacketReader() {
-        // Reader is associated with a new XMPPPacketReader
-        XMPPPacketReader reader = localReader.get();
+    private Document createDocument(InputStream request) throws
+            DocumentException, IOException, XmlPullParserException
+    {
+        XMPPPacketReader reader = readerPool.poll();
         if (reader == null) {
             reader = new XMPPPacketReader();
             reader.setXPPFactory(factory);
-            localReader.set(reader);
         }
-        return reader;
-    }
-
-    private Document createDocument(InputStream request) throws
-            DocumentException, IOException, XmlPullParserException
-    {
-        return getPacketReader().read("UTF-8", request);
+        try {
+            return reader.read("UTF-8", request);
+        }
+        finally {
+            readerPool.offer(reader);
+        }
     }
 }
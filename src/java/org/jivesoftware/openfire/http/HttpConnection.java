@@ -20,25 +20,26 @@
 
 package org.jivesoftware.openfire.http;
 
+import org.jivesoftware.util.HashedWheelTimer;
 import org.jivesoftware.util.JiveConstants;
-import org.eclipse.jetty.continuation.Continuation;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.servlet.AsyncContext;
 import java.security.cert.X509Certificate;
 
 /**
- * Represents one HTTP connection with a client using the HTTP Binding service. The client will wait
- * on {@link #getResponse()} until the server forwards a message to it or the wait time on the
- * session timeout.
+ * Represents one HTTP connection with a client using the HTTP Binding service. The request of the
+ * client is held open as an asynchronous request until the server forwards a message to it or the
+ * wait time on the session times out, at which point the response is written without a thread
+ * having been blocked in the meantime.
  *
  * @author Alexander Wenckus
  */
 public class HttpConnection {
 
     private static final Logger Log = LoggerFactory.getLogger(HttpConnection.class);
-    private static final String RESPONSE_BODY = "response-body";
     private static final String CONNECTION_CLOSED = "connection closed";
 
     private final long requestId;
@@ -47,8 +48,10 @@ public class HttpConnection {
     
     private String body;
     private HttpSession session;
-    private Continuation continuation;
-    private boolean isClosed;
+    private volatile AsyncContext context;
+    private HashedWheelTimer.Timeout waitTimeout;
+    private volatile boolean isClosed;
+    private volatile boolean isExpired;
 
     /**
      * Constructs an HTTP Connection.
@@ -119,44 +122,41 @@ public class HttpConnection {
 	            isClosed = true;
 	        }
     	}
-        if (body == null) {
-            body = CONNECTION_CLOSED;
+        boolean waiting;
+        synchronized (this) {
+            this.body = (body == null ? CONNECTION_CLOSED : body);
+            waiting = context != null;
         }
-        if (isSuspended()) {
-            continuation.setAttribute(RESPONSE_BODY, body);
-            continuation.resume();
+        if (waiting) {
             session.incrementServerPacketCount();
-        }
-        else {
-            this.body = body;
+            dispatchResponse();
         }
     }
 
     /**
-     * A call that will suspend the request if there is no deliverable currently available.
-     * Once the response becomes available, it is returned.
+     * Returns the deliverable of this connection once it has been delivered or the wait time of
+     * the session has elapsed.
      *
-     * @return the deliverable to send to the client
+     * @return the deliverable to send to the client or <tt>null</tt> if the connection was closed.
      * @throws HttpBindTimeoutException to indicate that the maximum wait time requested by the
      * client has been surpassed and an empty response should be returned.
      */
     public String getResponse() throws HttpBindTimeoutException {
-        if (body == null && continuation != null) {
-            try {
-                body = waitForResponse();
-            }
-            catch (HttpBindTimeoutException e) {
-                this.isClosed = true;
-                throw e;
-            }
+        String response;
+        synchronized (this) {
+            response = body;
         }
-        else if (body == null) {
-            throw new IllegalStateException("Continuation not set, cannot wait for deliverable.");
+        if (response == null) {
+            if (isExpired) {
+                throw new HttpBindTimeoutException("Request " + requestId + " exceeded response " +
+                        "time from server of " + session.getWait() + " seconds.");
+            }
+            throw new IllegalStateException("No deliverable available for request " + requestId);
         }
-        else if(CONNECTION_CLOSED.equals(body)) {
-        	return null;
+        else if (CONNECTION_CLOSED.equals(response)) {
+            return null;
         }
-        return body;
+        return response;
     }
 
     /**
@@ -195,39 +195,82 @@ public class HttpConnection {
         return sslCertificates;
     }
 
-    void setContinuation(Continuation continuation) {
-        this.continuation = continuation;
+    /**
+     * Hands the asynchronous request of the client to this connection. If a deliverable is
+     * already available it is written right away, otherwise the request is held until one is
+     * delivered or the wait time of the session has elapsed.
+     *
+     * @param context the asynchronous context of the request that opened this connection.
+     */
+    void setAsyncContext(AsyncContext context) {
+        boolean available;
+        synchronized (this) {
+            this.context = context;
+            available = body != null;
+            if (!available) {
+                waitTimeout = HashedWheelTimer.getInstance().schedule(new Runnable() {
+                    public void run() {
+                        expire();
+                    }
+                }, session.getWait() * JiveConstants.SECOND);
+            }
+        }
+        if (available) {
+            respond();
+        }
     }
-    
+
     public boolean isSuspended() {
-    	return continuation != null && continuation.isSuspended();
+        return context != null && !isClosed;
     }
-    
+
     public boolean isExpired() {
-    	return continuation != null && continuation.isExpired();
-    }
-
-    private String waitForResponse() throws HttpBindTimeoutException {
-        // we enter this method when we have no messages pending delivery
-		// when we resume a suspended continuation, or when we time out
-		if (continuation.isInitial()) {
-		    continuation.setTimeout(session.getWait() * JiveConstants.SECOND);
-            continuation.suspend();
-            continuation.undispatch();
-        } else if (continuation.isResumed()) {
-            // This will occur when the hold attribute of a session has been exceeded.
-            String deliverable = (String) continuation.getAttribute(RESPONSE_BODY);
-            if (deliverable == null) {
-                throw new HttpBindTimeoutException();
+        return isExpired;
+    }
+
+    /**
+     * Closes the connection without a deliverable once the wait time of the session has elapsed.
+     */
+    void expire() {
+        synchronized (this) {
+            if (isClosed) {
+                return;
             }
-            else if(CONNECTION_CLOSED.equals(deliverable)) {
-                return null;
+            isClosed = true;
+            isExpired = true;
+        }
+        dispatchResponse();
+    }
+
+    /**
+     * Writes the response from a container thread so that the thread that delivered the body,
+     * which may hold the lock of the session, is not held up.
+     */
+    private void dispatchResponse() {
+        synchronized (this) {
+            if (waitTimeout != null) {
+                waitTimeout.cancel();
+                waitTimeout = null;
             }
-            return deliverable;
         }
+        context.start(new Runnable() {
+            @Override
+            public void run() {
+                respond();
+            }
+        });
+    }
 
-        throw new HttpBindTimeoutException("Request " + requestId + " exceeded response time from " +
-                "server of " + session.getWait() + " seconds.");
+    private void respond() {
+        String response;
+        try {
+            response = session.consumeResponse(this);
+        }
+        catch (HttpBindException e) {
+            HttpBindServlet.sendError(session, context, e.getBindingError());
+            return;
+        }
+        HttpBindServlet.respond(session, context, response);
     }
 
 	@Override
@@ -29,11 +29,11 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.CopyOnWriteArraySet;
 
 import org.dom4j.DocumentHelper;
@@ -51,6 +51,7 @@ import org.jivesoftware.openfire.net.MXParser;
 import org.jivesoftware.openfire.net.SASLAuthentication;
 import org.jivesoftware.openfire.net.VirtualConnection;
 import org.jivesoftware.openfire.session.LocalClientSession;
+import org.jivesoftware.util.HashedWheelTimer;
 import org.jivesoftware.util.JiveConstants;
 import org.jivesoftware.util.JiveGlobals;
 import org.jivesoftware.util.TaskEngine;
@@ -100,18 +101,34 @@ public class HttpSession extends LocalClientSession {
     private int wait;
     private int hold = 0;
     private String language;
-    private final List<HttpConnection> connectionQueue = Collections.synchronizedList(new LinkedList<HttpConnection>());
-    private final List<Deliverable> pendingElements = Collections.synchronizedList(new ArrayList<Deliverable>());
-    private final List<Delivered> sentElements = Collections.synchronizedList(new ArrayList<Delivered>());
+    /**
+     * Connections awaiting a response ordered by their request ID. Changes are made while holding
+     * the lock of the session, but the connections can be inspected without it.
+     */
+    private final ConcurrentSkipListMap<Long, HttpConnection> connectionQueue =
+            new ConcurrentSkipListMap<Long, HttpConnection>();
+    /**
+     * Deliverables waiting for a connection, guarded by the lock of the session.
+     */
+    private final List<Deliverable> pendingElements = new ArrayList<Deliverable>();
+    /**
+     * The last <tt>hold + 1</tt> responses indexed by request ID modulo the length of the array so
+     * that they can be sent again when a request is repeated. Guarded by the lock of the session.
+     */
+    private Delivered[] sentElements = new Delivered[1];
     private boolean isSecure;
     private int maxPollingInterval;
     private long lastPoll = -1;
     private Set<SessionListener> listeners = new CopyOnWriteArraySet<SessionListener>();
     private volatile boolean isClosed;
-    private int inactivityTimeout;
+    private volatile int inactivityTimeout;
     private int defaultInactivityTimeout;
-    private long lastActivity;
-    private long lastRequestID;
+    /**
+     * Check for inactivity scheduled on the timer, guarded by the lock of the session.
+     */
+    private HashedWheelTimer.Timeout inactivityCheck;
+    private volatile long lastActivity;
+    private volatile long lastRequestID;
     private boolean lastResponseEmpty;
     private int maxRequests;
     private int maxPause;
@@ -124,13 +141,6 @@ public class HttpSession extends LocalClientSession {
     // Semaphore which protects the packets to send, so, there can only be one consumer at a time.
     private SessionPacketRouter router;
 
-    private static final Comparator<HttpConnection> connectionComparator
-            = new Comparator<HttpConnection>() {
-        public int compare(HttpConnection o1, HttpConnection o2) {
-            return (int) (o1.getRequestId() - o2.getRequestId());
-        }
-    };
-
     public HttpSession(PacketDeliverer backupDeliverer, String serverName, InetAddress address,
                        StreamID streamID, long rid, HttpConnection connection) {
         super(serverName, null, streamID);
@@ -240,8 +250,19 @@ public class HttpSession extends LocalClientSession {
      *
      * @param hold the maximum number of simultaneous waiting requests.
      */
-    public void setHold(int hold) {
+    public synchronized void setHold(int hold) {
         this.hold = hold;
+        Delivered[] resized = new Delivered[Math.max(hold, 0) + 1];
+        // Keep the sent responses that still fit in the ring so that they can be resent
+        for (Delivered delivered : sentElements) {
+            if (delivered != null) {
+                int index = (int) (delivered.getRequestID() % resized.length);
+                if (resized[index] == null || resized[index].getRequestID() < delivered.getRequestID()) {
+                    resized[index] = delivered;
+                }
+            }
+        }
+        sentElements = resized;
     }
 
     /**
@@ -404,7 +425,10 @@ public class HttpSession extends LocalClientSession {
      * inactive and be terminated.
      */
     public void setInactivityTimeout(int inactivityTimeout) {
-        this.inactivityTimeout = inactivityTimeout;
+        if (this.inactivityTimeout != inactivityTimeout) {
+            this.inactivityTimeout = inactivityTimeout;
+            rescheduleInactivityCheck();
+        }
     }
 
     /**
@@ -414,7 +438,7 @@ public class HttpSession extends LocalClientSession {
      * @see #pause(int)
      */
     public void resetInactivityTimeout() {
-        this.inactivityTimeout = this.defaultInactivityTimeout;
+        setInactivityTimeout(this.defaultInactivityTimeout);
     }
 
     /**
@@ -428,6 +452,52 @@ public class HttpSession extends LocalClientSession {
         return inactivityTimeout;
     }
 
+    /**
+     * Schedules a check for inactivity at the moment this session would become inactive,
+     * replacing any check scheduled before. Each check schedules the next one as long as the
+     * session is active, so no periodic sweep over all sessions is needed.
+     */
+    synchronized void scheduleInactivityCheck() {
+        if (inactivityCheck != null) {
+            inactivityCheck.cancel();
+            inactivityCheck = null;
+        }
+        if (isClosed) {
+            return;
+        }
+        long delay = getLastActivity() + inactivityTimeout * JiveConstants.SECOND
+                - System.currentTimeMillis();
+        inactivityCheck = HashedWheelTimer.getInstance().schedule(new Runnable() {
+            public void run() {
+                checkInactivity();
+            }
+        }, delay);
+    }
+
+    private synchronized void rescheduleInactivityCheck() {
+        // Sessions still being set up are scheduled once they are complete
+        if (inactivityCheck != null) {
+            scheduleInactivityCheck();
+        }
+    }
+
+    private void checkInactivity() {
+        if (isClosed) {
+            return;
+        }
+        long lastActive = System.currentTimeMillis() - getLastActivity();
+        if (Log.isDebugEnabled()) {
+            Log.debug("Session was last active " + lastActive + " ms ago: " + getAddress());
+        }
+        if (lastActive > inactivityTimeout * JiveConstants.SECOND) {
+            Log.info("Closing idle session: " + getAddress());
+            close();
+        }
+        else {
+            scheduleInactivityCheck();
+        }
+    }
+
     /**
      * Pauses the session for the given amount of time. If a client encounters an exceptional
      * temporary situation during which it will be unable to send requests to the connection
@@ -438,37 +508,32 @@ public class HttpSession extends LocalClientSession {
      * @param duration the time, in seconds, after which this session will be considered inactive
      *        and terminated.
      */
-    public void pause(int duration) {
+    public synchronized void pause(int duration) {
     	// Respond immediately to all pending requests
-    	synchronized (connectionQueue) {
-	        for (HttpConnection toClose : connectionQueue) {
-	            if (!toClose.isClosed()) {
-	                toClose.close();
-	                lastRequestID = toClose.getRequestId();
-	            }
-	        }
-    	}
+        for (HttpConnection toClose : connectionQueue.values()) {
+            if (!toClose.isClosed()) {
+                toClose.close();
+                lastRequestID = toClose.getRequestId();
+            }
+        }
     	setInactivityTimeout(duration);
     }
 
     /**
      * Returns the time in milliseconds since the epoch that this session was last active. Activity
      * is a request was either made or responded to. If the session is currently active, meaning
-     * there are connections awaiting a response, the current time is returned.
+     * there are connections awaiting a response, the current time is returned. This method does
+     * not lock the session so that inactivity sweeps do not contend with requests.
      *
      * @return the time in milliseconds since the epoch that this session was last active.
      */
     public long getLastActivity() {
-        if (!connectionQueue.isEmpty()) {
-        	synchronized (connectionQueue) {
-	            for (HttpConnection connection : connectionQueue) {
-	                // The session is currently active, set the last activity to the current time.
-	                if (!(connection.isClosed() || connection.isExpired())) {
-	                    lastActivity = System.currentTimeMillis();
-	                    break;
-	                }
-	            }
-        	}
+        for (HttpConnection connection : connectionQueue.values()) {
+            // The session is currently active, set the last activity to the current time.
+            if (!(connection.isClosed() || connection.isExpired())) {
+                lastActivity = System.currentTimeMillis();
+                break;
+            }
         }
         return lastActivity;
     }
@@ -485,14 +550,13 @@ public class HttpSession extends LocalClientSession {
      */
     public long getLastAcknowledged() {
     	long ack = lastRequestID;
-    	Collections.sort(connectionQueue, connectionComparator);
-    	synchronized (connectionQueue) {
-	        for (HttpConnection connection : connectionQueue) {
-	            if (connection.getRequestId() == ack + 1) {
-	            	ack++;
-	            }
-	        }
-    	}
+        // The queue is ordered by request ID, so stop at the first gap
+        for (Long rid : connectionQueue.tailMap(ack, false).keySet()) {
+            if (rid != ack + 1) {
+                break;
+            }
+            ack++;
+        }
         return ack;
     }
 
@@ -572,24 +636,24 @@ public class HttpSession extends LocalClientSession {
 	}
 
     /**
-     * Returns the response for a specific connection instance. It is possible for there to be multiple
-     * connections in the queue for the same rid so we need to be careful that we are accessing the correct
-     * connection.
+     * Returns the response for a specific connection instance. A repeated request replaces the
+     * connection queued for the same rid, in which case the replaced connection is only answered
+     * and not removed from the queue.
      * <p><b>Note that this method also removes the connection from the internal connection queue.</b>
      * 
      * @param connection the connection for which to get the response.
      * @return the response from the connection
      * @throws HttpBindException
      */
-    protected String consumeResponse(HttpConnection connection) throws HttpBindException {
+    protected synchronized String consumeResponse(HttpConnection connection) throws HttpBindException {
     	Log.debug("consumeResponse: " + connection);
-    	if(connectionQueue.contains(connection)) {
-            String response = getResponse(connection);
-            connectionQueue.remove(connection);
+        try {
+            return getResponse(connection);
+        }
+        finally {
+            connectionQueue.remove(connection.getRequestId(), connection);
             fireConnectionClosed(connection);
-            return response;
-    	}
-	    throw new InternalError("Could not locate connection: " + connection);
+        }
     }
 
     private String getResponse(HttpConnection connection) throws HttpBindException {
@@ -710,17 +774,20 @@ public class HttpSession extends LocalClientSession {
         return connection;
     }
 
+    /**
+     * Returns the connection of this session with the specified request ID or <tt>null</tt>
+     * if no such connection is waiting for its response to be written.
+     *
+     * @param rid the request ID of the connection.
+     * @return the connection with the specified request ID or null if none was found.
+     */
+    HttpConnection getConnection(long rid) {
+        return connectionQueue.get(rid);
+    }
+
     private Delivered retrieveDeliverable(long rid) {
-    	Delivered result = null;
-    	synchronized (sentElements) {
-	        for (Delivered delivered : sentElements) {
-	            if (delivered.getRequestID() == rid) {
-	                result = delivered;
-	                break;
-	            }
-	        }
-    	}
-        return result;
+        Delivered delivered = sentElements[(int) (rid % sentElements.length)];
+        return delivered != null && delivered.getRequestID() == rid ? delivered : null;
     }
 
     private void addConnection(HttpConnection connection, boolean isPoll) throws HttpBindException,
@@ -742,38 +809,34 @@ public class HttpSession extends LocalClientSession {
          * deliverable on the new connection. This is under the assumption that a connection has been dropped,
          * and re-requested before jetty has realised.
          */
-        synchronized (connectionQueue) {
-			for (HttpConnection queuedConnection : connectionQueue) {
-				if (queuedConnection.getRequestId() == rid) {
-					if(Log.isDebugEnabled()) {
-						Log.debug("Found previous connection in queue with rid " + rid);
-					}
-					if(queuedConnection.isClosed()) {
-						if(Log.isDebugEnabled()) {
-							Log.debug("It's closed - copying deliverables");
-						}
-						
-			            Delivered deliverable = retrieveDeliverable(rid);
-			            if (deliverable == null) {
-			                Log.warn("Deliverable unavailable for " + rid);
-			                throw new HttpBindException("Unexpected RID error.",
-			                        BoshBindingError.itemNotFound);
-			            }
-			            connection.deliverBody(createDeliverable(deliverable.deliverables));
-					} else {
-						if(Log.isDebugEnabled()) {
-							Log.debug("It's still open - calling close()");
-						}
-						deliver(queuedConnection, Collections.singleton(new Deliverable("")));
-						connection.close();
-						
-						if(rid == (lastRequestID + 1)) {
-							lastRequestID = rid;
-						}
-					}
-					break;
-				}
-			}
+        HttpConnection queuedConnection = connectionQueue.get(rid);
+        if (queuedConnection != null) {
+            if(Log.isDebugEnabled()) {
+                Log.debug("Found previous connection in queue with rid " + rid);
+            }
+            if(queuedConnection.isClosed()) {
+                if(Log.isDebugEnabled()) {
+                    Log.debug("It's closed - copying deliverables");
+                }
+
+                Delivered deliverable = retrieveDeliverable(rid);
+                if (deliverable == null) {
+                    Log.warn("Deliverable unavailable for " + rid);
+                    throw new HttpBindException("Unexpected RID error.",
+                            BoshBindingError.itemNotFound);
+                }
+                connection.deliverBody(createDeliverable(deliverable.deliverables));
+            } else {
+                if(Log.isDebugEnabled()) {
+                    Log.debug("It's still open - calling close()");
+                }
+                deliver(queuedConnection, Collections.singleton(new Deliverable("")));
+                connection.close();
+
+                if(rid == (lastRequestID + 1)) {
+                    lastRequestID = rid;
+                }
+            }
         }
 
         checkOveractivity(isPoll);
@@ -784,48 +847,44 @@ public class HttpSession extends LocalClientSession {
         // We aren't supposed to hold connections open or we already have some packets waiting
         // to be sent to the client.
         if (isPollingSession() || (pendingElements.size() > 0 && connection.getRequestId() == lastRequestID + 1)) {
-        	synchronized(pendingElements) {
-	            deliver(connection, pendingElements);
-	            lastRequestID = connection.getRequestId();
-	            pendingElements.clear();
-        	}
-            connectionQueue.add(connection);
-            Collections.sort(connectionQueue, connectionComparator);
+            deliver(connection, pendingElements);
+            lastRequestID = connection.getRequestId();
+            pendingElements.clear();
+            connectionQueue.put(rid, connection);
         }
         else {
             // With this connection we need to check if we will have too many connections open,
             // closing any extras.
 
-            connectionQueue.add(connection);
-            Collections.sort(connectionQueue, connectionComparator);
+            connectionQueue.put(rid, connection);
 
-            synchronized (connectionQueue) {
-	            int connectionsToClose;
-	            if(connectionQueue.get(connectionQueue.size() - 1) != connection) {
-	            	// Current connection does not have the greatest rid. That means
-	            	// requests were received out of order, respond to all.
-	            	connectionsToClose = connectionQueue.size();
-	            }
-	            else {
-	                // Everything's fine, number of current connections open tells us
-	            	// how many that we need to close.
-	            	connectionsToClose = getOpenConnectionCount() - hold;
-	            }
-	            int closed = 0;
-	            for (int i = 0; i < connectionQueue.size() && closed < connectionsToClose; i++) {
-	                HttpConnection toClose = connectionQueue.get(i);
-	                if (!toClose.isClosed() && toClose.getRequestId() == lastRequestID + 1) {
-	                    if(toClose == connection) {
-	                    	// Current connection has no continuation yet, just deliver.
-	                    	deliver("");
-	                    }
-	                    else {
-	                        toClose.close();
-	                    }
-	                    lastRequestID = toClose.getRequestId();
-	                    closed++;
-	                }
-	            }
+            int connectionsToClose;
+            if(connectionQueue.lastEntry().getValue() != connection) {
+                // Current connection does not have the greatest rid. That means
+                // requests were received out of order, respond to all.
+                connectionsToClose = connectionQueue.size();
+            }
+            else {
+                // Everything's fine, number of current connections open tells us
+                // how many that we need to close.
+                connectionsToClose = getOpenConnectionCount() - hold;
+            }
+            int closed = 0;
+            for (HttpConnection toClose : connectionQueue.values()) {
+                if (closed >= connectionsToClose) {
+                    break;
+                }
+                if (!toClose.isClosed() && toClose.getRequestId() == lastRequestID + 1) {
+                    if(toClose == connection) {
+                        // Current connection is not held by a request yet, just deliver.
+                        deliver("");
+                    }
+                    else {
+                        toClose.close();
+                    }
+                    lastRequestID = toClose.getRequestId();
+                    closed++;
+                }
             }
         }
         fireConnectionOpened(connection);
@@ -833,8 +892,7 @@ public class HttpSession extends LocalClientSession {
 
     private int getOpenConnectionCount() {
         int count = 0;
-        // NOTE: synchronized by caller
-        for (HttpConnection connection : connectionQueue) {
+        for (HttpConnection connection : connectionQueue.values()) {
             if (!connection.isClosed()) {
                 count++;
             }
@@ -846,13 +904,10 @@ public class HttpSession extends LocalClientSession {
             throws HttpConnectionClosedException {
         connection.deliverBody(createDeliverable(deliverable));
 
-        Delivered delivered = new Delivered(deliverable);
+        // Copy the deliverables, callers clear the pending elements once they are delivered
+        Delivered delivered = new Delivered(new ArrayList<Deliverable>(deliverable));
         delivered.setRequestID(connection.getRequestId());
-        while (sentElements.size() > hold) {
-            sentElements.remove(0);
-        }
-
-        sentElements.add(delivered);
+        sentElements[(int) (connection.getRequestId() % sentElements.length)] = delivered;
     }
 
     private void fireConnectionOpened(HttpConnection connection) {
@@ -877,12 +932,10 @@ public class HttpSession extends LocalClientSession {
     	boolean overactivity = false;
     	String errorMessage = "Overactivity detected";
 
-    	synchronized (connectionQueue) {
-    		for (HttpConnection conn : connectionQueue) {
-    			if (!conn.isClosed()) {
-    				pendingConnections++;
-    			}
-    		}
+        for (HttpConnection conn : connectionQueue.values()) {
+            if (!conn.isClosed()) {
+                pendingConnections++;
+            }
         }
 
         if(pendingConnections >= maxRequests) {
@@ -925,28 +978,19 @@ public class HttpSession extends LocalClientSession {
         deliver(new Deliverable(Arrays.asList(stanza)));
     }
 
-    private void deliver(Deliverable stanza) {
-        Collection<Deliverable> deliverable = Arrays.asList(stanza);
-        boolean delivered = false;
-        synchronized (connectionQueue) {
-	        for (HttpConnection connection : connectionQueue) {
-	            try {
-	                if (connection.getRequestId() == lastRequestID + 1) {
-	                    lastRequestID = connection.getRequestId();
-	                    deliver(connection, deliverable);
-	                    delivered = true;
-	                    break;
-	                }
-	            }
-	            catch (HttpConnectionClosedException e) {
-	                /* Connection was closed, try the next one */
-	            }
-	        }
-        }
-
-        if (!delivered) {
-            pendingElements.add(stanza);
+    private synchronized void deliver(Deliverable stanza) {
+        HttpConnection connection = connectionQueue.get(lastRequestID + 1);
+        if (connection != null) {
+            try {
+                lastRequestID = connection.getRequestId();
+                deliver(connection, Arrays.asList(stanza));
+                return;
+            }
+            catch (HttpConnectionClosedException e) {
+                /* Connection was closed, queue the stanza */
+            }
         }
+        pendingElements.add(stanza);
     }
 
     private void fireConnectionClosed(HttpConnection connection) {
@@ -967,47 +1011,47 @@ public class HttpSession extends LocalClientSession {
         builder.append(">");
 
         setLastResponseEmpty(elements.size() == 0);
-        synchronized (elements) {
-	        for (Deliverable child : elements) {
-	            builder.append(child.getDeliverable());
-	        }
+        for (Deliverable child : elements) {
+            builder.append(child.getDeliverable());
         }
         builder.append("</body>");
         return builder.toString();
     }
 
     private void closeSession() {
-        if (isClosed) { return; }
-        isClosed = true;
+        synchronized (this) {
+            if (isClosed) { return; }
+            isClosed = true;
+            if (inactivityCheck != null) {
+                inactivityCheck.cancel();
+                inactivityCheck = null;
+            }
+        }
 
         try {
-	        // close connection(s) and deliver pending elements (if any)
-	        synchronized (connectionQueue) {
-		        for (HttpConnection toClose : connectionQueue) {
-		            try {
-		            	if (!toClose.isClosed()) {
-		            		if (!pendingElements.isEmpty() && toClose.getRequestId() == lastRequestID + 1) {
-		            			synchronized(pendingElements) {
-			            			deliver(toClose, pendingElements);
-					                lastRequestID = toClose.getRequestId();
-					                pendingElements.clear();
-		            			}
-	            			} else {
-	            				toClose.deliverBody(null);
-	            			}
-		            	}
-		            } catch (HttpConnectionClosedException e) {
-		            	/* ignore ... already closed */
-		            }
-		        }
-	        }
-	
-	    	synchronized (pendingElements) {
-		        for (Deliverable deliverable : pendingElements) {
-		            failDelivery(deliverable.getPackets());
-		        }
-		        pendingElements.clear();
-	        }
+            synchronized (this) {
+                // close connection(s) and deliver pending elements (if any)
+                for (HttpConnection toClose : connectionQueue.values()) {
+                    try {
+                        if (!toClose.isClosed()) {
+                            if (!pendingElements.isEmpty() && toClose.getRequestId() == lastRequestID + 1) {
+                                deliver(toClose, pendingElements);
+                                lastRequestID = toClose.getRequestId();
+                                pendingElements.clear();
+                            } else {
+                                toClose.deliverBody(null);
+                            }
+                        }
+                    } catch (HttpConnectionClosedException e) {
+                        /* ignore ... already closed */
+                    }
+                }
+
+                for (Deliverable deliverable : pendingElements) {
+                    failDelivery(deliverable.getPackets());
+                }
+                pendingElements.clear();
+            }
         } finally { // ensure the session is removed from the session map
 	        for (SessionListener listener : listeners) {
 	            listener.sessionClosed(this);
@@ -22,7 +22,6 @@ package org.jivesoftware.openfire.http;
 import java.net.InetAddress;
 import java.util.List;
 import java.util.Map;
-import java.util.TimerTask;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadFactory;
@@ -39,9 +38,7 @@ import org.jivesoftware.openfire.SessionManager;
 import org.jivesoftware.openfire.StreamID;
 import org.jivesoftware.openfire.XMPPServer;
 import org.jivesoftware.openfire.auth.UnauthorizedException;
-import org.jivesoftware.util.JiveConstants;
 import org.jivesoftware.util.JiveGlobals;
-import org.jivesoftware.util.TaskEngine;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -56,7 +53,6 @@ public class HttpSessionManager {
     private SessionManager sessionManager;
     private Map<String, HttpSession> sessionMap = new ConcurrentHashMap<String, HttpSession>(
     		JiveGlobals.getIntProperty("xmpp.httpbind.session.initial.count", 16));
-    private TimerTask inactivityTask;
     private ThreadPoolExecutor sendPacketPool;
     private SessionListener sessionListener = new SessionListener() {
         public void connectionOpened(HttpSession session, HttpConnection connection) {
@@ -110,9 +106,6 @@ public class HttpSessionManager {
      * Starts the services used by the HttpSessionManager.
      */
     public void start() {
-        inactivityTask = new HttpSessionReaper();
-        TaskEngine.getInstance().schedule(inactivityTask, 30 * JiveConstants.SECOND,
-                30 * JiveConstants.SECOND);
         sendPacketPool.prestartCoreThread();
     }
 
@@ -120,7 +113,6 @@ public class HttpSessionManager {
      * Stops any services and cleans up any resources used by the HttpSessionManager.
      */
     public void stop() {
-        inactivityTask.cancel();
         for (HttpSession session : sessionMap.values()) {
             session.close();
         }
@@ -187,6 +179,8 @@ public class HttpSessionManager {
         	session.setDefaultInactivityTimeout(getInactivityTimeout());
         }
     	session.resetInactivityTimeout();
+        // Idle sessions are closed by a check on the timer rather than a sweep over all sessions
+        session.scheduleInactivityCheck();
         
         // Store language and version information in the connection.
         session.setLanguage(language);
@@ -392,24 +386,6 @@ public class HttpSessionManager {
         return response.asXML();
     }
 
-    private class HttpSessionReaper extends TimerTask {
-
-        @Override
-		public void run() {
-            long currentTime = System.currentTimeMillis();
-            for (HttpSession session : sessionMap.values()) {
-                long lastActive = currentTime - session.getLastActivity();
-                if (Log.isDebugEnabled()) {
-                	Log.debug("Session was last active " + lastActive + " ms ago: " + session.getAddress());
-                }
-                if (lastActive > session.getInactivityTimeout() * JiveConstants.SECOND) {
-                	Log.info("Closing idle session: " + session.getAddress());
-                    session.close();
-                }
-            }
-        }
-    }
-
     /**
      * A runner that guarantees that the packets per a session will be sent and
      * processed in the order in which they were received.
@@ -29,6 +29,7 @@ import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.jivesoftware.openfire.XMPPServer;
 import org.jivesoftware.openfire.session.Session;
+import org.jivesoftware.openfire.stats.PacketLatency;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xmpp.packet.Packet;
@@ -229,6 +230,19 @@ public class InterceptorManager {
      */
     public void invokeInterceptors(Packet packet, Session session, boolean read, boolean processed)
             throws PacketRejectedException
+    {
+        long start = PacketLatency.start();
+        try {
+            invoke(packet, session, read, processed);
+        }
+        finally {
+            PacketLatency.record(processed ? PacketLatency.Stage.interceptorsPost :
+                    PacketLatency.Stage.interceptorsPre, packet, start);
+        }
+    }
+
+    private void invoke(Packet packet, Session session, boolean read, boolean processed)
+            throws PacketRejectedException
     {
         // Invoke the global interceptors for this packet
         // Checking if collection is empty to prevent creating an iterator of
@@ -23,16 +23,18 @@ import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.SocketException;
 import java.net.UnknownHostException;
-import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Listen packets from defined dataSocket and send packets to the defined host.
+ * Listen packets from defined dataSocket and send packets to the defined host. A channel either
+ * runs as a thread of its own or is served by the selector threads of a {@link DatagramRelay}.
  *
  * @author Thiago Camargo
  */
@@ -40,16 +42,22 @@ abstract class Channel implements Runnable {
 	
 	private static final Logger Log = LoggerFactory.getLogger(Channel.class);
 
-    protected byte[] buf = new byte[5000];
+    protected byte[] buf;
     protected DatagramSocket dataSocket;
     protected DatagramPacket packet;
     protected boolean enabled = true;
 
-    List<DatagramListener> listeners = new ArrayList<DatagramListener>();
+    List<DatagramListener> listeners = new CopyOnWriteArrayList<DatagramListener>();
 
     protected InetAddress host;
     protected int port;
 
+    /**
+     * Relay serving this channel, or null if the channel runs as a thread of its own.
+     */
+    DatagramRelay relay;
+    private InetSocketAddress destination;
+
     /**
      * Creates a Channel according to the parameters.
      *
@@ -77,6 +85,7 @@ abstract class Channel implements Runnable {
      */
     protected void setHost(InetAddress host) {
         this.host = host;
+        this.destination = null;
     }
 
     /**
@@ -95,6 +104,7 @@ abstract class Channel implements Runnable {
      */
     protected void setPort(int port) {
         this.port = port;
+        this.destination = null;
     }
 
     /**
@@ -119,7 +129,7 @@ abstract class Channel implements Runnable {
      * Remove every Listeners
      */
     public void removeListeners() {
-        listeners.removeAll(listeners);
+        listeners.clear();
     }
 
     public void cancel() {
@@ -133,26 +143,15 @@ abstract class Channel implements Runnable {
      * Thread override method
      */
     public void run() {
+        if (buf == null) {
+            buf = new byte[5000];
+        }
         try {
             while (enabled) {
                 // Block until a datagram appears:
                 packet = new DatagramPacket(buf, buf.length);
                 dataSocket.receive(packet);
-
-                if (handle(packet)) {
-                    boolean resend = true;
-
-                    for (DatagramListener dl : listeners) {
-                        boolean send = dl.datagramReceived(packet);
-                        if (resend && !send) {
-                            resend = false;
-                        }
-                    }
-
-                    if (resend) {
-                        relayPacket(packet);
-                    }
-                }
+                process(packet);
             }
         }
         catch (UnknownHostException uhe) {
@@ -172,7 +171,38 @@ abstract class Channel implements Runnable {
         }
     }
 
+    /**
+     * Handles a received packet, alerts the listeners and relays the packet unless a listener
+     * took care of it.
+     *
+     * @param packet received datagram packet
+     */
+    void process(DatagramPacket packet) {
+        if (handle(packet)) {
+            boolean resend = true;
+
+            for (DatagramListener dl : listeners) {
+                boolean send = dl.datagramReceived(packet);
+                if (resend && !send) {
+                    resend = false;
+                }
+            }
+
+            if (resend) {
+                relayPacket(packet);
+            }
+        }
+    }
+
     public void relayPacket(DatagramPacket packet) {
+        if (relay != null) {
+            if (destination == null) {
+                destination = new InetSocketAddress(host, port);
+            }
+            relay.send(dataSocket.getChannel(), packet.getData(), packet.getOffset(),
+                    packet.getLength(), destination);
+            return;
+        }
         try {
             DatagramPacket echo = new DatagramPacket(packet.getData(), packet.getLength(), host, port);
             dataSocket.send(echo);
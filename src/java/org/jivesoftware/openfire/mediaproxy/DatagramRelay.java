@@ -0,0 +1,323 @@
+/**
+ * Copyright (C) 2004-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jivesoftware.openfire.mediaproxy;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Relays the UDP traffic of media proxy sessions over non-blocking datagram channels. A few
+ * selector threads serve the channels of all sessions instead of dedicating a thread to each
+ * channel, so the number of concurrent streams is no longer bound by the number of threads.<p>
+ *
+ * All channels of a session are served by the same selector thread, which keeps the address
+ * learning of {@link DynamicAddressChannel} on a single thread. Every selector thread receives
+ * into a buffer of its own that is reused for each datagram, so relaying does not allocate a
+ * buffer or a packet per datagram. The counters are registered as an MBean named
+ * <tt>org.jivesoftware.openfire:type=DatagramRelay</tt>.
+ */
+class DatagramRelay implements DatagramRelayMBean {
+
+    private static final Logger Log = LoggerFactory.getLogger(DatagramRelay.class);
+
+    /**
+     * Maximum number of datagrams read from a channel before the other ready channels of the
+     * selector get their turn.
+     */
+    private static final int MAX_READS = 64;
+
+    private final Reactor[] reactors;
+    private final AtomicInteger nextReactor = new AtomicInteger();
+
+    private final AtomicLong packetsReceived = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong packetsRelayed = new AtomicLong();
+    private final AtomicLong packetsDropped = new AtomicLong();
+
+    /**
+     * Creates a relay and starts its selector threads.
+     *
+     * @param threads the number of selector threads.
+     * @param bufferSize the size of the receive buffer of each selector thread, larger datagrams
+     *        are truncated.
+     * @throws IOException if a selector could not be opened.
+     */
+    DatagramRelay(int threads, int bufferSize) throws IOException {
+        reactors = new Reactor[Math.max(threads, 1)];
+        for (int i = 0; i < reactors.length; i++) {
+            reactors[i] = new Reactor(Selector.open(), Math.max(bufferSize, 1));
+            Thread thread = new Thread(reactors[i], "media-relay-" + (i + 1));
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Starts serving the channels of a session. The sockets of the channels must have been
+     * opened through a {@link DatagramChannel}; they are switched to non-blocking mode. A channel
+     * stops being served once it is cancelled, which closes its socket.
+     *
+     * @param channels the channels of the session.
+     * @throws IOException if a socket is not backed by a datagram channel.
+     */
+    void register(Channel... channels) throws IOException {
+        for (Channel channel : channels) {
+            if (channel.dataSocket.getChannel() == null) {
+                throw new IOException("Socket of channel is not backed by a datagram channel");
+            }
+        }
+        for (Channel channel : channels) {
+            channel.relay = this;
+        }
+        reactors[(nextReactor.getAndIncrement() & Integer.MAX_VALUE) % reactors.length]
+                .add(channels);
+    }
+
+    /**
+     * Sends a datagram on the channel of a socket without blocking. The datagram is dropped
+     * if the send buffer of the socket is full.
+     *
+     * @param channel the channel to send the datagram on.
+     * @param data the buffer holding the datagram.
+     * @param offset the offset of the datagram in the buffer.
+     * @param length the length of the datagram.
+     * @param target the address to send the datagram to.
+     */
+    void send(DatagramChannel channel, byte[] data, int offset, int length,
+            InetSocketAddress target) {
+        try {
+            if (channel.send(ByteBuffer.wrap(data, offset, length), target) > 0) {
+                packetsRelayed.incrementAndGet();
+                return;
+            }
+        }
+        catch (ClosedChannelException e) {
+            // The session was stopped while the datagram was being relayed
+        }
+        catch (IOException e) {
+            Log.debug("Error relaying datagram to " + target, e);
+        }
+        packetsDropped.incrementAndGet();
+    }
+
+    /**
+     * Stops the selector threads. The channels are left open, they are closed when their
+     * sessions are stopped.
+     */
+    void shutdown() {
+        for (Reactor reactor : reactors) {
+            reactor.shutdown();
+        }
+    }
+
+    /**
+     * Registers the counters with the platform MBean server.
+     */
+    void registerMBean() {
+        try {
+            MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = getObjectName();
+            if (!mbs.isRegistered(name)) {
+                mbs.registerMBean(this, name);
+            }
+        }
+        catch (JMException e) {
+            Log.warn("Failed to register media relay mbean (JMX): " + e);
+        }
+    }
+
+    /**
+     * Removes the counters from the platform MBean server.
+     */
+    void unregisterMBean() {
+        try {
+            MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = getObjectName();
+            if (mbs.isRegistered(name)) {
+                mbs.unregisterMBean(name);
+            }
+        }
+        catch (JMException e) {
+            Log.warn("Failed to unregister media relay mbean (JMX): " + e);
+        }
+    }
+
+    private static ObjectName getObjectName() throws JMException {
+        return new ObjectName("org.jivesoftware.openfire:type=DatagramRelay");
+    }
+
+    public int getActiveChannels() {
+        int channels = 0;
+        for (Reactor reactor : reactors) {
+            channels += reactor.channels.get();
+        }
+        return channels;
+    }
+
+    public int getThreadCount() {
+        return reactors.length;
+    }
+
+    public long getPacketsReceived() {
+        return packetsReceived.get();
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    public long getPacketsRelayed() {
+        return packetsRelayed.get();
+    }
+
+    public long getPacketsDropped() {
+        return packetsDropped.get();
+    }
+
+    /**
+     * A selector thread serving the channels of some of the sessions.
+     */
+    private final class Reactor implements Runnable {
+
+        private final Selector selector;
+        private final Queue<Channel[]> registrations = new ConcurrentLinkedQueue<Channel[]>();
+        private final AtomicInteger channels = new AtomicInteger();
+        private final ByteBuffer buffer;
+        private final DatagramPacket packet;
+        private volatile boolean running = true;
+
+        Reactor(Selector selector, int bufferSize) {
+            this.selector = selector;
+            this.buffer = ByteBuffer.allocate(bufferSize);
+            this.packet = new DatagramPacket(buffer.array(), bufferSize);
+        }
+
+        void add(Channel[] session) {
+            registrations.add(session);
+            selector.wakeup();
+        }
+
+        void shutdown() {
+            running = false;
+            selector.wakeup();
+        }
+
+        public void run() {
+            try {
+                while (running) {
+                    selector.select();
+                    registerPending();
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (key.isValid() && key.isReadable()) {
+                            read(key);
+                        }
+                    }
+                    channels.set(selector.keys().size());
+                }
+            }
+            catch (Throwable t) {
+                Log.error("Error in media relay, sessions of this thread no longer relay", t);
+            }
+            finally {
+                running = false;
+                channels.set(0);
+                registrations.clear();
+                try {
+                    selector.close();
+                }
+                catch (IOException e) {
+                    Log.debug("Error closing media relay selector", e);
+                }
+            }
+        }
+
+        private void registerPending() {
+            Channel[] session;
+            while ((session = registrations.poll()) != null) {
+                for (Channel channel : session) {
+                    DatagramChannel datagramChannel = channel.dataSocket.getChannel();
+                    try {
+                        datagramChannel.configureBlocking(false);
+                        datagramChannel.register(selector, SelectionKey.OP_READ, channel);
+                    }
+                    catch (IOException e) {
+                        // The session was stopped before its channels were registered
+                        Log.debug("Error registering media channel", e);
+                    }
+                }
+            }
+            channels.set(selector.keys().size());
+        }
+
+        private void read(SelectionKey key) {
+            Channel channel = (Channel) key.attachment();
+            DatagramChannel datagramChannel = (DatagramChannel) key.channel();
+            for (int i = 0; i < MAX_READS; i++) {
+                buffer.clear();
+                SocketAddress source;
+                try {
+                    source = datagramChannel.receive(buffer);
+                }
+                catch (IOException e) {
+                    // Closed channels and ICMP port unreachable errors of an earlier send
+                    if (!datagramChannel.isOpen()) {
+                        key.cancel();
+                        return;
+                    }
+                    continue;
+                }
+                if (source == null) {
+                    return;
+                }
+                packet.setData(buffer.array(), 0, buffer.position());
+                packet.setSocketAddress(source);
+                packetsReceived.incrementAndGet();
+                bytesReceived.addAndGet(buffer.position());
+                try {
+                    channel.process(packet);
+                }
+                catch (RuntimeException e) {
+                    Log.warn("Error relaying media packet", e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/**
+ * Copyright (C) 2004-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jivesoftware.openfire.mediaproxy;
+
+/**
+ * JMX view of the counters of {@link DatagramRelay}.
+ */
+public interface DatagramRelayMBean {
+
+    /**
+     * Returns the number of UDP channels that the selector threads are serving.
+     *
+     * @return the number of UDP channels that the selector threads are serving.
+     */
+    int getActiveChannels();
+
+    /**
+     * Returns the number of selector threads.
+     *
+     * @return the number of selector threads.
+     */
+    int getThreadCount();
+
+    /**
+     * Returns the number of datagrams received by all channels.
+     *
+     * @return the number of datagrams received by all channels.
+     */
+    long getPacketsReceived();
+
+    /**
+     * Returns the number of bytes received by all channels.
+     *
+     * @return the number of bytes received by all channels.
+     */
+    long getBytesReceived();
+
+    /**
+     * Returns the number of datagrams relayed to the other party of a session.
+     *
+     * @return the number of datagrams relayed to the other party of a session.
+     */
+    long getPacketsRelayed();
+
+    /**
+     * Returns the number of datagrams that could not be relayed because the send buffer of the
+     * socket was full or sending failed.
+     *
+     * @return the number of datagrams that could not be relayed.
+     */
+    long getPacketsDropped();
+}
@@ -19,10 +19,12 @@
 
 package org.jivesoftware.openfire.mediaproxy;
 
+import java.io.IOException;
 import java.util.Collection;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
+import org.jivesoftware.openfire.JMXManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -35,7 +37,11 @@ import org.slf4j.LoggerFactory;
  * Each connection relay between two parties is called a session. You can setup a MediaProxy
  * for all network interfaces with an empty constructor, or bind it to a specific interface
  * with the MediaProxy(String localhost) constructor. <i>The media proxy ONLY works if you
- * are directly connected to the Internet with a valid IP address.</i>.
+ * are directly connected to the Internet with a valid IP address.</i>.<p>
+ *
+ * By default every session relays its traffic with four threads of its own. When the relay is
+ * enabled, the sessions are instead served by a few selector threads of a {@link DatagramRelay}
+ * and their ports are allocated from a bitmap of the port range.
  *
  * @author Thiago Camargo
  */
@@ -55,6 +61,11 @@ public class MediaProxy implements SessionListener {
     // Lifetime of a Channel in Seconds
     private long lifetime = 9000;
 
+    private boolean relayEnabled = false;
+    private int relayThreads = 2;
+    private DatagramRelay relay;
+    private PortAllocator portAllocator;
+
     /**
      * Contruct a MediaProxy instance that will listen on a specific network interface.
      *
@@ -118,8 +129,9 @@ public class MediaProxy implements SessionListener {
      *
      * @param minPort the minimum port value.
      */
-    public void setMinPort(int minPort) {
+    public synchronized void setMinPort(int minPort) {
         this.minPort = minPort;
+        this.portAllocator = null;
     }
 
     /**
@@ -136,8 +148,9 @@ public class MediaProxy implements SessionListener {
      *
      * @param maxPort the maximun port value.
      */
-    public void setMaxPort(int maxPort) {
+    public synchronized void setMaxPort(int maxPort) {
         this.maxPort = maxPort;
+        this.portAllocator = null;
     }
 
     /**
@@ -160,6 +173,45 @@ public class MediaProxy implements SessionListener {
         this.lifetime = lifetime;
     }
 
+    /**
+     * Returns true if new sessions are served by the selector threads of a shared relay
+     * instead of running threads of their own.
+     *
+     * @return true if new sessions are served by a shared relay.
+     */
+    public boolean isRelayEnabled() {
+        return relayEnabled;
+    }
+
+    /**
+     * Sets whether new sessions are served by the selector threads of a shared relay instead
+     * of running threads of their own. Sessions that are already running are not affected.
+     *
+     * @param relayEnabled true if new sessions are served by a shared relay.
+     */
+    public synchronized void setRelayEnabled(boolean relayEnabled) {
+        this.relayEnabled = relayEnabled;
+    }
+
+    /**
+     * Returns the number of selector threads of the shared relay.
+     *
+     * @return the number of selector threads of the shared relay.
+     */
+    public int getRelayThreads() {
+        return relayThreads;
+    }
+
+    /**
+     * Sets the number of selector threads of the shared relay. The new value is used the next
+     * time the relay is started.
+     *
+     * @param relayThreads the number of selector threads of the shared relay.
+     */
+    public void setRelayThreads(int relayThreads) {
+        this.relayThreads = relayThreads;
+    }
+
     /**
      * Returns a media proxy session with the specified ID.
      *
@@ -213,7 +265,15 @@ public class MediaProxy implements SessionListener {
     public ProxyCandidate addRelayAgent(String id, String creator, String hostA, int portA,
             String hostB, int portB)
     {
-        RelaySession session = new RelaySession(id, creator, ipAddress, hostA, portA, hostB, portB, minPort, maxPort);
+        RelaySession session;
+        DatagramRelay relay = getRelay();
+        if (relay != null) {
+            session = new RelaySession(id, creator, ipAddress, hostA, portA, hostB, portB,
+                    getPortAllocator(), relay);
+        }
+        else {
+            session = new RelaySession(id, creator, ipAddress, hostA, portA, hostB, portB, minPort, maxPort);
+        }
         sessions.put(id, session);
         session.addKeepAlive(idleTime);
         session.addLifeTime(lifetime);
@@ -221,6 +281,37 @@ public class MediaProxy implements SessionListener {
         return session;
     }
 
+    /**
+     * Returns the relay that serves new sessions, starting it if needed.
+     *
+     * @return the relay or <tt>null</tt> if sessions run threads of their own.
+     */
+    private synchronized DatagramRelay getRelay() {
+        if (!relayEnabled) {
+            return null;
+        }
+        if (relay == null) {
+            try {
+                relay = new DatagramRelay(relayThreads, 5000);
+            }
+            catch (IOException e) {
+                Log.error("Error starting media relay, sessions use threads of their own", e);
+                return null;
+            }
+            if (JMXManager.isEnabled()) {
+                relay.registerMBean();
+            }
+        }
+        return relay;
+    }
+
+    private synchronized PortAllocator getPortAllocator() {
+        if (portAllocator == null) {
+            portAllocator = new PortAllocator(minPort, maxPort);
+        }
+        return portAllocator;
+    }
+
     /**
      * Add a new Dynamic Session to the mediaproxy WITHOUT defined IPs and ports.
      * The IP and port pairs WILL change depending of the Senders IP and port.
@@ -256,5 +347,12 @@ public class MediaProxy implements SessionListener {
             }
         }
         sessions.clear();
+        synchronized (this) {
+            if (relay != null) {
+                relay.unregisterMBean();
+                relay.shutdown();
+                relay = null;
+            }
+        }
     }
 }
\ No newline at end of file
@@ -297,6 +297,9 @@ public class MediaProxyService extends BasicModule
         catch (NumberFormatException e) {
             // Do nothing let the default values to be used.
         }
+        mediaProxy.setRelayThreads(JiveGlobals.getIntProperty("mediaproxy.relay.threads",
+                mediaProxy.getRelayThreads()));
+        mediaProxy.setRelayEnabled(JiveGlobals.getBooleanProperty("mediaproxy.relay.enabled", false));
         this.enabled = JiveGlobals.getBooleanProperty("mediaproxy.enabled");
     }
 
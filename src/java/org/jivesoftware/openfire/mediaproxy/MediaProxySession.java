@@ -20,20 +20,27 @@ import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.nio.channels.DatagramChannel;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.jivesoftware.util.HashedWheelTimer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * A media proxy session enables two clients to exchange UDP traffic. Each client connects to
  * a UDP port and then the proxy is responsible for exchanging traffic. Each session uses
- * a total of four ports: two for traffic exchange, and two control ports.
+ * a total of four ports: two for traffic exchange, and two control ports.<p>
+ *
+ * The channels of a session either run as four threads of their own or are served by the
+ * selector threads of a {@link DatagramRelay}, in which case the ports are taken from a
+ * {@link PortAllocator}.
  *
  * @author Thiago Camargo
  */
@@ -46,7 +53,10 @@ public abstract class MediaProxySession extends Thread implements ProxyCandidate
     private String id;
     private String pass;
     private String creator = "";
-    private long timestamp = 0;
+    private volatile long timestamp = 0;
+    private final AtomicLong packetCount = new AtomicLong();
+    private final AtomicLong byteCount = new AtomicLong();
+    private final AtomicBoolean stopped = new AtomicBoolean();
 
     protected InetAddress localAddress;
     protected InetAddress hostA;
@@ -73,12 +83,15 @@ public abstract class MediaProxySession extends Thread implements ProxyCandidate
     protected Thread threadBtoA;
     protected Thread threadBtoAControl;
 
-    private Timer idleTimer = null;
-    private Timer lifeTimer = null;
+    private volatile HashedWheelTimer.Timeout idleTimeout = null;
+    private volatile HashedWheelTimer.Timeout lifeTimeout = null;
 
     private int minPort = 10000;
     private int maxPort = 20000;
 
+    private final PortAllocator portAllocator;
+    private final DatagramRelay relay;
+
     /**
      * Creates a new static UDP channel between Host A and Host B.
      *
@@ -94,6 +107,33 @@ public abstract class MediaProxySession extends Thread implements ProxyCandidate
      */
     public MediaProxySession(String id, String creator, String localAddress, String hostA, int portA, String hostB,
                              int portB, int minPort, int maxPort) {
+        this(id, creator, localAddress, hostA, portA, hostB, portB, minPort, maxPort, null, null);
+    }
+
+    /**
+     * Creates a new static UDP channel between Host A and Host B whose channels are served by
+     * the selector threads of a relay.
+     *
+     * @param id            of the Session (Could be a Jingle session ID)
+     * @param creator       the session creator name or description
+     * @param localAddress  the localhost IP that will listen for UDP packets
+     * @param hostA         the hostname or IP of the point A of the Channel
+     * @param portA         the port number point A of the Channel
+     * @param hostB         the hostname or IP of the point B of the Channel
+     * @param portB         the port number point B of the Channel
+     * @param portAllocator the allocator of the local ports
+     * @param relay         the relay that serves the channels
+     */
+    MediaProxySession(String id, String creator, String localAddress, String hostA, int portA, String hostB,
+                      int portB, PortAllocator portAllocator, DatagramRelay relay) {
+        this(id, creator, localAddress, hostA, portA, hostB, portB, 10000, 20000, portAllocator, relay);
+    }
+
+    private MediaProxySession(String id, String creator, String localAddress, String hostA, int portA,
+                              String hostB, int portB, int minPort, int maxPort, PortAllocator portAllocator,
+                              DatagramRelay relay) {
+        this.portAllocator = portAllocator;
+        this.relay = relay;
         this.id = id;
         this.creator = creator;
         this.minPort = minPort;
@@ -107,12 +147,24 @@ public abstract class MediaProxySession extends Thread implements ProxyCandidate
             this.portB = portB;
 
             this.localAddress = InetAddress.getByName(localAddress);
-            this.localPortA = getFreePort();
-            this.socketA = new DatagramSocket(localPortA, this.localAddress);
-            this.socketAControl = new DatagramSocket(localPortA + 1, this.localAddress);
-            this.localPortB = getFreePort();
-            this.socketB = new DatagramSocket(localPortB, this.localAddress);
-            this.socketBControl = new DatagramSocket(localPortB + 1, this.localAddress);
+            if (relay == null) {
+                this.localPortA = getFreePort();
+                this.socketA = new DatagramSocket(localPortA, this.localAddress);
+                this.socketAControl = new DatagramSocket(localPortA + 1, this.localAddress);
+                this.localPortB = getFreePort();
+                this.socketB = new DatagramSocket(localPortB, this.localAddress);
+                this.socketBControl = new DatagramSocket(localPortB + 1, this.localAddress);
+            }
+            else {
+                DatagramSocket[] sockets = bindPorts();
+                this.socketA = sockets[0];
+                this.socketAControl = sockets[1];
+                this.localPortA = socketA.getLocalPort();
+                sockets = bindPorts();
+                this.socketB = sockets[0];
+                this.socketBControl = sockets[1];
+                this.localPortB = socketB.getLocalPort();
+            }
             if (Log.isDebugEnabled()) {
                 Log.debug("MediaProxySession: Session Created at: A " + localPortA + " : B " + localPortB);
             }
@@ -162,6 +214,49 @@ public abstract class MediaProxySession extends Thread implements ProxyCandidate
         return freePort;
     }
 
+    /**
+     * Binds the sockets of a pair of ports taken from the port allocator. The sockets are
+     * opened through datagram channels so that a relay can serve them.
+     *
+     * @return the socket of the even port and the socket of the control port that follows it.
+     * @throws IOException if no pair of ports could be bound.
+     */
+    private DatagramSocket[] bindPorts() throws IOException {
+        IOException error = null;
+        for (int i = 0; i < 10; i++) {
+            int port = portAllocator.allocate();
+            if (port < 0) {
+                throw new IOException("No free ports left for media proxy sessions");
+            }
+            DatagramSocket socket = null;
+            try {
+                socket = openSocket(port);
+                return new DatagramSocket[] {socket, openSocket(port + 1)};
+            }
+            catch (IOException e) {
+                // The port is used by another process, try the next pair
+                if (socket != null) {
+                    socket.close();
+                }
+                portAllocator.release(port);
+                error = e;
+            }
+        }
+        throw error;
+    }
+
+    private DatagramSocket openSocket(int port) throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        try {
+            channel.socket().bind(new InetSocketAddress(localAddress, port));
+            return channel.socket();
+        }
+        catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
     /**
      * Get the ID of the Session
      *
@@ -198,6 +293,24 @@ public abstract class MediaProxySession extends Thread implements ProxyCandidate
         return timestamp;
     }
 
+    /**
+     * Get the number of packets received by the channels of the Session
+     *
+     * @return the number of received packets
+     */
+    public long getPacketCount() {
+        return packetCount.get();
+    }
+
+    /**
+     * Get the number of bytes received by the channels of the Session
+     *
+     * @return the number of received bytes
+     */
+    public long getByteCount() {
+        return byteCount.get();
+    }
+
     /**
      * Thread override method
      */
@@ -206,6 +319,18 @@ public abstract class MediaProxySession extends Thread implements ProxyCandidate
         // Create channels for parties
         createChannels();
 
+        if (relay != null) {
+            // Listen to channel events before the relay starts serving the channels
+            addChannelListeners();
+            try {
+                relay.register(channelAtoB, channelAtoBControl, channelBtoA, channelBtoAControl);
+            }
+            catch (IOException e) {
+                Log.error(e.getMessage(), e);
+            }
+            return;
+        }
+
         // Start a thread for each channel
         threadAtoB = new Thread(channelAtoB);
         threadAtoBControl = new Thread(channelAtoBControl);
@@ -241,27 +366,37 @@ public abstract class MediaProxySession extends Thread implements ProxyCandidate
      * Stop the Session
      */
     public void stopAgent() {
+        if (!stopped.compareAndSet(false, true)) {
+            return;
+        }
 
-        try {
-            if (idleTimer != null) {
-                idleTimer.cancel();
-                idleTimer.purge();
-                idleTimer = null;
-            }
-        } catch (Exception e) {
-            Log.error(e.getMessage(), e);
+        HashedWheelTimer.Timeout timeout = idleTimeout;
+        if (timeout != null) {
+            timeout.cancel();
+            idleTimeout = null;
+        }
+        timeout = lifeTimeout;
+        if (timeout != null) {
+            timeout.cancel();
+            lifeTimeout = null;
         }
 
         try {
-            if (lifeTimer != null) {
-                lifeTimer.cancel();
-                lifeTimer.purge();
-                lifeTimer = null;
+            closeChannels();
+        }
+        finally {
+            if (portAllocator != null) {
+                portAllocator.release(localPortA);
+                portAllocator.release(localPortB);
             }
-        } catch (Exception e) {
-            Log.error(e.getMessage(), e);
         }
 
+        dispatchAgentStopped();
+
+        Log.debug("MediaProxySession: Session Stopped");
+    }
+
+    private void closeChannels() {
         channelAtoB.removeListeners();
         channelAtoBControl.removeListeners();
         channelBtoA.removeListeners();
@@ -280,10 +415,6 @@ public abstract class MediaProxySession extends Thread implements ProxyCandidate
         socketAControl.close();
         socketB.close();
         socketBControl.close();
-
-        dispatchAgentStopped();
-
-        Log.debug("MediaProxySession: Session Stopped");
     }
 
     /**
@@ -424,6 +555,8 @@ public abstract class MediaProxySession extends Thread implements ProxyCandidate
      */
     public boolean datagramReceived(DatagramPacket datagramPacket) {
         timestamp = System.currentTimeMillis();
+        packetCount.incrementAndGet();
+        byteCount.addAndGet(datagramPacket.getLength());
         return true;
     }
 
@@ -435,20 +568,24 @@ public abstract class MediaProxySession extends Thread implements ProxyCandidate
      * @param delay delay time in millis to check if the channel is inactive
      */
     void addKeepAlive(long delay) {
-        if (idleTimer != null) return;
-        idleTimer = new Timer();
-        idleTimer.scheduleAtFixedRate(new TimerTask() {
-            long lastTimeStamp = getTimestamp();
+        if (idleTimeout != null) return;
+        scheduleKeepAlive(delay, getTimestamp());
+    }
 
-            @Override
-			public void run() {
+    private void scheduleKeepAlive(final long delay, final long lastTimeStamp) {
+        HashedWheelTimer.Timeout timeout = HashedWheelTimer.getInstance().schedule(new Runnable() {
+            public void run() {
                 if (lastTimeStamp == getTimestamp()) {
                     stopAgent();
                     return;
                 }
-                lastTimeStamp = getTimestamp();
+                scheduleKeepAlive(delay, getTimestamp());
             }
-        }, delay, delay);
+        }, delay);
+        idleTimeout = timeout;
+        if (stopped.get()) {
+            timeout.cancel();
+        }
     }
 
     /**
@@ -460,14 +597,16 @@ public abstract class MediaProxySession extends Thread implements ProxyCandidate
      */
     void addLifeTime(long lifetime) {
         lifetime *= 1000;
-        if (lifeTimer != null) return;
-        lifeTimer = new Timer();
-        lifeTimer.scheduleAtFixedRate(new TimerTask() {
-            @Override
-			public void run() {
+        if (lifeTimeout != null) return;
+        HashedWheelTimer.Timeout timeout = HashedWheelTimer.getInstance().schedule(new Runnable() {
+            public void run() {
                 stopAgent();
             }
-        }, lifetime, lifetime);
+        }, lifetime);
+        lifeTimeout = timeout;
+        if (stopped.get()) {
+            timeout.cancel();
+        }
     }
 
     /**
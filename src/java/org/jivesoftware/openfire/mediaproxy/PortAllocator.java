@@ -0,0 +1,98 @@
+/**
+ * Copyright (C) 2004-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jivesoftware.openfire.mediaproxy;
+
+import java.util.BitSet;
+
+/**
+ * Hands out the local ports of media proxy sessions from a configured range. Ports are handed
+ * out in pairs, an even port for the media and the odd port that follows it for the control
+ * traffic, and every pair is a bit in a bitmap. The search for a free pair continues after the
+ * pair that was handed out last, so that a pair that was just released, or that could not be
+ * bound because another process holds it, is not tried again right away.
+ */
+class PortAllocator {
+
+    private final int firstPort;
+    private final int pairs;
+    private final BitSet allocated;
+    private int next;
+
+    /**
+     * Creates an allocator for the pairs of ports within a range.
+     *
+     * @param minPort the lowest port of the range.
+     * @param maxPort the highest port of the range.
+     */
+    PortAllocator(int minPort, int maxPort) {
+        firstPort = minPort % 2 == 0 ? minPort : minPort + 1;
+        pairs = Math.max((maxPort - firstPort + 1) / 2, 0);
+        allocated = new BitSet(pairs);
+    }
+
+    /**
+     * Allocates a free pair of ports.
+     *
+     * @return the even port of the pair, or -1 if every pair of the range is allocated.
+     */
+    synchronized int allocate() {
+        if (pairs == 0) {
+            return -1;
+        }
+        int pair = allocated.nextClearBit(next);
+        if (pair >= pairs) {
+            pair = allocated.nextClearBit(0);
+            if (pair >= pairs) {
+                return -1;
+            }
+        }
+        allocated.set(pair);
+        next = pair + 1 < pairs ? pair + 1 : 0;
+        return firstPort + pair * 2;
+    }
+
+    /**
+     * Returns a pair of ports to the range. Ports outside of the range are ignored.
+     *
+     * @param port the even port of the pair.
+     */
+    synchronized void release(int port) {
+        int offset = port - firstPort;
+        if (offset >= 0 && offset % 2 == 0 && offset / 2 < pairs) {
+            allocated.clear(offset / 2);
+        }
+    }
+
+    /**
+     * Returns the number of pairs of ports that are allocated.
+     *
+     * @return the number of pairs of ports that are allocated.
+     */
+    synchronized int getAllocatedCount() {
+        return allocated.cardinality();
+    }
+
+    /**
+     * Returns the number of pairs of ports in the range.
+     *
+     * @return the number of pairs of ports in the range.
+     */
+    int getCapacity() {
+        return pairs;
+    }
+}
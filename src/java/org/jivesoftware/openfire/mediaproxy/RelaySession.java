@@ -72,6 +72,24 @@ public class RelaySession extends MediaProxySession {
         super(id, creator, localhost, hostA, portA, hostB, portB, 10000, 20000);
     }
 
+    /**
+     * Creates a new Smart Session whose channels are served by the selector threads of a relay.
+     *
+     * @param id            of the Session (Could be a Jingle session ID)
+     * @param localhost     The localhost IP that will listen for UDP packets
+     * @param hostA         the hostname or IP of the point A of the Channel
+     * @param portA         the port number point A of the Channel
+     * @param hostB         the hostname or IP of the point B of the Channel
+     * @param portB         the port number point B of the Channel
+     * @param creator       the created name or description of the Channel
+     * @param portAllocator the allocator of the local ports
+     * @param relay         the relay that serves the channels
+     */
+    RelaySession(String id, String creator, String localhost, String hostA, int portA, String hostB, int portB,
+                 PortAllocator portAllocator, DatagramRelay relay) {
+        super(id, creator, localhost, hostA, portA, hostB, portB, portAllocator, relay);
+    }
+
     @Override
 	void createChannels() {
         channelAtoB = new DynamicAddressChannel(socketA, hostB, portB);
@@ -0,0 +1,469 @@
+/**
+ * Copyright (C) 2004-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.muc;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.NoSuchElementException;
+
+import org.dom4j.Element;
+import org.jivesoftware.openfire.nio.SerializedStanza;
+import org.jivesoftware.util.JiveGlobals;
+import org.jivesoftware.util.XMPPDateTimeFormat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xmpp.packet.Message;
+
+/**
+ * Array-backed ring buffer that holds the history of a room sorted by the date when the
+ * messages were sent. Messages are added by one thread at a time while any number of
+ * threads may read the history without locking or copying it. Readers work on a
+ * {@link Snapshot} of the buffer, which is just a view of the positions of the buffer
+ * that were in use when the snapshot was taken. A message that is removed from the
+ * buffer while a snapshot is being read is no longer returned by the snapshot.<p>
+ *
+ * The buffer grows as needed. It is up to the {@link HistoryStrategy} to remove old
+ * messages so the buffer does not exceed the maximum history size. When the latest room
+ * subject change has to be removed to make room for new messages, the subject change
+ * is kept in front of the buffer instead.<p>
+ *
+ * Each message may also keep its serialized form so that the history can be replayed
+ * to new occupants without serializing the same messages over and over again. This is
+ * enabled with the <tt>xmpp.muc.history.serializeOnce</tt> property.
+ */
+public final class HistoryBuffer {
+
+	private static final Logger Log = LoggerFactory.getLogger(HistoryBuffer.class);
+	private static final XMPPDateTimeFormat xmppDateTime = new XMPPDateTimeFormat();
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * Positions of the buffer that hold messages. The ring is replaced by a new one when
+     * it needs to grow or to be sorted again, so snapshots of the old ring remain valid.
+     */
+    private volatile Ring ring = new Ring(INITIAL_CAPACITY);
+    /**
+     * Latest room subject change that was removed from the ring or null if none.
+     */
+    private volatile Entry pinnedSubject;
+
+    /**
+     * Adds a message to the end of the history, or to its proper position if the message
+     * is older than the last message in the history. Oldest messages are removed first when
+     * the history holds <tt>maxSize</tt> messages.
+     *
+     * @param message the message to add.
+     * @param maxSize the maximum number of messages to keep or -1 if there is no limit.
+     * @param roomSubject the latest room subject change, which is not removed from the history.
+     */
+    public synchronized void add(Message message, int maxSize, Message roomSubject) {
+        Entry entry = new Entry(message);
+        Ring r = ring;
+        Entry subject = pinnedSubject;
+        if (subject != null && subject.message != roomSubject) {
+            // The room subject has changed so the old one can be removed now
+            subject = null;
+        }
+        if (maxSize > -1) {
+            while (r.size() > 0 && r.size() + (subject != null ? 1 : 0) >= maxSize) {
+                Entry oldest = r.removeOldest();
+                if (oldest.message == roomSubject) {
+                    subject = oldest;
+                }
+            }
+        }
+        pinnedSubject = subject;
+        if (r.size() > 0 && entry.isOlderThan(r.get(r.tail - 1))) {
+            // Messages may be out of order when running inside of a cluster
+            ring = r.sortedCopy(entry);
+        }
+        else {
+            if (r.size() == r.slots.length) {
+                r = r.copy(r.slots.length * 2);
+                ring = r;
+            }
+            r.append(entry);
+        }
+    }
+
+    /**
+     * Removes all the messages from the history.
+     */
+    public synchronized void clear() {
+        ring = new Ring(INITIAL_CAPACITY);
+        pinnedSubject = null;
+    }
+
+    /**
+     * Forgets the serialized form of the messages in the history. This method must be
+     * invoked after modifying messages in the history.
+     */
+    public void clearSerializations() {
+        Snapshot snapshot = snapshot();
+        for (int i = 0; i < snapshot.size(); i++) {
+            Entry entry = snapshot.get(i);
+            if (entry != null) {
+                entry.serialized = null;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of messages in the history.
+     *
+     * @return the number of messages in the history.
+     */
+    public int size() {
+        return snapshot().size();
+    }
+
+    /**
+     * Returns a view of the messages that are currently in the history. Taking a snapshot
+     * does not copy the messages.
+     *
+     * @return a view of the messages that are currently in the history.
+     */
+    public Snapshot snapshot() {
+        // Read the subject first since it is set after removing it from the ring
+        Entry subject = pinnedSubject;
+        Ring r = ring;
+        long tail = r.tail;
+        long head = Math.min(r.head, tail);
+        return new Snapshot(r, head, tail, subject);
+    }
+
+    /**
+     * A message in the history along with the information that is needed to replay it.
+     */
+    public static final class Entry {
+
+        private final Message message;
+        /**
+         * Value of the legacy delay stamp, which is the one used for sorting messages.
+         */
+        private final String stamp;
+        private final int textLength;
+        private volatile long time = Long.MIN_VALUE;
+        private volatile SerializedStanza serialized;
+
+        private Entry(Message message) {
+            this.message = message;
+            Element delay = message.getChildElement("x", "jabber:x:delay");
+            this.stamp = delay != null ? delay.attributeValue("stamp") : null;
+            String text = message.getBody() == null ? message.getSubject() : message.getBody();
+            this.textLength = text == null ? -1 : text.length();
+        }
+
+        /**
+         * Returns the message.
+         *
+         * @return the message.
+         */
+        public Message getMessage() {
+            return message;
+        }
+
+        /**
+         * Returns the number of characters of the body of the message, or of its subject if
+         * the message has no body. Returns -1 if the message has no body and no subject.
+         *
+         * @return the number of characters of the message or -1 if the message has no text.
+         */
+        public int getTextLength() {
+            return textLength;
+        }
+
+        /**
+         * Returns the time in milliseconds when the message was sent to the room according
+         * to its delay information, or -1 if the message has no valid delay information.
+         *
+         * @return the time in milliseconds when the message was sent to the room.
+         */
+        public long getTime() {
+            long result = time;
+            if (result == Long.MIN_VALUE) {
+                result = -1;
+                if (stamp != null) {
+                    try {
+                        result = xmppDateTime.parseString(stamp).getTime();
+                    }
+                    catch (ParseException e) {
+                        Log.error("Error parsing date from historic message", e);
+                    }
+                }
+                time = result;
+            }
+            return result;
+        }
+
+        /**
+         * Sends the message to the specified occupant. The serialized form of the message
+         * is used when the <tt>xmpp.muc.history.serializeOnce</tt> property is true.
+         *
+         * @param role the occupant that will receive the message.
+         */
+        public void deliverTo(MUCRole role) {
+            SerializedStanza stanza = null;
+            if (JiveGlobals.getBooleanProperty("xmpp.muc.history.serializeOnce", false)) {
+                stanza = getSerializedStanza();
+            }
+            if (stanza == null) {
+                role.send(message);
+                return;
+            }
+            SerializedStanza.setCurrent(stanza);
+            try {
+                role.send(message);
+            }
+            finally {
+                SerializedStanza.clearCurrent();
+            }
+        }
+
+        /**
+         * Returns the serialized form of the message, which is created the first time it is
+         * needed. Returns null if the message could not be serialized.
+         *
+         * @return the serialized form of the message or null if none.
+         */
+        public SerializedStanza getSerializedStanza() {
+            SerializedStanza result = serialized;
+            if (result == null) {
+                try {
+                    result = SerializedStanza.serializeCopy(message);
+                    serialized = result;
+                }
+                catch (IOException e) {
+                    Log.warn("Error serializing historic message", e);
+                }
+            }
+            return result;
+        }
+
+        private boolean isOlderThan(Entry other) {
+            return stamp != null && other.stamp != null && stamp.compareTo(other.stamp) < 0;
+        }
+    }
+
+    /**
+     * Read-only view of the messages that were in the history when the snapshot was taken.
+     * Messages are sorted from the oldest to the newest one. Messages that were removed from
+     * the history after the snapshot was taken are returned as <tt>null</tt> by
+     * {@link #get(int)} and skipped by iterators.
+     */
+    public static final class Snapshot implements Iterable<Message> {
+
+        private final Ring ring;
+        private final long head;
+        private final int size;
+        private final Entry subject;
+
+        private Snapshot(Ring ring, long head, long tail, Entry subject) {
+            this.ring = ring;
+            this.head = head;
+            this.subject = subject;
+            this.size = (int) (tail - head) + (subject != null ? 1 : 0);
+        }
+
+        /**
+         * Returns the number of messages that were in the history when the snapshot was taken.
+         *
+         * @return the number of messages in the snapshot.
+         */
+        public int size() {
+            return size;
+        }
+
+        /**
+         * Returns the message at the specified position of the snapshot or null if the
+         * message has been removed from the history.
+         *
+         * @param index the position of the message, 0 being the oldest message.
+         * @return the message at the specified position or null if it was removed.
+         */
+        public Entry get(int index) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+            }
+            if (subject != null) {
+                if (index == 0) {
+                    return subject;
+                }
+                index--;
+            }
+            return ring.get(head + index);
+        }
+
+        /**
+         * Returns an iterator over the messages of the snapshot from the oldest to the newest.
+         *
+         * @return an iterator over the messages of the snapshot.
+         */
+        public Iterator<Message> iterator() {
+            return new SnapshotIterator(0);
+        }
+
+        /**
+         * Returns a list iterator that is positioned at the end of the snapshot so it can be
+         * used to traverse the messages from the newest to the oldest. Traversing backwards
+         * stops at the first message that has been removed from the history.
+         *
+         * @return a list iterator positioned at the end of the snapshot.
+         */
+        public ListIterator<Message> reverseIterator() {
+            return new SnapshotIterator(size);
+        }
+
+        private class SnapshotIterator implements ListIterator<Message> {
+
+            private int cursor;
+
+            SnapshotIterator(int cursor) {
+                this.cursor = cursor;
+            }
+
+            public boolean hasNext() {
+                // Skip messages that were removed since they are the oldest ones
+                while (cursor < size && get(cursor) == null) {
+                    cursor++;
+                }
+                return cursor < size;
+            }
+
+            public Message next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return get(cursor++).getMessage();
+            }
+
+            public boolean hasPrevious() {
+                return cursor > 0 && get(cursor - 1) != null;
+            }
+
+            public Message previous() {
+                if (!hasPrevious()) {
+                    throw new NoSuchElementException();
+                }
+                return get(--cursor).getMessage();
+            }
+
+            public int nextIndex() {
+                return cursor;
+            }
+
+            public int previousIndex() {
+                return cursor - 1;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+
+            public void set(Message message) {
+                throw new UnsupportedOperationException();
+            }
+
+            public void add(Message message) {
+                throw new UnsupportedOperationException();
+            }
+        }
+    }
+
+    /**
+     * Fixed size array of positions. Positions are identified by an increasing sequence
+     * number so readers can tell when a position has been reused for a newer message.
+     */
+    private static final class Ring {
+
+        private final Slot[] slots;
+        private volatile long head;
+        private volatile long tail;
+
+        Ring(int capacity) {
+            slots = new Slot[capacity];
+        }
+
+        int size() {
+            return (int) (tail - head);
+        }
+
+        Entry get(long sequence) {
+            Slot slot = slots[(int) (sequence % slots.length)];
+            return slot != null && slot.sequence == sequence ? slot.entry : null;
+        }
+
+        void append(Entry entry) {
+            long sequence = tail;
+            slots[(int) (sequence % slots.length)] = new Slot(sequence, entry);
+            // Publish the new message
+            tail = sequence + 1;
+        }
+
+        Entry removeOldest() {
+            long sequence = head;
+            int index = (int) (sequence % slots.length);
+            Entry entry = slots[index].entry;
+            head = sequence + 1;
+            slots[index] = null;
+            return entry;
+        }
+
+        Ring copy(int capacity) {
+            Ring copy = new Ring(capacity);
+            for (long sequence = head; sequence < tail; sequence++) {
+                copy.slots[(int) (sequence % capacity)] = slots[(int) (sequence % slots.length)];
+            }
+            copy.head = head;
+            copy.tail = tail;
+            return copy;
+        }
+
+        Ring sortedCopy(Entry newEntry) {
+            List<Entry> entries = new ArrayList<Entry>(size() + 1);
+            for (long sequence = head; sequence < tail; sequence++) {
+                entries.add(get(sequence));
+            }
+            int index = entries.size();
+            while (index > 0 && newEntry.isOlderThan(entries.get(index - 1))) {
+                index--;
+            }
+            entries.add(index, newEntry);
+            Ring copy = new Ring(Math.max(slots.length, entries.size()));
+            for (Entry entry : entries) {
+                copy.append(entry);
+            }
+            return copy;
+        }
+    }
+
+    private static final class Slot {
+
+        private final long sequence;
+        private final Entry entry;
+
+        Slot(long sequence, Entry entry) {
+            this.sequence = sequence;
+            this.entry = entry;
+        }
+    }
+}
@@ -22,9 +22,6 @@ package org.jivesoftware.openfire.muc;
 
 import java.text.ParseException;
 import java.util.Date;
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.ListIterator;
 
 import org.dom4j.Element;
 import org.jivesoftware.openfire.muc.spi.LocalMUCRole;
@@ -136,11 +133,9 @@ public class HistoryRequest {
      * @param roomHistory the history of the room.
      */
     public void sendHistory(LocalMUCRole joinRole, MUCRoomHistory roomHistory) {
+        HistoryBuffer.Snapshot history = roomHistory.getHistorySnapshot();
         if (!isConfigured()) {
-            Iterator<Message> history = roomHistory.getMessageHistory();
-            while (history.hasNext()) {
-                joinRole.send(history.next());
-            }
+            sendAll(joinRole, history);
         }
         else {
             Message changedSubject = roomHistory.getChangedSubject();
@@ -154,18 +149,22 @@ public class HistoryRequest {
             }
             int accumulatedChars = 0;
             int accumulatedStanzas = 0;
-            Element delayInformation;
-            LinkedList<Message> historyToSend = new LinkedList<Message>();
-            ListIterator<Message> iterator = roomHistory.getReverseMessageHistory();
-            while (iterator.hasPrevious()) {
-                Message message = iterator.previous();
+            long current = System.currentTimeMillis();
+            // Find the oldest message to send by traversing the history backwards
+            int first = history.size();
+            while (first > 0) {
+                HistoryBuffer.Entry entry = history.get(first - 1);
+                if (entry == null) {
+                    // Older messages have been removed from the history
+                    break;
+                }
                 // Update number of characters to send
-                String text = message.getBody() == null ? message.getSubject() : message.getBody();
-                if (text == null) {
-                    // Skip this message since it has no body and no subject  
+                if (entry.getTextLength() < 0) {
+                    // Skip this message since it has no body and no subject
+                    first--;
                     continue;
                 }
-                accumulatedChars += text.length();
+                accumulatedChars += entry.getTextLength();
                 if (getMaxChars() > -1 && accumulatedChars > getMaxChars()) {
                     // Stop collecting history since we have exceded a limit
                     break;
@@ -178,45 +177,54 @@ public class HistoryRequest {
                 }
 
                 if (getSeconds() > -1 || getSince() != null) {
-                    delayInformation = message.getChildElement("x", "jabber:x:delay");
-                    try {
-                        // Get the date when the historic message was sent
-                        Date delayedDate = xmppDateTime.parseString(delayInformation.attributeValue("stamp"));
-                        if (getSince() != null && delayedDate != null && delayedDate.before(getSince())) {
+                    // Get the date when the historic message was sent
+                    long delayedDate = entry.getTime();
+                    if (delayedDate > -1) {
+                        if (getSince() != null && delayedDate < getSince().getTime()) {
                             // Stop collecting history since we have exceded a limit
                             break;
                         }
                         if (getSeconds() > -1) {
-                            Date current = new Date();
-                            long diff = (current.getTime() - delayedDate.getTime()) / 1000;
+                            long diff = (current - delayedDate) / 1000;
                             if (getSeconds() <= diff) {
                                 // Stop collecting history since we have exceded a limit
                                 break;
                             }
                         }
                     }
-                    catch (Exception e) {
-                        Log.error("Error parsing date from historic message", e);
-                    }
-
                 }
 
                 // Don't add the latest subject change if it's already in the history.
-                if (addChangedSubject) {
-                    if (changedSubject != null && changedSubject.equals(message)) {
-                        addChangedSubject = false;
-                    }
+                if (addChangedSubject && changedSubject.equals(entry.getMessage())) {
+                    addChangedSubject = false;
                 }
-
-                historyToSend.addFirst(message);
+                first--;
             }
             // Check if we should add the latest subject change.
             if (addChangedSubject) {
-                historyToSend.addFirst(changedSubject);
+                joinRole.send(changedSubject);
             }
             // Send the smallest amount of traffic to the user
-            for (Object aHistoryToSend : historyToSend) {
-                joinRole.send((Message) aHistoryToSend);
+            for (int i = first; i < history.size(); i++) {
+                HistoryBuffer.Entry entry = history.get(i);
+                if (entry != null && entry.getTextLength() > -1) {
+                    entry.deliverTo(joinRole);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends all the messages of the room history to a new room member.
+     *
+     * @param joinRole the user that will receive the history.
+     * @param history the history of the room.
+     */
+    public static void sendAll(MUCRole joinRole, HistoryBuffer.Snapshot history) {
+        for (int i = 0; i < history.size(); i++) {
+            HistoryBuffer.Entry entry = history.get(i);
+            if (entry != null) {
+                entry.deliverTo(joinRole);
             }
         }
     }
@@ -20,12 +20,8 @@
 
 package org.jivesoftware.openfire.muc;
 
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.ListIterator;
-import java.util.concurrent.ConcurrentLinkedQueue;
 
 import org.jivesoftware.openfire.muc.cluster.UpdateHistoryStrategy;
 import org.jivesoftware.openfire.muc.spi.MUCPersistenceManager;
@@ -54,9 +50,9 @@ public class HistoryStrategy {
     private Type type = Type.number;
 
     /**
-     * List containing the history of messages.
+     * Buffer containing the history of messages.
      */
-    private ConcurrentLinkedQueue<Message> history = new ConcurrentLinkedQueue<Message>();
+    private final HistoryBuffer history = new HistoryBuffer();
     /**
      * Default max number.
      */
@@ -191,28 +187,16 @@ public class HistoryStrategy {
         if (strategyType == Type.none){
             if (subjectChange) {
                 history.clear();
-                history.add(packet);
+                history.add(packet, -1, roomSubject);
             }
         }
         else if (strategyType == Type.all) {
-            history.add(packet);
+            history.add(packet, -1, roomSubject);
         }
         else if (strategyType == Type.number) {
-            if (history.size() >= strategyMaxNumber) {
-                // We have to remove messages so the new message won't exceed
-                // the max history size
-                // This is complicated somewhat because we must skip over the
-                // last room subject
-                // message because we want to preserve the room subject if
-                // possible.
-                Iterator<Message> historyIter = history.iterator();
-                while (historyIter.hasNext() && history.size() > strategyMaxNumber) {
-                    if (historyIter.next() != roomSubject) {
-                        historyIter.remove();
-                    }
-                }
-            }
-            history.add(packet);
+            // Oldest messages are removed so the new message won't exceed the max
+            // history size. The last room subject message is preserved if possible.
+            history.add(packet, strategyMaxNumber, roomSubject);
         }
     }
 
@@ -230,10 +214,7 @@ public class HistoryStrategy {
      * @return An iterator of Message objects to be sent to the new room member.
      */
     public Iterator<Message> getMessageHistory(){
-        LinkedList<Message> list = new LinkedList<Message>(history);
-        // Sort messages. Messages may be out of order when running inside of a cluster
-        Collections.sort(list, new MessageComparator());
-        return list.iterator();
+        return history.snapshot().iterator();
     }
 
     /**
@@ -244,10 +225,26 @@ public class HistoryStrategy {
      * @return A list iterator of Message objects positioned at the end of the list.
      */
     public ListIterator<Message> getReverseMessageHistory(){
-        LinkedList<Message> list = new LinkedList<Message>(history);
-        // Sort messages. Messages may be out of order when running inside of a cluster
-        Collections.sort(list, new MessageComparator());
-        return list.listIterator(list.size());
+        return history.snapshot().reverseIterator();
+    }
+
+    /**
+     * Obtain a view of the current history sorted from the oldest to the newest message.
+     * The view does not copy the history and may be used to filter the messages to play
+     * back to a new room member.
+     *
+     * @return a view of the current history.
+     */
+    public HistoryBuffer.Snapshot getHistorySnapshot() {
+        return history.snapshot();
+    }
+
+    /**
+     * Forgets the serialized form of the messages in the history. This method must be
+     * invoked after modifying the messages in the history.
+     */
+    public void clearSerializedHistory() {
+        history.clearSerializations();
     }
 
     /**
@@ -321,12 +318,4 @@ public class HistoryStrategy {
     public Message getChangedSubject() {
         return roomSubject;
     }
-
-    private static class MessageComparator implements Comparator<Message> {
-        public int compare(Message o1, Message o2) {
-            String stamp1 = o1.getChildElement("x", "jabber:x:delay").attributeValue("stamp");
-            String stamp2 = o2.getChildElement("x", "jabber:x:delay").attributeValue("stamp");
-            return stamp1.compareTo(stamp2);
-        }
-    }
 }
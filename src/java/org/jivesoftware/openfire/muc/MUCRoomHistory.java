@@ -96,7 +96,7 @@ public final class MUCRoomHistory {
                     delayElement.addAttribute("from", message.getFrom().toString());
                 }
             }
-
+            historyStrategy.clearSerializedHistory();
         }
 
         // Add the delay information to the message
@@ -128,6 +128,16 @@ public final class MUCRoomHistory {
         return historyStrategy.getMessageHistory();
     }
 
+    /**
+     * Obtain a view of the current history sorted from the oldest to the newest message.
+     * The view does not copy the history.
+     *
+     * @return a view of the current history.
+     */
+    public HistoryBuffer.Snapshot getHistorySnapshot() {
+        return historyStrategy.getHistorySnapshot();
+    }
+
     /**
      * Obtain the current history to be iterated in reverse mode. This means that the returned list
      * iterator will be positioned at the end of the history so senders of this message must
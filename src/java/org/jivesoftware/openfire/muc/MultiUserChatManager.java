@@ -88,6 +88,8 @@ public class MultiUserChatManager extends BasicModule implements ClusterEventLis
     private static final String incomingStatKey = "muc_incoming";
     private static final String outgoingStatKey = "muc_outgoing";
     private static final String trafficStatGroup = "muc_traffic";
+    private static final String logQueueStatKey = "muc_log_queue";
+    private static final String logFlushStatKey = "muc_log_flush";
 
     private ConcurrentHashMap<String,MultiUserChatService> mucServices = new ConcurrentHashMap<String,MultiUserChatService>();
 
@@ -117,6 +119,8 @@ public class MultiUserChatManager extends BasicModule implements ClusterEventLis
         addTotalConnectedUsers();
         addNumberIncomingMessages();
         addNumberOutgoingMessages();
+        addConversationLogQueueSize();
+        addConversationLogFlushTime();
 
         ClusterManager.addListener(this);
         UserEventDispatcher.addListener(this);
@@ -138,6 +142,8 @@ public class MultiUserChatManager extends BasicModule implements ClusterEventLis
         StatisticsManager.getInstance().removeStatistic(usersStatKey);
         StatisticsManager.getInstance().removeStatistic(incomingStatKey);
         StatisticsManager.getInstance().removeStatistic(outgoingStatKey);
+        StatisticsManager.getInstance().removeStatistic(logQueueStatKey);
+        StatisticsManager.getInstance().removeStatistic(logFlushStatKey);
 
         for (MultiUserChatService service : mucServices.values()) {
             unregisterMultiUserChatService(service.getServiceName());
@@ -748,6 +754,76 @@ public class MultiUserChatManager extends BasicModule implements ClusterEventLis
         StatisticsManager.getInstance().addMultiStatistic(outgoingStatKey, trafficStatGroup, statistic);
     }
 
+    private void addConversationLogQueueSize() {
+        // Register a statistic.
+        Statistic statistic = new Statistic() {
+            public String getName() {
+                return LocaleUtils.getLocalizedString("muc.stats.log_queue.name");
+            }
+
+            public Type getStatType() {
+                return Type.count;
+            }
+
+            public String getDescription() {
+                return LocaleUtils.getLocalizedString("muc.stats.log_queue.description");
+            }
+
+            public String getUnits() {
+                return LocaleUtils.getLocalizedString("muc.stats.log_queue.label");
+            }
+
+            public double sample() {
+                double queued = 0;
+                for (MultiUserChatService service : getMultiUserChatServices()) {
+                    queued += service.getConversationLogQueueSize();
+                }
+                return queued;
+            }
+
+            public boolean isPartialSample() {
+                // Each cluster node logs the messages of its own occupants
+                return true;
+            }
+        };
+        StatisticsManager.getInstance().addStatistic(logQueueStatKey, statistic);
+    }
+
+    private void addConversationLogFlushTime() {
+        // Register a statistic.
+        Statistic statistic = new Statistic() {
+            public String getName() {
+                return LocaleUtils.getLocalizedString("muc.stats.log_flush.name");
+            }
+
+            public Type getStatType() {
+                return Type.count;
+            }
+
+            public String getDescription() {
+                return LocaleUtils.getLocalizedString("muc.stats.log_flush.description");
+            }
+
+            public String getUnits() {
+                return LocaleUtils.getLocalizedString("muc.stats.log_flush.label");
+            }
+
+            public double sample() {
+                // Report the slowest service
+                double flushTime = 0;
+                for (MultiUserChatService service : getMultiUserChatServices()) {
+                    flushTime = Math.max(flushTime, service.getConversationLogFlushTime(true));
+                }
+                return flushTime;
+            }
+
+            public boolean isPartialSample() {
+                return false;
+            }
+        };
+        StatisticsManager.getInstance().addStatistic(logFlushStatKey, statistic);
+    }
+
     // Cluster management tasks
     public void joinedCluster() {
         if (!ClusterManager.isSeniorClusterMember()) {
@@ -332,6 +332,22 @@ public interface MultiUserChatService extends Component {
      */
     public long getOutgoingMessageCount(boolean resetAfter);
 
+    /**
+     * Returns the number of room messages that are waiting to be logged to the database.
+     *
+     * @return the number of room messages that are waiting to be logged.
+     */
+    public int getConversationLogQueueSize();
+
+    /**
+     * Returns the average number of milliseconds it took to save a batch of room messages
+     * to the database since last reset.
+     *
+     * @param resetAfter True if you want the average to be reset after results returned.
+     * @return the average number of milliseconds it took to log a batch of room messages.
+     */
+    public double getConversationLogFlushTime(boolean resetAfter);
+
     /**
      * Logs that a given message was sent to a room as part of a conversation. Every message sent
      * to the room that is allowed to be broadcasted and that was sent either from the room itself 
@@ -78,14 +78,14 @@ public class AddAffiliation extends MUCRoomTask {
     @Override
 	public void writeExternal(ObjectOutput out) throws IOException {
         super.writeExternal(out);
-        ExternalizableUtil.getInstance().writeSerializable(out, bareJID);
-        ExternalizableUtil.getInstance().writeSerializable(out, affiliation);
+        ExternalizableUtil.getInstance().writeJID(out, bareJID);
+        ExternalizableUtil.getInstance().writeSafeUTF(out, affiliation.name());
     }
 
     @Override
 	public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
         super.readExternal(in);
-        bareJID = (JID) ExternalizableUtil.getInstance().readSerializable(in);
-        affiliation = (MUCRole.Affiliation) ExternalizableUtil.getInstance().readSerializable(in);
+        bareJID = ExternalizableUtil.getInstance().readJID(in);
+        affiliation = MUCRole.Affiliation.valueOf(ExternalizableUtil.getInstance().readSafeUTF(in));
     }
 }
@@ -21,7 +21,6 @@
 package org.jivesoftware.openfire.muc.cluster;
 
 import org.dom4j.Element;
-import org.dom4j.tree.DefaultElement;
 import org.jivesoftware.openfire.muc.spi.LocalMUCRoom;
 import org.jivesoftware.util.cache.ExternalizableUtil;
 import org.xmpp.packet.Message;
@@ -74,13 +73,13 @@ public class BroadcastMessageRequest extends MUCRoomTask {
     @Override
 	public void writeExternal(ObjectOutput out) throws IOException {
         super.writeExternal(out);
-        ExternalizableUtil.getInstance().writeSerializable(out, (DefaultElement) message.getElement());
+        ExternalizableUtil.getInstance().writeElement(out, message.getElement());
     }
 
     @Override
 	public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
         super.readExternal(in);
-        Element packetElement = (Element) ExternalizableUtil.getInstance().readSerializable(in);
+        Element packetElement = ExternalizableUtil.getInstance().readElement(in);
         message = new Message(packetElement, true);
     }
 }
@@ -78,10 +78,7 @@ public class DestroyRoomRequest extends MUCRoomTask {
     @Override
 	public void writeExternal(ObjectOutput out) throws IOException {
         super.writeExternal(out);
-        ExternalizableUtil.getInstance().writeBoolean(out, alternateJID != null);
-        if (alternateJID != null) {
-            ExternalizableUtil.getInstance().writeSerializable(out, alternateJID);
-        }
+        ExternalizableUtil.getInstance().writeJID(out, alternateJID);
         ExternalizableUtil.getInstance().writeBoolean(out, reason != null);
         if (reason != null) {
             ExternalizableUtil.getInstance().writeSafeUTF(out, reason);
@@ -91,9 +88,7 @@ public class DestroyRoomRequest extends MUCRoomTask {
     @Override
 	public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
         super.readExternal(in);
-        if (ExternalizableUtil.getInstance().readBoolean(in)) {
-            alternateJID = (JID) ExternalizableUtil.getInstance().readSerializable(in);
-        }
+        alternateJID = ExternalizableUtil.getInstance().readJID(in);
         if (ExternalizableUtil.getInstance().readBoolean(in)) {
             reason = ExternalizableUtil.getInstance().readSafeUTF(in);
         }
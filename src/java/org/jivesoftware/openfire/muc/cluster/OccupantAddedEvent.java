@@ -21,7 +21,6 @@
 package org.jivesoftware.openfire.muc.cluster;
 
 import org.dom4j.Element;
-import org.dom4j.tree.DefaultElement;
 import org.jivesoftware.openfire.XMPPServer;
 import org.jivesoftware.openfire.cluster.NodeID;
 import org.jivesoftware.openfire.muc.MUCRole;
@@ -134,12 +133,12 @@ public class OccupantAddedEvent extends MUCRoomTask {
     @Override
 	public void writeExternal(ObjectOutput out) throws IOException {
         super.writeExternal(out);
-        ExternalizableUtil.getInstance().writeSerializable(out, (DefaultElement) presence.getElement());
+        ExternalizableUtil.getInstance().writeElement(out, presence.getElement());
         ExternalizableUtil.getInstance().writeInt(out, role);
         ExternalizableUtil.getInstance().writeInt(out, affiliation);
         ExternalizableUtil.getInstance().writeBoolean(out, voiceOnly);
-        ExternalizableUtil.getInstance().writeSerializable(out, roleAddress);
-        ExternalizableUtil.getInstance().writeSerializable(out, userAddress);
+        ExternalizableUtil.getInstance().writeJID(out, roleAddress);
+        ExternalizableUtil.getInstance().writeJID(out, userAddress);
         ExternalizableUtil.getInstance().writeByteArray(out, nodeID.toByteArray());
         ExternalizableUtil.getInstance().writeBoolean(out, sendPresence);
     }
@@ -147,13 +146,13 @@ public class OccupantAddedEvent extends MUCRoomTask {
     @Override
 	public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
         super.readExternal(in);
-        Element packetElement = (Element) ExternalizableUtil.getInstance().readSerializable(in);
+        Element packetElement = ExternalizableUtil.getInstance().readElement(in);
         presence = new Presence(packetElement, true);
         role = ExternalizableUtil.getInstance().readInt(in);
         affiliation = ExternalizableUtil.getInstance().readInt(in);
         voiceOnly = ExternalizableUtil.getInstance().readBoolean(in);
-        roleAddress = (JID) ExternalizableUtil.getInstance().readSerializable(in);
-        userAddress = (JID) ExternalizableUtil.getInstance().readSerializable(in);
+        roleAddress = ExternalizableUtil.getInstance().readJID(in);
+        userAddress = ExternalizableUtil.getInstance().readJID(in);
         nodeID = NodeID.getInstance(ExternalizableUtil.getInstance().readByteArray(in));
         sendPresence = ExternalizableUtil.getInstance().readBoolean(in);
     }
@@ -0,0 +1,138 @@
+/**
+ * Copyright (C) 2004-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jivesoftware.openfire.muc.spi;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Messages of room conversations waiting to be logged to the database. Messages are saved
+ * in batches and the messages of a batch that could not be saved are queued again, unless
+ * the queue filled up in the meantime, in which case they are dropped.
+ */
+abstract class ConversationLogQueue {
+
+    private static final Logger Log = LoggerFactory.getLogger(ConversationLogQueue.class);
+
+    /**
+     * The minimum time to elapse between logging the room conversations. The logging process
+     * runs more often than the log timeout when messages to log are queued faster than they
+     * are flushed and gets closer to this value as the queue fills up.
+     */
+    static final int MIN_LOG_TIMEOUT = 1000;
+
+    private final BlockingQueue<ConversationLogEntry> queue;
+
+    ConversationLogQueue(int capacity) {
+        queue = new LinkedBlockingQueue<ConversationLogEntry>(capacity);
+    }
+
+    /**
+     * Saves a batch of messages to the database in a single transaction.
+     *
+     * @param batch the messages to save.
+     * @return true if the messages were saved.
+     */
+    abstract boolean save(List<ConversationLogEntry> batch);
+
+    /**
+     * Queues a message to log.
+     *
+     * @param entry the message to log.
+     * @throws IllegalStateException if the queue is full.
+     */
+    void add(ConversationLogEntry entry) {
+        queue.add(entry);
+    }
+
+    int size() {
+        return queue.size();
+    }
+
+    /**
+     * Returns the number of milliseconds to wait before logging the queued messages again.
+     * The delay goes down from the log timeout to {@link #MIN_LOG_TIMEOUT} as the number of
+     * queued messages grows up to the batch size.
+     *
+     * @param logTimeout the time to elapse between logging when no messages are queued.
+     * @param batchSize the number of messages to log in a single batch.
+     * @return the number of milliseconds to wait before logging the queued messages again.
+     */
+    long getDelay(int logTimeout, int batchSize) {
+        int minTimeout = Math.min(MIN_LOG_TIMEOUT, logTimeout);
+        batchSize = Math.max(1, batchSize);
+        int queued = Math.min(queue.size(), batchSize);
+        return logTimeout - (long) (logTimeout - minTimeout) * queued / batchSize;
+    }
+
+    /**
+     * Logs the messages that were queued when this method was invoked. Logging stops at the
+     * first batch that could not be saved, which is queued again.
+     *
+     * @param batchSize the number of messages to log in a single batch.
+     */
+    void logQueued(int batchSize) {
+        int pending = queue.size();
+        while (pending > 0) {
+            List<ConversationLogEntry> batch = poll(batchSize);
+            if (batch.isEmpty()) {
+                break;
+            }
+            pending -= batch.size();
+            if (!save(batch)) {
+                for (ConversationLogEntry entry : batch) {
+                    if (!queue.offer(entry)) {
+                        Log.warn("Conversation log queue is full. Dropping message of room: " +
+                                entry.getRoomID());
+                    }
+                }
+                break;
+            }
+        }
+    }
+
+    /**
+     * Logs all the queued messages, including messages queued while logging. Batches that
+     * could not be saved are dropped. Use this method to force saving all the messages before
+     * the service becomes unavailable.
+     *
+     * @param batchSize the number of messages to log in a single batch.
+     */
+    void logAll(int batchSize) {
+        List<ConversationLogEntry> batch = poll(batchSize);
+        while (!batch.isEmpty()) {
+            save(batch);
+            batch = poll(batchSize);
+        }
+    }
+
+    private List<ConversationLogEntry> poll(int batchSize) {
+        batchSize = Math.max(1, batchSize);
+        List<ConversationLogEntry> batch = new ArrayList<ConversationLogEntry>(batchSize);
+        ConversationLogEntry entry;
+        while (batch.size() < batchSize && (entry = queue.poll()) != null) {
+            batch.add(entry);
+        }
+        return batch;
+    }
+}
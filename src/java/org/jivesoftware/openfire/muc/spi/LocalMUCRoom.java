@@ -28,7 +28,6 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -69,9 +68,11 @@ import org.jivesoftware.openfire.muc.cluster.RoomUpdatedEvent;
 import org.jivesoftware.openfire.muc.cluster.UpdateOccupant;
 import org.jivesoftware.openfire.muc.cluster.UpdateOccupantRequest;
 import org.jivesoftware.openfire.muc.cluster.UpdatePresence;
+import org.jivesoftware.openfire.nio.SerializedStanza;
 import org.jivesoftware.openfire.user.UserAlreadyExistsException;
 import org.jivesoftware.openfire.user.UserNotFoundException;
 import org.jivesoftware.util.JiveConstants;
+import org.jivesoftware.util.JiveGlobals;
 import org.jivesoftware.util.LocaleUtils;
 import org.jivesoftware.util.NotFoundException;
 import org.jivesoftware.util.cache.CacheFactory;
@@ -659,10 +660,7 @@ public class LocalMUCRoom implements MUCRoom {
 
         }
         if (historyRequest == null) {
-            Iterator<Message> history = roomHistory.getMessageHistory();
-            while (history.hasNext()) {
-                joinRole.send(history.next());
-            }
+            HistoryRequest.sendAll(joinRole, roomHistory.getHistorySnapshot());
         }
         else {
             historyRequest.sendHistory(joinRole, roomHistory);
@@ -1155,13 +1153,27 @@ public class LocalMUCRoom implements MUCRoom {
         Message message = messageRequest.getMessage();
         // Add message to the room history
         roomHistory.addMessage(message);
-        // Send message to occupants connected to this JVM
-        for (MUCRole occupant : occupantsByFullJID.values()) {
-            // Do not send broadcast messages to deaf occupants or occupants hosted in
-            // other cluster nodes
-            if (occupant.isLocal() && !occupant.isVoiceOnly()) {
-                occupant.send(message);
+        // Serialize the message only once for all the occupants connected to this JVM
+        if (JiveGlobals.getBooleanProperty("xmpp.muc.broadcast.serializeOnce", false)) {
+            try {
+                SerializedStanza.setCurrent(SerializedStanza.serialize(message));
             }
+            catch (IOException e) {
+                Log.warn("Error serializing broadcast message of room: " + name, e);
+            }
+        }
+        try {
+            // Send message to occupants connected to this JVM
+            for (MUCRole occupant : occupantsByFullJID.values()) {
+                // Do not send broadcast messages to deaf occupants or occupants hosted in
+                // other cluster nodes
+                if (occupant.isLocal() && !occupant.isVoiceOnly()) {
+                    occupant.send(message);
+                }
+            }
+        }
+        finally {
+            SerializedStanza.clearCurrent();
         }
         if (messageRequest.isOriginator() && isLogEnabled()) {
             MUCRole senderRole = null;
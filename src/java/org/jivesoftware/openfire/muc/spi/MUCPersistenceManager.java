@@ -1043,6 +1043,51 @@ public class MUCPersistenceManager {
         }
     }
 
+    /**
+     * Saves a batch of conversation log entries to the database. All the entries are saved
+     * within the same transaction using a JDBC batch when the database supports it, so either
+     * all the entries are saved or none of them.
+     *
+     * @param entries the ConversationLogEntries to save to the database.
+     * @return true if the ConversationLogEntries were saved successfully to the database.
+     */
+    public static boolean saveConversationLogEntries(List<ConversationLogEntry> entries) {
+        Connection con = null;
+        PreparedStatement pstmt = null;
+        boolean abortTransaction = true;
+        try {
+            con = DbConnectionManager.getTransactionConnection();
+            pstmt = con.prepareStatement(ADD_CONVERSATION_LOG);
+            boolean batch = DbConnectionManager.isBatchUpdatesSupported();
+            for (ConversationLogEntry entry : entries) {
+                pstmt.setLong(1, entry.getRoomID());
+                pstmt.setString(2, entry.getSender().toString());
+                pstmt.setString(3, entry.getNickname());
+                pstmt.setString(4, StringUtils.dateToMillis(entry.getDate()));
+                pstmt.setString(5, entry.getSubject());
+                pstmt.setString(6, entry.getBody());
+                if (batch) {
+                    pstmt.addBatch();
+                }
+                else {
+                    pstmt.executeUpdate();
+                }
+            }
+            if (batch) {
+                pstmt.executeBatch();
+            }
+            abortTransaction = false;
+            return true;
+        }
+        catch (SQLException sqle) {
+            Log.error("Error saving conversation log entries", sqle);
+            return false;
+        }
+        finally {
+            DbConnectionManager.closeTransactionConnection(pstmt, con, abortTransaction);
+        }
+    }
+
     /**
      * Returns an integer based on the binary representation of the roles to broadcast.
      * 
@@ -27,11 +27,10 @@ import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Queue;
 import java.util.TimerTask;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -43,8 +42,8 @@ import org.jivesoftware.openfire.XMPPServer;
 import org.jivesoftware.openfire.cluster.ClusterManager;
 import org.jivesoftware.openfire.disco.DiscoInfoProvider;
 import org.jivesoftware.openfire.disco.DiscoItem;
-import org.jivesoftware.openfire.disco.DiscoItemsProvider;
 import org.jivesoftware.openfire.disco.DiscoServerItem;
+import org.jivesoftware.openfire.disco.PagedDiscoItemsProvider;
 import org.jivesoftware.openfire.disco.ServerItemsProvider;
 import org.jivesoftware.openfire.muc.HistoryStrategy;
 import org.jivesoftware.openfire.muc.MUCEventDelegate;
@@ -58,6 +57,8 @@ import org.jivesoftware.openfire.muc.cluster.GetNumberConnectedUsers;
 import org.jivesoftware.openfire.muc.cluster.OccupantAddedEvent;
 import org.jivesoftware.openfire.muc.cluster.RoomAvailableEvent;
 import org.jivesoftware.openfire.muc.cluster.RoomRemovedEvent;
+import org.jivesoftware.openfire.resultsetmanager.PageRequest;
+import org.jivesoftware.openfire.resultsetmanager.ResultPage;
 import org.jivesoftware.util.JiveProperties;
 import org.jivesoftware.util.LocaleUtils;
 import org.jivesoftware.util.TaskEngine;
@@ -94,7 +95,7 @@ import org.xmpp.resultsetmanagement.ResultSet;
  * @author Gaston Dombiak
  */
 public class MultiUserChatServiceImpl implements Component, MultiUserChatService,
-        ServerItemsProvider, DiscoInfoProvider, DiscoItemsProvider {
+        ServerItemsProvider, DiscoInfoProvider, PagedDiscoItemsProvider {
 
 	private static final Logger Log = LoggerFactory.getLogger(MultiUserChatServiceImpl.class);
 
@@ -122,6 +123,13 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
      * Task that flushes room conversation logs to the database.
      */
     private LogConversationTask logConversationTask;
+    /**
+     * Total time in nanoseconds spent flushing batches of room conversation logs and number
+     * of flushed batches since the last reset.
+     */
+    private long logFlushTime = 0;
+    private int logFlushes = 0;
+    private final Object logFlushLock = new Object();
     /**
      * the chat service's hostname (subdomain)
      */
@@ -202,7 +210,12 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
     /**
      * Queue that holds the messages to log for the rooms that need to log their conversations.
      */
-    private Queue<ConversationLogEntry> logQueue = new LinkedBlockingQueue<ConversationLogEntry>(100000);
+    private final ConversationLogQueue logQueue = new ConversationLogQueue(100000) {
+        @Override
+        boolean save(List<ConversationLogEntry> batch) {
+            return saveConversationLogBatch(batch);
+        }
+    };
 
     /**
      * Max number of hours that a persistent room may be empty before the service removes the
@@ -434,7 +447,8 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
     }
 
     /**
-     * Logs the conversation of the rooms that have this feature enabled.
+     * Logs the conversation of the rooms that have this feature enabled. Once done the task
+     * schedules the next run based on the number of messages that are still queued.
      */
     private class LogConversationTask extends TimerTask {
         @Override
@@ -445,21 +459,43 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
             catch (Throwable e) {
                 Log.error(LocaleUtils.getLocalizedString("admin.error"), e);
             }
+            finally {
+                synchronized (MultiUserChatServiceImpl.this) {
+                    // Do nothing if the task was replaced because the timeout has changed
+                    if (logConversationTask == this) {
+                        scheduleLogConversationTask(getLogConversationDelay());
+                    }
+                }
+            }
         }
     }
 
-    private void logConversation() {
-        ConversationLogEntry entry;
-        boolean success;
-        for (int index = 0; index <= log_batch_size && !logQueue.isEmpty(); index++) {
-            entry = logQueue.poll();
-            if (entry != null) {
-                success = MUCPersistenceManager.saveConversationLogEntry(entry);
-                if (!success) {
-                    logQueue.add(entry);
-                }
-            }
+    private synchronized void scheduleLogConversationTask(long delay) {
+        if (logConversationTask != null) {
+            logConversationTask.cancel();
         }
+        logConversationTask = new LogConversationTask();
+        TaskEngine.getInstance().schedule(logConversationTask, delay);
+    }
+
+    /**
+     * Returns the number of milliseconds to wait before logging the room conversations
+     * again. The delay goes down from <tt>log_timeout</tt> as messages are queued, see
+     * {@link ConversationLogQueue#getDelay(int, int)}.
+     *
+     * @return the number of milliseconds to wait before logging the room conversations again.
+     */
+    private long getLogConversationDelay() {
+        return logQueue.getDelay(log_timeout, log_batch_size);
+    }
+
+    /**
+     * Logs the messages that were queued when this method was invoked. Messages are saved to
+     * the database in batches of <tt>log_batch_size</tt> messages and each batch is saved in a
+     * single transaction. Messages of a batch that could not be saved are queued again.
+     */
+    private void logConversation() {
+        logQueue.logQueued(log_batch_size);
     }
 
     /**
@@ -467,13 +503,18 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
      * saving all the conversation log entries before the service becomes unavailable.
      */
     private void logAllConversation() {
-        ConversationLogEntry entry;
-        while (!logQueue.isEmpty()) {
-            entry = logQueue.poll();
-            if (entry != null) {
-                MUCPersistenceManager.saveConversationLogEntry(entry);
-            }
+        logQueue.logAll(log_batch_size);
+    }
+
+    private boolean saveConversationLogBatch(List<ConversationLogEntry> batch) {
+        long start = System.nanoTime();
+        boolean success = MUCPersistenceManager.saveConversationLogEntries(batch);
+        long elapsed = System.nanoTime() - start;
+        synchronized (logFlushLock) {
+            logFlushTime += elapsed;
+            logFlushes++;
         }
+        return success;
     }
 
     /**
@@ -776,14 +817,9 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
         if (this.log_timeout == timeout) {
             return;
         }
-        // Cancel the existing task because the timeout has changed
-        if (logConversationTask != null) {
-            logConversationTask.cancel();
-        }
         this.log_timeout = timeout;
-        // Create a new task and schedule it with the new timeout
-        logConversationTask = new LogConversationTask();
-        TaskEngine.getInstance().schedule(logConversationTask, log_timeout, log_timeout);
+        // Replace the existing task with a new one scheduled with the new timeout
+        scheduleLogConversationTask(log_timeout);
         // Set the new property value
         MUCPersistenceManager.setProperty(chatServiceName, "tasks.log.timeout", Integer.toString(timeout));
     }
@@ -1062,9 +1098,8 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
         userTimeoutTask = new UserTimeoutTask();
         TaskEngine.getInstance().schedule(userTimeoutTask, user_timeout, user_timeout);
         // Log the room conversations every 5 minutes after a 5 minutes server startup delay
-        // (default values)
-        logConversationTask = new LogConversationTask();
-        TaskEngine.getInstance().schedule(logConversationTask, log_timeout, log_timeout);
+        // (default values), or more often while many messages are waiting to be logged
+        scheduleLogConversationTask(log_timeout);
         // Remove unused rooms from memory
         cleanupTask = new CleanupTask();
         TaskEngine.getInstance().schedule(cleanupTask, CLEANUP_FREQUENCY, CLEANUP_FREQUENCY);
@@ -1201,6 +1236,21 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
         }
     }
 
+    public int getConversationLogQueueSize() {
+        return logQueue.size();
+    }
+
+    public double getConversationLogFlushTime(boolean resetAfter) {
+        synchronized (logFlushLock) {
+            double average = logFlushes == 0 ? 0 : logFlushTime / 1000000d / logFlushes;
+            if (resetAfter) {
+                logFlushTime = 0;
+                logFlushes = 0;
+            }
+            return average;
+        }
+    }
+
     public void logConversation(MUCRoom room, Message message, JID sender) {
         // Only log messages that have a subject or body. Otherwise ignore it.
         if (message.getSubject() != null || message.getBody() != null) {
@@ -1495,6 +1545,25 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
         return answer.iterator();
     }
 
+    public ResultPage<DiscoItem> getItems(String name, String node, final JID senderJID,
+            PageRequest request) {
+        if (name != null || node != null || !isServiceEnabled()) {
+            // Only the list of rooms is paged
+            return null;
+        }
+        // Read the requested page out of the rooms sorted by name. The rooms are only sorted
+        // for disco#items requests so that rooms are looked up by name in a hash map.
+        return ResultPage.fromIndex(new TreeMap<String, LocalMUCRoom>(rooms), request, new ResultPage.Mapper<LocalMUCRoom, DiscoItem>() {
+            public DiscoItem map(String roomName, LocalMUCRoom room) {
+                if (!canDiscoverRoom(room, senderJID)) {
+                    return null;
+                }
+                return new DiscoItem(room.getRole().getRoleAddress(),
+                        room.getNaturalLanguageName(), null, null);
+            }
+        });
+    }
+
     private boolean canDiscoverRoom(MUCRoom room, JID senderJID) {
         // Check if locked rooms may be discovered
         if (!allowToDiscoverLockedRooms && room.isLocked()) {
@@ -20,8 +20,6 @@
 
 package org.jivesoftware.openfire.muc.spi;
 
-import org.dom4j.Element;
-import org.dom4j.tree.DefaultElement;
 import org.jivesoftware.openfire.XMPPServer;
 import org.jivesoftware.openfire.cluster.NodeID;
 import org.jivesoftware.openfire.muc.MUCRole;
@@ -150,25 +148,25 @@ public class RemoteMUCRole implements MUCRole, Externalizable {
 
     public void writeExternal(ObjectOutput out) throws IOException {
         ExternalizableUtil.getInstance().writeSafeUTF(out, serviceDomain);
-        ExternalizableUtil.getInstance().writeSerializable(out, (DefaultElement) presence.getElement());
+        ExternalizableUtil.getInstance().writeElement(out, presence.getElement());
         ExternalizableUtil.getInstance().writeInt(out, role.ordinal());
         ExternalizableUtil.getInstance().writeInt(out, affiliation.ordinal());
         ExternalizableUtil.getInstance().writeSafeUTF(out, nickname);
         ExternalizableUtil.getInstance().writeBoolean(out, voiceOnly);
-        ExternalizableUtil.getInstance().writeSerializable(out, roleAddress);
-        ExternalizableUtil.getInstance().writeSerializable(out, userAddress);
+        ExternalizableUtil.getInstance().writeJID(out, roleAddress);
+        ExternalizableUtil.getInstance().writeJID(out, userAddress);
         ExternalizableUtil.getInstance().writeByteArray(out, nodeID.toByteArray());
     }
 
     public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
         serviceDomain = ExternalizableUtil.getInstance().readSafeUTF(in);
-        presence = new Presence((Element)ExternalizableUtil.getInstance().readSerializable(in), true);
+        presence = new Presence(ExternalizableUtil.getInstance().readElement(in), true);
         role = Role.values()[ExternalizableUtil.getInstance().readInt(in)];
         affiliation = Affiliation.values()[ExternalizableUtil.getInstance().readInt(in)];
         nickname = ExternalizableUtil.getInstance().readSafeUTF(in);
         voiceOnly = ExternalizableUtil.getInstance().readBoolean(in);
-        roleAddress = (JID) ExternalizableUtil.getInstance().readSerializable(in);
-        userAddress = (JID) ExternalizableUtil.getInstance().readSerializable(in);
+        roleAddress = ExternalizableUtil.getInstance().readJID(in);
+        userAddress = ExternalizableUtil.getInstance().readJID(in);
         nodeID = NodeID.getInstance(ExternalizableUtil.getInstance().readByteArray(in));
     }
 }
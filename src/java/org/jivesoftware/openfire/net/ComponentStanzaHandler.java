@@ -34,6 +34,7 @@ import org.xmlpull.v1.XmlPullParserException;
 import org.xmpp.component.ComponentException;
 import org.xmpp.packet.IQ;
 import org.xmpp.packet.Message;
+import org.xmpp.packet.Packet;
 import org.xmpp.packet.PacketError;
 import org.xmpp.packet.Presence;
 
@@ -51,6 +52,13 @@ public class ComponentStanzaHandler extends StanzaHandler {
 
 	private static final Logger Log = LoggerFactory.getLogger(ComponentStanzaHandler.class);
 
+    /**
+     * Dispatcher that processes packets in parallel or <tt>null</tt> if packets are
+     * processed by the thread that read them.
+     */
+    private OrderedPacketDispatcher dispatcher;
+    private boolean dispatcherCreated;
+
     public ComponentStanzaHandler(PacketRouter router, String serverName, Connection connection) {
         super(router, serverName, connection);
     }
@@ -151,7 +159,9 @@ public class ComponentStanzaHandler extends StanzaHandler {
                     (LocalComponentSession.LocalExternalComponent) componentSession.getExternalComponent();
             component.track(packet);
         }
-        super.processIQ(packet);
+        if (!dispatch(packet)) {
+            super.processIQ(packet);
+        }
     }
 
     @Override
@@ -166,7 +176,9 @@ public class ComponentStanzaHandler extends StanzaHandler {
             session.process(reply);
             return;
         }
-        super.processPresence(packet);
+        if (!dispatch(packet)) {
+            super.processPresence(packet);
+        }
     }
 
     @Override
@@ -181,7 +193,74 @@ public class ComponentStanzaHandler extends StanzaHandler {
             session.process(reply);
             return;
         }
-        super.processMessage(packet);
+        if (!dispatch(packet)) {
+            super.processMessage(packet);
+        }
+    }
+
+    /**
+     * Queues the processing of a packet of an authenticated component if the packets of
+     * the component are processed in parallel.
+     *
+     * @param packet the packet to process.
+     * @return true if the packet was queued or false if it should be processed now.
+     */
+    private boolean dispatch(final Packet packet) {
+        if (!dispatcherCreated) {
+            dispatcherCreated = true;
+            String subdomain = ((LocalComponentSession) session).getExternalComponent()
+                    .getInitialSubdomain();
+            dispatcher = createDispatcher(subdomain);
+        }
+        if (dispatcher == null) {
+            return false;
+        }
+        dispatcher.dispatch(packet, new Runnable() {
+            public void run() {
+                try {
+                    if (packet instanceof IQ) {
+                        ComponentStanzaHandler.super.processIQ((IQ) packet);
+                    }
+                    else if (packet instanceof Presence) {
+                        ComponentStanzaHandler.super.processPresence((Presence) packet);
+                    }
+                    else {
+                        ComponentStanzaHandler.super.processMessage((Message) packet);
+                    }
+                }
+                catch (Exception e) {
+                    Log.error("Closing connection due to error while processing packet: " +
+                            packet.toXML(), e);
+                    connection.close();
+                }
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Returns a new dispatcher for the packets of the specified component or <tt>null</tt>
+     * if the packets of the component are processed by the thread that read them.
+     *
+     * @param subdomain the subdomain of the external component.
+     * @return a new dispatcher or null if packets are not processed in parallel.
+     */
+    OrderedPacketDispatcher createDispatcher(String subdomain) {
+        if (OrderedPacketDispatcher.isEnabled(subdomain)) {
+            return new OrderedPacketDispatcher(subdomain);
+        }
+        return null;
+    }
+
+    /**
+     * Releases the dispatcher used for processing the packets of the component in parallel,
+     * if any. Packets that are waiting to be processed are still processed. The connection
+     * handler invokes this method when the connection was closed.
+     */
+    public void closeDispatcher() {
+        if (dispatcher != null) {
+            dispatcher.close();
+        }
     }
 
     @Override
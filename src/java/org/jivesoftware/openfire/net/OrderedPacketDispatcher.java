@@ -0,0 +1,321 @@
+/**
+ * Copyright (C) 2004-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.net;
+
+import java.lang.management.ManagementFactory;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.jivesoftware.openfire.JMXManager;
+import org.jivesoftware.openfire.nio.WriteCoalescing;
+import org.jivesoftware.util.JiveGlobals;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Packet;
+
+/**
+ * Processes the packets received from a connection in parallel while keeping the order of
+ * related packets. Packets are assigned to a lane based on their addresses and the packets
+ * of a lane are processed one at a time, in the order they were received. Lanes are run by
+ * a thread pool shared by all the dispatchers, so a busy connection may use more than one
+ * thread.<p>
+ *
+ * Packets are assigned to lanes based on the bare JID of their recipient when the recipient
+ * is an entity with a node (e.g. a user or a room) or else on the bare JID of their sender.
+ * So the packets sent to a user, or sent by a user to a service, are processed in order.<p>
+ *
+ * The number of packets waiting in the lanes is limited. When the limit is reached, the
+ * thread that is reading from the connection waits until a packet has been processed, so
+ * no more data is read from the socket. How often and for how long this happens is exposed
+ * through JMX when JMX is enabled.<p>
+ *
+ * Parallel dispatching is used for external components and is disabled by default. The
+ * following properties control it:
+ * <ul>
+ *  <li><tt>xmpp.component.dispatch.parallel</tt> -- true to process the packets of
+ *      all external components in parallel. The property may be overridden per component
+ *      by appending the subdomain of the component (e.g.
+ *      <tt>xmpp.component.dispatch.parallel.game</tt>).</li>
+ *  <li><tt>xmpp.component.dispatch.lanes</tt> -- number of lanes per connection. Default
+ *      is 8.</li>
+ *  <li><tt>xmpp.component.dispatch.queue</tt> -- max number of packets waiting to be
+ *      processed per connection. Default is 10000.</li>
+ *  <li><tt>xmpp.component.dispatch.threads</tt> -- number of threads shared by all the
+ *      connections. Default is twice the number of processors.</li>
+ * </ul>
+ * Changes apply to new connections.
+ */
+public class OrderedPacketDispatcher implements OrderedPacketDispatcherMBean {
+
+    private static final Logger Log = LoggerFactory.getLogger(OrderedPacketDispatcher.class);
+
+    /**
+     * Max number of packets that a lane processes before letting other lanes use the thread.
+     */
+    private static final int BATCH_SIZE = 64;
+
+    private static final AtomicInteger sequence = new AtomicInteger();
+
+    private static Executor executor;
+
+    private final String component;
+    private final Lane[] lanes;
+    private final int capacity;
+    private final Semaphore permits;
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger maxQueued = new AtomicInteger();
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong throttled = new AtomicLong();
+    private final AtomicLong throttledTime = new AtomicLong();
+    private ObjectName objectName;
+
+    /**
+     * Returns true if the packets of the specified external component should be
+     * processed in parallel.
+     *
+     * @param subdomain the subdomain of the external component.
+     * @return true if the packets of the component should be processed in parallel.
+     */
+    public static boolean isEnabled(String subdomain) {
+        return JiveGlobals.getBooleanProperty("xmpp.component.dispatch.parallel." + subdomain,
+                JiveGlobals.getBooleanProperty("xmpp.component.dispatch.parallel", false));
+    }
+
+    /**
+     * Creates a dispatcher for a connection of the specified external component. The number
+     * of lanes and the size of the queue are read from the system properties.
+     *
+     * @param component the subdomain of the external component.
+     */
+    public OrderedPacketDispatcher(String component) {
+        this(component, JiveGlobals.getIntProperty("xmpp.component.dispatch.lanes", 8),
+                JiveGlobals.getIntProperty("xmpp.component.dispatch.queue", 10000),
+                getExecutor());
+        if (JMXManager.isEnabled()) {
+            registerMBean();
+        }
+    }
+
+    OrderedPacketDispatcher(String component, int lanes, int capacity, Executor executor) {
+        this.component = component;
+        this.lanes = new Lane[Math.max(1, lanes)];
+        for (int i = 0; i < this.lanes.length; i++) {
+            this.lanes[i] = new Lane(executor);
+        }
+        this.capacity = Math.max(1, capacity);
+        this.permits = new Semaphore(this.capacity);
+    }
+
+    private static synchronized Executor getExecutor() {
+        if (executor == null) {
+            int threads = JiveGlobals.getIntProperty("xmpp.component.dispatch.threads",
+                    Runtime.getRuntime().availableProcessors() * 2);
+            executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), // unbounded, lanes limit the packets
+                new ThreadFactory() {
+                    final AtomicInteger counter = new AtomicInteger(1);
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(Thread.currentThread().getThreadGroup(),
+                                runnable, "component-dispatch-" + counter.getAndIncrement());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        }
+        return executor;
+    }
+
+    /**
+     * Queues the processing of a packet in the lane of the packet. If the queue is full
+     * then the calling thread waits until there is room in the queue.
+     *
+     * @param packet the packet to process.
+     * @param task the task that processes the packet.
+     */
+    public void dispatch(Packet packet, Runnable task) {
+        if (!permits.tryAcquire()) {
+            throttled.incrementAndGet();
+            long start = System.nanoTime();
+            permits.acquireUninterruptibly();
+            throttledTime.addAndGet(System.nanoTime() - start);
+        }
+        int count = queued.incrementAndGet();
+        int max = maxQueued.get();
+        while (count > max && !maxQueued.compareAndSet(max, count)) {
+            max = maxQueued.get();
+        }
+        String key = getPartitionKey(packet);
+        lanes[(key.hashCode() & 0x7fffffff) % lanes.length].add(task);
+    }
+
+    /**
+     * Returns the key that decides the lane of a packet.
+     *
+     * @param packet the packet.
+     * @return the key that decides the lane of the packet.
+     */
+    static String getPartitionKey(Packet packet) {
+        JID to = packet.getTo();
+        if (to != null && to.getNode() != null) {
+            return to.toBareJID();
+        }
+        JID from = packet.getFrom();
+        if (from != null) {
+            return from.toBareJID();
+        }
+        return to != null ? to.toBareJID() : "";
+    }
+
+    /**
+     * Releases the resources used by the dispatcher. Packets that are waiting to be
+     * processed are still processed.
+     */
+    public void close() {
+        if (objectName != null) {
+            try {
+                MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+                if (mbs.isRegistered(objectName)) {
+                    mbs.unregisterMBean(objectName);
+                }
+            }
+            catch (JMException e) {
+                Log.warn("Failed to unregister component dispatch mbean (JMX): " + e);
+            }
+            objectName = null;
+        }
+    }
+
+    private void registerMBean() {
+        try {
+            objectName = new ObjectName("org.jivesoftware.openfire:type=ComponentDispatch,component=" +
+                    ObjectName.quote(component) + ",id=" + sequence.incrementAndGet());
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        }
+        catch (JMException e) {
+            Log.warn("Failed to register component dispatch mbean (JMX): " + e);
+            objectName = null;
+        }
+    }
+
+    public String getComponent() {
+        return component;
+    }
+
+    public int getLanes() {
+        return lanes.length;
+    }
+
+    public int getQueueCapacity() {
+        return capacity;
+    }
+
+    public int getQueuedPackets() {
+        return queued.get();
+    }
+
+    public int getMaxQueuedPackets() {
+        return maxQueued.get();
+    }
+
+    public long getProcessedPackets() {
+        return processed.get();
+    }
+
+    public long getThrottledCount() {
+        return throttled.get();
+    }
+
+    public long getThrottledTime() {
+        return TimeUnit.NANOSECONDS.toMillis(throttledTime.get());
+    }
+
+    public void resetStatistics() {
+        maxQueued.set(queued.get());
+        processed.set(0);
+        throttled.set(0);
+        throttledTime.set(0);
+    }
+
+    /**
+     * Tasks that are run one at a time and in order. A lane is scheduled in the executor
+     * only while it has tasks.
+     */
+    private class Lane implements Runnable {
+
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private final Executor executor;
+
+        Lane(Executor executor) {
+            this.executor = executor;
+        }
+
+        void add(Runnable task) {
+            tasks.add(task);
+            schedule();
+        }
+
+        private void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                executor.execute(this);
+            }
+        }
+
+        public void run() {
+            WriteCoalescing.startBatch();
+            try {
+                Runnable task;
+                for (int i = 0; i < BATCH_SIZE && (task = tasks.poll()) != null; i++) {
+                    try {
+                        task.run();
+                    }
+                    catch (Exception e) {
+                        Log.error("Error while processing packet of component: " + component, e);
+                    }
+                    finally {
+                        queued.decrementAndGet();
+                        processed.incrementAndGet();
+                        permits.release();
+                    }
+                }
+            }
+            finally {
+                WriteCoalescing.endBatch();
+                scheduled.set(false);
+                // Schedule again if there are pending tasks, including tasks added
+                // while the lane was still marked as scheduled
+                if (!tasks.isEmpty()) {
+                    schedule();
+                }
+            }
+        }
+    }
+}
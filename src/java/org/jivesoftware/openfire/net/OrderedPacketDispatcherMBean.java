@@ -0,0 +1,87 @@
+/**
+ * Copyright (C) 2004-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.net;
+
+/**
+ * JMX view of an {@link OrderedPacketDispatcher}.
+ */
+public interface OrderedPacketDispatcherMBean {
+
+    /**
+     * Returns the subdomain of the component whose packets are dispatched.
+     *
+     * @return the subdomain of the component.
+     */
+    String getComponent();
+
+    /**
+     * Returns the number of lanes. Packets of different lanes are processed in parallel.
+     *
+     * @return the number of lanes.
+     */
+    int getLanes();
+
+    /**
+     * Returns the max number of packets that may be waiting to be processed before
+     * reading from the component connection is paused.
+     *
+     * @return the max number of packets waiting to be processed.
+     */
+    int getQueueCapacity();
+
+    /**
+     * Returns the number of packets waiting to be processed.
+     *
+     * @return the number of packets waiting to be processed.
+     */
+    int getQueuedPackets();
+
+    /**
+     * Returns the highest number of packets that were waiting to be processed.
+     *
+     * @return the highest number of packets that were waiting to be processed.
+     */
+    int getMaxQueuedPackets();
+
+    /**
+     * Returns the number of packets that were processed.
+     *
+     * @return the number of packets that were processed.
+     */
+    long getProcessedPackets();
+
+    /**
+     * Returns the number of times that reading from the component connection was paused
+     * because the queue was full.
+     *
+     * @return the number of times that reading from the connection was paused.
+     */
+    long getThrottledCount();
+
+    /**
+     * Returns the total time in milliseconds that reading from the component connection
+     * was paused because the queue was full.
+     *
+     * @return the time in milliseconds that reading from the connection was paused.
+     */
+    long getThrottledTime();
+
+    /**
+     * Resets the counters and the highest number of waiting packets.
+     */
+    void resetStatistics();
+}
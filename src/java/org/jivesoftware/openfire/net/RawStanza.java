@@ -0,0 +1,205 @@
+/**
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.net;
+
+import java.io.Reader;
+import java.nio.charset.Charset;
+
+/**
+ * A complete XML stanza as it was received from the network, kept as UTF-8 encoded
+ * bytes. Raw stanzas are produced by decoders that frame stanzas on the received bytes
+ * and are parsed by {@link StanzaHandler} through {@link #getReader()}, which decodes
+ * the bytes as they are consumed by the XML parser. This avoids creating an
+ * intermediate <tt>String</tt> for each received stanza.
+ */
+public final class RawStanza {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final byte[] bytes;
+    private final int offset;
+    private final int length;
+
+    /**
+     * Creates a new raw stanza backed by the specified slice of bytes. The bytes
+     * must not be modified while the stanza is being used.
+     *
+     * @param bytes the UTF-8 encoded bytes of the stanza.
+     * @param offset the position of the first byte of the stanza.
+     * @param length the number of bytes of the stanza.
+     */
+    public RawStanza(byte[] bytes, int offset, int length) {
+        this.bytes = bytes;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    /**
+     * Returns the number of bytes of the stanza.
+     *
+     * @return the number of bytes of the stanza.
+     */
+    public int length() {
+        return length;
+    }
+
+    /**
+     * Returns true if the stanza starts with the specified ASCII text.
+     *
+     * @param prefix the ASCII text to look for.
+     * @return true if the stanza starts with the specified ASCII text.
+     */
+    public boolean startsWith(String prefix) {
+        if (prefix.length() > length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (bytes[offset + i] != (byte) prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if the stanza is exactly the specified ASCII text.
+     *
+     * @param text the ASCII text to compare to.
+     * @return true if the stanza is exactly the specified ASCII text.
+     */
+    public boolean equalsText(String text) {
+        return text.length() == length && startsWith(text);
+    }
+
+    /**
+     * Returns a new reader that decodes the bytes of the stanza. Malformed sequences
+     * are replaced with U+FFFD, like the decoder used for text based parsing does.
+     *
+     * @return a reader of the characters of the stanza.
+     */
+    public Reader getReader() {
+        return new UTF8Reader(bytes, offset, offset + length);
+    }
+
+    @Override
+    public String toString() {
+        return new String(bytes, offset, length, UTF8);
+    }
+
+    /**
+     * Minimal UTF-8 reader over an array of bytes that does not buffer or copy them.
+     */
+    private static class UTF8Reader extends Reader {
+
+        private final byte[] bytes;
+        private final int end;
+        private int position;
+        /**
+         * Low surrogate of a supplementary character that did not fit in the last read.
+         */
+        private char pendingLowSurrogate;
+
+        UTF8Reader(byte[] bytes, int offset, int end) {
+            this.bytes = bytes;
+            this.position = offset;
+            this.end = end;
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            int count = 0;
+            if (pendingLowSurrogate != 0) {
+                cbuf[off + count++] = pendingLowSurrogate;
+                pendingLowSurrogate = 0;
+            }
+            while (count < len && position < end) {
+                int b = bytes[position] & 0xFF;
+                if (b < 0x80) {
+                    cbuf[off + count++] = (char) b;
+                    position++;
+                    continue;
+                }
+                int codePoint = decode(b);
+                if (codePoint >= 0x10000) {
+                    cbuf[off + count++] = Character.highSurrogate(codePoint);
+                    char low = Character.lowSurrogate(codePoint);
+                    if (count < len) {
+                        cbuf[off + count++] = low;
+                    }
+                    else {
+                        pendingLowSurrogate = low;
+                    }
+                }
+                else {
+                    cbuf[off + count++] = (char) codePoint;
+                }
+            }
+            return count == 0 ? -1 : count;
+        }
+
+        /**
+         * Decodes the multi-byte sequence starting at the current position and
+         * moves the position past it.
+         */
+        private int decode(int b) {
+            int needed;
+            int codePoint;
+            int min;
+            if (b >= 0xC2 && b <= 0xDF) {
+                needed = 1;
+                codePoint = b & 0x1F;
+                min = 0x80;
+            }
+            else if (b >= 0xE0 && b <= 0xEF) {
+                needed = 2;
+                codePoint = b & 0x0F;
+                min = 0x800;
+            }
+            else if (b >= 0xF0 && b <= 0xF4) {
+                needed = 3;
+                codePoint = b & 0x07;
+                min = 0x10000;
+            }
+            else {
+                position++;
+                return 0xFFFD;
+            }
+            int i = position + 1;
+            for (int n = 0; n < needed; n++, i++) {
+                if (i >= end || (bytes[i] & 0xC0) != 0x80) {
+                    position = i;
+                    return 0xFFFD;
+                }
+                codePoint = (codePoint << 6) | (bytes[i] & 0x3F);
+            }
+            position = i;
+            if (codePoint < min || codePoint > 0x10FFFF ||
+                    (codePoint >= 0xD800 && codePoint <= 0xDFFF)) {
+                return 0xFFFD;
+            }
+            return codePoint;
+        }
+
+        @Override
+        public void close() {
+            // Nothing to release
+        }
+    }
+}
@@ -19,7 +19,10 @@
 
 package org.jivesoftware.openfire.net;
 
+import java.io.IOException;
+
 import org.dom4j.Element;
+import org.dom4j.io.XMPPPacketReader;
 import org.jivesoftware.openfire.Connection;
 import org.jivesoftware.openfire.PacketRouter;
 import org.jivesoftware.openfire.auth.UnauthorizedException;
@@ -47,7 +50,9 @@ import org.xmpp.packet.StreamError;
  * The connection used for receiving packets will use a ServerStanzaHandler since the other
  * connection will not receive packets.<p>
  *
- * TODO Finish migration of s2s to use NIO instead of blocking threads. Migrate from ServerSocketReader.
+ * Stanzas are parsed one at a time so the dialback and stream namespace prefixes declared
+ * in the stream header are declared again in the stanzas that use them before they are
+ * parsed (see {@link #declareNamespaces(String)}).
  *
  * @author Gaston Dombiak
  */
@@ -55,10 +60,71 @@ public class ServerStanzaHandler extends StanzaHandler {
 
 	private static final Logger Log = LoggerFactory.getLogger(ServerStanzaHandler.class);
 
+    private static final String DIALBACK_NAMESPACE = "xmlns:db=\"jabber:server:dialback\"";
+    private static final String STREAM_NAMESPACE = "xmlns:stream=\"http://etherx.jabber.org/streams\"";
+
+    /**
+     * Domain of the remote server as sent in its stream header or <tt>null</tt> if the
+     * remote server did not send it.
+     */
+    private String remoteDomain;
+
     public ServerStanzaHandler(PacketRouter router, String serverName, Connection connection) {
         super(router, serverName, connection);
     }
 
+    @Override
+    public void process(String stanza, XMPPPacketReader reader) throws Exception {
+        super.process(declareNamespaces(stanza), reader);
+    }
+
+    @Override
+    public void process(RawStanza stanza, XMPPPacketReader reader) throws Exception {
+        if (stanza.startsWith("<db:") || stanza.startsWith("<stream:")) {
+            // Dialback and stream elements are rare so declare their prefix on a String
+            process(stanza.toString(), reader);
+            return;
+        }
+        super.process(stanza, reader);
+    }
+
+    /**
+     * Returns the specified stanza with the declaration of the namespace of its prefix
+     * added to its root element, if its prefix is <tt>db</tt> or <tt>stream</tt> and the
+     * namespace is not already declared. Stream headers are returned untouched.<p>
+     *
+     * Remote servers declare those prefixes in their stream header, which is not available
+     * when stanzas are parsed one at a time.
+     *
+     * @param stanza the received stanza.
+     * @return the stanza with the namespace of its prefix declared.
+     */
+    public static String declareNamespaces(String stanza) {
+        String declaration;
+        if (stanza.startsWith("<db:")) {
+            declaration = DIALBACK_NAMESPACE;
+        }
+        else if (stanza.startsWith("<stream:") && !stanza.startsWith("<stream:stream")) {
+            declaration = STREAM_NAMESPACE;
+        }
+        else {
+            return stanza;
+        }
+        int tagEnd = stanza.indexOf('>');
+        String prefix = declaration.substring(0, declaration.indexOf('='));
+        if (tagEnd == -1 || stanza.substring(0, tagEnd).contains(prefix)) {
+            return stanza;
+        }
+        int nameEnd = 1;
+        while (nameEnd < tagEnd && !Character.isWhitespace(stanza.charAt(nameEnd)) &&
+                stanza.charAt(nameEnd) != '/') {
+            nameEnd++;
+        }
+        StringBuilder sb = new StringBuilder(stanza.length() + declaration.length() + 1);
+        sb.append(stanza, 0, nameEnd).append(' ').append(declaration).append(stanza, nameEnd, stanza.length());
+        return sb.toString();
+    }
+
     @Override
 	boolean processUnknowPacket(Element doc) throws UnauthorizedException {
         // Handle subsequent db:result packets
@@ -93,26 +159,36 @@ public class ServerStanzaHandler extends StanzaHandler {
         return false;
     }
 
+    @Override
+	String getExtraNamespaces() {
+        return DIALBACK_NAMESPACE;
+    }
+
     @Override
 	boolean createSession(String namespace, String serverName, XmlPullParser xpp, Connection connection)
-            throws XmlPullParserException {
-        // TODO Finish implementation
-        /*if ("jabber:server".equals(namespace)) {
+            throws XmlPullParserException, IOException {
+        if ("jabber:server".equals(namespace)) {
+            remoteDomain = xpp.getAttributeValue("", "from");
             // The connected client is a server so create an IncomingServerSession
-            session = LocalIncomingServerSession.createSession(serverName, reader, connection);
+            session = LocalIncomingServerSession.createSession(serverName, xpp, connection);
+            if (session == null) {
+                // The session was rejected so make sure that the connection is closed
+                connection.close();
+            }
             return true;
-        }*/
+        }
         return false;
     }
 
     @Override
 	void startTLS() throws Exception {
-        // TODO Finish implementation. We need to get the name of the remote server if we want to validate certificates of the remote server that requested TLS
-
         boolean needed = JiveGlobals.getBooleanProperty(ConnectionSettings.Server.TLS_CERTIFICATE_VERIFY, true) &&
                 JiveGlobals.getBooleanProperty(ConnectionSettings.Server.TLS_CERTIFICATE_CHAIN_VERIFY, true) &&
                 !JiveGlobals.getBooleanProperty(ConnectionSettings.Server.TLS_ACCEPT_SELFSIGNED_CERTS, false);
-        connection.startTLS(false, "IMPLEMENT_ME", needed ? Connection.ClientAuth.needed : Connection.ClientAuth.wanted);
+        // Pre RFC 6120 servers may not include their domain in the stream header. The remote server
+        // must still be trusted as a server; its certificate is validated when it authenticates.
+        String remoteServer = remoteDomain != null ? remoteDomain : "";
+        connection.startTLS(false, remoteServer, needed ? Connection.ClientAuth.needed : Connection.ClientAuth.wanted);
     }
     @Override
 	protected void processIQ(IQ packet) throws UnauthorizedException {
@@ -28,6 +28,7 @@ import org.jivesoftware.openfire.auth.UnauthorizedException;
 import org.jivesoftware.openfire.http.FlashCrossDomainServlet;
 import org.jivesoftware.openfire.session.LocalSession;
 import org.jivesoftware.openfire.session.Session;
+import org.jivesoftware.openfire.stats.PacketLatency;
 import org.jivesoftware.util.JiveGlobals;
 import org.jivesoftware.util.LocaleUtils;
 import org.jivesoftware.util.StringUtils;
@@ -150,7 +151,49 @@ public abstract class StanzaHandler {
             return;
         }
         // Create DOM object from received stanza
+        long start = PacketLatency.start();
         Element doc = reader.read(new StringReader(stanza)).getRootElement();
+        dispatch(doc);
+        recordLatency(doc, start);
+    }
+
+    /**
+     * Processes a stanza that was framed on the received bytes. The stanza is parsed
+     * straight from its bytes so no String is created for regular stanzas. Stream
+     * headers and other special stanzas are rare and are handled by
+     * {@link #process(String, XMPPPacketReader)}.
+     *
+     * @param stanza the received stanza.
+     * @param reader the reader to use for parsing the stanza.
+     * @throws Exception if an error occurred while processing the stanza.
+     */
+    public void process(RawStanza stanza, XMPPPacketReader reader) throws Exception {
+        if (!sessionCreated || stanza.startsWith("<stream:stream") || stanza.startsWith("<flash:stream") ||
+                stanza.startsWith("<?xml") || stanza.equalsText("</stream:stream>")) {
+            process(stanza.toString(), reader);
+            return;
+        }
+        // Create DOM object from received stanza
+        long start = PacketLatency.start();
+        Element doc = reader.read(stanza.getReader()).getRootElement();
+        dispatch(doc);
+        recordLatency(doc, start);
+    }
+
+    private void recordLatency(Element doc, long start) {
+        if (start != 0 && doc != null) {
+            PacketLatency.record(PacketLatency.Stage.stanzaHandler, PacketLatency.Type.of(doc.getName()), start);
+        }
+    }
+
+    /**
+     * Processes a parsed stanza. Stream negotiation stanzas are handled by this
+     * class and the rest are processed as packets.
+     *
+     * @param doc the parsed stanza.
+     * @throws Exception if an error occurred while processing the stanza.
+     */
+    private void dispatch(Element doc) throws Exception {
         if (doc == null) {
             // No document found.
             return;
@@ -413,6 +456,16 @@ public abstract class StanzaHandler {
 
     abstract void startTLS() throws Exception;
 
+    /**
+     * Returns the namespace declarations to add to the stream headers sent by the
+     * server or <tt>null</tt> if none.
+     *
+     * @return the extra namespace declarations of the stream header or <tt>null</tt> if none.
+     */
+    String getExtraNamespaces() {
+        return null;
+    }
+
     /**
      * TLS negotiation was successful so open a new stream and offer the new stream features.
      * The new stream features will include available SASL mechanisms and specific features
@@ -548,8 +601,12 @@ public abstract class StanzaHandler {
             sb.append("<stream:stream ");
         }
         sb.append("xmlns:stream=\"http://etherx.jabber.org/streams\" xmlns=\"");
-        sb.append(getNamespace());
-        sb.append("\" from=\"");
+        sb.append(getNamespace()).append("\"");
+        if (getExtraNamespaces() != null) {
+            sb.append(" ");
+            sb.append(getExtraNamespaces());
+        }
+        sb.append(" from=\"");
         sb.append(serverName);
         sb.append("\" id=\"");
         sb.append(session.getStreamID());
@@ -710,8 +767,8 @@ public abstract class StanzaHandler {
      * @param namespace the namespace sent in the stream element. eg. jabber:client.
      * @return the created session or null.
      * @throws org.xmlpull.v1.XmlPullParserException
-     *
+     * @throws java.io.IOException if an input/output error occurs while using the connection.
      */
     abstract boolean createSession(String namespace, String serverName, XmlPullParser xpp, Connection connection)
-            throws XmlPullParserException;
+            throws XmlPullParserException, IOException;
 }
@@ -0,0 +1,401 @@
+/**
+ * Copyright (C) 2004-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.nio;
+
+import java.lang.management.ManagementFactory;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteOrder;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.mina.common.ByteBuffer;
+import org.apache.mina.common.support.BaseByteBuffer;
+import org.jivesoftware.util.JiveGlobals;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pool of the buffers used to encode the stanzas and texts sent through {@link NIOConnection}s.
+ * Buffers are grouped in size classes (powers of two from 512 bytes to the largest pooled
+ * size) and are returned to the pool once MINA has written them to the socket, which is when
+ * MINA releases the buffers it was asked to write. Buffers that auto expand take a buffer of
+ * the next size class and return the smaller one to the pool.<p>
+ *
+ * Buffers that are not released (e.g. because writing to a closed connection failed) are
+ * simply garbage collected. The leak detector records where each buffer was allocated and
+ * logs the buffers that were garbage collected without being released. Leak detection is
+ * expensive so it should only be enabled to find leaks.<p>
+ *
+ * The following properties control the pool. Changes apply after a restart.
+ * <ul>
+ *  <li><tt>xmpp.socket.bufferPool.enabled</tt> -- true to reuse buffers. Default is false,
+ *      in which case buffers are allocated by MINA.</li>
+ *  <li><tt>xmpp.socket.bufferPool.direct</tt> -- true to use direct (off-heap) buffers.
+ *      Default is false.</li>
+ *  <li><tt>xmpp.socket.bufferPool.maxSize</tt> -- size in bytes of the largest pooled buffer.
+ *      Larger buffers are not reused. Default is 65536.</li>
+ *  <li><tt>xmpp.socket.bufferPool.maxIdle</tt> -- max number of bytes held by idle buffers.
+ *      The limit is split evenly between size classes. Default is 33554432 (32 MB).</li>
+ *  <li><tt>xmpp.socket.bufferPool.leakDetection</tt> -- true to log the buffers that were not
+ *      released. Default is false.</li>
+ * </ul>
+ * The counters are registered as an MBean named <tt>org.jivesoftware.openfire:type=BufferPool</tt>
+ * when JMX is enabled.
+ */
+public class BufferPool implements BufferPoolMBean {
+
+    private static final Logger Log = LoggerFactory.getLogger(BufferPool.class);
+
+    /**
+     * Size of the smallest size class is 2^MIN_SHIFT bytes.
+     */
+    private static final int MIN_SHIFT = 9;
+
+    private static final BufferPool instance = new BufferPool(
+            JiveGlobals.getBooleanProperty("xmpp.socket.bufferPool.enabled", false),
+            JiveGlobals.getBooleanProperty("xmpp.socket.bufferPool.direct", false),
+            JiveGlobals.getIntProperty("xmpp.socket.bufferPool.maxSize", 65536),
+            JiveGlobals.getIntProperty("xmpp.socket.bufferPool.maxIdle", 32 * 1024 * 1024),
+            JiveGlobals.getBooleanProperty("xmpp.socket.bufferPool.leakDetection", false));
+
+    private final boolean enabled;
+    private final boolean direct;
+    private final boolean leakDetection;
+    /**
+     * Idle buffers of each size class.
+     */
+    private final ArrayBlockingQueue<java.nio.ByteBuffer>[] idle;
+
+    private final AtomicLong acquired = new AtomicLong();
+    private final AtomicLong released = new AtomicLong();
+    private final AtomicLong reused = new AtomicLong();
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong discarded = new AtomicLong();
+    private final AtomicLong leaks = new AtomicLong();
+
+    private final ReferenceQueue<PooledBuffer> leakQueue = new ReferenceQueue<PooledBuffer>();
+    private final Set<LeakReference> tracked =
+            Collections.newSetFromMap(new ConcurrentHashMap<LeakReference, Boolean>());
+
+    /**
+     * Returns the pool used by the connections of the server.
+     *
+     * @return the pool used by the connections of the server.
+     */
+    public static BufferPool getInstance() {
+        return instance;
+    }
+
+    @SuppressWarnings("unchecked")
+    BufferPool(boolean enabled, boolean direct, int maxSize, int maxIdle, boolean leakDetection) {
+        this.enabled = enabled;
+        this.direct = direct;
+        this.leakDetection = leakDetection;
+        int classes = Math.max(1, 33 - Integer.numberOfLeadingZeros(Math.max(maxSize, 1) - 1) - MIN_SHIFT);
+        idle = new ArrayBlockingQueue[classes];
+        for (int i = 0; i < classes; i++) {
+            int size = 1 << (MIN_SHIFT + i);
+            idle[i] = new ArrayBlockingQueue<java.nio.ByteBuffer>(Math.max(1, maxIdle / classes / size));
+        }
+    }
+
+    /**
+     * Returns an auto expanding buffer of at least the specified capacity. The buffer
+     * is returned to the pool when it is released, which MINA does once the buffer has
+     * been written. Buffers that are not written must be released by the caller.
+     *
+     * @param capacity the initial capacity of the buffer.
+     * @return an auto expanding buffer.
+     */
+    public ByteBuffer allocate(int capacity) {
+        ByteBuffer buffer;
+        if (enabled) {
+            acquired.incrementAndGet();
+            if (leakDetection) {
+                reportLeaks();
+            }
+            buffer = new PooledBuffer(take(capacity), null);
+        }
+        else {
+            buffer = ByteBuffer.allocate(capacity);
+        }
+        buffer.setAutoExpand(true);
+        return buffer;
+    }
+
+    /**
+     * Returns the index of the size class of buffers of the specified capacity or -1 if
+     * such buffers are not pooled.
+     */
+    private int indexOf(int capacity) {
+        int index = capacity <= (1 << MIN_SHIFT) ? 0 :
+                32 - Integer.numberOfLeadingZeros(capacity - 1) - MIN_SHIFT;
+        return index < idle.length ? index : -1;
+    }
+
+    private java.nio.ByteBuffer take(int capacity) {
+        int index = indexOf(capacity);
+        java.nio.ByteBuffer buf = null;
+        if (index >= 0) {
+            buf = idle[index].poll();
+            capacity = 1 << (MIN_SHIFT + index);
+        }
+        if (buf != null) {
+            reused.incrementAndGet();
+            buf.clear();
+        }
+        else {
+            created.incrementAndGet();
+            buf = direct ? java.nio.ByteBuffer.allocateDirect(capacity) :
+                    java.nio.ByteBuffer.allocate(capacity);
+        }
+        buf.order(ByteOrder.BIG_ENDIAN);
+        return buf;
+    }
+
+    private void recycle(java.nio.ByteBuffer buf) {
+        int index = indexOf(buf.capacity());
+        if (index < 0 || buf.capacity() != 1 << (MIN_SHIFT + index) || !idle[index].offer(buf)) {
+            discarded.incrementAndGet();
+        }
+    }
+
+    private void reportLeaks() {
+        LeakReference reference;
+        while ((reference = (LeakReference) leakQueue.poll()) != null) {
+            if (tracked.remove(reference)) {
+                leaks.incrementAndGet();
+                Log.warn("Buffer was garbage collected without being released", reference.allocation);
+            }
+        }
+    }
+
+    /**
+     * Registers the counters in the platform MBean server.
+     */
+    public static void registerMBean() {
+        try {
+            MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = getObjectName();
+            if (!mbs.isRegistered(name)) {
+                mbs.registerMBean(instance, name);
+            }
+        }
+        catch (JMException e) {
+            Log.warn("Failed to register buffer pool mbean (JMX): " + e);
+        }
+    }
+
+    /**
+     * Removes the counters from the platform MBean server.
+     */
+    public static void unregisterMBean() {
+        try {
+            MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = getObjectName();
+            if (mbs.isRegistered(name)) {
+                mbs.unregisterMBean(name);
+            }
+        }
+        catch (JMException e) {
+            Log.warn("Failed to unregister buffer pool mbean (JMX): " + e);
+        }
+    }
+
+    private static ObjectName getObjectName() throws JMException {
+        return new ObjectName("org.jivesoftware.openfire:type=BufferPool");
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public boolean isDirect() {
+        return direct;
+    }
+
+    public long getAcquired() {
+        return acquired.get();
+    }
+
+    public long getReleased() {
+        return released.get();
+    }
+
+    public long getReused() {
+        return reused.get();
+    }
+
+    public long getCreated() {
+        return created.get();
+    }
+
+    public long getDiscarded() {
+        return discarded.get();
+    }
+
+    public int getIdleBuffers() {
+        int count = 0;
+        for (ArrayBlockingQueue<java.nio.ByteBuffer> queue : idle) {
+            count += queue.size();
+        }
+        return count;
+    }
+
+    public long getLeaks() {
+        return leaks.get();
+    }
+
+    /**
+     * Reference used to detect buffers that were garbage collected without being released.
+     */
+    private static class LeakReference extends WeakReference<PooledBuffer> {
+        private final Throwable allocation;
+
+        LeakReference(PooledBuffer buffer, ReferenceQueue<PooledBuffer> queue) {
+            super(buffer, queue);
+            this.allocation = new Throwable("Buffer allocated");
+        }
+    }
+
+    /**
+     * MINA buffer backed by a pooled NIO buffer. Derived buffers (duplicates and slices)
+     * share the NIO buffer of their parent and keep the parent acquired until they are
+     * released.
+     */
+    private class PooledBuffer extends BaseByteBuffer {
+
+        private java.nio.ByteBuffer buf;
+        private final PooledBuffer parent;
+        private final AtomicInteger refCount = new AtomicInteger(1);
+        private final LeakReference leak;
+
+        PooledBuffer(java.nio.ByteBuffer buf, PooledBuffer parent) {
+            this.buf = buf;
+            this.parent = parent;
+            if (parent != null) {
+                parent.acquire();
+            }
+            if (leakDetection) {
+                leak = new LeakReference(this, leakQueue);
+                tracked.add(leak);
+            }
+            else {
+                leak = null;
+            }
+        }
+
+        @Override
+        public void acquire() {
+            for (;;) {
+                int count = refCount.get();
+                if (count <= 0) {
+                    throw new IllegalStateException("Already released buffer.");
+                }
+                if (refCount.compareAndSet(count, count + 1)) {
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public void release() {
+            int count = refCount.decrementAndGet();
+            if (count > 0) {
+                return;
+            }
+            if (count < 0) {
+                refCount.set(0);
+                throw new IllegalStateException(
+                        "Already released buffer.  You released the buffer too many times.");
+            }
+            if (leak != null) {
+                tracked.remove(leak);
+                leak.clear();
+            }
+            if (parent != null) {
+                parent.release();
+            }
+            else {
+                released.incrementAndGet();
+                recycle(buf);
+            }
+        }
+
+        @Override
+        public java.nio.ByteBuffer buf() {
+            return buf;
+        }
+
+        @Override
+        public boolean isPooled() {
+            return true;
+        }
+
+        @Override
+        public void setPooled(boolean pooled) {
+            // Ignore
+        }
+
+        @Override
+        protected void capacity0(int requestedCapacity) {
+            if (parent != null) {
+                throw new IllegalStateException("Derived buffers cannot be expanded.");
+            }
+            java.nio.ByteBuffer oldBuf = buf;
+            java.nio.ByteBuffer newBuf = take(requestedCapacity);
+            oldBuf.clear();
+            newBuf.put(oldBuf);
+            buf = newBuf;
+            recycle(oldBuf);
+        }
+
+        @Override
+        public ByteBuffer duplicate() {
+            return new PooledBuffer(buf.duplicate(), this);
+        }
+
+        @Override
+        public ByteBuffer slice() {
+            return new PooledBuffer(buf.slice(), this);
+        }
+
+        @Override
+        public ByteBuffer asReadOnlyBuffer() {
+            return new PooledBuffer(buf.asReadOnlyBuffer(), this);
+        }
+
+        @Override
+        public byte[] array() {
+            return buf.array();
+        }
+
+        @Override
+        public int arrayOffset() {
+            return buf.arrayOffset();
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/**
+ * Copyright (C) 2004-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.nio;
+
+/**
+ * JMX view of the counters of {@link BufferPool}.
+ */
+public interface BufferPoolMBean {
+
+    /**
+     * Returns true if buffers are reused.
+     *
+     * @return true if buffers are reused.
+     */
+    boolean isEnabled();
+
+    /**
+     * Returns true if the pooled buffers are direct (off-heap) buffers.
+     *
+     * @return true if the pooled buffers are direct buffers.
+     */
+    boolean isDirect();
+
+    /**
+     * Returns the number of buffers handed out by the pool.
+     *
+     * @return the number of buffers handed out by the pool.
+     */
+    long getAcquired();
+
+    /**
+     * Returns the number of buffers returned to the pool.
+     *
+     * @return the number of buffers returned to the pool.
+     */
+    long getReleased();
+
+    /**
+     * Returns the number of times that an idle buffer was reused.
+     *
+     * @return the number of times that an idle buffer was reused.
+     */
+    long getReused();
+
+    /**
+     * Returns the number of buffers that were created because no idle buffer was available.
+     *
+     * @return the number of buffers that were created.
+     */
+    long getCreated();
+
+    /**
+     * Returns the number of released buffers that were not kept because the pool was full
+     * or because they were too large.
+     *
+     * @return the number of released buffers that were not kept.
+     */
+    long getDiscarded();
+
+    /**
+     * Returns the number of idle buffers in the pool.
+     *
+     * @return the number of idle buffers in the pool.
+     */
+    int getIdleBuffers();
+
+    /**
+     * Returns the number of buffers that were garbage collected without being released.
+     * Leaks are only detected when leak detection is enabled.
+     *
+     * @return the number of buffers that were garbage collected without being released.
+     */
+    long getLeaks();
+}
@@ -23,7 +23,9 @@ import org.apache.mina.common.ByteBuffer;
 
 import java.io.IOException;
 import java.io.Writer;
+import java.nio.CharBuffer;
 import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
 
 /**
  * Wrapper on a MINA {@link ByteBuffer} that extends the Writer class.
@@ -42,7 +44,22 @@ public class ByteBufferWriter extends Writer {
 
     @Override
 	public void write(char cbuf[], int off, int len) throws IOException {
-        byteBuffer.putString(new String(cbuf, off, len), encoder);
+        // Encode the chars in place instead of copying them to a String first
+        CharBuffer in = CharBuffer.wrap(cbuf, off, len);
+        encoder.reset();
+        for (;;) {
+            CoderResult result = in.hasRemaining() ?
+                    encoder.encode(in, byteBuffer.buf(), true) : encoder.flush(byteBuffer.buf());
+            if (result.isUnderflow()) {
+                break;
+            }
+            if (result.isOverflow()) {
+                // Expanding may replace the buffer returned by #buf()
+                byteBuffer.expand(Math.max(16, (int) Math.ceil(in.remaining() * encoder.maxBytesPerChar())));
+                continue;
+            }
+            result.throwException();
+        }
     }
 
     @Override
@@ -46,6 +46,17 @@ public class ComponentConnectionHandler extends ConnectionHandler {
         return new ComponentStanzaHandler(XMPPServer.getInstance().getPacketRouter(), serverName, connection);
     }
 
+    @Override
+	public void sessionClosed(IoSession session) throws Exception {
+        try {
+            super.sessionClosed(session);
+        }
+        finally {
+            // Release the lanes of the connection if packets were processed in parallel
+            ((ComponentStanzaHandler) session.getAttribute(HANDLER)).closeDispatcher();
+        }
+    }
+
     @Override
 	int getMaxIdleTime() {
         return JiveGlobals.getIntProperty("xmpp.component.idle", 6 * 60 * 1000) / 1000;
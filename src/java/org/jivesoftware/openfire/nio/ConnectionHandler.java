@@ -30,8 +30,10 @@ import org.apache.mina.filter.codec.ProtocolDecoderException;
 import org.dom4j.io.XMPPPacketReader;
 import org.jivesoftware.openfire.Connection;
 import org.jivesoftware.openfire.net.MXParser;
+import org.jivesoftware.openfire.net.RawStanza;
 import org.jivesoftware.openfire.net.ServerTrafficCounter;
 import org.jivesoftware.openfire.net.StanzaHandler;
+import org.jivesoftware.util.JiveGlobals;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xmlpull.v1.XmlPullParserException;
@@ -80,8 +82,13 @@ public abstract class ConnectionHandler extends IoHandlerAdapter {
     @Override
 	public void sessionOpened(IoSession session) throws Exception {
         // Create a new XML parser for the new connection. The parser will be used by the XMPPDecoder filter.
-        final XMLLightweightParser parser = new XMLLightweightParser(CHARSET);
-        session.setAttribute(XML_PARSER, parser);
+        if (JiveGlobals.getBooleanProperty("xmpp.parser.framing.bytes", false)) {
+            // Frame stanzas on the received bytes and parse them without creating Strings
+            session.setAttribute(XML_PARSER, new XMLLightweightByteParser());
+        }
+        else {
+            session.setAttribute(XML_PARSER, new XMLLightweightParser(CHARSET));
+        }
         // Create a new NIOConnection for the new session
         final NIOConnection connection = createNIOConnection(session);
         session.setAttribute(CONNECTION, connection);
@@ -162,28 +169,28 @@ public abstract class ConnectionHandler extends IoHandlerAdapter {
 	public void messageReceived(IoSession session, Object message) throws Exception {
         // Get the stanza handler for this session
         StanzaHandler handler = (StanzaHandler) session.getAttribute(HANDLER);
-        // Get the parser to use to process stanza. For optimization there is going
-        // to be a parser for each running thread. Each Filter will be executed
-        // by the Executor placed as the first Filter. So we can have a parser associated
-        // to each Thread
-        int hashCode = Thread.currentThread().hashCode();
-        XMPPPacketReader parser = parsers.get(hashCode);
-        if (parser == null) {
-            parser = new XMPPPacketReader();
-            parser.setXPPFactory(factory);
-            parsers.put(hashCode, parser);
-        }
+        XMPPPacketReader parser = getParser();
         // Update counter of read btyes
         updateReadBytesCounter(session);
         //System.out.println("RCVD: " + message);
-        // Let the stanza handler process the received stanza
+        // Let the stanza handler process the received stanza. Stanzas written to
+        // connections while processing are coalesced until the batch ends
+        WriteCoalescing.startBatch();
         try {
-            handler.process((String) message, parser);
+            if (message instanceof RawStanza) {
+                handler.process((RawStanza) message, parser);
+            }
+            else {
+                handler.process((String) message, parser);
+            }
         } catch (Exception e) {
             Log.error("Closing connection due to error while processing message: " + message, e);
             Connection connection = (Connection) session.getAttribute(CONNECTION);
             connection.close();
         }
+        finally {
+            WriteCoalescing.endBatch();
+        }
     }
 
     @Override
@@ -194,6 +201,25 @@ public abstract class ConnectionHandler extends IoHandlerAdapter {
         //System.out.println("SENT: " + Charset.forName("UTF-8").decode(((ByteBuffer)message).buf()));
     }
 
+    /**
+     * Returns the parser to use to process stanzas. For optimization there is going
+     * to be a parser for each running thread. Each Filter will be executed
+     * by the Executor placed as the first Filter. So we can have a parser associated
+     * to each Thread.
+     *
+     * @return the parser of the current thread.
+     */
+    XMPPPacketReader getParser() {
+        int hashCode = Thread.currentThread().hashCode();
+        XMPPPacketReader parser = parsers.get(hashCode);
+        if (parser == null) {
+            parser = new XMPPPacketReader();
+            parser.setXPPFactory(factory);
+            parsers.put(hashCode, parser);
+        }
+        return parser;
+    }
+
     abstract NIOConnection createNIOConnection(IoSession session);
 
     abstract StanzaHandler createStanzaHandler(NIOConnection connection);
@@ -212,7 +238,7 @@ public abstract class ConnectionHandler extends IoHandlerAdapter {
      *
      * @param session the session that read more bytes from the socket.
      */
-    private void updateReadBytesCounter(IoSession session) {
+    void updateReadBytesCounter(IoSession session) {
         long currentBytes = session.getReadBytes();
         Long prevBytes = (Long) session.getAttribute("_read_bytes");
         long delta;
@@ -37,6 +37,7 @@ import javax.net.ssl.TrustManager;
 import org.apache.mina.common.ByteBuffer;
 import org.apache.mina.common.IoFilterChain;
 import org.apache.mina.common.IoSession;
+import org.apache.mina.common.WriteFuture;
 import org.apache.mina.filter.CompressionFilter;
 import org.apache.mina.filter.SSLFilter;
 import org.dom4j.io.OutputFormat;
@@ -51,6 +52,7 @@ import org.jivesoftware.openfire.net.SSLJiveTrustManagerFactory;
 import org.jivesoftware.openfire.net.ServerTrustManager;
 import org.jivesoftware.openfire.session.LocalSession;
 import org.jivesoftware.openfire.session.Session;
+import org.jivesoftware.openfire.stats.PacketLatency;
 import org.jivesoftware.util.JiveGlobals;
 import org.jivesoftware.util.XMLWriter;
 import org.slf4j.Logger;
@@ -109,11 +111,25 @@ public class NIOConnection implements Connection {
      */
     private boolean closed;
 
+    /**
+     * True if the stanzas written to this connection are gathered and written together.
+     * See {@link WriteCoalescing}.
+     */
+    private final boolean coalescing;
+    /**
+     * Lock that protects the pending buffer and keeps the order of the writes.
+     */
+    private final Object writeLock = new Object();
+    private ByteBuffer pending;
+    private int pendingWrites;
+    private boolean flushScheduled;
+
 
     public NIOConnection(IoSession session, PacketDeliverer packetDeliverer) {
         this.ioSession = session;
         this.backupDeliverer = packetDeliverer;
         closed = false;
+        coalescing = WriteCoalescing.isCoalescing();
     }
 
     public boolean validate() {
@@ -174,6 +190,16 @@ public class NIOConnection implements Connection {
         return new Certificate[0];
     }
 
+    /**
+     * Returns the SSL session of the connection or <tt>null</tt> if TLS has not been
+     * negotiated.
+     *
+     * @return the SSL session of the connection or <tt>null</tt> if TLS has not been negotiated.
+     */
+    public SSLSession getSSLSession() {
+        return (SSLSession) ioSession.getAttribute(SSLFilter.SSL_SESSION);
+    }
+
     public void setUsingSelfSignedCertificate(boolean isSelfSigned) {
         this.usingSelfSignedCertificate = isSelfSigned;
     }
@@ -248,8 +274,7 @@ public class NIOConnection implements Connection {
             backupDeliverer.deliver(packet);
         }
         else {
-            ByteBuffer buffer = ByteBuffer.allocate(4096);
-            buffer.setAutoExpand(true);
+            long start = PacketLatency.start();
 
             boolean errorDelivering = false;
             try {
@@ -257,15 +282,40 @@ public class NIOConnection implements Connection {
             	if (!ioSession.isConnected()) {
             		throw new IOException("Connection reset/closed by peer");
             	}
-                XMLWriter xmlSerializer =
-                        new XMLWriter(new ByteBufferWriter(buffer, encoder.get()), new OutputFormat());
-                xmlSerializer.write(packet.getElement());
-                xmlSerializer.flush();
-                if (flashClient) {
-                    buffer.put((byte) '\0');
+                if (coalescing) {
+                    synchronized (writeLock) {
+                        ByteBuffer buffer = getPendingBuffer();
+                        int position = buffer.position();
+                        boolean serialized = false;
+                        try {
+                            serialize(packet, buffer);
+                            serialized = true;
+                        }
+                        finally {
+                            if (!serialized) {
+                                // Discard the partial serialization of the packet
+                                buffer.position(position);
+                            }
+                        }
+                        appended();
+                    }
                 }
-                buffer.flip();
-                ioSession.write(buffer);
+                else {
+                    ByteBuffer buffer = BufferPool.getInstance().allocate(4096);
+                    boolean serialized = false;
+                    try {
+                        serialize(packet, buffer);
+                        serialized = true;
+                    }
+                    finally {
+                        if (!serialized) {
+                            buffer.release();
+                        }
+                    }
+                    buffer.flip();
+                    ioSession.write(buffer);
+                }
+                PacketLatency.record(PacketLatency.Stage.deliver, packet, start);
             }
             catch (Exception e) {
                 Log.debug("Error delivering packet:\n" + packet, e);
@@ -277,36 +327,55 @@ public class NIOConnection implements Connection {
                 // Message it will be stored offline
                 backupDeliverer.deliver(packet);
             }
-            else {
+            else if (session != null) {
                 session.incrementServerPacketCount();
             }
         }
     }
 
+    private void serialize(Packet packet, ByteBuffer buffer) throws IOException {
+        SerializedStanza fanout = SerializedStanza.getCurrent();
+        if (fanout != null && fanout.isSerializationOf(packet)) {
+            // Reuse the bytes shared by all the recipients of the stanza
+            fanout.writeTo(buffer, packet.getTo());
+        }
+        else {
+            XMLWriter xmlSerializer =
+                    new XMLWriter(new ByteBufferWriter(buffer, encoder.get()), new OutputFormat());
+            xmlSerializer.write(packet.getElement());
+            xmlSerializer.flush();
+        }
+        if (flashClient) {
+            buffer.put((byte) '\0');
+        }
+    }
+
     public void deliverRawText(String text) {
         // Deliver the packet in asynchronous mode
         deliverRawText(text, true);
     }
 
     private void deliverRawText(String text, boolean asynchronous) {
-        if (!isClosed()) {
-            ByteBuffer buffer = ByteBuffer.allocate(text.length());
-            buffer.setAutoExpand(true);
-
+        if (coalescing) {
+            deliverCoalescedText(text, asynchronous);
+        }
+        else if (!isClosed()) {
             boolean errorDelivering = false;
             try {
+                // OF-464: handle dropped connections (no backupDeliverer in this case?)
+                if (asynchronous && !ioSession.isConnected()) {
+                    throw new IOException("Connection reset/closed by peer");
+                }
+                byte[] bytes = text.getBytes(CHARSET);
+                ByteBuffer buffer = BufferPool.getInstance().allocate(bytes.length + 1);
                 //Charset charset = Charset.forName(CHARSET);
                 //buffer.putString(text, charset.newEncoder());
-                buffer.put(text.getBytes(CHARSET));
+                buffer.put(bytes);
                 if (flashClient) {
                     buffer.put((byte) '\0');
                 }
                 buffer.flip();
                 if (asynchronous) {
-                	// OF-464: handle dropped connections (no backupDeliverer in this case?)
-                	if (!ioSession.isConnected()) {
-                		throw new IOException("Connection reset/closed by peer");
-                	}
                     ioSession.write(buffer);
                 }
                 else {
@@ -329,6 +398,112 @@ public class NIOConnection implements Connection {
         }
     }
 
+    private void deliverCoalescedText(String text, boolean asynchronous) {
+        if (!isClosed()) {
+            boolean errorDelivering = false;
+            try {
+                byte[] bytes = text.getBytes(CHARSET);
+                if (asynchronous) {
+                	if (!ioSession.isConnected()) {
+                		throw new IOException("Connection reset/closed by peer");
+                	}
+                    synchronized (writeLock) {
+                        append(bytes);
+                        appended();
+                    }
+                }
+                else {
+                    WriteFuture future;
+                    synchronized (writeLock) {
+                        append(bytes);
+                        pendingWrites++;
+                        future = flushPending(WriteCoalescing.Trigger.forced);
+                    }
+                    // Wait for ACK without holding the lock
+                    boolean ok = future.join(JiveGlobals.getIntProperty("connection.ack.timeout", 2000));
+                    if (!ok) {
+                        Log.warn("No ACK was received when sending stanza to: " + this.toString());
+                    }
+                }
+            }
+            catch (Exception e) {
+                Log.debug("Error delivering raw text:\n" + text, e);
+                errorDelivering = true;
+            }
+            if (errorDelivering && asynchronous) {
+                close();
+            }
+        }
+    }
+
+    private void append(byte[] bytes) {
+        ByteBuffer buffer = getPendingBuffer();
+        buffer.put(bytes);
+        if (flashClient) {
+            buffer.put((byte) '\0');
+        }
+    }
+
+    /**
+     * Returns the buffer where stanzas are gathered until they are written. Must be
+     * called while holding the write lock.
+     *
+     * @return the buffer where stanzas are gathered.
+     */
+    private ByteBuffer getPendingBuffer() {
+        if (pending == null) {
+            pending = BufferPool.getInstance().allocate(4096);
+        }
+        return pending;
+    }
+
+    /**
+     * Decides when the pending buffer is written after a stanza was added to it. Must be
+     * called while holding the write lock.
+     */
+    private void appended() {
+        pendingWrites++;
+        if (pending.position() >= WriteCoalescing.getThreshold()) {
+            flushPending(WriteCoalescing.Trigger.threshold);
+        }
+        else if (!WriteCoalescing.addToBatch(this) && !flushScheduled) {
+            flushScheduled = true;
+            WriteCoalescing.schedule(this);
+        }
+    }
+
+    /**
+     * Writes the pending buffer to the socket. Must be called while holding the write lock.
+     *
+     * @param trigger the reason for writing the buffer.
+     * @return the future of the write or <tt>null</tt> if there was nothing to write.
+     */
+    private WriteFuture flushPending(WriteCoalescing.Trigger trigger) {
+        flushScheduled = false;
+        if (pending == null || pending.position() == 0) {
+            return null;
+        }
+        ByteBuffer buffer = pending;
+        int writes = pendingWrites;
+        // The written buffer belongs to MINA from now on
+        pending = null;
+        pendingWrites = 0;
+        buffer.flip();
+        WriteCoalescing.flushed(trigger, writes, buffer.remaining());
+        return ioSession.write(buffer);
+    }
+
+    /**
+     * Writes the stanzas that are waiting in the pending buffer of this connection.
+     *
+     * @param trigger the reason for writing the buffer.
+     */
+    void flush(WriteCoalescing.Trigger trigger) {
+        synchronized (writeLock) {
+            flushPending(trigger);
+        }
+    }
+
     public void startTLS(boolean clientMode, String remoteServer, ClientAuth authentication) throws Exception {
         boolean c2s = (remoteServer == null);
         KeyStore ksKeys = SSLConfig.getKeyStore();
@@ -371,18 +546,41 @@ public class NIOConnection implements Connection {
             // good
             filter.setWantClientAuth(true);
         }
-        // TODO Temporary workaround (placing SSLFilter before ExecutorFilter) to avoid deadlock. Waiting for
-        // MINA devs feedback
-        ioSession.getFilterChain().addBefore("org.apache.mina.common.ExecutorThreadModel", "tls", filter);
-        //ioSession.getFilterChain().addAfter("org.apache.mina.common.ExecutorThreadModel", "tls", filter);
-        ioSession.setAttribute(SSLFilter.DISABLE_ENCRYPTION_ONCE, Boolean.TRUE);
-        if (!clientMode) {
-            // Indicate the client that the server is ready to negotiate TLS
-            deliverRawText("<proceed xmlns=\"urn:ietf:params:xml:ns:xmpp-tls\"/>");
+        addTLSFilter(filter, clientMode);
+    }
+
+    /**
+     * Adds the TLS filter to the connection. Stanzas that are waiting to be written are
+     * written unencrypted first and, in server mode, the answer to the peer is the next
+     * unencrypted write.
+     *
+     * @param filter the TLS filter to add.
+     * @param clientMode true if the connection is negotiating TLS as the client.
+     */
+    void addTLSFilter(SSLFilter filter, boolean clientMode) {
+        synchronized (writeLock) {
+            // Write pending stanzas before the connection is encrypted
+            flushPending(WriteCoalescing.Trigger.forced);
+            // TODO Temporary workaround (placing SSLFilter before ExecutorFilter) to avoid deadlock. Waiting for
+            // MINA devs feedback
+            ioSession.getFilterChain().addBefore("org.apache.mina.common.ExecutorThreadModel", "tls", filter);
+            //ioSession.getFilterChain().addAfter("org.apache.mina.common.ExecutorThreadModel", "tls", filter);
+            // Only the <proceed/> answer of the server is written unencrypted. In client mode
+            // the next write is the new stream header, which the filter must hold until the
+            // handshake is over, so the attribute must not be set.
+            if (!clientMode) {
+                // Indicate the client that the server is ready to negotiate TLS
+                ioSession.setAttribute(SSLFilter.DISABLE_ENCRYPTION_ONCE, Boolean.TRUE);
+                deliverRawText("<proceed xmlns=\"urn:ietf:params:xml:ns:xmpp-tls\"/>");
+                // The answer must be the next unencrypted write
+                flushPending(WriteCoalescing.Trigger.forced);
+            }
         }
     }
 
     public void addCompression() {
+        // Write pending stanzas before the compression filter is added
+        flush(WriteCoalescing.Trigger.forced);
         IoFilterChain chain = ioSession.getFilterChain();
         String baseFilter = "org.apache.mina.common.ExecutorThreadModel";
         if (chain.contains("tls")) {
@@ -392,6 +590,8 @@ public class NIOConnection implements Connection {
     }
 
     public void startCompression() {
+        // Write pending stanzas (e.g. the compression answer) uncompressed
+        flush(WriteCoalescing.Trigger.forced);
         CompressionFilter ioFilter = (CompressionFilter) ioSession.getFilterChain().get("compression");
         ioFilter.setCompressOutbound(true);
     }
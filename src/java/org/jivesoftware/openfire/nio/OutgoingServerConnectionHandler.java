@@ -0,0 +1,205 @@
+/**
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.nio;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.mina.common.ConnectFuture;
+import org.apache.mina.common.ExecutorThreadModel;
+import org.apache.mina.common.IoFuture;
+import org.apache.mina.common.IoFutureListener;
+import org.apache.mina.common.IoSession;
+import org.apache.mina.common.RuntimeIOException;
+import org.apache.mina.filter.codec.ProtocolCodecFilter;
+import org.apache.mina.transport.socket.nio.SocketConnector;
+import org.dom4j.Element;
+import org.jivesoftware.openfire.XMPPServer;
+import org.jivesoftware.openfire.net.ServerStanzaHandler;
+import org.jivesoftware.openfire.net.StanzaHandler;
+import org.jivesoftware.openfire.server.OutgoingServerSocketReader;
+import org.jivesoftware.util.JiveGlobals;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * ConnectionHandler for connections established by this server to remote servers. Outgoing
+ * server connections are only used for sending packets, the remote server will only send
+ * stream negotiation elements and answers to dialback requests. Instead of processing them
+ * with a {@link StanzaHandler} the received elements are queued in the
+ * {@link OutgoingServerSocketReader} of the connection, which is where the thread that
+ * negotiates the stream or authenticates domains waits for them.<p>
+ *
+ * All outgoing connections share the same {@link SocketConnector} so no thread is created
+ * for each remote server. The connector is created by the first connection and released by
+ * {@link #shutdown()}.
+ */
+public class OutgoingServerConnectionHandler extends ConnectionHandler {
+
+	private static final Logger Log = LoggerFactory.getLogger(OutgoingServerConnectionHandler.class);
+
+    private static SocketConnector connector;
+
+    /**
+     * Executor of the I/O processors of the connector.
+     */
+    private static ExecutorService ioExecutor;
+
+    private final OutgoingServerSocketReader socketReader;
+
+    /**
+     * Creates a handler for a new outgoing connection.
+     *
+     * @param serverName the name of this server.
+     * @param socketReader the reader where the elements sent by the remote server will be queued.
+     */
+    public OutgoingServerConnectionHandler(String serverName, OutgoingServerSocketReader socketReader) {
+        super(serverName);
+        this.socketReader = socketReader;
+    }
+
+    /**
+     * Establishes a new connection to a remote server that will be handled by this handler.
+     *
+     * @param address the address of the remote server.
+     * @param timeout the number of milliseconds to wait for the connection to be established.
+     * @return the new connection.
+     * @throws IOException if the connection could not be established.
+     */
+    public NIOConnection connect(InetSocketAddress address, int timeout) throws IOException {
+        ConnectFuture future = getConnector().connect(address, this);
+        future.join(timeout);
+        if (!future.isReady()) {
+            // Close the connection if it is established after we gave up
+            future.addListener(new IoFutureListener() {
+                public void operationComplete(IoFuture future) {
+                    if (((ConnectFuture) future).isConnected()) {
+                        future.getSession().close();
+                    }
+                }
+            });
+            throw new SocketTimeoutException("Timeout connecting to " + address);
+        }
+        try {
+            return (NIOConnection) future.getSession().getAttribute(CONNECTION);
+        }
+        catch (RuntimeIOException e) {
+            throw new IOException(e.getCause() != null ? e.getCause() : e);
+        }
+    }
+
+    @Override
+	public void messageReceived(IoSession session, Object message) throws Exception {
+        // Update counter of read btyes
+        updateReadBytesCounter(session);
+        String stanza = message.toString();
+        // Ignore <?xml version="1.0"?>
+        if (stanza.startsWith("<?xml")) {
+            return;
+        }
+        // Verify if end of stream was requested
+        if ("</stream:stream>".equals(stanza)) {
+            socketReader.streamClosed();
+            return;
+        }
+        if (stanza.startsWith("<stream:stream")) {
+            // Close the stream header so that its attributes can be read from an element
+            stanza = stanza + "</stream:stream>";
+        }
+        else {
+            stanza = ServerStanzaHandler.declareNamespaces(stanza);
+        }
+        try {
+            Element doc = getParser().read(new StringReader(stanza)).getRootElement();
+            socketReader.elementReceived(doc);
+        } catch (Exception e) {
+            Log.error("Closing connection due to error while processing message: " + message, e);
+            NIOConnection connection = (NIOConnection) session.getAttribute(CONNECTION);
+            connection.close();
+        }
+    }
+
+    @Override
+	NIOConnection createNIOConnection(IoSession session) {
+        return new NIOConnection(session, XMPPServer.getInstance().getPacketDeliverer());
+    }
+
+    @Override
+	StanzaHandler createStanzaHandler(NIOConnection connection) {
+        // Received elements are queued in the socket reader (see #messageReceived)
+        return null;
+    }
+
+    @Override
+	int getMaxIdleTime() {
+        return JiveGlobals.getIntProperty("xmpp.server.session.idle", 10 * 60 * 1000) / 1000;
+    }
+
+    /**
+     * Closes the connections to remote servers and releases the threads of the shared
+     * connector. A new connector is created if a remote server is connected to again.
+     */
+    public static synchronized void shutdown() {
+        if (connector == null) {
+            return;
+        }
+        for (SocketAddress address : connector.getManagedServiceAddresses()) {
+            for (IoSession session : connector.getManagedSessions(address)) {
+                NIOConnection connection = (NIOConnection) session.getAttribute(CONNECTION);
+                if (connection != null) {
+                    connection.close();
+                }
+                else {
+                    session.close();
+                }
+            }
+        }
+        // Processors stop once their sessions are closed, so running tasks are let finish
+        ioExecutor.shutdown();
+        ioExecutor = null;
+        connector = null;
+    }
+
+    private static synchronized SocketConnector getConnector() {
+        if (connector == null) {
+            // Create SocketConnector with correct number of processors
+            int ioThreads = JiveGlobals.getIntProperty("xmpp.processor.count", Runtime.getRuntime().availableProcessors());
+            ioExecutor = new ThreadPoolExecutor(
+                ioThreads + 1, ioThreads + 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>() );
+            connector = new SocketConnector(ioThreads, ioExecutor);
+            // Customize Executor that will be used by processors to process incoming stanzas
+            ExecutorThreadModel threadModel = ExecutorThreadModel.getInstance("outgoing-server");
+            int eventThreads = JiveGlobals.getIntProperty("xmpp.server.processing.threads", 16);
+            ThreadPoolExecutor eventExecutor = (ThreadPoolExecutor)threadModel.getExecutor();
+            eventExecutor.setCorePoolSize(eventThreads + 1);
+            eventExecutor.setMaximumPoolSize(eventThreads + 1);
+            eventExecutor.setKeepAliveTime(60, TimeUnit.SECONDS);
+
+            connector.getDefaultConfig().setThreadModel(threadModel);
+            // Add the XMPP codec filter
+            connector.getFilterChain().addFirst("xmpp", new ProtocolCodecFilter(new XMPPCodecFactory()));
+        }
+        return connector;
+    }
+}
@@ -0,0 +1,247 @@
+/**
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.nio;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+import org.apache.mina.common.ByteBuffer;
+import org.dom4j.Attribute;
+import org.dom4j.Element;
+import org.dom4j.io.OutputFormat;
+import org.jivesoftware.util.XMLWriter;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Packet;
+
+/**
+ * Immutable UTF-8 serialization of a stanza that is going to be delivered to many
+ * recipients, such as a message broadcast to the occupants of a room. The stanza is
+ * serialized once without its <tt>to</tt> attribute; every recipient then gets a copy
+ * of the shared bytes with its own <tt>to</tt> attribute patched in right after the
+ * element name.<p>
+ *
+ * A serialized stanza is made available to {@link NIOConnection} by setting it as the
+ * current fan-out of the delivering thread (see {@link #setCurrent(SerializedStanza)}).
+ * Connections will use the shared bytes only when asked to deliver the very same
+ * packet instance that was serialized, and will fall back to regular serialization
+ * otherwise. Fan-outs must be cleared with {@link #clearCurrent()} once the broadcast
+ * is over.<p>
+ *
+ * Since the stanza is serialized before it is delivered, outgoing packet interceptors
+ * that modify the shared packet will not be reflected in the bytes that are sent.
+ */
+public final class SerializedStanza {
+
+    private static final Charset UTF8 = Charset.forName(NIOConnection.CHARSET);
+
+    private static final byte[] TO_PREFIX = " to=\"".getBytes(UTF8);
+
+    private static final ThreadLocal<SerializedStanza> current = new ThreadLocal<SerializedStanza>();
+
+    private final Packet packet;
+    /**
+     * Serialized stanza without the <tt>to</tt> attribute.
+     */
+    private final byte[] bytes;
+    /**
+     * Position in <tt>bytes</tt> right after the element name, which is where the
+     * <tt>to</tt> attribute of each recipient is inserted.
+     */
+    private final int insertionPoint;
+
+    private SerializedStanza(Packet packet, byte[] bytes, int insertionPoint) {
+        this.packet = packet;
+        this.bytes = bytes;
+        this.insertionPoint = insertionPoint;
+    }
+
+    /**
+     * Serializes the specified packet ignoring its <tt>to</tt> attribute. The packet is
+     * left unmodified once this method returns.
+     *
+     * @param packet the packet that is going to be sent to many recipients.
+     * @return the shared serialization of the packet.
+     * @throws IOException if an error occurred while serializing the packet.
+     */
+    public static SerializedStanza serialize(Packet packet) throws IOException {
+        Element element = packet.getElement();
+        JID to = packet.getTo();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(512);
+        try {
+            packet.setTo((JID) null);
+            XMLWriter xmlSerializer = new XMLWriter(out, new OutputFormat());
+            xmlSerializer.write(element);
+            xmlSerializer.flush();
+        }
+        finally {
+            packet.setTo(to);
+        }
+        byte[] bytes = out.toByteArray();
+        int insertionPoint = 1 + element.getQualifiedName().getBytes(UTF8).length;
+        return new SerializedStanza(packet, bytes, insertionPoint);
+    }
+
+    /**
+     * Serializes a copy of the specified packet ignoring its <tt>to</tt> attribute. Unlike
+     * {@link #serialize(Packet)} the packet is never modified, so this method may be used
+     * with packets that other threads are delivering at the same time. The returned
+     * serialization will still be used when delivering the specified packet instance.
+     *
+     * @param packet the packet that is going to be sent to many recipients.
+     * @return the shared serialization of the packet.
+     * @throws IOException if an error occurred while serializing the packet.
+     */
+    public static SerializedStanza serializeCopy(Packet packet) throws IOException {
+        SerializedStanza copy = serialize(packet.createCopy());
+        return new SerializedStanza(packet, copy.bytes, copy.insertionPoint);
+    }
+
+    /**
+     * Serializes the specified packet, ignoring its <tt>to</tt> attribute, with its content
+     * replaced by content that was serialized beforehand, such as a cached vCard. The packet is
+     * never modified and its own child elements are not serialized, so they may be left empty.
+     *
+     * @param packet the packet to deliver.
+     * @param content the UTF-8 bytes of the child elements of the packet.
+     * @return the serialization of the packet.
+     * @throws IOException if an error occurred while serializing the packet.
+     */
+    public static SerializedStanza serialize(Packet packet, byte[] content) throws IOException {
+        Element envelope = packet.getElement().createCopy();
+        envelope.clearContent();
+        Attribute to = envelope.attribute("to");
+        if (to != null) {
+            envelope.remove(to);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(content.length + 256);
+        OutputFormat format = new OutputFormat();
+        format.setExpandEmptyElements(true);
+        XMLWriter xmlSerializer = new XMLWriter(out, format);
+        xmlSerializer.write(envelope);
+        xmlSerializer.flush();
+        byte[] wrapper = out.toByteArray();
+        // Insert the content between the start and the end tag of the envelope
+        int endTag = wrapper.length - ("</" + envelope.getQualifiedName() + ">").getBytes(UTF8).length;
+        byte[] bytes = new byte[wrapper.length + content.length];
+        System.arraycopy(wrapper, 0, bytes, 0, endTag);
+        System.arraycopy(content, 0, bytes, endTag, content.length);
+        System.arraycopy(wrapper, endTag, bytes, endTag + content.length, wrapper.length - endTag);
+        int insertionPoint = 1 + envelope.getQualifiedName().getBytes(UTF8).length;
+        return new SerializedStanza(packet, bytes, insertionPoint);
+    }
+
+    /**
+     * Returns true if this serialization was created for the specified packet instance.
+     *
+     * @param packet the packet to deliver.
+     * @return true if this serialization was created for the specified packet instance.
+     */
+    public boolean isSerializationOf(Packet packet) {
+        return this.packet == packet;
+    }
+
+    /**
+     * Writes the shared bytes of the stanza to the specified buffer using the specified
+     * address as the value of the <tt>to</tt> attribute.
+     *
+     * @param buffer the buffer to write to.
+     * @param to the recipient of the stanza or <tt>null</tt> if none.
+     */
+    public void writeTo(ByteBuffer buffer, JID to) {
+        if (to == null) {
+            buffer.put(bytes);
+            return;
+        }
+        buffer.put(bytes, 0, insertionPoint);
+        buffer.put(TO_PREFIX);
+        buffer.put(escape(to.toString()));
+        buffer.put((byte) '"');
+        buffer.put(bytes, insertionPoint, bytes.length - insertionPoint);
+    }
+
+    /**
+     * Sets the serialized stanza that connections may use when delivering packets
+     * from the current thread.
+     *
+     * @param stanza the serialized stanza being fanned out by this thread.
+     */
+    public static void setCurrent(SerializedStanza stanza) {
+        current.set(stanza);
+    }
+
+    /**
+     * Returns the serialized stanza being fanned out by the current thread or
+     * <tt>null</tt> if none.
+     *
+     * @return the serialized stanza being fanned out by the current thread.
+     */
+    public static SerializedStanza getCurrent() {
+        return current.get();
+    }
+
+    /**
+     * Clears the serialized stanza being fanned out by the current thread.
+     */
+    public static void clearCurrent() {
+        current.remove();
+    }
+
+    /**
+     * Escapes the specified attribute value the same way {@link XMLWriter} does when
+     * using the default output format (i.e. double quotes).
+     */
+    private static byte[] escape(String value) {
+        StringBuilder sb = null;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            String entity = null;
+            switch (c) {
+                case '<':
+                    entity = "&lt;";
+                    break;
+                case '>':
+                    entity = "&gt;";
+                    break;
+                case '"':
+                    entity = "&quot;";
+                    break;
+                case '&':
+                    entity = "&amp;";
+                    break;
+                case '\t': case '\n': case '\r':
+                    break;
+                default:
+                    if (c < 32) {
+                        entity = "&#" + (int) c + ";";
+                    }
+                    break;
+            }
+            if (entity != null) {
+                if (sb == null) {
+                    sb = new StringBuilder(value.length() + 8);
+                    sb.append(value, 0, i);
+                }
+                sb.append(entity);
+            }
+            else if (sb != null) {
+                sb.append(c);
+            }
+        }
+        return (sb == null ? value : sb.toString()).getBytes(UTF8);
+    }
+}
@@ -0,0 +1,50 @@
+/**
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.nio;
+
+import org.apache.mina.common.IoSession;
+import org.jivesoftware.openfire.XMPPServer;
+import org.jivesoftware.openfire.net.ServerStanzaHandler;
+import org.jivesoftware.openfire.net.StanzaHandler;
+import org.jivesoftware.util.JiveGlobals;
+
+/**
+ * ConnectionHandler for connections established by remote servers. Incoming server
+ * connections are only used for receiving packets so the created {@link StanzaHandler}
+ * is a {@link ServerStanzaHandler}.
+ */
+public class ServerConnectionHandler extends ConnectionHandler {
+
+    public ServerConnectionHandler(String serverName) {
+        super(serverName);
+    }
+
+    @Override
+	NIOConnection createNIOConnection(IoSession session) {
+        return new NIOConnection(session, XMPPServer.getInstance().getPacketDeliverer());
+    }
+
+    @Override
+	StanzaHandler createStanzaHandler(NIOConnection connection) {
+        return new ServerStanzaHandler(XMPPServer.getInstance().getPacketRouter(), serverName, connection);
+    }
+
+    @Override
+	int getMaxIdleTime() {
+        return JiveGlobals.getIntProperty("xmpp.server.session.idle", 10 * 60 * 1000) / 1000;
+    }
+}
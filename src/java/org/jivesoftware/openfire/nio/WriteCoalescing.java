@@ -0,0 +1,367 @@
+/**
+ * Copyright (C) 2004-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.nio;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.jivesoftware.util.JiveGlobals;
+import org.jivesoftware.util.PropertyEventDispatcher;
+import org.jivesoftware.util.PropertyEventListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Coalescing of the stanzas written to a {@link NIOConnection}. When enabled, connections
+ * gather the stanzas and texts to deliver in a buffer and write the buffer to the socket
+ * in one operation. This reduces the number of writes, and usually the number of TCP
+ * segments, when many stanzas are sent to a connection in a short time (e.g. presences
+ * of the contacts of a user).<p>
+ *
+ * A buffer is written when:
+ * <ul>
+ *  <li>It reaches the size threshold.</li>
+ *  <li>The processing batch of the thread that wrote to the buffer ends. Threads that read
+ *      from connections process each received stanza in a batch, see {@link #startBatch()}.</li>
+ *  <li>Its delay expires. Stanzas written outside of a batch wait at most this delay.</li>
+ *  <li>The connection requires it, e.g. before being closed or negotiating TLS.</li>
+ * </ul>
+ *
+ * Coalescing is disabled by default. The following properties control it:
+ * <ul>
+ *  <li><tt>xmpp.connection.coalesce.enabled</tt> -- true to coalesce writes.</li>
+ *  <li><tt>xmpp.connection.coalesce.threshold</tt> -- size in bytes that causes a buffer to
+ *      be written. Default is 16384.</li>
+ *  <li><tt>xmpp.connection.coalesce.delay</tt> -- max time in microseconds that stanzas
+ *      written outside of a batch wait. Default is 500.</li>
+ * </ul>
+ * The counters are registered as an MBean named
+ * <tt>org.jivesoftware.openfire:type=WriteCoalescing</tt> when JMX is enabled.
+ */
+public class WriteCoalescing implements WriteCoalescingMBean {
+
+    private static final Logger Log = LoggerFactory.getLogger(WriteCoalescing.class);
+
+    private static final String ENABLED_PROPERTY = "xmpp.connection.coalesce.enabled";
+    private static final String THRESHOLD_PROPERTY = "xmpp.connection.coalesce.threshold";
+    private static final String DELAY_PROPERTY = "xmpp.connection.coalesce.delay";
+
+    private static final int DEFAULT_THRESHOLD = 16384;
+    private static final int DEFAULT_DELAY = 500;
+
+    /**
+     * Reasons for writing a buffer.
+     */
+    public enum Trigger {
+        threshold, batch, timer, forced
+    }
+
+    private static final WriteCoalescing instance = new WriteCoalescing();
+
+    private static volatile boolean enabled;
+    private static volatile int threshold;
+    private static volatile int delay;
+
+    private static final ThreadLocal<Batch> batches = new ThreadLocal<Batch>() {
+        @Override
+        protected Batch initialValue() {
+            return new Batch();
+        }
+    };
+
+    private static ScheduledExecutorService timer;
+
+    private final AtomicLong flushes = new AtomicLong();
+    private final AtomicLong writes = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong[] triggers = new AtomicLong[Trigger.values().length];
+
+    static {
+        enabled = JiveGlobals.getBooleanProperty(ENABLED_PROPERTY, false);
+        threshold = JiveGlobals.getIntProperty(THRESHOLD_PROPERTY, DEFAULT_THRESHOLD);
+        delay = JiveGlobals.getIntProperty(DELAY_PROPERTY, DEFAULT_DELAY);
+        // Listen for changes to these properties
+        PropertyEventDispatcher.addListener(new PropertyListener());
+    }
+
+    private WriteCoalescing() {
+        for (int i = 0; i < triggers.length; i++) {
+            triggers[i] = new AtomicLong();
+        }
+    }
+
+    /**
+     * Returns true if writes to connections are coalesced.
+     *
+     * @return true if writes to connections are coalesced.
+     */
+    public static boolean isCoalescing() {
+        return enabled;
+    }
+
+    /**
+     * Returns the size in bytes that causes a buffer to be written.
+     *
+     * @return the size in bytes that causes a buffer to be written.
+     */
+    static int getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * Starts a processing batch in the current thread. Buffers of the connections written
+     * by the thread during the batch are written when the batch ends. Batches may be
+     * nested, in which case buffers are written when the outermost batch ends. Every call
+     * must be followed by a call to {@link #endBatch()}, usually in a finally block.
+     */
+    public static void startBatch() {
+        batches.get().depth++;
+    }
+
+    /**
+     * Ends the processing batch of the current thread. If this is the outermost batch then
+     * the buffers of the connections written during the batch are written.
+     */
+    public static void endBatch() {
+        Batch batch = batches.get();
+        if (--batch.depth > 0 || batch.connections.isEmpty()) {
+            return;
+        }
+        List<NIOConnection> connections = new ArrayList<NIOConnection>(batch.connections);
+        batch.connections.clear();
+        for (NIOConnection connection : connections) {
+            try {
+                connection.flush(Trigger.batch);
+            }
+            catch (Exception e) {
+                Log.debug("Error writing buffer of connection: " + connection, e);
+            }
+        }
+    }
+
+    /**
+     * Adds a connection to the batch of the current thread so its buffer is written when
+     * the batch ends.
+     *
+     * @param connection the connection with a buffer to write.
+     * @return false if the current thread is not processing a batch.
+     */
+    static boolean addToBatch(NIOConnection connection) {
+        Batch batch = batches.get();
+        if (batch.depth == 0) {
+            return false;
+        }
+        batch.connections.add(connection);
+        return true;
+    }
+
+    /**
+     * Schedules the write of the buffer of a connection once the delay expires.
+     *
+     * @param connection the connection with a buffer to write.
+     */
+    static void schedule(final NIOConnection connection) {
+        getTimer().schedule(new Runnable() {
+            public void run() {
+                try {
+                    connection.flush(Trigger.timer);
+                }
+                catch (Exception e) {
+                    Log.debug("Error writing buffer of connection: " + connection, e);
+                }
+            }
+        }, delay, TimeUnit.MICROSECONDS);
+    }
+
+    private static synchronized ScheduledExecutorService getTimer() {
+        if (timer == null) {
+            timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "write-coalescing");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return timer;
+    }
+
+    /**
+     * Counts a buffer that was written to a connection.
+     *
+     * @param trigger the reason for writing the buffer.
+     * @param writeCount the number of stanzas and texts in the buffer.
+     * @param byteCount the number of bytes in the buffer.
+     */
+    static void flushed(Trigger trigger, int writeCount, int byteCount) {
+        instance.flushes.incrementAndGet();
+        instance.writes.addAndGet(writeCount);
+        instance.bytes.addAndGet(byteCount);
+        instance.triggers[trigger.ordinal()].incrementAndGet();
+    }
+
+    /**
+     * Registers the counters in the platform MBean server.
+     */
+    public static void registerMBean() {
+        try {
+            MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = getObjectName();
+            if (!mbs.isRegistered(name)) {
+                mbs.registerMBean(instance, name);
+            }
+        }
+        catch (JMException e) {
+            Log.warn("Failed to register write coalescing mbean (JMX): " + e);
+        }
+    }
+
+    /**
+     * Removes the counters from the platform MBean server.
+     */
+    public static void unregisterMBean() {
+        try {
+            MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = getObjectName();
+            if (mbs.isRegistered(name)) {
+                mbs.unregisterMBean(name);
+            }
+        }
+        catch (JMException e) {
+            Log.warn("Failed to unregister write coalescing mbean (JMX): " + e);
+        }
+    }
+
+    private static ObjectName getObjectName() throws JMException {
+        return new ObjectName("org.jivesoftware.openfire:type=WriteCoalescing");
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public long getFlushes() {
+        return flushes.get();
+    }
+
+    public long getWrites() {
+        return writes.get();
+    }
+
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    public double getWritesPerFlush() {
+        long count = flushes.get();
+        return count == 0 ? 0 : (double) writes.get() / count;
+    }
+
+    public double getBytesPerFlush() {
+        long count = flushes.get();
+        return count == 0 ? 0 : (double) bytes.get() / count;
+    }
+
+    public long getThresholdFlushes() {
+        return triggers[Trigger.threshold.ordinal()].get();
+    }
+
+    public long getBatchFlushes() {
+        return triggers[Trigger.batch.ordinal()].get();
+    }
+
+    public long getTimerFlushes() {
+        return triggers[Trigger.timer.ordinal()].get();
+    }
+
+    public long getForcedFlushes() {
+        return triggers[Trigger.forced.ordinal()].get();
+    }
+
+    public void reset() {
+        flushes.set(0);
+        writes.set(0);
+        bytes.set(0);
+        for (AtomicLong trigger : triggers) {
+            trigger.set(0);
+        }
+    }
+
+    /**
+     * Connections written by a thread during a processing batch.
+     */
+    private static class Batch {
+        private int depth;
+        private final Set<NIOConnection> connections = new HashSet<NIOConnection>();
+    }
+
+    private static class PropertyListener implements PropertyEventListener {
+        public void propertySet(String property, Map<String, Object> params) {
+            if (ENABLED_PROPERTY.equals(property)) {
+                enabled = Boolean.valueOf((String) params.get("value"));
+            }
+            else if (THRESHOLD_PROPERTY.equals(property)) {
+                threshold = parse((String) params.get("value"), DEFAULT_THRESHOLD);
+            }
+            else if (DELAY_PROPERTY.equals(property)) {
+                delay = parse((String) params.get("value"), DEFAULT_DELAY);
+            }
+        }
+
+        public void propertyDeleted(String property, Map<String, Object> params) {
+            if (ENABLED_PROPERTY.equals(property)) {
+                enabled = false;
+            }
+            else if (THRESHOLD_PROPERTY.equals(property)) {
+                threshold = DEFAULT_THRESHOLD;
+            }
+            else if (DELAY_PROPERTY.equals(property)) {
+                delay = DEFAULT_DELAY;
+            }
+        }
+
+        public void xmlPropertySet(String property, Map<String, Object> params) {
+            // Do nothing
+        }
+
+        public void xmlPropertyDeleted(String property, Map<String, Object> params) {
+            // Do nothing
+        }
+
+        private int parse(String value, int defaultValue) {
+            try {
+                return Integer.parseInt(value);
+            }
+            catch (NumberFormatException e) {
+                return defaultValue;
+            }
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/**
+ * Copyright (C) 2004-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.nio;
+
+/**
+ * JMX view of the counters of {@link WriteCoalescing}.
+ */
+public interface WriteCoalescingMBean {
+
+    /**
+     * Returns true if writes to connections are being coalesced.
+     *
+     * @return true if writes to connections are being coalesced.
+     */
+    boolean isEnabled();
+
+    /**
+     * Returns the number of buffers written to connections.
+     *
+     * @return the number of buffers written to connections.
+     */
+    long getFlushes();
+
+    /**
+     * Returns the number of stanzas and texts included in the written buffers.
+     *
+     * @return the number of stanzas and texts included in the written buffers.
+     */
+    long getWrites();
+
+    /**
+     * Returns the number of bytes included in the written buffers.
+     *
+     * @return the number of bytes included in the written buffers.
+     */
+    long getBytes();
+
+    /**
+     * Returns the average number of stanzas and texts per written buffer.
+     *
+     * @return the average number of stanzas and texts per written buffer.
+     */
+    double getWritesPerFlush();
+
+    /**
+     * Returns the average number of bytes per written buffer.
+     *
+     * @return the average number of bytes per written buffer.
+     */
+    double getBytesPerFlush();
+
+    /**
+     * Returns the number of buffers written because they reached the size threshold.
+     *
+     * @return the number of buffers written because they reached the size threshold.
+     */
+    long getThresholdFlushes();
+
+    /**
+     * Returns the number of buffers written at the end of a processing batch.
+     *
+     * @return the number of buffers written at the end of a processing batch.
+     */
+    long getBatchFlushes();
+
+    /**
+     * Returns the number of buffers written when their delay expired.
+     *
+     * @return the number of buffers written when their delay expired.
+     */
+    long getTimerFlushes();
+
+    /**
+     * Returns the number of buffers written because the connection required it (e.g.
+     * before closing the connection or negotiating TLS).
+     *
+     * @return the number of buffers written because the connection required it.
+     */
+    long getForcedFlushes();
+
+    /**
+     * Resets the counters.
+     */
+    void reset();
+}
@@ -0,0 +1,355 @@
+/**
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.nio;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.mina.common.ByteBuffer;
+import org.apache.mina.filter.codec.ProtocolDecoderException;
+import org.jivesoftware.openfire.net.RawStanza;
+
+/**
+ * Variant of {@link XMLLightweightParser} that frames stanzas on the received UTF-8
+ * bytes instead of decoding them to characters first. Every character that drives
+ * the framing robot is ASCII and bytes of multi-byte UTF-8 sequences are never in
+ * the ASCII range, so the same robot can run directly on the bytes.<p>
+ *
+ * Complete stanzas are returned as {@link RawStanza} instances that are backed by a
+ * private copy of their bytes. No <tt>char[]</tt>, <tt>StringBuilder</tt> or
+ * <tt>String</tt> is created for a stanza; characters are decoded only once, while
+ * the XML parser reads the stanza.
+ */
+class XMLLightweightByteParser {
+
+    private static final RawStanza[] EMPTY = new RawStanza[0];
+
+    // Bytes that rappresent CDATA section start
+    private static final byte[] CDATA_START = {'<', '!', '[', 'C', 'D', 'A', 'T', 'A', '['};
+    // Bytes that rappresent CDATA section end
+    private static final byte[] CDATA_END = {']', ']', '>'};
+
+    private static final byte[] STREAM_END = "stream:stream>".getBytes();
+    private static final byte[] XML_END = "?xml>".getBytes();
+    private static final byte[] FLASH_STREAM_END = "flash:stream>".getBytes();
+    private static final byte[] CLOSE_STREAM = "/stream:stream>".getBytes();
+    private static final byte[] CLOSE_FLASH_STREAM = "/flash:stream>".getBytes();
+    private static final byte[] CLOSING_STREAM_STANZA = "</stream:stream>".getBytes();
+
+    // Buffer with all data retrieved and not yet returned as stanzas
+    private byte[] buffer = new byte[1024];
+    private int count = 0;
+
+    // Current robot status
+    private int status = XMLLightweightParser.INIT;
+    // Index to looking for a CDATA section start or end.
+    private int cdataOffset = 0;
+    // Number of bytes that machs with the head tag.
+    private int tailCount = 0;
+    // Indicate the starting point in the buffer for the next message.
+    private int startLastMsg = 0;
+    // Flag used to discover tag in the form <tag />.
+    private boolean insideRootTag = false;
+    // Bytes of the head tag
+    private byte[] head = new byte[16];
+    private int headLength = 0;
+    private int depth = 0;
+
+    // List with all finished messages found.
+    private List<RawStanza> msgs = new ArrayList<RawStanza>();
+
+    /*
+    * true if the parser has found some complete xml message.
+    */
+    public boolean areThereMsgs() {
+        return !msgs.isEmpty();
+    }
+
+    /*
+    * @return an array with all messages found
+    */
+    public RawStanza[] getMsgs() {
+        RawStanza[] res = msgs.toArray(EMPTY);
+        msgs.clear();
+        invalidateBuffer();
+        return res;
+    }
+
+    /*
+    * Method use to discard the bytes of the messages that were already found
+    */
+    private void invalidateBuffer() {
+        if (buffer != null && startLastMsg > 0) {
+            System.arraycopy(buffer, startLastMsg, buffer, 0, count - startLastMsg);
+            count -= startLastMsg;
+            startLastMsg = 0;
+        }
+    }
+
+    /*
+    * Method that add a message to the list and reinit parser.
+    */
+    private void foundMsg(byte[] bytes, int start, int end) throws XMLNotWellFormedException {
+        if (bytes != null) {
+            // Copy the message since the buffer is going to be reused
+            byte[] msg = Arrays.copyOfRange(bytes, start, end);
+            if (hasIllegalCharacterReferences(msg)) {
+                buffer = null;
+                throw new XMLNotWellFormedException("Illegal character reference found in: " +
+                        new RawStanza(msg, 0, msg.length));
+            }
+            msgs.add(new RawStanza(msg, 0, msg.length));
+        }
+        status = XMLLightweightParser.INIT;
+        tailCount = 0;
+        cdataOffset = 0;
+        headLength = 0;
+        insideRootTag = false;
+        depth = 0;
+    }
+
+    /*
+    * Main reading method
+    */
+    public void read(ByteBuffer byteBuffer) throws Exception {
+        if (buffer == null) {
+            // exception was thrown before, avoid duplicate exception(s)
+            // "read" and discard remaining data
+            byteBuffer.position(byteBuffer.limit());
+            return;
+        }
+        invalidateBuffer();
+        // Check that the buffer is not bigger than the allowed limit. For security reasons
+        // we will abort parsing when too many bytes were queued.
+        if (count > XMLLightweightParser.getMaxBufferSize()) {
+            // purge the local buffer / free memory
+            buffer = null;
+            final ProtocolDecoderException ex = new ProtocolDecoderException("Stopped parsing never ending stanza");
+            ex.setHexdump("(redacted hex dump of never ending stanza)");
+            throw ex;
+        }
+        int readBytes = byteBuffer.remaining();
+        // Just return if nothing was read
+        if (readBytes == 0) {
+            return;
+        }
+        if (count + readBytes > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, count + readBytes));
+        }
+        int first = count;
+        byteBuffer.get(buffer, count, readBytes);
+        count += readBytes;
+
+        // Robot.
+        int ch;
+        for (int i = first; i < count; i++) {
+            ch = buffer[i] & 0xFF;
+            if (ch < 0x20 && ch != 0x9 && ch != 0xA && ch != 0xD && ch != 0x0) {
+                //Unicode characters in the range 0x0000-0x001F other than 9, A, and D are not allowed in XML
+                //We need to allow the NULL character, however, for Flash XMLSocket clients to work.
+                buffer = null;
+                throw new XMLNotWellFormedException("Character is invalid in: " + ch);
+            }
+            if (status == XMLLightweightParser.TAIL) {
+                // Looking for the close tag
+                if (depth < 1 && ch == head[tailCount]) {
+                    tailCount++;
+                    if (tailCount == headLength) {
+                        // Close stanza found!
+                        foundMsg(buffer, startLastMsg, i + 1);
+                        startLastMsg = i + 1;
+                    }
+                } else {
+                    tailCount = 0;
+                    status = XMLLightweightParser.INSIDE;
+                }
+            } else if (status == XMLLightweightParser.PRETAIL) {
+                if (ch == CDATA_START[cdataOffset]) {
+                    cdataOffset++;
+                    if (cdataOffset == CDATA_START.length) {
+                        status = XMLLightweightParser.INSIDE_CDATA;
+                        cdataOffset = 0;
+                        continue;
+                    }
+                } else {
+                    cdataOffset = 0;
+                    status = XMLLightweightParser.INSIDE;
+                }
+                if (ch == '/') {
+                    status = XMLLightweightParser.TAIL;
+                    depth--;
+                }
+                else if (ch == '!') {
+                    // This is a <! (comment) so ignore it
+                    status = XMLLightweightParser.INSIDE;
+                }
+                else {
+                    depth++;
+                }
+            } else if (status == XMLLightweightParser.VERIFY_CLOSE_TAG) {
+                if (ch == '>') {
+                    depth--;
+                    status = XMLLightweightParser.OUTSIDE;
+                    if (depth < 1) {
+                        // Found a tag in the form <tag />
+                        foundMsg(buffer, startLastMsg, i + 1);
+                        startLastMsg = i + 1;
+                    }
+                } else if (ch == '<') {
+                    status = XMLLightweightParser.PRETAIL;
+                } else {
+                    status = XMLLightweightParser.INSIDE;
+                }
+            } else if (status == XMLLightweightParser.INSIDE_PARAM_VALUE) {
+                if (ch == '"') {
+                    status = XMLLightweightParser.INSIDE;
+                }
+            } else if (status == XMLLightweightParser.INSIDE_CDATA) {
+                if (ch == CDATA_END[cdataOffset]) {
+                    cdataOffset++;
+                    if (cdataOffset == CDATA_END.length) {
+                        status = XMLLightweightParser.OUTSIDE;
+                        cdataOffset = 0;
+                    }
+                } else {
+                    cdataOffset = 0;
+                }
+            } else if (status == XMLLightweightParser.INSIDE) {
+                if (ch == CDATA_START[cdataOffset]) {
+                    cdataOffset++;
+                    if (cdataOffset == CDATA_START.length) {
+                        status = XMLLightweightParser.INSIDE_CDATA;
+                        cdataOffset = 0;
+                        continue;
+                    }
+                } else {
+                    cdataOffset = 0;
+                    status = XMLLightweightParser.INSIDE;
+                }
+                if (ch == '"') {
+                    status = XMLLightweightParser.INSIDE_PARAM_VALUE;
+                } else if (ch == '>') {
+                    status = XMLLightweightParser.OUTSIDE;
+                    if (insideRootTag && (headEquals(STREAM_END) || headEquals(XML_END) ||
+                            headEquals(FLASH_STREAM_END))) {
+                        // Found closing stream:stream
+                        int end = i + 1;
+                        // Skip LF, CR and other "weird" characters that could appear
+                        while (startLastMsg < end && '<' != buffer[startLastMsg]) {
+                            startLastMsg++;
+                        }
+                        foundMsg(buffer, startLastMsg, end);
+                        startLastMsg = end;
+                    }
+                    insideRootTag = false;
+                } else if (ch == '/') {
+                    status = XMLLightweightParser.VERIFY_CLOSE_TAG;
+                }
+            } else if (status == XMLLightweightParser.HEAD) {
+                if (ch == ' ' || ch == '>') {
+                    // Append > to head to allow searching </tag>
+                    appendHead('>');
+                    if (ch == '>')
+                        status = XMLLightweightParser.OUTSIDE;
+                    else
+                        status = XMLLightweightParser.INSIDE;
+                    insideRootTag = true;
+                    continue;
+                }
+                else if (ch == '/' && headLength > 0) {
+                    status = XMLLightweightParser.VERIFY_CLOSE_TAG;
+                    depth--;
+                }
+                appendHead(ch);
+
+            } else if (status == XMLLightweightParser.INIT) {
+                if (ch == '<') {
+                    status = XMLLightweightParser.HEAD;
+                    depth = 1;
+                }
+                else {
+                    startLastMsg++;
+                }
+            } else if (status == XMLLightweightParser.OUTSIDE) {
+                if (ch == '<') {
+                    status = XMLLightweightParser.PRETAIL;
+                    cdataOffset = 1;
+                }
+            }
+        }
+        if (headEquals(CLOSE_STREAM) || headEquals(CLOSE_FLASH_STREAM)) {
+            // Found closing stream:stream
+            foundMsg(CLOSING_STREAM_STANZA, 0, CLOSING_STREAM_STANZA.length);
+        }
+    }
+
+    private void appendHead(int ch) {
+        if (headLength == head.length) {
+            head = Arrays.copyOf(head, headLength * 2);
+        }
+        head[headLength++] = (byte) ch;
+    }
+
+    private boolean headEquals(byte[] value) {
+        if (headLength != value.length) {
+            return false;
+        }
+        for (int i = 0; i < headLength; i++) {
+            if (head[i] != value[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Byte based equivalent of {@link XMLLightweightParser#hasIllegalCharacterReferences(String)}.
+     *
+     * @param bytes the UTF-8 encoded stanza.
+     * @return <tt>true</tt> if the stanza contains an invalid numeric character reference.
+     */
+    static boolean hasIllegalCharacterReferences(byte[] bytes) {
+        for (int i = 0; i < bytes.length - 3; i++) {
+            if (bytes[i] != '&' || bytes[i + 1] != '#') {
+                continue;
+            }
+            int pos = i + 2;
+            int radix = 10;
+            if (bytes[pos] == 'x' || bytes[pos] == 'X') {
+                radix = 16;
+                pos++;
+            }
+            int digits = 0;
+            long value = 0;
+            for (; pos < bytes.length; pos++) {
+                int digit = Character.digit((char) bytes[pos], radix);
+                if (digit < 0) {
+                    break;
+                }
+                // Leading zeros do not count; cap the value to avoid overflows
+                value = Math.min(value * radix + digit, Integer.MAX_VALUE);
+                digits++;
+            }
+            if (digits > 0 && pos < bytes.length && bytes[pos] == ';' &&
+                    !XMLLightweightParser.isLegalXmlCharacter((int) value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -120,6 +120,13 @@ class XMLLightweightParser {
 			.onUnmappableCharacter(CodingErrorAction.REPLACE);
     }
 
+    /*
+    * Returns the max number of queued bytes or chars before parsing is aborted.
+    */
+    static int getMaxBufferSize() {
+        return maxBufferSize;
+    }
+
     /*
     * true if the parser has found some complete xml message.
     */
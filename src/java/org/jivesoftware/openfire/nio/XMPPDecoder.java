@@ -23,10 +23,13 @@ import org.apache.mina.common.ByteBuffer;
 import org.apache.mina.common.IoSession;
 import org.apache.mina.filter.codec.CumulativeProtocolDecoder;
 import org.apache.mina.filter.codec.ProtocolDecoderOutput;
+import org.jivesoftware.openfire.net.RawStanza;
 
 /**
  * Decoder class that parses ByteBuffers and generates XML stanzas. Generated
- * stanzas are then passed to the next filters.
+ * stanzas are then passed to the next filters. Stanzas are generated as Strings
+ * unless the session is using a byte framing parser, in which case stanzas are
+ * generated as {@link RawStanza}s.
  *
  * @author Gaston Dombiak
  */
@@ -36,7 +39,20 @@ public class XMPPDecoder extends CumulativeProtocolDecoder {
 	protected boolean doDecode(IoSession session, ByteBuffer in, ProtocolDecoderOutput out)
             throws Exception {
         // Get the XML light parser from the IoSession
-        XMLLightweightParser parser = (XMLLightweightParser) session.getAttribute(ConnectionHandler.XML_PARSER);
+        Object sessionParser = session.getAttribute(ConnectionHandler.XML_PARSER);
+        if (sessionParser instanceof XMLLightweightByteParser) {
+            // Frame stanzas on the received bytes
+            XMLLightweightByteParser parser = (XMLLightweightByteParser) sessionParser;
+            parser.read(in);
+
+            if (parser.areThereMsgs()) {
+                for (RawStanza stanza : parser.getMsgs()) {
+                    out.write(stanza);
+                }
+            }
+            return !in.hasRemaining();
+        }
+        XMLLightweightParser parser = (XMLLightweightParser) sessionParser;
         // Parse as many stanzas as possible from the received data
         parser.read(in);
 
@@ -652,10 +652,7 @@ public class IQPEPHandler extends IQHandler implements ServerIdentitiesProvider,
                 for (final RosterItem item : roster.getRosterItems()) {
                     if (server.isLocal(item.getJid()) && (item.getSubStatus() == RosterItem.SUB_BOTH ||
                             item.getSubStatus() == RosterItem.SUB_TO)) {
-                        PEPService pepService = pepServiceManager.getPEPService(item.getJid().toBareJID());
-                        if (pepService != null) {
-                            pepService.sendLastPublishedItems(availableSessionJID);
-                        }
+                        pepServiceManager.sendLastPublishedItems(item.getJid().toBareJID(), availableSessionJID);
                     }
                 }
             }
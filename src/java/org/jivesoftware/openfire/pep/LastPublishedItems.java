@@ -0,0 +1,78 @@
+/**
+ * Copyright (C) 2004-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.pep;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.jivesoftware.openfire.pubsub.PublishedItem;
+import org.jivesoftware.util.cache.CacheSizes;
+import org.jivesoftware.util.cache.Cacheable;
+
+/**
+ * The last item published to each leaf node of a {@link PEPService}, as cached by the
+ * {@link PEPServiceManager}. An empty instance means that the service does not exist or
+ * that none of its nodes has a published item, so no notifications have to be sent to
+ * the contacts of the owner of the service when they become available.
+ */
+class LastPublishedItems implements Cacheable {
+
+    /**
+     * Shared instance for services without published items.
+     */
+    static final LastPublishedItems NONE = new LastPublishedItems(Collections.<PublishedItem>emptyList());
+
+    private final List<PublishedItem> items;
+    private final int cachedSize;
+
+    LastPublishedItems(Collection<PublishedItem> items) {
+        this.items = Collections.unmodifiableList(new ArrayList<PublishedItem>(items));
+        int size = CacheSizes.sizeOfObject() + CacheSizes.sizeOfReferences(items);
+        for (PublishedItem item : items) {
+            size += CacheSizes.sizeOfObject() * 2;
+            size += CacheSizes.sizeOfString(item.getNodeID());
+            size += CacheSizes.sizeOfString(item.getID());
+            size += CacheSizes.sizeOfDate();
+            size += CacheSizes.sizeOfString(item.getPayloadXML());
+        }
+        this.cachedSize = size;
+    }
+
+    /**
+     * Returns true if the service has no published items.
+     *
+     * @return true if the service has no published items.
+     */
+    boolean isEmpty() {
+        return items.isEmpty();
+    }
+
+    /**
+     * Returns the last published item of each leaf node of the service.
+     *
+     * @return the last published item of each leaf node of the service.
+     */
+    List<PublishedItem> getItems() {
+        return items;
+    }
+
+    public int getCachedSize() {
+        return cachedSize;
+    }
+}
@@ -20,8 +20,10 @@
 
 package org.jivesoftware.openfire.pep;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
@@ -54,6 +56,7 @@ import org.jivesoftware.openfire.user.UserNotFoundException;
 import org.jivesoftware.util.LocaleUtils;
 import org.jivesoftware.util.StringUtils;
 import org.jivesoftware.util.XMPPDateTimeFormat;
+import org.jivesoftware.util.cache.CacheSizes;
 import org.jivesoftware.util.cache.Cacheable;
 import org.xmpp.packet.JID;
 import org.xmpp.packet.Message;
@@ -64,13 +67,25 @@ import org.xmpp.packet.PacketExtension;
  * A PEPService is a {@link PubSubService} for use with XEP-0163: "Personal Eventing via
  * Pubsub" Version 1.0
  * 
- * Note: Although this class implements {@link Cacheable}, instances should only be 
- * cached in caches that have time-based (as opposed to size-based) eviction policies.
+ * The nodes of the service are loaded from the database the first time they are used,
+ * and the items of the nodes when they are requested. The size of the service reported by
+ * {@link #getCachedSize()} accounts for the loaded nodes, so a cache holding services
+ * has to put a service again for a change of its size to be accounted for.
  * 
  * @author Armando Jagucki 
  */
 public class PEPService implements PubSubService, Cacheable {
 
+    /**
+     * Approximate size of a JID, used to compute the size of the service.
+     */
+    private static final int JID_SIZE = CacheSizes.sizeOfObject() + CacheSizes.sizeOfString("user@example.com/resource");
+
+    /**
+     * Approximate size of a node subscription, used to compute the size of the service.
+     */
+    private static final int SUBSCRIPTION_SIZE = CacheSizes.sizeOfObject() * 4 + JID_SIZE * 2;
+
     /**
      * The bare JID that this service is identified by.
      */
@@ -81,6 +96,16 @@ public class PEPService implements PubSubService, Cacheable {
      */
     private CollectionNode rootCollectionNode = null;
 
+    /**
+     * True once the nodes of the service were loaded from the database.
+     */
+    private volatile boolean nodesLoaded = false;
+
+    /**
+     * True while the nodes of the service are being loaded.
+     */
+    private boolean loadingNodes = false;
+
     /**
      * Nodes managed by this service, table: key nodeID (String); value Node
      */
@@ -182,21 +207,47 @@ public class PEPService implements PubSubService, Cacheable {
             collectionDefaultConfiguration.setMaxLeafNodes(-1);
             PubSubPersistenceManager.createDefaultConfiguration(this, collectionDefaultConfiguration);
         }
+    }
 
-        // Load nodes to memory
-        PubSubPersistenceManager.loadNodes(this);
-        // Ensure that we have a root collection node
-        if (nodes.isEmpty()) {
-            // Create root collection node
-            JID creatorJID = new JID(bareJID);
-            rootCollectionNode = new CollectionNode(this, null, bareJID, creatorJID);
-            // Add the creator as the node owner
-            rootCollectionNode.addOwner(creatorJID);
-            // Save new root node
-            rootCollectionNode.saveToDB();
+    /**
+     * Loads the nodes of the service from the database, unless they were already loaded.
+     * Presences of the subscribers of the loaded nodes are probed once the nodes are loaded.
+     */
+    private void loadNodes() {
+        if (nodesLoaded) {
+            return;
         }
-        else {
-            rootCollectionNode = (CollectionNode) getNode(bareJID);
+        boolean restored;
+        synchronized (this) {
+            // Nodes may be looked up by the thread that is loading them
+            if (nodesLoaded || loadingNodes) {
+                return;
+            }
+            loadingNodes = true;
+            try {
+                PubSubPersistenceManager.loadNodes(this);
+                restored = !nodes.isEmpty();
+                // Ensure that we have a root collection node
+                if (!restored) {
+                    // Create root collection node
+                    JID creatorJID = new JID(serviceOwnerJID);
+                    rootCollectionNode = new CollectionNode(this, null, serviceOwnerJID, creatorJID);
+                    // Add the creator as the node owner
+                    rootCollectionNode.addOwner(creatorJID);
+                    // Save new root node
+                    rootCollectionNode.saveToDB();
+                }
+                else {
+                    rootCollectionNode = (CollectionNode) nodes.get(serviceOwnerJID);
+                }
+                nodesLoaded = true;
+            }
+            finally {
+                loadingNodes = false;
+            }
+        }
+        if (restored) {
+            XMPPServer.getInstance().getIQPEPHandler().getServiceManager().start(this);
         }
     }
 
@@ -209,14 +260,17 @@ public class PEPService implements PubSubService, Cacheable {
     }
 
     public Node getNode(String nodeID) {
+        loadNodes();
         return nodes.get(nodeID);
     }
 
     public Collection<Node> getNodes() {
+        loadNodes();
         return nodes.values();
     }
 
     public CollectionNode getRootCollectionNode() {
+        loadNodes();
         return rootCollectionNode;
     }
 
@@ -452,24 +506,50 @@ public class PEPService implements PubSubService, Cacheable {
      * @param recipientJID the recipient that is to receive the last published item notifications.
      */
     public void sendLastPublishedItems(JID recipientJID) {
+        sendLastPublishedItems(recipientJID, getLastPublishedItems());
+    }
+
+    /**
+     * Returns the last published item of each leaf node under the root collection node.
+     * Leaf nodes without published items are skipped.
+     *
+     * @return the last published item of each leaf node under the root collection node.
+     */
+    public List<PublishedItem> getLastPublishedItems() {
+        List<PublishedItem> items = new ArrayList<PublishedItem>();
+        for (Node leafNode : getRootCollectionNode().getNodes()) {
+            PublishedItem item = leafNode.getLastPublishedItem();
+            if (item != null) {
+                items.add(item);
+            }
+        }
+        return items;
+    }
+
+    /**
+     * Sends an event notification for each of the specified last published items to the
+     * recipient JID, as described in {@link #sendLastPublishedItems(JID)}.
+     *
+     * @param recipientJID the recipient that is to receive the last published item notifications.
+     * @param lastPublishedItems the last published item of each leaf node under the root
+     *        collection node.
+     */
+    public void sendLastPublishedItems(JID recipientJID, Collection<PublishedItem> lastPublishedItems) {
+        if (lastPublishedItems.isEmpty()) {
+            return;
+        }
         // Ensure the recipient has a subscription to this service's root collection node.
-        NodeSubscription subscription = rootCollectionNode.getSubscription(recipientJID);
+        CollectionNode rootNode = getRootCollectionNode();
+        NodeSubscription subscription = rootNode.getSubscription(recipientJID);
         if (subscription == null) {
-            subscription = rootCollectionNode.getSubscription(new JID(recipientJID.toBareJID()));
+            subscription = rootNode.getSubscription(new JID(recipientJID.toBareJID()));
         }
         if (subscription == null) {
             return;
         }
 
         // Send the last published item of each leaf node to the recipient.
-        for (Node leafNode : rootCollectionNode.getNodes()) {
-            // Retrieve last published item for the leaf node.
-            PublishedItem leafLastPublishedItem = null;
-            leafLastPublishedItem = leafNode.getLastPublishedItem();
-            if (leafLastPublishedItem == null) {
-                continue;
-            }
-
+        for (PublishedItem leafLastPublishedItem : lastPublishedItems) {
             // Check if the published item can be sent to the subscriber
             if (!subscription.canSendPublicationEvent(leafLastPublishedItem.getNode(), leafLastPublishedItem)) {
                 return;
@@ -507,8 +587,28 @@ public class PEPService implements PubSubService, Cacheable {
     }
 
 	public int getCachedSize() {
-		// Rather arbitrary. Don't use this for size-based eviction policies!
-		return 600;
+		// Approximate the size of the service and of its loaded nodes. Items are
+		// not included since nodes load them on demand.
+		int size = CacheSizes.sizeOfObject() * 8;
+		size += CacheSizes.sizeOfString(serviceOwnerJID);
+		if (nodesLoaded) {
+			for (Node node : nodes.values()) {
+				size += CacheSizes.sizeOfObject() * 4;
+				size += CacheSizes.sizeOfString(node.getNodeID());
+				size += CacheSizes.sizeOfString(node.getName());
+				size += CacheSizes.sizeOfString(node.getDescription());
+				size += (node.getOwners().size() + node.getPublishers().size()) * JID_SIZE;
+				size += node.getAllSubscriptions().size() * SUBSCRIPTION_SIZE;
+			}
+		}
+		for (Map.Entry<String, Map<String, String>> entry : barePresences.entrySet()) {
+			size += CacheSizes.sizeOfString(entry.getKey());
+			for (Map.Entry<String, String> presence : entry.getValue().entrySet()) {
+				size += CacheSizes.sizeOfString(presence.getKey());
+				size += CacheSizes.sizeOfString(presence.getValue());
+			}
+		}
+		return size;
 	}
 
 }
@@ -54,6 +54,15 @@ public class PEPServiceManager {
 	private final Cache<String, PEPService> pepServices = CacheFactory
 			.createLocalCache("PEPServiceManager");
 
+	/**
+	 * Cache of the last items published to the nodes of PEP services. Used to
+	 * send the last published items of the contacts of a user that becomes
+	 * available without loading the services that have no items. Table, Key:
+	 * bare JID (String); Value: LastPublishedItems
+	 */
+	private final Cache<String, LastPublishedItems> lastPublishedItems = CacheFactory
+			.createLocalCache("PEP Last Published Items");
+
 	private PubSubEngine pubSubEngine = null;
 
 	/**
@@ -76,6 +85,8 @@ public class PEPServiceManager {
 			} else {
 				// lookup in database.
 				pepService = loadPEPServiceFromDB(jid);
+				// cached items refer to the nodes of a previous instance
+				lastPublishedItems.remove(jid);
 				
 				// always add to the cache, even if it doesn't exist. This will
 				// prevent future database lookups.
@@ -108,6 +119,7 @@ public class PEPServiceManager {
 			if (pepService == null) {
 				pepService = new PEPService(XMPPServer.getInstance(), bareJID);
 				pepServices.put(bareJID, pepService);
+				lastPublishedItems.remove(bareJID);
 
 				if (Log.isDebugEnabled()) {
 					Log.debug("PEPService created for : " + bareJID);
@@ -143,10 +155,10 @@ public class PEPServiceManager {
 			while (rs.next()) {
 				String serviceID = rs.getString(1);
 
-				// Create a new PEPService
+				// Create a new PEPService. Nodes are loaded, and the presences
+				// of their subscribers probed, when the nodes are first used.
 				pepService = new PEPService(XMPPServer.getInstance(), serviceID);
 				pepServices.put(serviceID, pepService);
-				pubSubEngine.start(pepService);
 
 				if (Log.isDebugEnabled()) {
 					Log.debug("PEP: Restored service for " + serviceID
@@ -175,6 +187,7 @@ public class PEPServiceManager {
 		try {
 			lock.lock();
 			service = pepServices.remove(owner.toBareJID());
+			lastPublishedItems.remove(owner.toBareJID());
 		} finally {
 			lock.unlock();
 		}
@@ -213,10 +226,66 @@ public class PEPServiceManager {
 
 	public void process(PEPService service, IQ iq) {
 		pubSubEngine.process(service, iq);
+		if (iq.getType() == IQ.Type.set) {
+			// items or nodes may have changed
+			lastPublishedItems.remove(service.getServiceID());
+		}
+		updateCachedSize(service);
+	}
+
+	/**
+	 * Sends the last items published to the nodes of a PEP service to a
+	 * subscriber of the service. Nothing is loaded when the service is known to
+	 * have no published items.
+	 * 
+	 * @param owner
+	 *            the bare JID of the user that owns the PEP service.
+	 * @param recipient
+	 *            the JID of the subscriber to send the items to.
+	 */
+	public void sendLastPublishedItems(String owner, JID recipient) {
+		LastPublishedItems items = lastPublishedItems.get(owner);
+		if (items != null && items.isEmpty()) {
+			return;
+		}
+		final PEPService pepService = getPEPService(owner);
+		if (pepService == null) {
+			lastPublishedItems.put(owner, LastPublishedItems.NONE);
+			return;
+		}
+		// read again since loading the service drops the cached items
+		items = lastPublishedItems.get(owner);
+		if (items == null) {
+			items = new LastPublishedItems(pepService.getLastPublishedItems());
+			lastPublishedItems.put(owner, items.isEmpty() ? LastPublishedItems.NONE : items);
+			// nodes may have been loaded
+			updateCachedSize(pepService);
+		}
+		pepService.sendLastPublishedItems(recipient, items.getItems());
+	}
+
+	/**
+	 * Puts a cached PEP service again so that a change of its size is
+	 * accounted for by the size-based eviction of the cache.
+	 * 
+	 * @param pepService
+	 *            the PEP service.
+	 */
+	private void updateCachedSize(PEPService pepService) {
+		final String jid = pepService.getServiceID();
+		final Lock lock = CacheFactory.getLock(jid, pepServices);
+		try {
+			lock.lock();
+			if (pepServices.get(jid) == pepService) {
+				pepServices.put(jid, pepService);
+			}
+		} finally {
+			lock.unlock();
+		}
 	}
 	
 	public boolean hasCachedService(JID owner) {
-		return pepServices.get(owner) != null;
+		return pepServices.get(owner.toBareJID()) != null;
 	}
 	
 	// mimics Shutdown, without killing the timer.
@@ -141,6 +141,47 @@ class PrivacyItem implements Cacheable, Comparable {
         return allow;
     }
 
+    /**
+     * Returns true if this item matches any sender or recipient (i.e. the item has no type).
+     *
+     * @return true if this item matches any sender or recipient.
+     */
+    boolean isFallThrough() {
+        return type == null;
+    }
+
+    JID getJidValue() {
+        return jidValue;
+    }
+
+    String getGroupValue() {
+        return groupValue;
+    }
+
+    RosterItem.SubType getSubscriptionValue() {
+        return subscriptionValue;
+    }
+
+    boolean filtersEverything() {
+        return filterEverything;
+    }
+
+    boolean filtersIQ() {
+        return filterIQ;
+    }
+
+    boolean filtersMessage() {
+        return filterMessage;
+    }
+
+    boolean filtersPresenceIn() {
+        return filterPresence_in;
+    }
+
+    boolean filtersPresenceOut() {
+        return filterPresence_out;
+    }
+
     private boolean matchesPacketSenderCondition(Packet packet, Roster roster, JID userJID) {
         if (type == null) {
             // This is the "fall-through" case
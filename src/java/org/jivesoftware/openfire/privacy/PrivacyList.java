@@ -93,6 +93,10 @@ public class PrivacyList implements Cacheable, Externalizable {
     private String name;
     private boolean isDefault;
     private List<PrivacyItem> items = new ArrayList<PrivacyItem>();
+    /**
+     * Items of the list compiled into lookup tables.
+     */
+    private PrivacyRules rules;
 
     /**
      * Constructor added for Externalizable. Do not use this constructor.
@@ -162,18 +166,14 @@ public class PrivacyList implements Cacheable, Externalizable {
             // Sender is the server so it's not denied
             return false;
         }
-        // Iterate over the rules and check each rule condition
-        Roster roster = getRoster();
-        for (PrivacyItem item : items) {
-            if (item.matchesCondition(packet, roster, userJID)) {
-                if (item.isAllow()) {
-                    return false;
-                }
-                if (Log.isDebugEnabled()) {
-                    Log.debug("PrivacyList: Packet was blocked: " + packet);
-                }
-                return true;
+        // Only get the roster if there are rules based on roster groups or subscriptions
+        PrivacyRules rules = this.rules;
+        Roster roster = rules.isRosterRequired() ? getRoster() : null;
+        if (rules.shouldBlockPacket(packet, roster)) {
+            if (Log.isDebugEnabled()) {
+                Log.debug("PrivacyList: Packet was blocked: " + packet);
             }
+            return true;
         }
         // If no rule blocked the communication then allow the packet to flow
         return false;
@@ -233,6 +233,7 @@ public class PrivacyList implements Cacheable, Externalizable {
         }
         // Sort items collections
         Collections.sort(items);
+        rules = new PrivacyRules(userJID, items);
         if (notify) {
             // Trigger event that this list has been modified
             PrivacyListManager.getInstance().dispatchModifiedEvent(this);
@@ -0,0 +1,287 @@
+/**
+ * Copyright (C) 2004-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.privacy;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.jivesoftware.openfire.roster.Roster;
+import org.jivesoftware.openfire.roster.RosterItem;
+import org.jivesoftware.openfire.user.UserNotFoundException;
+import org.xmpp.packet.IQ;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Message;
+import org.xmpp.packet.Packet;
+import org.xmpp.packet.Presence;
+
+/**
+ * The items of a privacy list compiled into lookup tables. Whether an item applies to
+ * a packet only depends on the kind of stanza and on its direction, so there is one table
+ * per kind of stanza and direction holding only the items that apply. Tables are compiled
+ * the first time a packet of their kind is analyzed.<p>
+ *
+ * Items are analyzed in ascending order and the first matched item decides. Each table keeps,
+ * for every JID, domain, roster group and subscription status found in the items, the position
+ * of the first item with that value. Looking up the packet address in every table and keeping
+ * the lowest position is equivalent to walking the items one by one. Roster groups and
+ * subscription statuses are read from the roster when the packet is analyzed, so changes to
+ * the roster do not require compiling the list again.
+ *
+ * @see PrivacyItem#matchesCondition(Packet, Roster, JID)
+ */
+final class PrivacyRules {
+
+    private static final int KIND_MESSAGE = 0;
+    private static final int KIND_IQ = 1;
+    /**
+     * Available or unavailable presences sent to the owner of the list.
+     */
+    private static final int KIND_PRESENCE_IN = 2;
+    /**
+     * Available or unavailable presences not sent to the owner of the list.
+     */
+    private static final int KIND_PRESENCE_OUT = 3;
+    /**
+     * Other presences (e.g. subscription-related presences).
+     */
+    private static final int KIND_PRESENCE = 4;
+    private static final int KIND_OTHER = 5;
+    private static final int KINDS = 6;
+
+    private final String userBareJID;
+    private final List<PrivacyItem> items;
+    private final boolean rosterRequired;
+    private final AtomicReferenceArray<Table> tables = new AtomicReferenceArray<Table>(KINDS * 2);
+
+    /**
+     * Creates the rules of a privacy list.
+     *
+     * @param userJID the JID of the owner of the privacy list.
+     * @param items the items of the list sorted by order. The list must not be modified.
+     */
+    PrivacyRules(JID userJID, List<PrivacyItem> items) {
+        this.userBareJID = userJID.toBareJID();
+        this.items = items;
+        boolean required = false;
+        for (PrivacyItem item : items) {
+            required |= item.isRosterRequired();
+        }
+        this.rosterRequired = required;
+    }
+
+    /**
+     * Returns true if the roster of the owner of the list is needed to analyze packets.
+     *
+     * @return true if the roster of the owner of the list is needed to analyze packets.
+     */
+    boolean isRosterRequired() {
+        return rosterRequired;
+    }
+
+    /**
+     * Returns true if the specified packet must be blocked. The packet must have a sender.
+     *
+     * @param packet the packet to analyze.
+     * @param roster the roster of the owner of the list or <tt>null</tt> if the roster is
+     *        not required.
+     * @return true if the specified packet must be blocked.
+     */
+    boolean shouldBlockPacket(Packet packet, Roster roster) {
+        boolean incoming = !userBareJID.equals(packet.getFrom().toBareJID());
+        int kind = kindOf(packet);
+        int index = kind * 2 + (incoming ? 1 : 0);
+        Table table = tables.get(index);
+        if (table == null) {
+            // Compiling the same table twice is harmless
+            table = new Table(kind, incoming);
+            tables.set(index, table);
+        }
+        // Incoming packets are analyzed based on their sender and outgoing presences
+        // based on their recipient
+        int position = table.match(incoming ? packet.getFrom() : packet.getTo(), roster);
+        return position < items.size() && !items.get(position).isAllow();
+    }
+
+    private int kindOf(Packet packet) {
+        Class packetClass = packet.getClass();
+        if (Message.class.equals(packetClass)) {
+            return KIND_MESSAGE;
+        }
+        else if (IQ.class.equals(packetClass)) {
+            return KIND_IQ;
+        }
+        else if (Presence.class.equals(packetClass)) {
+            Presence.Type presenceType = ((Presence) packet).getType();
+            if (presenceType == null || presenceType == Presence.Type.unavailable) {
+                JID to = packet.getTo();
+                if (to != null && userBareJID.equals(to.toBareJID())) {
+                    return KIND_PRESENCE_IN;
+                }
+                return KIND_PRESENCE_OUT;
+            }
+            return KIND_PRESENCE;
+        }
+        return KIND_OTHER;
+    }
+
+    /**
+     * Lookup tables of the items that apply to a kind of stanza in one direction.
+     */
+    private class Table {
+
+        /**
+         * Position of the first fall-through item or the number of items if there is none.
+         */
+        private int fallThrough = items.size();
+        /**
+         * Position of the first item that needs the roster or the number of items if
+         * there is none.
+         */
+        private int firstRosterItem = items.size();
+        private Map<String, Integer> fullJIDs;
+        private Map<String, Integer> bareJIDs;
+        private Map<String, Integer> domains;
+        private Map<String, Integer> groups;
+        private Map<RosterItem.SubType, Integer> subscriptions;
+
+        Table(int kind, boolean incoming) {
+            boolean presence = kind == KIND_PRESENCE_IN || kind == KIND_PRESENCE_OUT ||
+                    kind == KIND_PRESENCE;
+            for (int position = 0; position < items.size(); position++) {
+                PrivacyItem item = items.get(position);
+                if (!filters(item, kind)) {
+                    continue;
+                }
+                if (item.isFallThrough()) {
+                    // Items after a fall-through item are never reached
+                    fallThrough = position;
+                    break;
+                }
+                boolean checked;
+                if (incoming) {
+                    checked = item.filtersEverything() || item.filtersPresenceIn() ||
+                            item.filtersIQ() || item.filtersMessage();
+                }
+                else {
+                    checked = presence && (item.filtersEverything() || item.filtersPresenceOut());
+                }
+                if (checked) {
+                    add(item, position);
+                }
+            }
+        }
+
+        private boolean filters(PrivacyItem item, int kind) {
+            if (item.filtersEverything()) {
+                return true;
+            }
+            switch (kind) {
+                case KIND_MESSAGE:
+                    return item.filtersMessage();
+                case KIND_IQ:
+                    return item.filtersIQ();
+                case KIND_PRESENCE_IN:
+                    return item.filtersPresenceIn();
+                case KIND_PRESENCE_OUT:
+                    return item.filtersPresenceOut();
+                default:
+                    return false;
+            }
+        }
+
+        private void add(PrivacyItem item, int position) {
+            if (item.getJidValue() != null) {
+                JID jid = item.getJidValue();
+                if (jid.getResource() != null) {
+                    fullJIDs = add(fullJIDs, jid.toString(), position);
+                }
+                else if (jid.getNode() != null) {
+                    bareJIDs = add(bareJIDs, jid.toBareJID(), position);
+                }
+                else {
+                    domains = add(domains, jid.getDomain(), position);
+                }
+            }
+            else if (item.getGroupValue() != null) {
+                groups = add(groups, item.getGroupValue(), position);
+                firstRosterItem = Math.min(firstRosterItem, position);
+            }
+            else if (item.getSubscriptionValue() != null) {
+                subscriptions = add(subscriptions, item.getSubscriptionValue(), position);
+                firstRosterItem = Math.min(firstRosterItem, position);
+            }
+        }
+
+        private <K> Map<K, Integer> add(Map<K, Integer> map, K key, int position) {
+            if (map == null) {
+                map = new HashMap<K, Integer>();
+            }
+            // Keep the first item of each value
+            if (!map.containsKey(key)) {
+                map.put(key, position);
+            }
+            return map;
+        }
+
+        /**
+         * Returns the position of the first item matched by the specified address or the
+         * number of items if no item was matched.
+         */
+        int match(JID jid, Roster roster) {
+            int position = fallThrough;
+            if (jid == null) {
+                return position;
+            }
+            if (fullJIDs != null && jid.getResource() != null) {
+                position = lookup(fullJIDs, jid.toString(), position);
+            }
+            if (bareJIDs != null) {
+                position = lookup(bareJIDs, jid.toBareJID(), position);
+            }
+            if (domains != null) {
+                position = lookup(domains, jid.getDomain(), position);
+            }
+            // Only read the roster if a roster based item may come before the matched item
+            if (firstRosterItem < position && roster != null) {
+                RosterItem rosterItem = null;
+                try {
+                    rosterItem = roster.getRosterItem(jid);
+                }
+                catch (UserNotFoundException e) {
+                    // Contact is not in the user's roster
+                }
+                if (groups != null && rosterItem != null) {
+                    for (String group : rosterItem.getGroups()) {
+                        position = lookup(groups, group, position);
+                    }
+                }
+                if (subscriptions != null) {
+                    position = lookup(subscriptions, rosterItem == null ?
+                            RosterItem.SUB_NONE : rosterItem.getSubStatus(), position);
+                }
+            }
+            return position;
+        }
+
+        private <K> int lookup(Map<K, Integer> map, K key, int position) {
+            Integer found = map.get(key);
+            return found != null && found < position ? found : position;
+        }
+    }
+}
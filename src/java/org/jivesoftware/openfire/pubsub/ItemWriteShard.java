@@ -0,0 +1,155 @@
+/**
+ * Copyright (C) 2004-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jivesoftware.openfire.pubsub;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pending writes of the items of a subset of the nodes. Pending items are
+ * kept by key so publishing an item that was not written yet replaces the
+ * pending version, and deleting it cancels the pending add.
+ *
+ * @see PubSubPersistenceManager#savePublishedItem(PublishedItem)
+ */
+class ItemWriteShard {
+
+    private static final Logger log = LoggerFactory.getLogger(ItemWriteShard.class);
+
+    /**
+     * Items that need to be added to the database, in publishing order.
+     */
+    private final LinkedHashMap<String, RetryWrapper> itemsToAdd = new LinkedHashMap<String, RetryWrapper>();
+    /**
+     * Items that need to be deleted from the database.
+     */
+    private final LinkedHashMap<String, PublishedItem> itemsToDelete = new LinkedHashMap<String, PublishedItem>();
+    /**
+     * Held while the shard is flushed so that items are written in order.
+     */
+    final Object flushLock = new Object();
+    /**
+     * True while a flush of the shard is waiting to be run.
+     */
+    final AtomicBoolean flushQueued = new AtomicBoolean();
+
+    /**
+     * Returns the key of a pending item. Unlike the item key this includes
+     * the service, since nodes of different (PEP) services share node IDs.
+     *
+     * @param item the published item.
+     * @return the key of the item in the pending writes.
+     */
+    static String getPendingKey(PublishedItem item) {
+        return item.getServiceID() + ":" + item.getItemKey();
+    }
+
+    /**
+     * Adds an item to write, replacing a pending version of the item.
+     *
+     * @param wrapper the published item, wrapped for retry.
+     * @return the number of pending items in the shard.
+     */
+    synchronized int add(RetryWrapper wrapper) {
+        String key = getPendingKey(wrapper.get());
+        // remove first so the item is moved to the end of the queue
+        if (itemsToAdd.remove(key) != null) {
+            log.debug("Replaced pending item with newer version");
+        }
+        itemsToAdd.put(key, wrapper);
+        // items are always deleted before being added, so a pending delete is redundant
+        itemsToDelete.remove(key);
+        return itemsToAdd.size() + itemsToDelete.size();
+    }
+
+    /**
+     * Adds an item that could not be written, unless the item was published
+     * again or deleted in the meantime.
+     *
+     * @param wrapper the published item, wrapped for retry.
+     */
+    synchronized void retry(RetryWrapper wrapper) {
+        String key = getPendingKey(wrapper.get());
+        if (!itemsToAdd.containsKey(key) && !itemsToDelete.containsKey(key)) {
+            itemsToAdd.put(key, wrapper);
+        }
+    }
+
+    /**
+     * Adds an item to delete, dropping a pending add of the item.
+     *
+     * @param item the published item.
+     */
+    synchronized void remove(PublishedItem item) {
+        String key = getPendingKey(item);
+        itemsToAdd.remove(key);
+        itemsToDelete.put(key, item);
+    }
+
+    /**
+     * Drops the pending adds of the items of a node.
+     *
+     * @param serviceID the ID of the service of the node.
+     * @param nodeID the ID of the node.
+     */
+    synchronized void purge(String serviceID, String nodeID) {
+        Iterator<RetryWrapper> it = itemsToAdd.values().iterator();
+        while (it.hasNext()) {
+            PublishedItem item = it.next().get();
+            if (item.getNodeID().equals(nodeID) && item.getServiceID().equals(serviceID)) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Moves the pending writes of the shard to the specified lists.
+     *
+     * @param addList the list to add the items to add to, in publishing order.
+     * @param delList the list to add the items to delete to.
+     * @return false if the shard had no pending writes.
+     */
+    synchronized boolean drainTo(List<RetryWrapper> addList, List<PublishedItem> delList) {
+        if (itemsToAdd.isEmpty() && itemsToDelete.isEmpty()) {
+            return false;
+        }
+        addList.addAll(itemsToAdd.values());
+        delList.addAll(itemsToDelete.values());
+        itemsToAdd.clear();
+        itemsToDelete.clear();
+        return true;
+    }
+
+    /**
+     * This class is used internally to wrap PublishedItems. It adds
+     * a retry counter for the persistence exception handling logic.
+     */
+    static class RetryWrapper {
+        private PublishedItem item;
+        private volatile transient int retryCount = 0;
+        public RetryWrapper(PublishedItem item) { this.item = item; }
+        public PublishedItem get() { return item; }
+        public int getRetryCount() { return retryCount; }
+        public int nextRetry() { return ++retryCount; }
+    }
+}
@@ -29,6 +29,7 @@ import java.util.UUID;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.dom4j.Element;
+import org.jivesoftware.openfire.cluster.ClusterManager;
 import org.jivesoftware.util.LocaleUtils;
 import org.jivesoftware.util.cache.CacheFactory;
 import org.xmpp.forms.DataForm;
@@ -73,6 +74,10 @@ public class LeafNode extends Node {
      * The last item published to this node.  In a cluster this may have occurred on a different cluster node.
      */
     private PublishedItem lastPublished;
+    /**
+     * The most recent items published to this node, when they are kept in memory.
+     */
+    private volatile PublishedItemRing recentItems;
 
     // TODO Add checking of max payload size. Return <not-acceptable> plus a application specific error condition of <payload-too-big/>.
 
@@ -202,6 +207,35 @@ public class LeafNode extends Node {
         return isPersistPublishedItems() || isPayloadDelivered();
     }
 
+    /**
+     * Returns the most recent items published to this node or <tt>null</tt> if they are
+     * not kept in memory. Items are kept in memory for nodes that persist their items, up
+     * to {@link PublishedItemRing#getMaxCapacity()} items per node. Items are not kept in
+     * memory when running in a cluster, since items may be published on other members.
+     * A change of the max number of items of the node discards the items in memory.
+     *
+     * @return the most recent items published to this node or null if not kept in memory.
+     */
+    private PublishedItemRing getRecentItems() {
+        PublishedItemRing ring = recentItems;
+        int capacity = maxPublishedItems;
+        if (!persistPublishedItems || capacity <= 0 || capacity > PublishedItemRing.getMaxCapacity() ||
+                ClusterManager.isClusteringEnabled()) {
+            recentItems = null;
+            return null;
+        }
+        if (ring == null || ring.getCapacity() != capacity) {
+            synchronized (this) {
+                ring = recentItems;
+                if (ring == null || ring.getCapacity() != capacity) {
+                    ring = new PublishedItemRing(this, capacity);
+                    recentItems = ring;
+                }
+            }
+        }
+        return ring;
+    }
+
     /**
      * Publishes the list of items to the node. Event notifications will be sent to subscribers
      * for the new published event. The published event may or may not include an item. When the
@@ -227,6 +261,7 @@ public class LeafNode extends Node {
     public void publishItems(JID publisher, List<Element> itemElements) {
         List<PublishedItem> newPublishedItems = new ArrayList<PublishedItem>();
         if (isItemRequired()) {
+            PublishedItemRing ring = getRecentItems();
             String itemID;
             Element payload;
             PublishedItem newItem;
@@ -250,6 +285,9 @@ public class LeafNode extends Node {
                 // queue is going to be processed by another thread
                 if (isPersistPublishedItems()) {
                 	PubSubPersistenceManager.savePublishedItem(newItem);
+                	if (ring != null) {
+                		ring.add(newItem);
+                	}
                 }
             }
         }
@@ -285,8 +323,12 @@ public class LeafNode extends Node {
      */
     public void deleteItems(List<PublishedItem> toDelete) {
         // Remove deleted items from the database
+        PublishedItemRing ring = getRecentItems();
         for (PublishedItem item : toDelete) {
             PubSubPersistenceManager.removePublishedItem(item);
+            if (ring != null) {
+                ring.remove(item.getID());
+            }
         }
         if (isNotifiedOfRetract()) {
             // Broadcast notification deletion to subscribers
@@ -345,23 +387,36 @@ public class LeafNode extends Node {
         if (!isItemRequired()) {
             return null;
         }
+        PublishedItemRing ring = getRecentItems();
+        if (ring != null) {
+            PublishedItem item = ring.get(itemID);
+            if (item != null) {
+                return item;
+            }
+        }
         return PubSubPersistenceManager.getPublishedItem(this, itemID);
     }
 
     @Override
 	public List<PublishedItem> getPublishedItems() {
-        return PubSubPersistenceManager.getPublishedItems(this, getMaxPublishedItems());
+        return getPublishedItems(getMaxPublishedItems());
     }
 
     @Override
 	public List<PublishedItem> getPublishedItems(int recentItems) {
+        PublishedItemRing ring = getRecentItems();
+        if (ring != null) {
+            return ring.getItems(recentItems);
+        }
         return PubSubPersistenceManager.getPublishedItems(this, recentItems);
     }
 
     @Override
 	public synchronized PublishedItem getLastPublishedItem() {
     	if (lastPublished == null){
-    		lastPublished = PubSubPersistenceManager.getLastPublishedItem(this);
+    		PublishedItemRing ring = getRecentItems();
+    		lastPublished = ring != null ? ring.getLast() :
+    				PubSubPersistenceManager.getLastPublishedItem(this);
     	}
     	return lastPublished;
     }
@@ -399,6 +454,10 @@ public class LeafNode extends Node {
      */
     public void purge() {
         PubSubPersistenceManager.purgeNode(this);
+        PublishedItemRing ring = getRecentItems();
+        if (ring != null) {
+            ring.clear();
+        }
         // Broadcast purge notification to subscribers
         // Build packet to broadcast to subscribers
         Message message = new Message();
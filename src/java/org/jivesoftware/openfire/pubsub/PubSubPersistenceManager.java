@@ -29,7 +29,6 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
@@ -40,12 +39,11 @@ import java.util.concurrent.locks.Lock;
 import org.jivesoftware.database.DbConnectionManager;
 import org.jivesoftware.database.DbConnectionManager.DatabaseType;
 import org.jivesoftware.openfire.cluster.ClusterManager;
+import org.jivesoftware.openfire.pubsub.ItemWriteShard.RetryWrapper;
 import org.jivesoftware.openfire.pubsub.cluster.FlushTask;
 import org.jivesoftware.openfire.pubsub.models.AccessModel;
 import org.jivesoftware.openfire.pubsub.models.PublisherModel;
 import org.jivesoftware.util.JiveGlobals;
-import org.jivesoftware.util.LinkedList;
-import org.jivesoftware.util.LinkedListNode;
 import org.jivesoftware.util.StringUtils;
 import org.jivesoftware.util.TaskEngine;
 import org.jivesoftware.util.cache.Cache;
@@ -236,21 +234,27 @@ public class PubSubPersistenceManager {
 	private static final int MAX_ITEM_RETRY = JiveGlobals.getIntProperty("xmpp.pubsub.item.retry", 1);
     
     /**
-     * Queue that holds the (wrapped) items that need to be added to the database.
+     * Number of shards of the pending item writes. Items are assigned to a shard by
+     * node, each shard is flushed in its own transaction and reading the items of a
+     * node only requires flushing the shard of the node.
      */
-    private static LinkedList<RetryWrapper> itemsToAdd = new LinkedList<RetryWrapper>();
+    private static final int FLUSH_SHARDS = Math.max(1, JiveGlobals.getIntProperty("xmpp.pubsub.flush.shards", 8));
 
     /**
-     * Queue that holds the items that need to be deleted from the database.
+     * Number of pending items that causes a shard to be flushed.
      */
-    private static LinkedList<PublishedItem> itemsToDelete = new LinkedList<PublishedItem>();
+    private static final int SHARD_FLUSH_THRESHOLD = MAX_ITEMS_FLUSH > 0 ? Math.max(1, MAX_ITEMS_FLUSH / FLUSH_SHARDS) : 0;
 
     /**
-     * Keeps reference to published items that haven't been persisted yet so they 
-     * can be removed before being deleted. Note these items are wrapped via the 
-     * RetryWrapper to allow multiple persistence attempts when needed.
+     * Pending item writes, sharded by node.
      */
-    private static final HashMap<String, LinkedListNode<RetryWrapper>> itemsPending = new HashMap<String, LinkedListNode<RetryWrapper>>();
+    private static final ItemWriteShard[] shards = new ItemWriteShard[FLUSH_SHARDS];
+    
+    static {
+    	for (int i = 0; i < shards.length; i++) {
+    		shards[i] = new ItemWriteShard();
+    	}
+    }
     
     /**
      * Cache name for recently accessed published items.
@@ -1136,11 +1140,13 @@ public class PubSubPersistenceManager {
     /**
      * Creates and stores the published item in the database. Note that the
      * item will be cached temporarily before being flushed asynchronously 
-     * to the database. The write cache can be tuned using the following
-     * two properties:
+     * to the database. Publishing an item again before it was flushed only
+     * writes the latest version. The write cache can be tuned using the
+     * following properties:
      * <pre>
      *   "xmpp.pubsub.flush.max" - maximum items in the cache (-1 to disable cache)
      *   "xmpp.pubsub.flush.timer" - number of seconds between cache flushes
+     *   "xmpp.pubsub.flush.shards" - number of shards of the cache (default: 8)
      * </pre>
      * @param item The published item to save.
      */
@@ -1153,44 +1159,33 @@ public class PubSubPersistenceManager {
      * @param wrapper The published item, wrapped for retry
      */
     private static void savePublishedItem(RetryWrapper wrapper) {
-    	boolean firstPass = (wrapper.getRetryCount() == 0);
     	PublishedItem item = wrapper.get();
-		String itemKey = item.getItemKey();
-		itemCache.put(itemKey, item);
+		itemCache.put(item.getItemKey(), item);
 		log.debug("Added new (inbound) item to cache");
-        synchronized (itemsPending) {
-    		LinkedListNode<RetryWrapper> itemToReplace = itemsPending.remove(itemKey);
-    		if (itemToReplace != null) {
-    			itemToReplace.remove(); // remove duplicate from itemsToAdd linked list
-    		}
-    		LinkedListNode<RetryWrapper> listNode = firstPass ? 
-    							itemsToAdd.addLast(wrapper) : 
-    							itemsToAdd.addFirst(wrapper);
-    		itemsPending.put(itemKey, listNode);
-        }
-        // skip the flush step if this is a retry attempt
-		if (firstPass && itemsPending.size() > MAX_ITEMS_FLUSH) {
+		final ItemWriteShard shard = getShard(item.getNode());
+		int pending = shard.add(wrapper);
+		if (pending > SHARD_FLUSH_THRESHOLD && shard.flushQueued.compareAndSet(false, true)) {
 			TaskEngine.getInstance().submit(new Runnable() {
-				public void run() { flushPendingItems(false); }
+				public void run() {
+					shard.flushQueued.set(false);
+					flushPendingItems(shard);
+				}
 			});
 		}
     }
     
     /**
-     * This class is used internally to wrap PublishedItems. It adds
-     * a retry counter for the persistence exception handling logic.
+     * Returns the shard of the pending writes of the items of a node.
+     * @param node The leaf node
+     * @return The shard of the node
      */
-    private static class RetryWrapper {
-    	private PublishedItem item;
-        private volatile transient int retryCount = 0;
-    	public RetryWrapper(PublishedItem item) { this.item = item; }
-    	public PublishedItem get() { return item; }
-    	public int getRetryCount() { return retryCount; }
-    	public int nextRetry() { return ++retryCount; }
+    private static ItemWriteShard getShard(LeafNode node) {
+    	int hash = 31 * node.getService().getServiceID().hashCode() + node.getNodeID().hashCode();
+    	return shards[(hash & 0x7fffffff) % shards.length];
     }
 
     /**
-     * Flush the cache(s) of items to be persisted (itemsToAdd) and deleted (itemsToDelete).
+     * Flush the cache(s) of items to be persisted and deleted.
      */
 	public static void flushPendingItems()
     {
@@ -1198,7 +1193,7 @@ public class PubSubPersistenceManager {
     }
 
     /**
-     * Flush the cache(s) of items to be persisted (itemsToAdd) and deleted (itemsToDelete).
+     * Flush the cache(s) of items to be persisted and deleted.
      * @param sendToCluster If true, delegate to cluster members, otherwise local only
      */
     public static void flushPendingItems(boolean sendToCluster)
@@ -1208,151 +1203,159 @@ public class PubSubPersistenceManager {
             CacheFactory.doSynchronousClusterTask(new FlushTask(), false);
         }
 
-		if (itemsToAdd.getFirst() == null && itemsToDelete.getFirst() == null) {
-        	return;	 // nothing to do for this cluster member
-        }
-        
-		Connection con = null;
-		boolean rollback = false;
-    	LinkedList<RetryWrapper> addList = null;
-    	LinkedList<PublishedItem> delList = null;
+		for (ItemWriteShard shard : shards) {
+			flushPendingItems(shard);
+		}
+    }
+
+    /**
+     * Flush the pending items of the given node before reading its items from the
+     * database. In a cluster the items may have been published on other members, so
+     * all the pending items of the cluster are flushed.
+     * @param node The leaf node to be read
+     */
+    private static void flushPendingItems(LeafNode node)
+    {
+    	if (ClusterManager.isClusteringEnabled()) {
+    		Lock itemLock = CacheFactory.getLock(ITEM_CACHE, itemCache);
+    		try {
+    			// NOTE: force other requests to wait for DB I/O to complete
+    			itemLock.lock();
+    			flushPendingItems();
+    		} finally {
+    			itemLock.unlock();
+    		}
+    	}
+    	else {
+    		flushPendingItems(getShard(node));
+    	}
+    }
 
-    	// Swap pending items so we can parse and save the contents from this point in time
-    	// while not blocking new entries from being cached.
-    	synchronized(itemsPending) 
+    /**
+     * Flush the items of a shard to be persisted and deleted.
+     * @param shard The shard to flush
+     */
+    private static void flushPendingItems(ItemWriteShard shard)
+    {
+    	synchronized (shard.flushLock)
     	{
-    		addList = itemsToAdd;
-    		delList = itemsToDelete;
+    		List<RetryWrapper> addList = new ArrayList<RetryWrapper>();
+    		List<PublishedItem> delList = new ArrayList<PublishedItem>();
+
+    		// Copy pending items so we can parse and save the contents from this point in time
+    		// while not blocking new entries from being cached.
+    		if (!shard.drainTo(addList, delList)) {
+    			return;	 // nothing to do for this shard
+    		}
 
-    		itemsToAdd = new LinkedList<RetryWrapper>();
-    		itemsToDelete = new LinkedList<PublishedItem>();
-    		
     		// Ensure pending items are available via the item read cache;
     		// this allows the item(s) to be fetched by other request threads
     		// while being written to the DB from this thread
     		int copied = 0;
-    		for (String key : itemsPending.keySet()) {
+    		for (RetryWrapper wrapper : addList) {
+    			String key = wrapper.get().getItemKey();
     			if (!itemCache.containsKey(key)) {
-    				itemCache.put(key, (((RetryWrapper)itemsPending.get(key).object)).get());
+    				itemCache.put(key, wrapper.get());
     				copied++;
     			}
     		}
     		if (log.isDebugEnabled() && copied > 0) {
     			log.debug("Added " + copied + " pending items to published item cache");
     		}
-    		itemsPending.clear();
-    	}
 
-    	// Note that we now make multiple attempts to write cached items to the DB:
-    	//   1) insert all pending items in a single batch
-    	//   2) if the batch insert fails, retry by inserting each item separately
-    	//   3) if a given item cannot be written, return it to the pending write cache
-    	// By default step 3 will be tried once per item, but this can be configured
-    	// (or disabled) using the "xmpp.pubsub.item.retry" property. In the event of
-    	// a transaction rollback, items that could not be written to the database
-    	// will be returned to the pending item write cache.
-    	try {
-			con = DbConnectionManager.getTransactionConnection();
-			writePendingItems(con, addList, delList);
-		} catch (SQLException se) {
-			log.error("Failed to flush pending items; initiating rollback", se);
-			// return new items to the write cache
-	        LinkedListNode<RetryWrapper> node = addList.getLast();
-	        while (node != null) {
-	            savePublishedItem(node.object);
-	            node.remove();
-	            node = addList.getLast();
-	        }
-			rollback = true;
-		} finally {
-			DbConnectionManager.closeTransactionConnection(con, rollback);
-		}
+    		// Note that we now make multiple attempts to write cached items to the DB:
+    		//   1) insert all pending items in a single batch
+    		//   2) if the batch insert fails, retry by inserting each item separately
+    		//   3) if a given item cannot be written, return it to the pending write cache
+    		// By default step 3 will be tried once per item, but this can be configured
+    		// (or disabled) using the "xmpp.pubsub.item.retry" property. In the event of
+    		// a transaction rollback, items that could not be written to the database
+    		// will be returned to the pending item write cache.
+    		Connection con = null;
+    		boolean rollback = false;
+    		try {
+    			con = DbConnectionManager.getTransactionConnection();
+    			writePendingItems(con, shard, addList, delList);
+    		} catch (SQLException se) {
+    			log.error("Failed to flush pending items; initiating rollback", se);
+    			// return new items to the write cache
+    			for (RetryWrapper wrapper : addList) {
+    				shard.retry(wrapper);
+    			}
+    			rollback = true;
+    		} finally {
+    			DbConnectionManager.closeTransactionConnection(con, rollback);
+    		}
+    	}
 	}
 
     /**
      * Loop through the lists of added and deleted items and write to the database
      * @param con
+     * @param shard
      * @param addList
      * @param delList
      * @throws SQLException
      */
-	private static void writePendingItems(Connection con, LinkedList<RetryWrapper> addList, LinkedList<PublishedItem> delList) throws SQLException
+	private static void writePendingItems(Connection con, ItemWriteShard shard, List<RetryWrapper> addList, List<PublishedItem> delList) throws SQLException
 	{
-        LinkedListNode<RetryWrapper> addItem = addList.getFirst();
-        LinkedListNode<PublishedItem> delItem = delList.getFirst();
-        
         // is there anything to do?
-        if ((addItem == null) && (delItem == null)) { return; }
+        if (addList.isEmpty() && delList.isEmpty()) { return; }
         
     	if (log.isDebugEnabled()) {
-    		log.debug("Flush " + itemsPending.size() + " pending items to database");
+    		log.debug("Flush " + addList.size() + " pending items to database");
     	}
 
         // ensure there are no duplicates by deleting before adding
-        if (addItem != null) {
-        	LinkedListNode<RetryWrapper> addHead = addItem.previous;
-        	while (addItem != addHead) {
-        		delList.addLast(addItem.object.get());
-        		addItem = addItem.next;
-        	}
+        for (RetryWrapper wrapper : addList) {
+        	delList.add(wrapper.get());
         }
 
         // delete first (to remove possible duplicates), then add new items
-        delItem = delList.getFirst();
-        if (delItem != null) {
-            PreparedStatement pstmt = null;
-			try {
-                LinkedListNode<PublishedItem> delHead = delItem.previous;
-				pstmt = con.prepareStatement(DELETE_ITEM);
-
-                while (delItem != delHead)
-                {
-                	PublishedItem item = delItem.object;
-                    pstmt.setString(1, item.getNode().getService().getServiceID());
-                    pstmt.setString(2, encodeNodeID(item.getNode().getNodeID()));
-                    pstmt.setString(3, item.getID());
-                    pstmt.addBatch();
-
-                    delItem = delItem.next;
-                }
-				pstmt.executeBatch();
-			} catch (SQLException ex) {
-				log.error("Failed to delete published item(s) from DB", ex);
-				// do not re-throw here; continue with insert operation if possible
-			} finally {
-				DbConnectionManager.closeStatement(pstmt);
-	        }
+        PreparedStatement pstmt = null;
+		try {
+			pstmt = con.prepareStatement(DELETE_ITEM);
+            for (PublishedItem item : delList)
+            {
+                pstmt.setString(1, item.getNode().getService().getServiceID());
+                pstmt.setString(2, encodeNodeID(item.getNode().getNodeID()));
+                pstmt.setString(3, item.getID());
+                pstmt.addBatch();
+            }
+			pstmt.executeBatch();
+		} catch (SQLException ex) {
+			log.error("Failed to delete published item(s) from DB", ex);
+			// do not re-throw here; continue with insert operation if possible
+		} finally {
+			DbConnectionManager.closeStatement(pstmt);
         }
 		
         try { 
             // first try to add the pending items as a batch
-        	writePendingItems(con, addList.getFirst(), true);
+        	writePendingItems(con, shard, addList, true);
         } catch (SQLException ex) {
         	// retry each item individually rather than rolling back
-        	writePendingItems(con, addList.getFirst(), false);       	
+        	writePendingItems(con, shard, addList, false);       	
         }
     }
 	
 	/**
 	 * Execute JDBC calls (optionally via batch) to persist the given published items
 	 * @param con
-	 * @param addItem
+	 * @param shard
+	 * @param addList
 	 * @param batch
 	 * @throws SQLException
 	 */
-	private static void writePendingItems(Connection con, LinkedListNode<RetryWrapper> addItem, boolean batch)  throws SQLException 
+	private static void writePendingItems(Connection con, ItemWriteShard shard, List<RetryWrapper> addList, boolean batch)  throws SQLException 
 	{	
-		if (addItem == null) { return; }
-        LinkedListNode<RetryWrapper> addHead = addItem.previous;
+		if (addList.isEmpty()) { return; }
         PreparedStatement pstmt = null;
-        RetryWrapper wrappedItem = null;
-        PublishedItem item = null;       
     	try {
 			pstmt = con.prepareStatement(ADD_ITEM);
-            while (addItem != addHead)
+            for (RetryWrapper wrappedItem : addList)
             {
-            	wrappedItem = addItem.object;
-            	item = wrappedItem.get();
+            	PublishedItem item = wrappedItem.get();
                 pstmt.setString(1, item.getNode().getService().getServiceID());
                 pstmt.setString(2, encodeNodeID(item.getNodeID()));
                 pstmt.setString(3, item.getID());
@@ -1367,14 +1370,13 @@ public class PubSubPersistenceManager {
         	    		String itemKey = item.getItemKey();
         	    		if (wrappedItem.nextRetry() < MAX_ITEM_RETRY) {
         	        		log.warn("Failed to persist published item (will retry): " + itemKey);
-        	                savePublishedItem(wrappedItem);
+        	                shard.retry(wrappedItem);
         	    		} else {
         	    			// all hope is lost ... item will be dropped
         	    			log.error("Published item could not be written to database: " + itemKey + "\n" + item.getPayloadXML(), se);
         	    		}
                 	}
                 }
-                addItem = addItem.next;
             }
             if (batch) { pstmt.executeBatch(); }			
     	} catch (SQLException se) {
@@ -1392,15 +1394,8 @@ public class PubSubPersistenceManager {
      * @param item The published item to delete.
      */
     public static void removePublishedItem(PublishedItem item) {
-    	String itemKey = item.getItemKey();
-        itemCache.remove(itemKey);
-        synchronized (itemsPending)
-    	{
-    		itemsToDelete.addLast(item);
-			LinkedListNode<RetryWrapper> itemToAdd = itemsPending.remove(itemKey);
-			if (itemToAdd != null)
-				itemToAdd.remove();  // drop from itemsToAdd linked list
-		}
+        itemCache.remove(item.getItemKey());
+        getShard(item.getNode()).remove(item);
     }
 
     /**
@@ -1566,14 +1561,7 @@ public class PubSubPersistenceManager {
      * @param node the leaf node to load its published items.
      */
     public static List<PublishedItem> getPublishedItems(LeafNode node, int maxRows) {
-        Lock itemLock = CacheFactory.getLock(ITEM_CACHE, itemCache);
-        try {
-	    	// NOTE: force other requests to wait for DB I/O to complete
-        	itemLock.lock();
-	    	flushPendingItems();
-        } finally {
-        	itemLock.unlock();
-        }
+        flushPendingItems(node);
     	Connection con = null;
         PreparedStatement pstmt = null;
         ResultSet rs = null;
@@ -1639,14 +1627,7 @@ public class PubSubPersistenceManager {
      * @param node the leaf node to load its last published items.
      */
     public static PublishedItem getLastPublishedItem(LeafNode node) {
-        Lock itemLock = CacheFactory.getLock(ITEM_CACHE, itemCache);
-        try {
-        	// NOTE: force other requests to wait for DB I/O to complete
-        	itemLock.lock();
-	    	flushPendingItems();
-        } finally {
-        	itemLock.unlock();
-        }
+        flushPendingItems(node);
         Connection con = null;
         PreparedStatement pstmt = null;
         ResultSet rs = null;
@@ -1696,7 +1677,12 @@ public class PubSubPersistenceManager {
             	itemLock.lock();
             	result = itemCache.get(itemKey);
             	if (result == null) {
-	            	flushPendingItems(); 
+	            	if (ClusterManager.isClusteringEnabled()) {
+	            		flushPendingItems();
+	            	}
+	            	else {
+	            		flushPendingItems(getShard(node));
+	            	}
 	
 	        		// fetch item from DB
 	                Connection con = null;
@@ -1751,23 +1737,8 @@ public class PubSubPersistenceManager {
 
 			purgeNode(leafNode, con);
 
-			// Delete all the entries from the itemsToAdd list and pending map
-			// that match this node.
-			synchronized (itemsPending)
-			{
-				Iterator<Map.Entry<String, LinkedListNode<RetryWrapper>>> pendingIt = itemsPending.entrySet().iterator();
-
-				while (pendingIt.hasNext())
-				{
-					LinkedListNode<RetryWrapper> itemNode = pendingIt.next().getValue();
-
-					if (itemNode.object.get().getNodeID().equals(leafNode.getNodeID()))
-					{
-						itemNode.remove();
-						pendingIt.remove();
-					}
-				}
-			}
+			// Delete the pending items of this node that were added after the flush
+			getShard(leafNode).purge(leafNode.getService().getServiceID(), leafNode.getNodeID());
 		}
 		catch (SQLException exc)
 		{
@@ -1782,7 +1753,7 @@ public class PubSubPersistenceManager {
 
 	private static void purgeNode(LeafNode leafNode, Connection con) throws SQLException
 	{
-		flushPendingItems();
+		flushPendingItems(leafNode);
         // Remove published items of the node being deleted
         PreparedStatement pstmt = null;
 
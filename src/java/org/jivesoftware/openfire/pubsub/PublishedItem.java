@@ -118,6 +118,23 @@ public class PublishedItem implements Serializable {
         this.creationDate = creationDate;
     }
 
+    /**
+     * Creates a published item of a node that is looked up by ID when it is needed,
+     * as for items that were deserialized.
+     * @param serviceId
+     * @param nodeId
+     * @param publisher
+     * @param id
+     * @param creationDate
+     */
+    PublishedItem(String serviceId, String nodeId, JID publisher, String id, Date creationDate) {
+        this.nodeId = nodeId;
+        this.serviceId = serviceId;
+        this.publisher = publisher;
+        this.id = id;
+        this.creationDate = creationDate;
+    }
+
     /**
      * Returns the id for the {@link LeafNode} where this item was published.
      *
@@ -127,6 +144,15 @@ public class PublishedItem implements Serializable {
         return nodeId;
     }
 
+    /**
+     * Returns the id for the service hosting the {@link LeafNode} where this item was published.
+     *
+     * @return the ID for the service hosting the leaf node where this item was published.
+     */
+    public String getServiceID() {
+        return serviceId;
+    }
+
     /**
      * Returns the {@link LeafNode} where this item was published.
      *
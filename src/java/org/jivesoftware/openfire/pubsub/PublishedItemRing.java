@@ -0,0 +1,192 @@
+/**
+ * Copyright (C) 2004-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jivesoftware.openfire.pubsub;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jivesoftware.util.JiveGlobals;
+
+/**
+ * The most recent items published to a leaf node, kept in memory so that reading the
+ * items of the node does not query the database. Items are kept in a circular array
+ * sized to the max number of items of the node, so publishing a new item drops the
+ * oldest item once the node is full.<p>
+ *
+ * The items of the node are loaded from the database the first time they are read.
+ * Until then, items published or deleted are only written to the database.
+ *
+ * @see LeafNode#getPublishedItems()
+ */
+class PublishedItemRing {
+
+    private static final Comparator<PublishedItem> CREATION_ORDER = new Comparator<PublishedItem>() {
+        public int compare(PublishedItem item1, PublishedItem item2) {
+            return item1.getCreationDate().compareTo(item2.getCreationDate());
+        }
+    };
+
+    private final LeafNode node;
+    private final PublishedItem[] items;
+    private final Map<String, PublishedItem> itemsByID = new HashMap<String, PublishedItem>();
+    /**
+     * Index of the oldest item.
+     */
+    private int head;
+    private int size;
+    private boolean loaded;
+
+    PublishedItemRing(LeafNode node, int capacity) {
+        this.node = node;
+        this.items = new PublishedItem[capacity];
+    }
+
+    /**
+     * Returns the max number of items that nodes may keep in memory. Nodes that keep
+     * more items are read from the database. The limit is set with the
+     * <tt>xmpp.pubsub.ring.max</tt> property, 0 to keep no items in memory.
+     *
+     * @return the max number of items that nodes may keep in memory.
+     */
+    static int getMaxCapacity() {
+        return JiveGlobals.getIntProperty("xmpp.pubsub.ring.max", 100);
+    }
+
+    int getCapacity() {
+        return items.length;
+    }
+
+    /**
+     * Adds a published item as the newest item. An item with the same ID is replaced.
+     *
+     * @param item the published item.
+     */
+    synchronized void add(PublishedItem item) {
+        if (!loaded) {
+            // The item will be read from the database when loading
+            return;
+        }
+        remove(item.getID());
+        if (size == items.length) {
+            itemsByID.remove(items[head].getID());
+            items[head] = null;
+            head = (head + 1) % items.length;
+            size--;
+        }
+        items[(head + size) % items.length] = item;
+        itemsByID.put(item.getID(), item);
+        size++;
+    }
+
+    /**
+     * Removes a published item.
+     *
+     * @param itemID the ID of the item.
+     */
+    synchronized void remove(String itemID) {
+        if (!loaded || itemsByID.remove(itemID) == null) {
+            return;
+        }
+        // Close the gap by moving the newer items
+        int i = 0;
+        while (!items[(head + i) % items.length].getID().equals(itemID)) {
+            i++;
+        }
+        for (; i < size - 1; i++) {
+            items[(head + i) % items.length] = items[(head + i + 1) % items.length];
+        }
+        items[(head + size - 1) % items.length] = null;
+        size--;
+    }
+
+    /**
+     * Removes all the items, e.g. after the node was purged.
+     */
+    synchronized void clear() {
+        for (int i = 0; i < items.length; i++) {
+            items[i] = null;
+        }
+        itemsByID.clear();
+        head = 0;
+        size = 0;
+        loaded = true;
+    }
+
+    /**
+     * Returns the published item with the specified ID or <tt>null</tt> if the
+     * node does not hold the item.
+     *
+     * @param itemID the ID of the item.
+     * @return the published item with the specified ID.
+     */
+    synchronized PublishedItem get(String itemID) {
+        load();
+        return itemsByID.get(itemID);
+    }
+
+    /**
+     * Returns the newest published item or <tt>null</tt> if the node has no items.
+     *
+     * @return the newest published item.
+     */
+    synchronized PublishedItem getLast() {
+        load();
+        return size == 0 ? null : items[(head + size - 1) % items.length];
+    }
+
+    /**
+     * Returns the newest published items, ordered from oldest to newest unless
+     * <tt>xmpp.pubsub.order.descending</tt> is true.
+     *
+     * @param max max number of items to return or -1 for all the items.
+     * @return the newest published items.
+     */
+    synchronized List<PublishedItem> getItems(int max) {
+        load();
+        int count = max < 0 ? size : Math.min(max, size);
+        if (count == 0) {
+            return Collections.emptyList();
+        }
+        List<PublishedItem> result = new ArrayList<PublishedItem>(count);
+        for (int i = size - count; i < size; i++) {
+            result.add(items[(head + i) % items.length]);
+        }
+        if (JiveGlobals.getBooleanProperty("xmpp.pubsub.order.descending", false)) {
+            Collections.reverse(result);
+        }
+        return result;
+    }
+
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        // Flushes the pending items of the node before reading the database
+        List<PublishedItem> stored =
+                new ArrayList<PublishedItem>(PubSubPersistenceManager.getPublishedItems(node, items.length));
+        Collections.sort(stored, CREATION_ORDER);
+        clear();
+        for (PublishedItem item : stored) {
+            add(item);
+        }
+    }
+}
@@ -57,16 +57,16 @@ public class AffiliationTask extends NodeTask
 	public void writeExternal(ObjectOutput out) throws IOException
 	{
 		super.writeExternal(out);
-        ExternalizableUtil.getInstance().writeSerializable(out, jid);
-        ExternalizableUtil.getInstance().writeSerializable(out, affiliation);
+        ExternalizableUtil.getInstance().writeJID(out, jid);
+        ExternalizableUtil.getInstance().writeSafeUTF(out, affiliation.name());
 	}
 
 	@Override
 	public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException
 	{
 		super.readExternal(in);
-		jid = (JID) ExternalizableUtil.getInstance().readSerializable(in);
-		affiliation = (NodeAffiliate.Affiliation) ExternalizableUtil.getInstance().readSerializable(in);
+		jid = ExternalizableUtil.getInstance().readJID(in);
+		affiliation = NodeAffiliate.Affiliation.valueOf(ExternalizableUtil.getInstance().readSafeUTF(in));
 	}
 
 	@Override
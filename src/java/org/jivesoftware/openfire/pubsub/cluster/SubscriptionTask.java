@@ -64,9 +64,9 @@ public abstract class SubscriptionTask extends NodeTask
 	{
 		super.writeExternal(out);
 		ExternalizableUtil.getInstance().writeSafeUTF(out, subId);
-        ExternalizableUtil.getInstance().writeSerializable(out, owner);
-        ExternalizableUtil.getInstance().writeSerializable(out, subJid);
-		ExternalizableUtil.getInstance().writeSerializable(out, state);
+        ExternalizableUtil.getInstance().writeJID(out, owner);
+        ExternalizableUtil.getInstance().writeJID(out, subJid);
+		ExternalizableUtil.getInstance().writeSafeUTF(out, state.name());
 	}
 
 	@Override
@@ -74,9 +74,9 @@ public abstract class SubscriptionTask extends NodeTask
 	{
 		super.readExternal(in);
 		subId = ExternalizableUtil.getInstance().readSafeUTF(in);
-		owner = (JID) ExternalizableUtil.getInstance().readSerializable(in);
-		subJid = (JID) ExternalizableUtil.getInstance().readSerializable(in);
-		state = (State) ExternalizableUtil.getInstance().readSerializable(in);
+		owner = ExternalizableUtil.getInstance().readJID(in);
+		subJid = ExternalizableUtil.getInstance().readJID(in);
+		state = State.valueOf(ExternalizableUtil.getInstance().readSafeUTF(in));
 	}
 
 	@Override
@@ -0,0 +1,137 @@
+/**
+ * Copyright (C) 2004-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.resultsetmanager;
+
+import org.dom4j.Element;
+
+/**
+ * The 'result set management' directives of a request as described in XEP-0059. A
+ * request asks for at most 'max' items that follow the item identified by 'after',
+ * that precede the item identified by 'before' or that start at an 'index'.<p>
+ *
+ * Unlike {@link ResultSet}, a request does not need the full result set. Providers that
+ * keep their items in a sorted index may use it to read only the requested page, see
+ * {@link ResultPage#fromIndex(java.util.NavigableMap, PageRequest, ResultPage.Mapper)}.
+ *
+ * @see <a href="http://www.xmpp.org/extensions/xep-0059.html">XEP-0059: Result Set Management</a>
+ */
+public class PageRequest {
+
+	private final int max;
+	private final String after;
+	private final String before;
+	private final int index;
+
+	/**
+	 * Creates a new request.
+	 * 
+	 * @param max
+	 *            the max number of items to return. Zero asks for the number
+	 *            of items only.
+	 * @param after
+	 *            the UID of the item before the requested page or
+	 *            <tt>null</tt> if none.
+	 * @param before
+	 *            the UID of the item after the requested page, an empty
+	 *            string to request the last page or <tt>null</tt> if none.
+	 * @param index
+	 *            the index of the first requested item or -1 if none.
+	 */
+	public PageRequest(int max, String after, String before, int index) {
+		this.max = max;
+		this.after = after == null || after.length() == 0 ? null : after;
+		this.before = this.after == null ? before : null;
+		this.index = index;
+	}
+
+	/**
+	 * Creates a request from a 'set' element. The element must be a valid RSM
+	 * request as checked by
+	 * {@link org.xmpp.resultsetmanagement.ResultSet#isValidRSMRequest(Element)}.
+	 * 
+	 * @param rsmElement
+	 *            the 'set' element of the request.
+	 * @return the request described by the element.
+	 */
+	public static PageRequest parse(Element rsmElement) {
+		final int max = Integer.parseInt(rsmElement.element("max").getText());
+		final Element afterElement = rsmElement.element("after");
+		final Element beforeElement = rsmElement.element("before");
+		final Element indexElement = rsmElement.element("index");
+		return new PageRequest(max,
+				afterElement == null ? null : afterElement.getText(),
+				beforeElement == null ? null : beforeElement.getText(),
+				indexElement == null ? -1 : Integer.parseInt(indexElement.getText()));
+	}
+
+	/**
+	 * Returns the max number of items to return.
+	 * 
+	 * @return the max number of items to return.
+	 */
+	public int getMax() {
+		return max;
+	}
+
+	/**
+	 * Returns the UID of the item before the requested page or <tt>null</tt>
+	 * if none.
+	 * 
+	 * @return the UID of the item before the requested page.
+	 */
+	public String getAfter() {
+		return after;
+	}
+
+	/**
+	 * Returns the UID of the item after the requested page, an empty string if
+	 * the last page was requested or <tt>null</tt> if none.
+	 * 
+	 * @return the UID of the item after the requested page.
+	 */
+	public String getBefore() {
+		return before;
+	}
+
+	/**
+	 * Returns the index of the first requested item or -1 if none.
+	 * 
+	 * @return the index of the first requested item.
+	 */
+	public int getIndex() {
+		return index;
+	}
+
+	/**
+	 * Returns true if only the number of items was requested.
+	 * 
+	 * @return true if only the number of items was requested.
+	 */
+	public boolean isCountRequest() {
+		return max == 0;
+	}
+
+	/**
+	 * Returns true if the requested page ends at a given item (or at the end of
+	 * the result set) instead of starting at it.
+	 * 
+	 * @return true if the request pages backwards.
+	 */
+	public boolean isBackward() {
+		return before != null;
+	}
+}
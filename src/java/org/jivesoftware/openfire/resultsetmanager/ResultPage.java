@@ -0,0 +1,245 @@
+/**
+ * Copyright (C) 2004-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.resultsetmanager;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+import org.dom4j.QName;
+
+/**
+ * A page of a result set as described in XEP-0059, together with the UIDs of its first
+ * and last items. The UIDs are the cursors that clients send back to request the
+ * previous or next page.<p>
+ *
+ * Pages may be read out of a sorted index of the result set with
+ * {@link #fromIndex(NavigableMap, PageRequest, Mapper)}, which only visits the items
+ * of the requested page (plus the skipped items when paging by index). So the time
+ * to answer a request does not depend on the size of the result set. The total number
+ * of items is only computed when a client asks for it (i.e. 'max' is zero).
+ *
+ * @param <E> the type of the items of the page.
+ */
+public class ResultPage<E> {
+
+	private final List<E> items;
+	private final String first;
+	private final String last;
+	private final int firstIndex;
+	private final int count;
+
+	/**
+	 * Creates a new page.
+	 * 
+	 * @param items
+	 *            the items of the page.
+	 * @param first
+	 *            the UID of the first item or <tt>null</tt> if the page is
+	 *            empty.
+	 * @param last
+	 *            the UID of the last item or <tt>null</tt> if the page is
+	 *            empty.
+	 * @param firstIndex
+	 *            the index of the first item in the result set or -1 if
+	 *            unknown.
+	 * @param count
+	 *            the number of items in the result set or -1 if unknown.
+	 */
+	public ResultPage(List<E> items, String first, String last, int firstIndex, int count) {
+		this.items = items;
+		this.first = first;
+		this.last = last;
+		this.firstIndex = firstIndex;
+		this.count = count;
+	}
+
+	/**
+	 * Returns the items of the page.
+	 * 
+	 * @return the items of the page.
+	 */
+	public List<E> getItems() {
+		return items;
+	}
+
+	/**
+	 * Returns the UID of the first item or <tt>null</tt> if the page is empty.
+	 * 
+	 * @return the UID of the first item.
+	 */
+	public String getFirst() {
+		return first;
+	}
+
+	/**
+	 * Returns the UID of the last item or <tt>null</tt> if the page is empty.
+	 * 
+	 * @return the UID of the last item.
+	 */
+	public String getLast() {
+		return last;
+	}
+
+	/**
+	 * Returns the index of the first item in the result set or -1 if unknown.
+	 * 
+	 * @return the index of the first item in the result set.
+	 */
+	public int getFirstIndex() {
+		return firstIndex;
+	}
+
+	/**
+	 * Returns the number of items in the result set or -1 if unknown.
+	 * 
+	 * @return the number of items in the result set.
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * Generates the Result Set Management 'set' element that describes this page.
+	 * Unknown values (the index of the first item and the total count) are left out.
+	 * 
+	 * @return an Element named 'set' to include in the result IQ stanza.
+	 */
+	public Element createSetElement() {
+		final Element setElement = DocumentHelper.createElement(QName.get(
+				"set", org.xmpp.resultsetmanagement.ResultSet.NAMESPACE_RESULT_SET_MANAGEMENT));
+		if (!items.isEmpty()) {
+			final Element firstElement = setElement.addElement("first");
+			firstElement.addText(first);
+			if (firstIndex >= 0) {
+				firstElement.addAttribute("index", String.valueOf(firstIndex));
+			}
+			setElement.addElement("last").addText(last);
+		}
+		if (count >= 0) {
+			setElement.addElement("count").setText(String.valueOf(count));
+		}
+		return setElement;
+	}
+
+	/**
+	 * Reads the requested page out of an index of the result set sorted by UID. Entries
+	 * of the index that the mapper skips are not part of the result set (e.g. items that
+	 * the requester may not see). Cursors do not need to exist in the index, so pages
+	 * stay consistent when items are added or removed between requests.
+	 * 
+	 * @param index
+	 *            the index of the result set sorted by UID.
+	 * @param request
+	 *            the requested page.
+	 * @param mapper
+	 *            creates the item of each entry of the index.
+	 * @return the requested page.
+	 */
+	public static <V, E> ResultPage<E> fromIndex(NavigableMap<String, V> index,
+			PageRequest request, Mapper<V, E> mapper) {
+		if (request.isCountRequest()) {
+			int count = 0;
+			for (Map.Entry<String, V> entry : index.entrySet()) {
+				if (mapper.map(entry.getKey(), entry.getValue()) != null) {
+					count++;
+				}
+			}
+			return new ResultPage<E>(Collections.<E>emptyList(), null, null, -1, count);
+		}
+
+		final int max = request.getMax();
+		final List<E> items = new ArrayList<E>(Math.min(max, 64));
+		String first = null;
+		String last = null;
+		int firstIndex = -1;
+		if (request.isBackward()) {
+			final String before = request.getBefore();
+			final NavigableMap<String, V> view = before.length() == 0 ? index
+					.descendingMap() : index.headMap(before, false).descendingMap();
+			for (Map.Entry<String, V> entry : view.entrySet()) {
+				final E item = mapper.map(entry.getKey(), entry.getValue());
+				if (item == null) {
+					continue;
+				}
+				if (items.isEmpty()) {
+					last = entry.getKey();
+				}
+				first = entry.getKey();
+				items.add(item);
+				if (items.size() == max) {
+					break;
+				}
+			}
+			Collections.reverse(items);
+		} else {
+			final String after = request.getAfter();
+			final NavigableMap<String, V> view = after == null ? index : index
+					.tailMap(after, false);
+			int skip = 0;
+			if (after == null) {
+				// The position is only known when counting from the start
+				skip = Math.max(0, request.getIndex());
+				firstIndex = skip;
+			}
+			for (Map.Entry<String, V> entry : view.entrySet()) {
+				final E item = mapper.map(entry.getKey(), entry.getValue());
+				if (item == null) {
+					continue;
+				}
+				if (skip > 0) {
+					skip--;
+					continue;
+				}
+				if (items.isEmpty()) {
+					first = entry.getKey();
+				}
+				last = entry.getKey();
+				items.add(item);
+				if (items.size() == max) {
+					break;
+				}
+			}
+		}
+		return new ResultPage<E>(items, first, last, firstIndex, -1);
+	}
+
+	/**
+	 * Creates the items of a page out of the entries of a sorted index.
+	 * 
+	 * @param <V> the type of the values of the index.
+	 * @param <E> the type of the items of the page.
+	 */
+	public interface Mapper<V, E> {
+
+		/**
+		 * Returns the item of an entry of the index or <tt>null</tt> if the
+		 * entry is not part of the result set.
+		 * 
+		 * @param key
+		 *            the UID of the entry.
+		 * @param value
+		 *            the value of the entry.
+		 * @return the item of the entry or <tt>null</tt> to skip the entry.
+		 */
+		E map(String key, V value);
+	}
+}
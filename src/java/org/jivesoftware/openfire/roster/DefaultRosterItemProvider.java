@@ -25,11 +25,8 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
 
 import org.jivesoftware.database.DbConnectionManager;
 import org.jivesoftware.database.SequenceManager;
@@ -72,12 +69,10 @@ public class DefaultRosterItemProvider implements RosterItemProvider {
             "SELECT DISTINCT username from ofRoster WHERE jid=?";
     private static final String COUNT_ROSTER_ITEMS =
             "SELECT COUNT(rosterID) FROM ofRoster WHERE username=?";
-     private static final String LOAD_ROSTER =
-             "SELECT jid, rosterID, sub, ask, recv, nick FROM ofRoster WHERE username=?";
-    private static final String LOAD_ROSTER_ITEM_GROUPS =
-             "SELECT ofRosterGroups.rosterID,groupName FROM ofRosterGroups " +
-             "INNER JOIN ofRoster ON ofRosterGroups.rosterID = ofRoster.rosterID " +
-             "WHERE username=? ORDER BY ofRosterGroups.rosterID, rank";
+    private static final String LOAD_ROSTER =
+             "SELECT jid, ofRoster.rosterID, sub, ask, recv, nick, groupName FROM ofRoster " +
+             "LEFT OUTER JOIN ofRosterGroups ON ofRoster.rosterID = ofRosterGroups.rosterID " +
+             "WHERE username=? ORDER BY ofRoster.rosterID, rank";
 
     /* (non-Javadoc)
 	 * @see org.jivesoftware.openfire.roster.RosterItemProvider#createItem(java.lang.String, org.jivesoftware.openfire.roster.RosterItem)
@@ -235,46 +230,44 @@ public class DefaultRosterItemProvider implements RosterItemProvider {
 	 * @see org.jivesoftware.openfire.roster.RosterItemProvider#getItems(java.lang.String)
 	 */
 	public Iterator<RosterItem> getItems(String username) {
-        LinkedList<RosterItem> itemList = new LinkedList<RosterItem>();
-        Map<Long, RosterItem> itemsByID = new HashMap<Long, RosterItem>();
+        List<RosterItem> itemList = new ArrayList<RosterItem>();
         Connection con = null;
         PreparedStatement pstmt = null;
         ResultSet rs = null;
         try {
-            // Load all the contacts in the roster
+            // Load all the contacts in the roster and their groups. Contacts have one row
+            // per group (or a single row without group) and the rows of a contact are
+            // consecutive, ordered by the rank of the groups.
             con = DbConnectionManager.getConnection();
             pstmt = con.prepareStatement(LOAD_ROSTER);
             pstmt.setString(1, username);
             rs = pstmt.executeQuery();
+            long rosterID = -1;
+            String jid = null;
+            int sub = 0, ask = 0, recv = 0;
+            String nickname = null;
+            List<String> groups = new ArrayList<String>();
             while (rs.next()) {
-                // Create a new RosterItem (ie. user contact) from the stored information
-                RosterItem item = new RosterItem(rs.getLong(2),
-                        new JID(rs.getString(1)),
-                        RosterItem.SubType.getTypeFromInt(rs.getInt(3)),
-                        RosterItem.AskType.getTypeFromInt(rs.getInt(4)),
-                        RosterItem.RecvType.getTypeFromInt(rs.getInt(5)),
-                        rs.getString(6),
-                        null);
-                // Add the loaded RosterItem (ie. user contact) to the result
-                itemList.add(item);
-                itemsByID.put(item.getID(), item);
-            }
-            // Close the statement and result set
-            DbConnectionManager.fastcloseStmt(rs, pstmt);
-            // Set null to pstmt to be sure that it's not closed twice. It seems that
-            // Sybase driver is raising an error when trying to close an already closed statement.
-            // it2000 comment: TODO interesting, that's the only place with the sybase fix
-            // it2000 comment: one should move this in closeStatement()
-            pstmt = null;
-
-            // Load the groups for the loaded contact
-            if (!itemList.isEmpty()) {
-            	pstmt = con.prepareStatement(LOAD_ROSTER_ITEM_GROUPS);
-            	pstmt.setString(1, username);
-                rs = pstmt.executeQuery();
-                while (rs.next()) {
-                    itemsByID.get(rs.getLong(1)).getGroups().add(rs.getString(2));
+                long id = rs.getLong(2);
+                if (id != rosterID) {
+                    if (jid != null) {
+                        itemList.add(createItem(rosterID, jid, sub, ask, recv, nickname, groups));
+                        groups.clear();
+                    }
+                    rosterID = id;
+                    jid = rs.getString(1);
+                    sub = rs.getInt(3);
+                    ask = rs.getInt(4);
+                    recv = rs.getInt(5);
+                    nickname = rs.getString(6);
                 }
+                String groupName = rs.getString(7);
+                if (groupName != null) {
+                    groups.add(groupName);
+                }
+            }
+            if (jid != null) {
+                itemList.add(createItem(rosterID, jid, sub, ask, recv, nickname, groups));
             }
         }
         catch (SQLException e) {
@@ -286,6 +279,20 @@ public class DefaultRosterItemProvider implements RosterItemProvider {
         return itemList.iterator();
     }
 
+    /**
+     * Creates a roster item (ie. user contact) from the stored information.
+     */
+    private static RosterItem createItem(long rosterID, String jid, int sub, int ask, int recv,
+            String nickname, List<String> groups) {
+        return new RosterItem(rosterID,
+                new JID(jid),
+                RosterItem.SubType.getTypeFromInt(sub),
+                RosterItem.AskType.getTypeFromInt(ask),
+                RosterItem.RecvType.getTypeFromInt(recv),
+                nickname,
+                groups);
+    }
+
     /**
      * Insert the groups into the given roster item.
      *
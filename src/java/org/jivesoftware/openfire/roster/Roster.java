@@ -595,7 +595,8 @@ public class Roster implements Cacheable, Externalizable {
             // No privacy list was found (based on the session) so check if there is a default list
             list = PrivacyListManager.getInstance().getDefaultPrivacyList(username);
         }
-        // Broadcast presence to subscribed entities
+        // Collect the subscribed entities and route the presence to all of them at once
+        List<JID> recipients = new ArrayList<JID>(rosterItems.size() + implicitFrom.size());
         for (RosterItem item : rosterItems.values()) {
             if (item.getSubStatus() == RosterItem.SUB_BOTH || item.getSubStatus() == RosterItem.SUB_FROM) {
                 packet.setTo(item.getJid());
@@ -603,15 +604,7 @@ public class Roster implements Cacheable, Externalizable {
                     // Outgoing presence notifications are blocked for this contact
                     continue;
                 }
-                JID searchNode = new JID(item.getJid().getNode(), item.getJid().getDomain(), null, true);
-                for (JID jid : routingTable.getRoutes(searchNode, null)) {
-                    try {
-                        routingTable.routePacket(jid, packet, false);
-                    } catch (Exception e) {
-                        // Theoretically only happens if session has been closed.
-                        Log.debug(e.getMessage(), e);
-                    }
-                }
+                recipients.add(new JID(item.getJid().getNode(), item.getJid().getDomain(), null, true));
             }
         }
         // Broadcast presence to shared contacts whose subscription status is FROM
@@ -628,15 +621,9 @@ public class Roster implements Cacheable, Externalizable {
                 // Outgoing presence notifications are blocked for this contact
                 continue;
             }
-            for (JID jid : routingTable.getRoutes(new JID(contact), null)) {
-                try {
-                    routingTable.routePacket(jid, packet, false);
-                } catch (Exception e) {
-                    // Theoretically only happens if session has been closed.
-                    Log.debug(e.getMessage(), e);
-                }
-            }
+            recipients.add(packet.getTo());
         }
+        routingTable.broadcastPresence(recipients, packet);
         if (from != null) {
             // Broadcast presence to other user's resources
             sessionManager.broadcastPresenceToOtherResources(from, packet);
@@ -739,7 +726,7 @@ public class Roster implements Cacheable, Externalizable {
         // implicitFrom
         for (Map.Entry<String, Set<String>> entry : implicitFrom.entrySet()) {
             size += CacheSizes.sizeOfString(entry.getKey());
-            size += CacheSizes.sizeOfCollection(entry.getValue());
+            size += CacheSizes.sizeOfReferences(entry.getValue());  // shared group names
         }
 
         return size;
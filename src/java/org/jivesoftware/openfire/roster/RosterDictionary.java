@@ -0,0 +1,103 @@
+/**
+ * Copyright (C) 2004-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.roster;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.xmpp.packet.JID;
+
+/**
+ * Dictionaries of the contact addresses and group names shared by all the rosters in memory.
+ * The same contact usually appears in many rosters and users tend to reuse a handful of group
+ * names (e.g. "Friends"), so roster items keep the canonical instance returned by this class
+ * instead of a copy per item.<p>
+ *
+ * Entries are weakly referenced and are discarded once no roster item uses them anymore.
+ */
+final class RosterDictionary {
+
+    private static final Map<JID, WeakReference<JID>> jids =
+            new WeakHashMap<JID, WeakReference<JID>>();
+
+    private static final Map<String, WeakReference<String>> groupNames =
+            new WeakHashMap<String, WeakReference<String>>();
+
+    private RosterDictionary() {
+    }
+
+    /**
+     * Returns the canonical instance of the specified address.
+     *
+     * @param jid the address of a contact.
+     * @return the canonical instance of the address or <tt>null</tt> if the address was null.
+     */
+    static JID intern(JID jid) {
+        if (jid == null) {
+            return null;
+        }
+        synchronized (jids) {
+            return intern(jids, jid);
+        }
+    }
+
+    /**
+     * Returns the canonical instance of the specified group name.
+     *
+     * @param groupName the name of a roster group.
+     * @return the canonical instance of the name or <tt>null</tt> if the name was null.
+     */
+    static String intern(String groupName) {
+        if (groupName == null) {
+            return null;
+        }
+        synchronized (groupNames) {
+            return intern(groupNames, groupName);
+        }
+    }
+
+    /**
+     * Returns a list holding the canonical instances of the specified group names. The
+     * returned list is sized to the number of groups.
+     *
+     * @param names the names of roster groups.
+     * @return a new list with the canonical instances of the names.
+     */
+    static List<String> intern(Collection<String> names) {
+        List<String> interned = new ArrayList<String>(names.size());
+        synchronized (groupNames) {
+            for (String name : names) {
+                interned.add(name == null ? null : intern(groupNames, name));
+            }
+        }
+        return interned;
+    }
+
+    private static <T> T intern(Map<T, WeakReference<T>> dictionary, T value) {
+        WeakReference<T> reference = dictionary.get(value);
+        T canonical = reference == null ? null : reference.get();
+        if (canonical == null) {
+            dictionary.put(value, new WeakReference<T>(value));
+            canonical = value;
+        }
+        return canonical;
+    }
+}
@@ -50,6 +50,10 @@ import java.util.*;
  * <li>ask    - An optional subscription ask status: subscribe, unsubscribe</li>
  * <li>groups - A list of groups to organize roster entries under (e.g. friends, co-workers, etc)</li>
  * </ul>
+ * <p>Servers hold many rosters in memory so items are kept compact: the address of the
+ * contact and the names of the groups are canonical instances shared by all the rosters,
+ * the subscription, ask and recv states are packed in a single int and the shared group
+ * sets are only created for items that belong to shared groups.</p>
  *
  * @author Gaston Dombiak
  */
@@ -137,14 +141,30 @@ public class RosterItem implements Cacheable, Externalizable {
      */
     public static final RecvType RECV_UNSUBSCRIBE = new RecvType("unsub", 2);
 
-    protected RecvType recvStatus;
+    private static final int SUB_MASK = 0x07;
+    private static final int ASK_SHIFT = 3;
+    private static final int ASK_MASK = 0x03 << ASK_SHIFT;
+    private static final int RECV_SHIFT = 5;
+    private static final int RECV_MASK = 0x03 << RECV_SHIFT;
+
     protected JID jid;
     protected String nickname;
     protected List<String> groups;
-    protected Set<String> sharedGroups = new HashSet<String>();
-    protected Set<String> invisibleSharedGroups = new HashSet<String>();
-    protected SubType subStatus;
-    protected AskType askStatus;
+    /**
+     * Names of the shared groups of the item or <tt>null</tt> if the item never belonged
+     * to a shared group.
+     */
+    protected Set<String> sharedGroups;
+    /**
+     * Names of the invisible shared groups of the item or <tt>null</tt> if the item never
+     * belonged to an invisible shared group.
+     */
+    protected Set<String> invisibleSharedGroups;
+    /**
+     * Subscription, ask and recv states packed as their values plus one: the subscription
+     * state in bits 0-2, the ask state in bits 3-4 and the recv state in bits 5-6.
+     */
+    private int status;
     /**
      * Holds the ID that uniquely identifies the roster in the backend store. A value of
      * zero means that the roster item is not persistent.
@@ -174,16 +194,14 @@ public class RosterItem implements Cacheable, Externalizable {
                            RecvType recvStatus,
                            String nickname,
                            List<String> groups) {
-        this.jid = jid;
-        this.subStatus = subStatus;
-        this.askStatus = askStatus;
-        this.recvStatus = recvStatus;
+        this.jid = RosterDictionary.intern(jid);
+        this.status = pack(subStatus, askStatus, recvStatus);
         this.nickname = nickname;
-        this.groups = new LinkedList<String>();
         if (groups != null) {
-            for (String group : groups) {
-                this.groups.add(group);
-            }
+            this.groups = RosterDictionary.intern(groups);
+        }
+        else {
+            this.groups = new ArrayList<String>(0);
         }
     }
 
@@ -237,7 +255,7 @@ public class RosterItem implements Cacheable, Externalizable {
      * @return The subscription status of the item
      */
     public SubType getSubStatus() {
-        return subStatus;
+        return SubType.getTypeFromInt((status & SUB_MASK) - 1);
     }
 
     /**
@@ -255,7 +273,7 @@ public class RosterItem implements Cacheable, Externalizable {
                 // Do nothing
             }
         }
-        this.subStatus = subStatus;
+        status = (status & ~SUB_MASK) | (subStatus.getValue() + 1);
     }
 
     /**
@@ -269,7 +287,7 @@ public class RosterItem implements Cacheable, Externalizable {
             return ASK_NONE;
         }
         else {
-            return askStatus;
+            return AskType.getTypeFromInt(((status & ASK_MASK) >> ASK_SHIFT) - 1);
         }
     }
 
@@ -279,7 +297,7 @@ public class RosterItem implements Cacheable, Externalizable {
      * @param askStatus The ask status of the item
      */
     public void setAskStatus(AskType askStatus) {
-        this.askStatus = askStatus;
+        status = (status & ~ASK_MASK) | ((askStatus.getValue() + 1) << ASK_SHIFT);
     }
 
     /**
@@ -288,7 +306,7 @@ public class RosterItem implements Cacheable, Externalizable {
      * @return The recv status of the item
      */
     public RecvType getRecvStatus() {
-        return recvStatus;
+        return RecvType.getTypeFromInt(((status & RECV_MASK) >> RECV_SHIFT) - 1);
     }
 
     /**
@@ -297,7 +315,7 @@ public class RosterItem implements Cacheable, Externalizable {
      * @param recvStatus The recv status of the item
      */
     public void setRecvStatus(RecvType recvStatus) {
-        this.recvStatus = recvStatus;
+        status = (status & ~RECV_MASK) | ((recvStatus.getValue() + 1) << RECV_SHIFT);
     }
 
     /**
@@ -344,7 +362,7 @@ public class RosterItem implements Cacheable, Externalizable {
      */
     public void setGroups(List<String> groups) throws SharedGroupException {
         if (groups == null) {
-            this.groups = new LinkedList<String>();
+            this.groups = new ArrayList<String>(0);
         }
         else {
             // Raise an error if the user is trying to remove the item from a shared group
@@ -379,7 +397,7 @@ public class RosterItem implements Cacheable, Externalizable {
                 	}
                 }
             }
-            this.groups = groups;
+            this.groups = RosterDictionary.intern(groups);
         }
     }
 
@@ -389,6 +407,9 @@ public class RosterItem implements Cacheable, Externalizable {
      * @return The shared groups this item belongs to.
      */
     public Collection<Group> getSharedGroups() {
+        if (sharedGroups == null) {
+            return new ArrayList<Group>(0);
+        }
         Collection<Group> groups = new ArrayList<Group>(sharedGroups.size());
         for (String groupName : sharedGroups) {
             try {
@@ -409,6 +430,9 @@ public class RosterItem implements Cacheable, Externalizable {
      * @return The shared groups this item belongs to.
      */
     public Collection<Group> getInvisibleSharedGroups() {
+        if (invisibleSharedGroups == null) {
+            return new ArrayList<Group>(0);
+        }
         Collection<Group> groups = new ArrayList<Group>(invisibleSharedGroups.size());
         for (String groupName : invisibleSharedGroups) {
             try {
@@ -422,11 +446,14 @@ public class RosterItem implements Cacheable, Externalizable {
     }
 
     Set<String> getInvisibleSharedGroupsNames() {
+        if (invisibleSharedGroups == null) {
+            return Collections.emptySet();
+        }
         return invisibleSharedGroups;
     }
 
     void setInvisibleSharedGroupsNames(Set<String> groupsNames) {
-        invisibleSharedGroups = groupsNames;
+        invisibleSharedGroups = groupsNames == null || groupsNames.isEmpty() ? null : groupsNames;
     }
 
     /**
@@ -435,8 +462,11 @@ public class RosterItem implements Cacheable, Externalizable {
      * @param sharedGroup The shared group to add to the list of shared groups.
      */
     public void addSharedGroup(Group sharedGroup) {
-        sharedGroups.add(sharedGroup.getName());
-        invisibleSharedGroups.remove(sharedGroup.getName());
+        if (sharedGroups == null) {
+            sharedGroups = new HashSet<String>(4);
+        }
+        sharedGroups.add(RosterDictionary.intern(sharedGroup.getName()));
+        removeInvisibleSharedGroup(sharedGroup.getName());
     }
 
     /**
@@ -447,7 +477,10 @@ public class RosterItem implements Cacheable, Externalizable {
      * @param sharedGroup The shared group to add to the list of shared groups.
      */
     public void addInvisibleSharedGroup(Group sharedGroup) {
-        invisibleSharedGroups.add(sharedGroup.getName());
+        if (invisibleSharedGroups == null) {
+            invisibleSharedGroups = new HashSet<String>(4);
+        }
+        invisibleSharedGroups.add(RosterDictionary.intern(sharedGroup.getName()));
     }
 
     /**
@@ -456,8 +489,16 @@ public class RosterItem implements Cacheable, Externalizable {
      * @param sharedGroup The shared group to remove from the list of shared groups.
      */
     public void removeSharedGroup(Group sharedGroup) {
-        sharedGroups.remove(sharedGroup.getName());
-        invisibleSharedGroups.remove(sharedGroup.getName());
+        if (sharedGroups != null) {
+            sharedGroups.remove(sharedGroup.getName());
+        }
+        removeInvisibleSharedGroup(sharedGroup.getName());
+    }
+
+    private void removeInvisibleSharedGroup(String groupName) {
+        if (invisibleSharedGroups != null) {
+            invisibleSharedGroups.remove(groupName);
+        }
     }
 
     /**
@@ -467,7 +508,8 @@ public class RosterItem implements Cacheable, Externalizable {
      * @return true if this item belongs to a shared group.
      */
     public boolean isShared() {
-        return !sharedGroups.isEmpty() || !invisibleSharedGroups.isEmpty();
+        return (sharedGroups != null && !sharedGroups.isEmpty()) ||
+                (invisibleSharedGroups != null && !invisibleSharedGroups.isEmpty());
     }
 
     /**
@@ -513,7 +555,7 @@ public class RosterItem implements Cacheable, Externalizable {
      * @throws org.jivesoftware.openfire.SharedGroupException if trying to remove shared group.
      */
     public void setAsCopyOf(org.xmpp.packet.Roster.Item item) throws SharedGroupException {
-        setGroups(new LinkedList<String>(item.getGroups()));
+        setGroups(new ArrayList<String>(item.getGroups()));
         setNickname(item.getName());
     }
 
@@ -523,14 +565,15 @@ public class RosterItem implements Cacheable, Externalizable {
 	 * @see org.jivesoftware.util.cache.Cacheable#getCachedSize()
 	 */
     public int getCachedSize() throws CannotCalculateSizeException {
-        int size = jid.toBareJID().length();
+        // The jid and the group names are shared with the other rosters so only
+        // the references to them are accounted for.
+        int size = CacheSizes.sizeOfObject();
+        size += CacheSizes.sizeOfReference(); // jid
         size += CacheSizes.sizeOfString(nickname);
-        size += CacheSizes.sizeOfCollection(groups);
-        size += CacheSizes.sizeOfCollection(invisibleSharedGroups);
-        size += CacheSizes.sizeOfCollection(sharedGroups);
-        size += CacheSizes.sizeOfInt(); // subStatus
-        size += CacheSizes.sizeOfInt(); // askStatus
-        size += CacheSizes.sizeOfInt(); // recvStatus
+        size += CacheSizes.sizeOfReferences(groups);
+        size += CacheSizes.sizeOfReferences(invisibleSharedGroups);
+        size += CacheSizes.sizeOfReferences(sharedGroups);
+        size += CacheSizes.sizeOfInt(); // status
         size += CacheSizes.sizeOfLong(); // id
         return size;
     }
@@ -542,26 +585,45 @@ public class RosterItem implements Cacheable, Externalizable {
             ExternalizableUtil.getInstance().writeSafeUTF(out, nickname);
         }
         ExternalizableUtil.getInstance().writeStrings(out, groups);
-        ExternalizableUtil.getInstance().writeStrings(out, sharedGroups);
-        ExternalizableUtil.getInstance().writeStrings(out, invisibleSharedGroups);
-        ExternalizableUtil.getInstance().writeInt(out, recvStatus.getValue());
-        ExternalizableUtil.getInstance().writeInt(out, subStatus.getValue());
-        ExternalizableUtil.getInstance().writeInt(out, askStatus.getValue());
+        ExternalizableUtil.getInstance().writeStrings(out, getSharedGroupsNames());
+        ExternalizableUtil.getInstance().writeStrings(out, getInvisibleSharedGroupsNames());
+        ExternalizableUtil.getInstance().writeInt(out, getRecvStatus().getValue());
+        ExternalizableUtil.getInstance().writeInt(out, getSubStatus().getValue());
+        ExternalizableUtil.getInstance().writeInt(out, ((status & ASK_MASK) >> ASK_SHIFT) - 1);
         ExternalizableUtil.getInstance().writeLong(out, rosterID);
     }
 
+    private Set<String> getSharedGroupsNames() {
+        if (sharedGroups == null) {
+            return Collections.emptySet();
+        }
+        return sharedGroups;
+    }
+
+    private static int pack(SubType subStatus, AskType askStatus, RecvType recvStatus) {
+        return (subStatus.getValue() + 1) | ((askStatus.getValue() + 1) << ASK_SHIFT) |
+                ((recvStatus.getValue() + 1) << RECV_SHIFT);
+    }
+
     public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
-        jid = (JID) ExternalizableUtil.getInstance().readSerializable(in);
+        jid = RosterDictionary.intern((JID) ExternalizableUtil.getInstance().readSerializable(in));
         if (ExternalizableUtil.getInstance().readBoolean(in)) {
             nickname = ExternalizableUtil.getInstance().readSafeUTF(in);
         }
-        this.groups = new LinkedList<String>();
-        ExternalizableUtil.getInstance().readStrings(in, groups);
-        ExternalizableUtil.getInstance().readStrings(in, sharedGroups);
-        ExternalizableUtil.getInstance().readStrings(in, invisibleSharedGroups);
-        recvStatus = RecvType.getTypeFromInt(ExternalizableUtil.getInstance().readInt(in));
-        subStatus = SubType.getTypeFromInt(ExternalizableUtil.getInstance().readInt(in));
-        askStatus = AskType.getTypeFromInt(ExternalizableUtil.getInstance().readInt(in));
+        List<String> names = new ArrayList<String>();
+        ExternalizableUtil.getInstance().readStrings(in, names);
+        groups = RosterDictionary.intern(names);
+        names.clear();
+        ExternalizableUtil.getInstance().readStrings(in, names);
+        sharedGroups = names.isEmpty() ? null : new HashSet<String>(RosterDictionary.intern(names));
+        names.clear();
+        ExternalizableUtil.getInstance().readStrings(in, names);
+        invisibleSharedGroups =
+                names.isEmpty() ? null : new HashSet<String>(RosterDictionary.intern(names));
+        RecvType recvStatus = RecvType.getTypeFromInt(ExternalizableUtil.getInstance().readInt(in));
+        SubType subStatus = SubType.getTypeFromInt(ExternalizableUtil.getInstance().readInt(in));
+        AskType askStatus = AskType.getTypeFromInt(ExternalizableUtil.getInstance().readInt(in));
+        status = pack(subStatus, askStatus, recvStatus);
         rosterID = ExternalizableUtil.getInstance().readLong(in);
     }
 }
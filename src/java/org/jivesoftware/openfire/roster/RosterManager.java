@@ -63,6 +63,15 @@ public class RosterManager extends BasicModule implements GroupEventListener, Us
     private static final Logger Log = LoggerFactory.getLogger(RosterManager.class);
 
     private Cache<String, Roster> rosterCache = null;
+    /**
+     * Names of the shared groups that each local user may see, keyed by username.
+     */
+    private Cache<String, Collection<String>> sharedGroupsCache = null;
+    /**
+     * Bare JIDs of the users that may see an "onlyGroup" shared group because they belong
+     * to one of the groups listed in its <tt>sharedRoster.groupList</tt>, keyed by group name.
+     */
+    private Cache<String, Collection<String>> sharedContactsCache = null;
     private XMPPServer server;
     private RoutingTable routingTable;
     private RosterItemProvider provider;
@@ -80,6 +89,10 @@ public class RosterManager extends BasicModule implements GroupEventListener, Us
     public RosterManager() {
         super("Roster Manager");
         rosterCache = CacheFactory.createCache("Roster");
+        // Indexes of the shared groups visible to users and of the users that may see
+        // shared groups. Both are kept up to date from group and user events
+        sharedGroupsCache = CacheFactory.createCache("Shared Groups By User");
+        sharedContactsCache = CacheFactory.createCache("Shared Group Contacts");
 
         initProvider();
 
@@ -186,31 +199,118 @@ public class RosterManager extends BasicModule implements GroupEventListener, Us
      * @return a collection with all the groups that the user may include in his roster.
      */
     public Collection<Group> getSharedGroups(String username) {
+        Collection<String> groupNames = sharedGroupsCache.get(username);
+        if (groupNames == null) {
+            synchronized ((username + " sg").intern()) {
+                groupNames = sharedGroupsCache.get(username);
+                if (groupNames == null) {
+                    groupNames = loadSharedGroupNames(username);
+                    sharedGroupsCache.put(username, groupNames);
+                }
+            }
+        }
         Collection<Group> answer = new HashSet<Group>();
-        Collection<Group> groups = GroupManager.getInstance().getSharedGroups(username);
-        for (Group group : groups) {
-            String showInRoster = group.getProperties().get("sharedRoster.showInRoster");
-            if ("onlyGroup".equals(showInRoster)) {
-                if (group.isUser(username)) {
-                    // The user belongs to the group so add the group to the answer
-                    answer.add(group);
-                }
-                else {
-                    // Check if the user belongs to a group that may see this group
-                    Collection<Group> groupList = parseGroups(group.getProperties().get("sharedRoster.groupList"));
-                    for (Group groupInList : groupList) {
-                        if (groupInList.isUser(username)) {
-                            answer.add(group);
+        for (String groupName : groupNames) {
+            try {
+                answer.add(GroupManager.getInstance().getGroup(groupName));
+            }
+            catch (GroupNotFoundException e) {
+                // Do nothing. The group was deleted and the index will be updated
+            }
+        }
+        return answer;
+    }
+
+    /**
+     * Returns the names of the shared groups that the user may see. The candidate groups
+     * are the shared groups related to the user according to the group provider.
+     *
+     * @param username the username of the user to return his shared groups.
+     * @return the names of the shared groups that the user may see.
+     */
+    private Collection<String> loadSharedGroupNames(String username) {
+        JID user = server.createJID(username, null, true);
+        Collection<String> answer = new HashSet<String>();
+        for (Group group : GroupManager.getInstance().getSharedGroups(username)) {
+            if (isGroupVisible(group, user)) {
+                answer.add(group.getName());
+            }
+        }
+        return answer;
+    }
+
+    /**
+     * Returns the bare JIDs of the users that may see the specified "onlyGroup" shared group
+     * because they belong to a group listed in the <tt>sharedRoster.groupList</tt> property
+     * of the group. Users of the group itself are not included.
+     *
+     * @param group the shared group.
+     * @return the bare JIDs of the users of the groups that may see the group.
+     */
+    private Collection<String> getSharedContacts(Group group) {
+        Collection<String> contacts = sharedContactsCache.get(group.getName());
+        if (contacts == null) {
+            synchronized ((group.getName() + " sc").intern()) {
+                contacts = sharedContactsCache.get(group.getName());
+                if (contacts == null) {
+                    contacts = new HashSet<String>();
+                    for (Group groupInList : parseGroups(
+                            group.getProperties().get("sharedRoster.groupList"))) {
+                        for (JID member : groupInList.getMembers()) {
+                            contacts.add(member.toBareJID());
+                        }
+                        for (JID admin : groupInList.getAdmins()) {
+                            contacts.add(admin.toBareJID());
                         }
                     }
+                    sharedContactsCache.put(group.getName(), contacts);
                 }
             }
-            else if ("everybody".equals(showInRoster)) {
-                // Anyone can see this group so add the group to the answer
-                answer.add(group);
+        }
+        return contacts;
+    }
+
+    /**
+     * Removes from the indexes the entries that depend on the visibility of a shared group.
+     * The visibility is described by the specified properties, so callers can pass the
+     * values that the group had before being modified. Changes to groups that everybody
+     * may see affect every user so the whole index is cleared.
+     *
+     * @param group the shared group whose visibility may have changed.
+     * @param showInRoster the value of the <tt>sharedRoster.showInRoster</tt> property.
+     * @param groupNames the value of the <tt>sharedRoster.groupList</tt> property.
+     */
+    private void evictSharedGroup(Group group, String showInRoster, String groupNames) {
+        if ("everybody".equals(showInRoster)) {
+            sharedGroupsCache.clear();
+        }
+        else if ("onlyGroup".equals(showInRoster)) {
+            for (JID user : getAffectedUsers(group, showInRoster, groupNames)) {
+                evictSharedGroups(user);
             }
         }
-        return answer;
+        sharedContactsCache.remove(group.getName());
+    }
+
+    /**
+     * Removes from the indexes the entries that depend on the users of a group. Besides
+     * the user that was added or removed, the users of the shared groups listing the group
+     * in their <tt>sharedRoster.groupList</tt> property have changed.
+     *
+     * @param group the group whose users have changed.
+     * @param user the user that was added to or removed from the group.
+     */
+    private void evictGroupUser(Group group, JID user) {
+        evictSharedGroups(user);
+        for (Group visibleGroup : getVisibleGroups(group)) {
+            sharedContactsCache.remove(visibleGroup.getName());
+        }
+    }
+
+    private void evictSharedGroups(JID user) {
+        if (server.isLocal(user)) {
+            sharedGroupsCache.remove(user.getNode());
+        }
     }
 
     /**
@@ -263,7 +363,13 @@ public class RosterManager extends BasicModule implements GroupEventListener, Us
     }
 
     public void groupCreated(Group group, Map params) {
-        //Do nothing
+        // Groups may be created with their shared roster properties already set. Shared
+        // groups listing the new group may now be seen by its users
+        evictSharedGroup(group, group.getProperties().get("sharedRoster.showInRoster"),
+                group.getProperties().get("sharedRoster.groupList"));
+        for (Group visibleGroup : getVisibleGroups(group)) {
+            sharedContactsCache.remove(visibleGroup.getName());
+        }
     }
 
     public void groupDeleting(Group group, Map params) {
@@ -276,15 +382,28 @@ public class RosterManager extends BasicModule implements GroupEventListener, Us
         for (JID deletedUser : users) {
             groupUserDeleted(group, affectedUsers, deletedUser);
         }
+        // Update the indexes once the rosters no longer include the group
+        evictSharedGroup(group, group.getProperties().get("sharedRoster.showInRoster"),
+                group.getProperties().get("sharedRoster.groupList"));
+        for (JID deletedUser : users) {
+            evictGroupUser(group, deletedUser);
+        }
     }
 
     public void groupModified(Group group, Map params) {
+        String keyChanged = (String) params.get("propertyKey");
+        String originalValue = (String) params.get("originalValue");
+        // Renaming a group or removing its shared roster properties has an effect on an unknown
+        // number of entries (i.e. groups listing the old name) so the indexes are cleared
+        if ("nameModified".equals(params.get("type")) || ("propertyDeleted".equals(params.get("type"))
+                && keyChanged != null && keyChanged.startsWith("sharedRoster."))) {
+            sharedGroupsCache.clear();
+            sharedContactsCache.clear();
+        }
         // Do nothing if no group property has been modified
         if ("propertyDeleted".equals(params.get("type"))) {
              return;
         }
-        String keyChanged = (String) params.get("propertyKey");
-        String originalValue = (String) params.get("originalValue");
 
 
         if ("sharedRoster.showInRoster".equals(keyChanged)) {
@@ -293,6 +412,11 @@ public class RosterManager extends BasicModule implements GroupEventListener, Us
             if (currentValue.equals(originalValue)) {
                 return;
             }
+            // Users that could see the group before or can see the group now
+            evictSharedGroup(group, originalValue,
+                    group.getProperties().get("sharedRoster.groupList"));
+            evictSharedGroup(group, currentValue,
+                    group.getProperties().get("sharedRoster.groupList"));
             // Get the users of the group
             Collection<JID> users = new HashSet<JID>(group.getMembers());
             users.addAll(group.getAdmins());
@@ -316,6 +440,11 @@ public class RosterManager extends BasicModule implements GroupEventListener, Us
             if (currentValue.equals(originalValue)) {
                 return;
             }
+            // Users that could see the group before or can see the group now
+            evictSharedGroup(group, group.getProperties().get("sharedRoster.showInRoster"),
+                    originalValue);
+            evictSharedGroup(group, group.getProperties().get("sharedRoster.showInRoster"),
+                    currentValue);
             // Get the users of the group
             Collection<JID> users = new HashSet<JID>(group.getMembers());
             users.addAll(group.getAdmins());
@@ -428,6 +557,7 @@ public class RosterManager extends BasicModule implements GroupEventListener, Us
 
     public void memberAdded(Group group, Map params) {
         JID addedUser = new JID((String) params.get("member"));
+        evictGroupUser(group, addedUser);
         // Do nothing if the user was an admin that became a member
         if (group.getAdmins().contains(addedUser)) {
             return;
@@ -451,6 +581,7 @@ public class RosterManager extends BasicModule implements GroupEventListener, Us
             return;
         }
         JID deletedUser = new JID(member);
+        evictGroupUser(group, deletedUser);
         // Do nothing if the user is still an admin
         if (group.getAdmins().contains(deletedUser)) {
             return;
@@ -470,6 +601,7 @@ public class RosterManager extends BasicModule implements GroupEventListener, Us
 
     public void adminAdded(Group group, Map params) {
         JID addedUser = new JID((String) params.get("admin"));
+        evictGroupUser(group, addedUser);
         // Do nothing if the user was a member that became an admin
         if (group.getMembers().contains(addedUser)) {
             return;
@@ -489,6 +621,7 @@ public class RosterManager extends BasicModule implements GroupEventListener, Us
 
     public void adminRemoved(Group group, Map params) {
         JID deletedUser = new JID((String) params.get("admin"));
+        evictGroupUser(group, deletedUser);
         // Do nothing if the user is still a member
         if (group.getMembers().contains(deletedUser)) {
             return;
@@ -589,6 +722,7 @@ public class RosterManager extends BasicModule implements GroupEventListener, Us
         }
 
         deleteRoster(userJID);
+        sharedGroupsCache.remove(user.getUsername());
     }
 
     public void userModified(User user, Map<String,Object> params) {
@@ -765,13 +899,7 @@ public class RosterManager extends BasicModule implements GroupEventListener, Us
                  return true;
             }
             // Check if the user belongs to a group that may see this group
-            Collection<Group> groupList = parseGroups(group.getProperties().get(
-                    "sharedRoster.groupList"));
-            for (Group groupInList : groupList) {
-                if (groupInList.isUser(user)) {
-                    return true;
-                }
-            }
+            return getSharedContacts(group).contains(user.toBareJID());
         }
         return false;
     }
@@ -829,7 +957,6 @@ public class RosterManager extends BasicModule implements GroupEventListener, Us
 
     Collection<JID> getSharedUsersForRoster(Group group, Roster roster) {
         String showInRoster = group.getProperties().get("sharedRoster.showInRoster");
-        String groupNames = group.getProperties().get("sharedRoster.groupList");
 
         // Answer an empty collection if the group is not being shown in users' rosters
         if (!"onlyGroup".equals(showInRoster) && !"everybody".equals(showInRoster)) {
@@ -852,10 +979,8 @@ public class RosterManager extends BasicModule implements GroupEventListener, Us
             }
             else {
                 // Add the users that may see the group
-                Collection<Group> groupList = parseGroups(groupNames);
-                for (Group groupInList : groupList) {
-                    users.addAll(groupInList.getMembers());
-                    users.addAll(groupInList.getAdmins());
+                for (String contact : getSharedContacts(group)) {
+                    users.add(new JID(contact, true));
                 }
             }
         }
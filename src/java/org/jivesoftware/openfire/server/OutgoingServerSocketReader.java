@@ -38,7 +38,11 @@ import org.slf4j.LoggerFactory;
  * Authoritative Server verified the key sent by this server).<p>
  *
  * This class is also responsible for closing the outgoing connection if the remote server sent
- * an end of the stream element.
+ * an end of the stream element.<p>
+ *
+ * Readers created with an XMPPPacketReader use a dedicated thread for reading the elements.
+ * Readers of non-blocking connections do not have their own thread and are instead fed by
+ * the connection handler using {@link #elementReceived(Element)} and {@link #streamClosed()}.
  *
  * @author Gaston Dombiak
  */
@@ -59,6 +63,13 @@ public class OutgoingServerSocketReader {
         init();
     }
 
+    /**
+     * Creates a reader whose elements are provided by the connection handler of a
+     * non-blocking connection.
+     */
+    public OutgoingServerSocketReader() {
+    }
+
     /**
      * Returns the OutgoingServerSession for which this reader is working for or <tt>null</tt> if
      * a OutgoingServerSession was not created yet. While the OutgoingServerSession is being
@@ -94,6 +105,23 @@ public class OutgoingServerSocketReader {
         return elements.poll(timeout, unit);
     }
 
+    /**
+     * Queues an element that was received from the remote server.
+     *
+     * @param element the element sent by the remote server.
+     */
+    public void elementReceived(Element element) {
+        elements.add(element);
+    }
+
+    /**
+     * Closes the session since the remote server has sent an end of stream element
+     * or closed the connection.
+     */
+    public void streamClosed() {
+        closeSession();
+    }
+
     private void init() {
         // Create a thread that will read and store DOM Elements.
         Thread thread = new Thread("Outgoing Server Reader") {
@@ -21,7 +21,6 @@
 package org.jivesoftware.openfire.session;
 
 import org.dom4j.Element;
-import org.dom4j.tree.DefaultElement;
 import org.jivesoftware.util.cache.ExternalizableUtil;
 import org.xmpp.packet.Presence;
 
@@ -74,7 +73,7 @@ public class ClientSessionInfo implements Externalizable {
     }
 
     public void writeExternal(ObjectOutput out) throws IOException {
-        ExternalizableUtil.getInstance().writeSerializable(out, (DefaultElement) presence.getElement());
+        ExternalizableUtil.getInstance().writeElement(out, presence.getElement());
         ExternalizableUtil.getInstance().writeBoolean(out, defaultList != null);
         if (defaultList != null) {
             ExternalizableUtil.getInstance().writeSafeUTF(out, defaultList);
@@ -87,7 +86,7 @@ public class ClientSessionInfo implements Externalizable {
     }
 
     public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
-        Element packetElement = (Element) ExternalizableUtil.getInstance().readSerializable(in);
+        Element packetElement = ExternalizableUtil.getInstance().readElement(in);
         presence = new Presence(packetElement, true);
         if (ExternalizableUtil.getInstance().readBoolean(in)) {
             defaultList = ExternalizableUtil.getInstance().readSafeUTF(in);
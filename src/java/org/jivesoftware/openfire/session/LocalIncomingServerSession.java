@@ -102,8 +102,25 @@ public class LocalIncomingServerSession extends LocalServerSession implements In
      */
     public static LocalIncomingServerSession createSession(String serverName, XMPPPacketReader reader,
             SocketConnection connection) throws XmlPullParserException, IOException {
-        XmlPullParser xpp = reader.getXPPParser();
-                
+        return createSession(serverName, reader.getXPPParser(), connection);
+    }
+
+    /**
+     * Creates a new session that will receive packets. The parser must be positioned on the
+     * stream header sent by the remote server. The new session will be authenticated before
+     * being returned. If the authentication process fails then the answer will be <tt>null</tt>.
+     *
+     * @param serverName hostname of this server.
+     * @param xpp parser positioned on the stream header sent by the remote server.
+     * @param connection the new established connection with the remote server.
+     * @return a new session that will receive packets or null if a problem occured while
+     *         authenticating the remote server or when acting as the Authoritative Server during
+     *         a Server Dialback authentication process.
+     * @throws org.xmlpull.v1.XmlPullParserException if an error occurs while parsing the XML.
+     * @throws java.io.IOException if an input/output error occurs while using the connection.
+     */
+    public static LocalIncomingServerSession createSession(String serverName, XmlPullParser xpp,
+            Connection connection) throws XmlPullParserException, IOException {
         String version = xpp.getAttributeValue("", "version");
         int[] serverVersion = version != null ? decodeVersion(version) : new int[] {0,0};
         
@@ -29,6 +29,7 @@ import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 
 import javax.net.ssl.SSLHandshakeException;
@@ -46,6 +47,8 @@ import org.jivesoftware.openfire.net.DNSUtil;
 import org.jivesoftware.openfire.net.MXParser;
 import org.jivesoftware.openfire.net.SASLAuthentication;
 import org.jivesoftware.openfire.net.SocketConnection;
+import org.jivesoftware.openfire.nio.NIOConnection;
+import org.jivesoftware.openfire.nio.OutgoingServerConnectionHandler;
 import org.jivesoftware.openfire.server.OutgoingServerSocketReader;
 import org.jivesoftware.openfire.server.RemoteServerConfiguration;
 import org.jivesoftware.openfire.server.RemoteServerManager;
@@ -206,6 +209,10 @@ public class LocalOutgoingServerSession extends LocalServerSession implements Ou
     private static LocalOutgoingServerSession createOutgoingSession(String domain, String hostname,
             int port) {
 
+        if (JiveGlobals.getBooleanProperty(ConnectionSettings.Server.NIO_ENABLED, false)) {
+            return createOutgoingNIOSession(domain, hostname, port);
+        }
+
         String localDomainName = XMPPServer.getInstance().getServerInfo().getXMPPDomain();
         boolean useTLS = JiveGlobals.getBooleanProperty(ConnectionSettings.Server.TLS_ENABLED, true);
         RemoteServerConfiguration configuration = RemoteServerManager.getConfiguration(hostname);
@@ -366,6 +373,227 @@ public class LocalOutgoingServerSession extends LocalServerSession implements Ou
         return null;
     }
 
+    /**
+     * Establishes a new outgoing session to a remote server using a non-blocking connection.
+     * The stream is negotiated like {@link #createOutgoingSession(String, String, int)} does,
+     * except that elements sent by the remote server are read by the shared threads of
+     * {@link OutgoingServerConnectionHandler} and stream compression is never requested.
+     * Server dialback with remote servers that are not XMPP 1.0 compliant still uses a
+     * blocking connection.
+     *
+     * @param domain the local domain to authenticate with the remote server.
+     * @param hostname the hostname of the remote server.
+     * @param port default port to use to establish the connection.
+     * @return new outgoing session to a remote server.
+     */
+    private static LocalOutgoingServerSession createOutgoingNIOSession(String domain, String hostname,
+            int port) {
+
+        String localDomainName = XMPPServer.getInstance().getServerInfo().getXMPPDomain();
+        boolean useTLS = JiveGlobals.getBooleanProperty(ConnectionSettings.Server.TLS_ENABLED, true);
+
+        // Connect to remote server using XMPP 1.0 (TLS + SASL EXTERNAL or TLS + server dialback or server dialback)
+        String realHostname = null;
+        int realPort = port;
+        NIOConnection connection = null;
+        OutgoingServerSocketReader socketReader = null;
+        // Get a list of real hostnames to connect to using DNS lookup of the specified hostname
+        for (DNSUtil.HostAddress address : DNSUtil.resolveXMPPDomain(hostname, port)) {
+            realHostname = address.getHost();
+            realPort = address.getPort();
+            Log.debug("LocalOutgoingServerSession: OS - Trying to connect to " + hostname + ":" + port +
+                    "(DNS lookup: " + realHostname + ":" + realPort + ")");
+            try {
+                // Establish a TCP connection to the Receiving Server
+                socketReader = new OutgoingServerSocketReader();
+                connection = new OutgoingServerConnectionHandler(localDomainName, socketReader)
+                        .connect(new InetSocketAddress(realHostname, realPort), RemoteServerManager.getSocketTimeout());
+                Log.debug("LocalOutgoingServerSession: OS - Plain connection to " + hostname + ":" + port + " successful");
+                break;
+            }
+            catch (Exception e) {
+                Log.warn("Error trying to connect to remote server: " + hostname +
+                        "(DNS lookup: " + realHostname + ":" + realPort + "): " + e.toString());
+            }
+        }
+        if (connection == null) {
+            return null;
+        }
+
+        try {
+            // Send the stream header
+            StringBuilder openingStream = new StringBuilder();
+            openingStream.append("<stream:stream");
+            openingStream.append(" xmlns:db=\"jabber:server:dialback\"");
+            openingStream.append(" xmlns:stream=\"http://etherx.jabber.org/streams\"");
+            openingStream.append(" xmlns=\"jabber:server\"");
+            openingStream.append(" from=\"").append(localDomainName).append("\""); // OF-673
+            openingStream.append(" to=\"").append(hostname).append("\"");
+            openingStream.append(" version=\"1.0\">");
+            connection.deliverRawText(openingStream.toString());
+
+            // Get the answer from the Receiving Server (waiting 5 seconds so we don't keep waiting forever)
+            Element stream = socketReader.getElement(5000, TimeUnit.MILLISECONDS);
+            String serverVersion = stream != null ? stream.attributeValue("version") : null;
+
+            // Check if the remote server is XMPP 1.0 compliant
+            if (serverVersion != null && decodeVersion(serverVersion)[0] >= 1) {
+                String id = stream.attributeValue("id");
+                // Get the stream features
+                Element features = socketReader.getElement(RemoteServerManager.getSocketTimeout(),
+                        TimeUnit.MILLISECONDS);
+                if (features != null) {
+                    // Check if TLS is enabled
+                    if (useTLS && features.element("starttls") != null) {
+                        // Secure the connection with TLS and authenticate using SASL
+                        LocalOutgoingServerSession answer;
+                        answer = secureAndAuthenticate(hostname, connection, socketReader, openingStream,
+                                domain);
+                        if (answer != null) {
+                            // Everything went fine so return the secured and
+                            // authenticated connection
+                            return answer;
+                        }
+                    }
+                    // Check if we are going to try server dialback (XMPP 1.0)
+                    else if (ServerDialback.isEnabled() && features.element("dialback") != null) {
+                        Log.debug("LocalOutgoingServerSession: OS - About to try connecting using server dialback XMPP 1.0 with: " + hostname);
+                        ServerDialback method = new ServerDialback(connection, domain);
+                        if (method.authenticateDomain(socketReader, domain, hostname, id)) {
+                            Log.debug("LocalOutgoingServerSession: OS - SERVER DIALBACK XMPP 1.0 with " + hostname + " was successful");
+                            StreamID streamID = new BasicStreamIDFactory().createStreamID(id);
+                            LocalOutgoingServerSession session = new LocalOutgoingServerSession(domain, connection, socketReader, streamID);
+                            connection.init(session);
+                            // Set the hostname as the address of the session
+                            session.setAddress(new JID(null, hostname, null));
+                            return session;
+                        }
+                        else {
+                            Log.debug("LocalOutgoingServerSession: OS - Error, SERVER DIALBACK with " + hostname + " failed");
+                        }
+                    }
+                }
+                else {
+                    Log.debug("LocalOutgoingServerSession: OS - Error, <starttls> was not received");
+                }
+            }
+        }
+        catch (Exception e) {
+            Log.error("Error creating secured outgoing session to remote server: " + hostname +
+                    "(DNS lookup: " + realHostname + ":" + realPort + "): " + e.toString());
+        }
+        // Something went wrong so close the connection and try server dialback over
+        // a plain connection
+        connection.close();
+
+        if (ServerDialback.isEnabled()) {
+            Log.debug("LocalOutgoingServerSession: OS - Going to try connecting using server dialback with: " + hostname);
+            // Use server dialback (pre XMPP 1.0) over a plain connection
+            return new ServerDialback().createOutgoingSession(domain, hostname, port);
+        }
+        return null;
+    }
+
+    private static LocalOutgoingServerSession secureAndAuthenticate(String hostname,
+            NIOConnection connection, OutgoingServerSocketReader socketReader, StringBuilder openingStream,
+            String domain) throws Exception {
+    	final Logger log = LoggerFactory.getLogger(LocalOutgoingServerSession.class.getName()+"['"+hostname+"']");
+        final int timeout = RemoteServerManager.getSocketTimeout();
+        log.debug("Indicating we want TLS to " + hostname);
+        connection.deliverRawText("<starttls xmlns='urn:ietf:params:xml:ns:xmpp-tls'/>");
+
+        // Wait for the <proceed> response
+        Element proceed = socketReader.getElement(timeout, TimeUnit.MILLISECONDS);
+        if (proceed == null || !proceed.getName().equals("proceed")) {
+            log.debug("Error, <proceed> was not received!");
+            return null;
+        }
+        log.debug("Negotiating TLS...");
+        boolean needed = JiveGlobals.getBooleanProperty(ConnectionSettings.Server.TLS_CERTIFICATE_VERIFY, true) &&
+                		 JiveGlobals.getBooleanProperty(ConnectionSettings.Server.TLS_CERTIFICATE_CHAIN_VERIFY, true) &&
+                		 !JiveGlobals.getBooleanProperty(ConnectionSettings.Server.TLS_ACCEPT_SELFSIGNED_CERTS, false);
+        connection.startTLS(true, hostname, needed ? Connection.ClientAuth.needed : Connection.ClientAuth.wanted);
+
+        // Initiate a new stream. The stream header is sent once the TLS handshake is over, so
+        // the new stream header of the remote server also tells that TLS negotiation was successful.
+        connection.deliverRawText(openingStream.toString());
+        Element stream = socketReader.getElement(timeout, TimeUnit.MILLISECONDS);
+        if (stream == null || !"stream".equals(stream.getName())) {
+            log.debug("Error, TLS negotiation failed or no stream header was received.");
+            return null;
+        }
+        log.debug("TLS negotiation was successful.");
+        if (!SASLAuthentication.verifyCertificates(connection.getPeerCertificates(), hostname)) {
+            log.debug("X.509/PKIX failure on outbound session");
+            if (ServerDialback.isEnabled() || ServerDialback.isEnabledForSelfSigned()) {
+                log.debug("Will continue with dialback.");
+            } else {
+                log.warn("No TLS auth, but TLS auth required.");
+                return null;
+            }
+        }
+        // Get the stream ID
+        String id = stream.attributeValue("id");
+        // Get new stream features
+        Element features = socketReader.getElement(timeout, TimeUnit.MILLISECONDS);
+        if (features == null) {
+            log.debug("Cannot create outgoing server session, as neither SASL mechanisms nor SERVER DIALBACK were offered by " + hostname);
+            return null;
+        }
+
+        // Bookkeeping: determine what functionality the remote server offers.
+        boolean saslEXTERNALoffered = false;
+        if (features.element("mechanisms") != null) {
+            Iterator<Element> it = features.element("mechanisms").elementIterator();
+            while (it.hasNext()) {
+                Element mechanism = it.next();
+                if ("EXTERNAL".equals(mechanism.getTextTrim())) {
+                    saslEXTERNALoffered = true;
+                    break;
+                }
+            }
+        }
+        final boolean dialbackOffered = features.element("dialback") != null;
+
+        log.debug("Offering dialback functionality: {}",dialbackOffered);
+        log.debug("Offering EXTERNAL SASL: {}", saslEXTERNALoffered);
+
+        // first, try SASL
+        if (saslEXTERNALoffered) {
+            log.debug("Starting EXTERNAL SASL.");
+            StringBuilder sb = new StringBuilder();
+            sb.append("<auth xmlns=\"urn:ietf:params:xml:ns:xmpp-sasl\" mechanism=\"EXTERNAL\">");
+            sb.append(StringUtils.encodeBase64(domain));
+            sb.append("</auth>");
+            connection.deliverRawText(sb.toString());
+
+            Element response = socketReader.getElement(timeout, TimeUnit.MILLISECONDS);
+            if (response != null && "success".equals(response.getName())) {
+                log.debug("EXTERNAL SASL was successful.");
+                // SASL was successful so initiate a new stream
+                connection.deliverRawText(openingStream.toString());
+                stream = socketReader.getElement(timeout, TimeUnit.MILLISECONDS);
+                if (stream == null) {
+                    log.debug("Error, no stream header was received after EXTERNAL SASL.");
+                    return null;
+                }
+                // SASL authentication was successful so create new OutgoingServerSession
+                StreamID streamID = new BasicStreamIDFactory().createStreamID(stream.attributeValue("id"));
+                LocalOutgoingServerSession session = new LocalOutgoingServerSession(domain,
+                        connection, socketReader, streamID);
+                connection.init(session);
+                // Set the hostname as the address of the session
+                session.setAddress(new JID(null, hostname, null));
+                // Set that the session was created using TLS+SASL (no server dialback)
+                session.usingServerDialback = false;
+                return session;
+            }
+            log.debug("EXTERNAL SASL failed.");
+        }
+        // SASL unavailable or failed, try dialback.
+        return attemptDialbackOverTLS(connection, null, socketReader, domain, hostname, id);
+    }
+
     private static LocalOutgoingServerSession secureAndAuthenticate(String hostname,
             SocketConnection connection, XMPPPacketReader reader, StringBuilder openingStream,
             String domain) throws Exception {
@@ -500,7 +728,7 @@ public class LocalOutgoingServerSession extends LocalServerSession implements Ou
             	}
             	if (result == null) {
             		// SASL unavailable or failed, try dialback.
-            		result = attemptDialbackOverTLS(connection, reader, domain, hostname, id);
+            		result = attemptDialbackOverTLS(connection, reader, null, domain, hostname, id);
             	}
                 
                 return result;
@@ -516,12 +744,19 @@ public class LocalOutgoingServerSession extends LocalServerSession implements Ou
         }
     }
 
-    private static LocalOutgoingServerSession attemptDialbackOverTLS(Connection connection, XMPPPacketReader reader, String domain, String hostname, String id) {
+    /**
+     * Authenticates the domain using server dialback. The elements sent by the remote server
+     * are read by a new thread that uses the specified XMPPPacketReader, unless a socket reader
+     * is specified, as is the case of non-blocking connections.
+     */
+    private static LocalOutgoingServerSession attemptDialbackOverTLS(Connection connection, XMPPPacketReader reader, OutgoingServerSocketReader newSocketReader, String domain, String hostname, String id) {
     	final Logger log = LoggerFactory.getLogger(LocalOutgoingServerSession.class.getName()+"['"+hostname+"']");
         if (ServerDialback.isEnabled() || ServerDialback.isEnabledForSelfSigned()) {
             log.debug("Trying to connecting using dialback over TLS.");
             ServerDialback method = new ServerDialback(connection, domain);
-            OutgoingServerSocketReader newSocketReader = new OutgoingServerSocketReader(reader);
+            if (newSocketReader == null) {
+                newSocketReader = new OutgoingServerSocketReader(reader);
+            }
             if (method.authenticateDomain(newSocketReader, domain, hostname, id)) {
                 log.debug("Dialback over TLS was successful.");
                 StreamID streamID = new BasicStreamIDFactory().createStreamID(id);
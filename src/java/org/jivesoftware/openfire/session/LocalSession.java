@@ -32,6 +32,7 @@ import org.jivesoftware.openfire.interceptor.InterceptorManager;
 import org.jivesoftware.openfire.interceptor.PacketRejectedException;
 import org.jivesoftware.openfire.net.SocketConnection;
 import org.jivesoftware.openfire.net.TLSStreamHandler;
+import org.jivesoftware.openfire.nio.NIOConnection;
 import org.jivesoftware.openfire.spi.RoutingTableImpl;
 import org.jivesoftware.util.LocaleUtils;
 import org.slf4j.Logger;
@@ -397,6 +398,10 @@ public abstract class LocalSession implements Session {
      * @return String
      */
     public String getCipherSuiteName() {
+        if (getConnection() instanceof NIOConnection) {
+            SSLSession ssl = ((NIOConnection) getConnection()).getSSLSession();
+            return ssl != null ? ssl.getCipherSuite() : "NONE";
+        }
         SocketConnection s = (SocketConnection)getConnection();
         if (s != null) {
             TLSStreamHandler t = s.getTLSStreamHandler();
@@ -86,6 +86,8 @@ import org.jivesoftware.openfire.net.StalledSessionsFilter;
 import org.jivesoftware.openfire.nio.ClientConnectionHandler;
 import org.jivesoftware.openfire.nio.ComponentConnectionHandler;
 import org.jivesoftware.openfire.nio.MultiplexerConnectionHandler;
+import org.jivesoftware.openfire.nio.OutgoingServerConnectionHandler;
+import org.jivesoftware.openfire.nio.ServerConnectionHandler;
 import org.jivesoftware.openfire.nio.XMPPCodecFactory;
 import org.jivesoftware.openfire.session.ConnectionSettings;
 import org.jivesoftware.util.CertificateEventListener;
@@ -103,6 +105,7 @@ public class ConnectionManagerImpl extends BasicModule implements ConnectionMana
     private SocketAcceptor sslSocketAcceptor;
     private SocketAcceptor componentAcceptor;
     private SocketAcceptThread serverSocketThread;
+    private SocketAcceptor serverAcceptor;
     private SocketAcceptor multiplexerSocketAcceptor;
     private ArrayList<ServerPort> ports;
 
@@ -184,6 +187,22 @@ public class ConnectionManagerImpl extends BasicModule implements ConnectionMana
     private void createServerListener(String localIPAddress) {
         // Start servers socket unless it's been disabled.
         if (isServerListenerEnabled()) {
+            if (JiveGlobals.getBooleanProperty(ConnectionSettings.Server.NIO_ENABLED, false)) {
+                // Create SocketAcceptor with correct number of processors
+                serverAcceptor = buildSocketAcceptor("server");
+                // Customize Executor that will be used by processors to process incoming stanzas
+                ExecutorThreadModel threadModel = ExecutorThreadModel.getInstance("server");
+                int eventThreads = JiveGlobals.getIntProperty("xmpp.server.processing.threads", 16);
+                ThreadPoolExecutor eventExecutor = (ThreadPoolExecutor)threadModel.getExecutor();
+                eventExecutor.setCorePoolSize(eventThreads + 1);
+                eventExecutor.setMaximumPoolSize(eventThreads + 1);
+                eventExecutor.setKeepAliveTime(60, TimeUnit.SECONDS);
+
+                serverAcceptor.getDefaultConfig().setThreadModel(threadModel);
+                // Add the XMPP codec filter
+                serverAcceptor.getFilterChain().addFirst("xmpp", new ProtocolCodecFilter(new XMPPCodecFactory()));
+                return;
+            }
             int port = getServerListenerPort();
             try {
                 serverSocketThread = new SocketAcceptThread(this, new ServerPort(port, serverName,
@@ -204,6 +223,32 @@ public class ConnectionManagerImpl extends BasicModule implements ConnectionMana
         // Start servers socket unless it's been disabled.
         if (isServerListenerEnabled()) {
             int port = getServerListenerPort();
+            if (serverAcceptor != null) {
+                try {
+                    // Listen on a specific network interface if it has been set.
+                    String interfaceName = JiveGlobals.getXMLProperty("network.interface");
+                    InetAddress bindInterface = null;
+                    if (interfaceName != null) {
+                        if (interfaceName.trim().length() > 0) {
+                            bindInterface = InetAddress.getByName(interfaceName);
+                        }
+                    }
+                    // Start accepting connections
+                    serverAcceptor.bind(new InetSocketAddress(bindInterface, port), new ServerConnectionHandler(serverName));
+
+                    ports.add(new ServerPort(port, serverName, localIPAddress, false, null, ServerPort.Type.server));
+
+                    List<String> params = new ArrayList<String>();
+                    params.add(Integer.toString(port));
+                    Log.info(LocaleUtils.getLocalizedString("startup.server", params));
+                }
+                catch (Exception e) {
+                    System.err.println("Error starting server listener on port " + port + ": " +
+                            e.getMessage());
+                    Log.error(LocaleUtils.getLocalizedString("admin.error.socket-setup"), e);
+                }
+                return;
+            }
             try {
                 serverSocketThread.start();
 
@@ -225,6 +270,16 @@ public class ConnectionManagerImpl extends BasicModule implements ConnectionMana
             ports.remove(serverSocketThread.getServerPort());
             serverSocketThread = null;
         }
+        if (serverAcceptor != null) {
+            serverAcceptor.unbindAll();
+            for (ServerPort port : ports) {
+                if (port.isServerPort()) {
+                    ports.remove(port);
+                    break;
+                }
+            }
+            serverAcceptor = null;
+        }
     }
 
     private void createConnectionManagerListener() {
@@ -924,6 +979,7 @@ public class ConnectionManagerImpl extends BasicModule implements ConnectionMana
         stopComponentListener();
         stopConnectionManagerListener();
         stopServerListener();
+        OutgoingServerConnectionHandler.shutdown();
         HttpBindManager.getInstance().stop();
         SocketSendingTracker.getInstance().shutdown();
         CertificateManager.removeListener(this);
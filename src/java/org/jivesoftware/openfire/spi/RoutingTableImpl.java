@@ -34,6 +34,7 @@ import org.jivesoftware.openfire.forward.Forwarded;
 import org.jivesoftware.openfire.handler.PresenceUpdateHandler;
 import org.jivesoftware.openfire.server.OutgoingSessionPromise;
 import org.jivesoftware.openfire.session.*;
+import org.jivesoftware.openfire.stats.PacketLatency;
 import org.jivesoftware.util.ConcurrentHashSet;
 import org.jivesoftware.util.JiveGlobals;
 import org.jivesoftware.util.cache.Cache;
@@ -220,6 +221,109 @@ public class RoutingTableImpl extends BasicModule implements RoutingTable, Clust
         }
     }
 
+    public void broadcastPresence(Collection<JID> recipients, Presence packet) {
+        long start = PacketLatency.start();
+        try {
+            // Bare JIDs of the users of the local domain, whose routes are resolved in bulk
+            List<String> users = new ArrayList<String>(recipients.size());
+            for (JID recipient : recipients) {
+                if (serverName.equals(recipient.getDomain()) && recipient.getResource() == null) {
+                    users.add(recipient.toBareJID());
+                }
+                else {
+                    // Presence sent to a component or to a remote server
+                    packet.setTo(recipient);
+                    for (JID jid : getRoutes(recipient, null)) {
+                        try {
+                            route(jid, packet, false);
+                        }
+                        catch (Exception e) {
+                            // Theoretically only happens if session has been closed.
+                            Log.debug(e.getMessage(), e);
+                        }
+                    }
+                }
+            }
+            if (!users.isEmpty()) {
+                broadcastPresenceToUsers(users, packet);
+            }
+        }
+        finally {
+            PacketLatency.record(PacketLatency.Stage.routingTable, packet, start);
+        }
+    }
+
+    /**
+     * Routes a presence to the available sessions of the specified users of the local domain.
+     * The sessions of all the users are fetched with one bulk lookup and their routes with
+     * another one. Sessions hosted in this node get the presence right away while the sessions
+     * hosted in other nodes are grouped by node and get the presence with one request per node.
+     *
+     * @param users the bare JIDs of the users.
+     * @param packet the presence to route.
+     */
+    private void broadcastPresenceToUsers(List<String> users, Presence packet) {
+        List<String> fullJIDs = new ArrayList<String>();
+        for (Collection<String> sessions : usersSessions.getAll(users).values()) {
+            fullJIDs.addAll(sessions);
+        }
+        if (fullJIDs.isEmpty()) {
+            return;
+        }
+        Map<String, ClientRoute> routes = new HashMap<String, ClientRoute>(usersCache.getAll(fullJIDs));
+        if (routes.size() < fullJIDs.size()) {
+            List<String> anonymous = new ArrayList<String>();
+            for (String jid : fullJIDs) {
+                if (!routes.containsKey(jid)) {
+                    anonymous.add(jid);
+                }
+            }
+            routes.putAll(anonymousUsersCache.getAll(anonymous));
+        }
+
+        Map<NodeID, List<JID>> remoteRecipients = new HashMap<NodeID, List<JID>>();
+        for (Map.Entry<String, ClientRoute> entry : routes.entrySet()) {
+            ClientRoute clientRoute = entry.getValue();
+            if (!clientRoute.isAvailable()) {
+                // Presences are only sent to available sessions
+                continue;
+            }
+            JID jid = new JID(entry.getKey());
+            RoutableChannelHandler route = localRoutingTable.getRoute(entry.getKey());
+            if (route != null) {
+                // This is a route to a local user hosted in this node
+                packet.setTo(jid.asBareJID());
+                try {
+                    route.process(packet);
+                }
+                catch (UnauthorizedException e) {
+                    Log.error("Unable to route packet " + packet.toXML(), e);
+                }
+                catch (Exception e) {
+                    // Theoretically only happens if session has been closed.
+                    Log.debug(e.getMessage(), e);
+                }
+            }
+            else if (remotePacketRouter != null) {
+                // This is a route to a local user hosted in other node
+                List<JID> recipients = remoteRecipients.get(clientRoute.getNodeID());
+                if (recipients == null) {
+                    recipients = new ArrayList<JID>();
+                    remoteRecipients.put(clientRoute.getNodeID(), recipients);
+                }
+                recipients.add(jid);
+            }
+        }
+
+        if (!remoteRecipients.isEmpty()) {
+            for (NodeID nodeID : remotePacketRouter.broadcastPresence(remoteRecipients, packet)) {
+                for (JID jid : remoteRecipients.get(nodeID)) {
+                    removeClientRoute(jid); // drop invalid client route
+                }
+            }
+        }
+    }
+
     /*
      * (non-Javadoc)
      * @see org.jivesoftware.openfire.RoutingTable#routePacket(org.xmpp.packet.JID, org.xmpp.packet.Packet, boolean)
@@ -232,6 +336,16 @@ public class RoutingTableImpl extends BasicModule implements RoutingTable, Clust
      *      session being shutdown).
      */
     public void routePacket(JID jid, Packet packet, boolean fromServer) throws PacketException {
+        long start = PacketLatency.start();
+        try {
+            route(jid, packet, fromServer);
+        }
+        finally {
+            PacketLatency.record(PacketLatency.Stage.routingTable, packet, start);
+        }
+    }
+
+    private void route(JID jid, Packet packet, boolean fromServer) throws PacketException {
         boolean routed = false;
         if (serverName.equals(jid.getDomain())) {
         	// Packet sent to our domain.
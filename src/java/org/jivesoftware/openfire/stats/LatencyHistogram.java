@@ -0,0 +1,156 @@
+/**
+ * Copyright (C) 2004-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.stats;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of latencies. Latencies are recorded in nanoseconds into buckets
+ * whose width grows with the value, in the style of HdrHistogram: every power of two is
+ * split in {@value #SUB_BUCKETS} linear buckets, so any recorded value is known with a
+ * relative error below 1/{@value #SUB_BUCKETS} (about 6%) whatever its magnitude.<p>
+ *
+ * Recording a value is a few atomic increments and never blocks or allocates, so many
+ * threads may record values at the same time. Values are reported in microseconds.
+ */
+public class LatencyHistogram implements LatencyHistogramMBean {
+
+    private static final int SUB_BUCKET_BITS = 4;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * Number of buckets needed to hold any positive long.
+     */
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records the specified latency. Negative latencies are recorded as zero.
+     *
+     * @param nanos the latency in nanoseconds.
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        counts.incrementAndGet(bucket(nanos));
+        count.incrementAndGet();
+        total.addAndGet(nanos);
+        long current;
+        while (nanos > (current = max.get())) {
+            if (max.compareAndSet(current, nanos)) {
+                break;
+            }
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public double getMean() {
+        long n = count.get();
+        return n == 0 ? 0 : total.get() / (n * 1000d);
+    }
+
+    public double getMax() {
+        return max.get() / 1000d;
+    }
+
+    public double getPercentile50() {
+        return getValueAtPercentile(50);
+    }
+
+    public double getPercentile90() {
+        return getValueAtPercentile(90);
+    }
+
+    public double getPercentile99() {
+        return getValueAtPercentile(99);
+    }
+
+    public double getPercentile999() {
+        return getValueAtPercentile(99.9);
+    }
+
+    /**
+     * Returns the latency in microseconds that the specified percentage of the recorded
+     * latencies do not exceed. The returned value is the highest value of the bucket that
+     * holds the percentile, capped to the maximum recorded latency.
+     *
+     * @param percentile the percentile (e.g. 99.9).
+     * @return the latency at the specified percentile or zero if nothing was recorded.
+     */
+    public double getValueAtPercentile(double percentile) {
+        long[] snapshot = new long[BUCKETS];
+        long n = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            n += snapshot[i];
+        }
+        if (n == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(Math.min(percentile, 100) / 100 * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                long value = i == BUCKETS - 1 ? Long.MAX_VALUE : lowestValue(i + 1) - 1;
+                return Math.min(value, max.get()) / 1000d;
+            }
+        }
+        return getMax();
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        count.set(0);
+        total.set(0);
+        max.set(0);
+    }
+
+    /**
+     * Returns the index of the bucket of the specified non-negative value.
+     */
+    static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return ((shift + 1) << SUB_BUCKET_BITS) + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    /**
+     * Returns the lowest value that is recorded in the specified bucket.
+     */
+    static long lowestValue(int bucket) {
+        if (bucket < 2 * SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = (bucket >> SUB_BUCKET_BITS) - 1;
+        return ((long) (SUB_BUCKETS + (bucket & (SUB_BUCKETS - 1)))) << shift;
+    }
+}
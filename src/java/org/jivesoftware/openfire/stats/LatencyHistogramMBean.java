@@ -0,0 +1,77 @@
+/**
+ * Copyright (C) 2004-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.stats;
+
+/**
+ * JMX view of a {@link LatencyHistogram}. All the latencies are in microseconds.
+ */
+public interface LatencyHistogramMBean {
+
+    /**
+     * Returns the number of recorded latencies.
+     *
+     * @return the number of recorded latencies.
+     */
+    long getCount();
+
+    /**
+     * Returns the mean of the recorded latencies.
+     *
+     * @return the mean of the recorded latencies.
+     */
+    double getMean();
+
+    /**
+     * Returns the highest recorded latency.
+     *
+     * @return the highest recorded latency.
+     */
+    double getMax();
+
+    /**
+     * Returns the median of the recorded latencies.
+     *
+     * @return the median of the recorded latencies.
+     */
+    double getPercentile50();
+
+    /**
+     * Returns the 90th percentile of the recorded latencies.
+     *
+     * @return the 90th percentile of the recorded latencies.
+     */
+    double getPercentile90();
+
+    /**
+     * Returns the 99th percentile of the recorded latencies.
+     *
+     * @return the 99th percentile of the recorded latencies.
+     */
+    double getPercentile99();
+
+    /**
+     * Returns the 99.9th percentile of the recorded latencies.
+     *
+     * @return the 99.9th percentile of the recorded latencies.
+     */
+    double getPercentile999();
+
+    /**
+     * Discards all the recorded latencies.
+     */
+    void reset();
+}
@@ -0,0 +1,327 @@
+/**
+ * Copyright (C) 2004-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.stats;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.jivesoftware.util.JiveGlobals;
+import org.jivesoftware.util.PropertyEventDispatcher;
+import org.jivesoftware.util.PropertyEventListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xmpp.packet.IQ;
+import org.xmpp.packet.Message;
+import org.xmpp.packet.Packet;
+import org.xmpp.packet.Presence;
+
+/**
+ * Latency histograms of the stages of the packet pipeline, per packet type. Stages are
+ * nested: the time spent processing a read stanza includes the time spent by the
+ * interceptors and the routers, which includes the time spent by the routing table,
+ * which includes the time spent delivering the packet.<p>
+ *
+ * Stages measure their latency with:
+ * <pre>
+ *     long start = PacketLatency.start();
+ *     ...
+ *     PacketLatency.record(PacketLatency.Stage.routingTable, packet, start);
+ * </pre>
+ *
+ * Sampling is disabled by default, in which case measuring a stage costs the read of a
+ * volatile field. It is enabled with the <tt>xmpp.stats.latency.enabled</tt> property;
+ * <tt>xmpp.stats.latency.sampleInterval</tt> makes stages sample one in that many packets
+ * (default 1, every packet). The histograms are registered as MBeans named
+ * <tt>org.jivesoftware.openfire:type=PacketLatency,stage=&lt;stage&gt;,packet=&lt;type&gt;</tt>
+ * when JMX is enabled.
+ */
+public class PacketLatency {
+
+	private static final Logger Log = LoggerFactory.getLogger(PacketLatency.class);
+
+    private static final String ENABLED_PROPERTY = "xmpp.stats.latency.enabled";
+    private static final String SAMPLE_INTERVAL_PROPERTY = "xmpp.stats.latency.sampleInterval";
+
+    /**
+     * Stages of the packet pipeline.
+     */
+    public enum Stage {
+        /**
+         * Parsing and processing of a stanza read from a connection.
+         */
+        stanzaHandler,
+        /**
+         * Interceptors invoked before a packet is processed.
+         */
+        interceptorsPre,
+        /**
+         * Interceptors invoked after a packet was processed.
+         */
+        interceptorsPost,
+        /**
+         * Routing of IQ packets.
+         */
+        iqRouter,
+        /**
+         * Routing of message packets.
+         */
+        messageRouter,
+        /**
+         * Routing of presence packets.
+         */
+        presenceRouter,
+        /**
+         * Lookup of the route of a packet and delivery to the route.
+         */
+        routingTable,
+        /**
+         * Serialization of a packet to a connection.
+         */
+        deliver
+    }
+
+    /**
+     * Types of packets.
+     */
+    public enum Type {
+        iq, message, presence;
+
+        /**
+         * Returns the type of the specified packet.
+         *
+         * @param packet the packet.
+         * @return the type of the packet.
+         */
+        public static Type of(Packet packet) {
+            if (packet instanceof Message) {
+                return message;
+            }
+            else if (packet instanceof Presence) {
+                return presence;
+            }
+            else if (packet instanceof IQ) {
+                return iq;
+            }
+            return null;
+        }
+
+        /**
+         * Returns the type of the packets with the specified element name.
+         *
+         * @param elementName the name of the stanza element.
+         * @return the type of packet or <tt>null</tt> if the element is not a packet.
+         */
+        public static Type of(String elementName) {
+            if ("message".equals(elementName)) {
+                return message;
+            }
+            else if ("presence".equals(elementName)) {
+                return presence;
+            }
+            else if ("iq".equals(elementName)) {
+                return iq;
+            }
+            return null;
+        }
+    }
+
+    private static final LatencyHistogram[][] histograms =
+            new LatencyHistogram[Stage.values().length][Type.values().length];
+
+    private static volatile boolean enabled;
+    private static volatile int sampleInterval;
+
+    static {
+        for (Stage stage : Stage.values()) {
+            for (Type type : Type.values()) {
+                histograms[stage.ordinal()][type.ordinal()] = new LatencyHistogram();
+            }
+        }
+        enabled = JiveGlobals.getBooleanProperty(ENABLED_PROPERTY, false);
+        sampleInterval = JiveGlobals.getIntProperty(SAMPLE_INTERVAL_PROPERTY, 1);
+        // Listen for changes to these properties
+        PropertyEventDispatcher.addListener(new PropertyListener());
+    }
+
+    private PacketLatency() {
+    }
+
+    /**
+     * Returns the start time of a stage that is going to be measured, or zero if the stage
+     * should not be measured because sampling is disabled or the packet was not sampled.
+     *
+     * @return the start time of the stage or zero.
+     */
+    public static long start() {
+        if (!enabled) {
+            return 0;
+        }
+        int interval = sampleInterval;
+        if (interval > 1 && ThreadLocalRandom.current().nextInt(interval) != 0) {
+            return 0;
+        }
+        return System.nanoTime();
+    }
+
+    /**
+     * Records the latency of a stage for the specified packet.
+     *
+     * @param stage the measured stage.
+     * @param packet the packet that went through the stage.
+     * @param start the value returned by {@link #start()} when the stage started.
+     */
+    public static void record(Stage stage, Packet packet, long start) {
+        if (start != 0) {
+            record(stage, Type.of(packet), start);
+        }
+    }
+
+    /**
+     * Records the latency of a stage for the specified type of packet.
+     *
+     * @param stage the measured stage.
+     * @param type the type of the packet that went through the stage or <tt>null</tt> if
+     *        the stage did not process a packet, in which case nothing is recorded.
+     * @param start the value returned by {@link #start()} when the stage started.
+     */
+    public static void record(Stage stage, Type type, long start) {
+        if (start != 0 && type != null) {
+            histograms[stage.ordinal()][type.ordinal()].record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Returns the latency histogram of a stage for a type of packet.
+     *
+     * @param stage the stage.
+     * @param type the type of packet.
+     * @return the latency histogram.
+     */
+    public static LatencyHistogram getHistogram(Stage stage, Type type) {
+        return histograms[stage.ordinal()][type.ordinal()];
+    }
+
+    /**
+     * Discards all the recorded latencies.
+     */
+    public static void reset() {
+        for (Stage stage : Stage.values()) {
+            for (Type type : Type.values()) {
+                getHistogram(stage, type).reset();
+            }
+        }
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static void setEnabled(boolean enabled) {
+        JiveGlobals.setProperty(ENABLED_PROPERTY, Boolean.toString(enabled));
+    }
+
+    public static int getSampleInterval() {
+        return sampleInterval;
+    }
+
+    public static void setSampleInterval(int sampleInterval) {
+        JiveGlobals.setProperty(SAMPLE_INTERVAL_PROPERTY, Integer.toString(sampleInterval));
+    }
+
+    /**
+     * Registers the latency histograms in the platform MBean server.
+     */
+    public static void registerMBeans() {
+        MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        for (Stage stage : Stage.values()) {
+            for (Type type : Type.values()) {
+                try {
+                    ObjectName name = getObjectName(stage, type);
+                    if (!mbs.isRegistered(name)) {
+                        mbs.registerMBean(getHistogram(stage, type), name);
+                    }
+                }
+                catch (JMException e) {
+                    Log.warn("Failed to register packet latency mbean (JMX): " + e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes the latency histograms from the platform MBean server.
+     */
+    public static void unregisterMBeans() {
+        MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        for (Stage stage : Stage.values()) {
+            for (Type type : Type.values()) {
+                try {
+                    ObjectName name = getObjectName(stage, type);
+                    if (mbs.isRegistered(name)) {
+                        mbs.unregisterMBean(name);
+                    }
+                }
+                catch (JMException e) {
+                    Log.warn("Failed to unregister packet latency mbean (JMX): " + e);
+                }
+            }
+        }
+    }
+
+    private static ObjectName getObjectName(Stage stage, Type type) throws JMException {
+        return new ObjectName("org.jivesoftware.openfire:type=PacketLatency,stage=" + stage +
+                ",packet=" + type);
+    }
+
+    private static class PropertyListener implements PropertyEventListener {
+        public void propertySet(String property, Map<String, Object> params) {
+            if (ENABLED_PROPERTY.equals(property)) {
+                enabled = Boolean.valueOf((String) params.get("value"));
+            }
+            else if (SAMPLE_INTERVAL_PROPERTY.equals(property)) {
+                try {
+                    sampleInterval = Integer.parseInt((String) params.get("value"));
+                }
+                catch (NumberFormatException e) {
+                    sampleInterval = 1;
+                }
+            }
+        }
+
+        public void propertyDeleted(String property, Map<String, Object> params) {
+            if (ENABLED_PROPERTY.equals(property)) {
+                enabled = false;
+            }
+            else if (SAMPLE_INTERVAL_PROPERTY.equals(property)) {
+                sampleInterval = 1;
+            }
+        }
+
+        public void xmlPropertySet(String property, Map<String, Object> params) {
+            // Do nothing
+        }
+
+        public void xmlPropertyDeleted(String property, Map<String, Object> params) {
+            // Do nothing
+        }
+    }
+}
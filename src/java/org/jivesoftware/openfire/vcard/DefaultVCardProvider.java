@@ -105,6 +105,39 @@ public class DefaultVCardProvider implements VCardProvider {
         }
     }
 
+    /**
+     * Loads the vCard of a user as a {@link SerializedVCard}. The XML text stored in the database
+     * is kept as it is, only the photo of the vCard is read from it, so no element tree is
+     * built for the vCard.
+     *
+     * @param username the username of the user whose vCard to load.
+     * @return the serialized vCard or <tt>null</tt> if the user has no vCard.
+     */
+    public SerializedVCard loadSerializedVCard(String username) {
+        synchronized (username.intern()) {
+            Connection con = null;
+            PreparedStatement pstmt = null;
+            ResultSet rs = null;
+            SerializedVCard vCard = null;
+            try {
+                con = DbConnectionManager.getConnection();
+                pstmt = con.prepareStatement(LOAD_PROPERTIES);
+                pstmt.setString(1, username);
+                rs = pstmt.executeQuery();
+                while (rs.next()) {
+                    vCard = SerializedVCard.create(rs.getString(1));
+                }
+            }
+            catch (Exception e) {
+                Log.error("Error loading vCard of username: " + username, e);
+            }
+            finally {
+                DbConnectionManager.closeConnection(rs, pstmt, con);
+            }
+            return vCard;
+        }
+    }
+
     public Element createVCard(String username, Element vCardElement) throws AlreadyExistsException {
         if (loadVCard(username) != null) {
             // The user already has a vCard
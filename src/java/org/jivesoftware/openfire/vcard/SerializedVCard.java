@@ -0,0 +1,372 @@
+/**
+ * Copyright (C) 2004-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jivesoftware.openfire.vcard;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.StringReader;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.StringTokenizer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.dom4j.DocumentException;
+import org.dom4j.Element;
+import org.dom4j.io.OutputFormat;
+import org.dom4j.io.SAXReader;
+import org.jivesoftware.util.Base64;
+import org.jivesoftware.util.StringUtils;
+import org.jivesoftware.util.XMLWriter;
+import org.jivesoftware.util.cache.CacheSizes;
+import org.jivesoftware.util.cache.Cacheable;
+import org.jivesoftware.util.cache.ExternalizableUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xmlpull.mxp1.MXParser;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+/**
+ * A vCard as kept by the {@link VCardManager} when the vCard cache stores serialized vCards.
+ * Instead of the element tree of the vCard it keeps the UTF-8 bytes of the vCard element, which
+ * are written as they are in vCard responses, and the SHA-1 hash of the photo of the vCard that
+ * clients advertise in <tt>vcard-temp:x:update</tt> presence extensions (XEP-0153).<p>
+ *
+ * Properties of the vCard are looked up in a table of the text of its elements that is built
+ * the first time a property is requested. Long values, such as the base64 encoded photo, are
+ * left out of the table and are read from the bytes again when requested. The size reported by
+ * {@link #getCachedSize()} accounts for the table once it is built, so a cache holding the vCard
+ * has to put it again for the table to be accounted for.
+ */
+public class SerializedVCard implements Cacheable, Externalizable {
+
+    private static final Logger Log = LoggerFactory.getLogger(SerializedVCard.class);
+
+    private static final String NAMESPACE = "vcard-temp";
+
+    /**
+     * Values longer than this are not kept in the table of properties.
+     */
+    private static final int MAX_FIELD_LENGTH = 1024;
+
+    /**
+     * Marks the properties whose values were left out of the table.
+     */
+    private static final String OMITTED = new String();
+
+    private static final int POOL_SIZE = 10;
+    /**
+     * Pool of SAX Readers. SAXReader is not thread safe so we need to have a pool of readers.
+     */
+    private static final BlockingQueue<SAXReader> xmlReaders = new LinkedBlockingQueue<SAXReader>(POOL_SIZE);
+
+    static {
+        for (int i = 0; i < POOL_SIZE; i++) {
+            SAXReader xmlReader = new SAXReader();
+            xmlReader.setEncoding("UTF-8");
+            xmlReaders.add(xmlReader);
+        }
+    }
+
+    private byte[] bytes;
+    private String photoHash;
+    private transient volatile Map<String, String> fields;
+
+    /**
+     * Constructor for deserialization only.
+     */
+    public SerializedVCard() {
+    }
+
+    private SerializedVCard(byte[] bytes, String photoHash) {
+        this.bytes = bytes;
+        this.photoHash = photoHash;
+    }
+
+    /**
+     * Serializes a vCard element.
+     *
+     * @param vCard the vCard element.
+     * @return the serialized vCard.
+     * @throws IOException if the vCard could not be serialized.
+     */
+    public static SerializedVCard create(Element vCard) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+        XMLWriter xmlSerializer = new XMLWriter(out, new OutputFormat());
+        xmlSerializer.write(vCard);
+        xmlSerializer.flush();
+        return new SerializedVCard(out.toByteArray(), hashPhoto(vCard));
+    }
+
+    /**
+     * Returns the hex encoded SHA-1 hash of the photo of a vCard element.
+     *
+     * @param vCard the vCard element.
+     * @return the hash of the photo, or an empty string if the vCard has no photo.
+     */
+    public static String hashPhoto(Element vCard) {
+        Element photo = vCard.element("PHOTO");
+        Element binval = photo == null ? null : photo.element("BINVAL");
+        return hashBinval(binval == null ? null : binval.getText());
+    }
+
+    /**
+     * Creates a serialized vCard from the XML text of a vCard element, such as the text stored
+     * in the database. The text is used as it is when it holds a single <tt>vCard</tt> element
+     * of the <tt>vcard-temp</tt> namespace, only the photo is read from it. Any other text is
+     * parsed and serialized again.
+     *
+     * @param xml the XML text of the vCard.
+     * @return the serialized vCard.
+     * @throws IOException if the text is not well-formed XML.
+     */
+    public static SerializedVCard create(String xml) throws IOException {
+        if (xml.startsWith("<") && !xml.startsWith("<?")) {
+            try {
+                String binval = readPhoto(xml);
+                if (binval != null) {
+                    return new SerializedVCard(xml.getBytes("UTF-8"), hashBinval(binval));
+                }
+            }
+            catch (XmlPullParserException e) {
+                // Let the SAX reader report the error, or deal with content it supports
+            }
+        }
+        SAXReader xmlReader = null;
+        try {
+            xmlReader = xmlReaders.take();
+            return create(xmlReader.read(new StringReader(xml)).getRootElement());
+        }
+        catch (DocumentException e) {
+            throw new IOException("Error parsing vCard", e);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while parsing vCard", e);
+        }
+        finally {
+            if (xmlReader != null) {
+                xmlReaders.add(xmlReader);
+            }
+        }
+    }
+
+    /**
+     * Reads the text of the first BINVAL element of the first PHOTO element of a vCard with
+     * a pull parser, without building an element tree.
+     *
+     * @return the base64 encoded photo, an empty string if the vCard has no photo, or
+     *         <tt>null</tt> if the text does not hold a vCard of the <tt>vcard-temp</tt>
+     *         namespace.
+     */
+    private static String readPhoto(String xml) throws XmlPullParserException, IOException {
+        XmlPullParser parser = new MXParser();
+        parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+        parser.setInput(new StringReader(xml));
+        String binval = null;
+        boolean photoSeen = false;
+        boolean inPhoto = false;
+        int depth = 0;
+        for (int event = parser.next(); event != XmlPullParser.END_DOCUMENT; event = parser.next()) {
+            if (event == XmlPullParser.START_TAG) {
+                depth++;
+                if (depth == 1) {
+                    if (!"vCard".equals(parser.getName()) || !NAMESPACE.equals(parser.getNamespace())) {
+                        return null;
+                    }
+                }
+                else if (depth == 2 && !photoSeen && "PHOTO".equals(parser.getName())) {
+                    photoSeen = true;
+                    inPhoto = true;
+                }
+                else if (depth == 3 && inPhoto && binval == null && "BINVAL".equals(parser.getName())) {
+                    binval = parser.nextText();
+                    depth--;
+                }
+            }
+            else if (event == XmlPullParser.END_TAG) {
+                if (depth == 2) {
+                    inPhoto = false;
+                }
+                depth--;
+            }
+        }
+        return binval == null ? "" : binval;
+    }
+
+    private static String hashBinval(String binval) {
+        if (binval == null || binval.trim().length() == 0) {
+            return "";
+        }
+        byte[] photo = Base64.decode(binval.trim());
+        if (photo == null || photo.length == 0) {
+            return "";
+        }
+        return StringUtils.hash(photo, "SHA-1");
+    }
+
+    /**
+     * Returns the UTF-8 bytes of the vCard element. The returned array is shared and must not
+     * be modified.
+     *
+     * @return the UTF-8 bytes of the vCard element.
+     */
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Returns the hex encoded SHA-1 hash of the photo of the vCard, as advertised in
+     * <tt>vcard-temp:x:update</tt> presence extensions.
+     *
+     * @return the hash of the photo, or an empty string if the vCard has no photo.
+     */
+    public String getPhotoHash() {
+        return photoHash;
+    }
+
+    /**
+     * Parses the bytes of the vCard into a new element tree.
+     *
+     * @return the vCard element or <tt>null</tt> if the bytes could not be parsed.
+     */
+    public Element toElement() {
+        SAXReader xmlReader = null;
+        try {
+            xmlReader = xmlReaders.take();
+            return xmlReader.read(new ByteArrayInputStream(bytes)).getRootElement();
+        }
+        catch (Exception e) {
+            Log.error("Error parsing serialized vCard", e);
+            return null;
+        }
+        finally {
+            if (xmlReader != null) {
+                xmlReaders.add(xmlReader);
+            }
+        }
+    }
+
+    /**
+     * Returns true if the table of properties of the vCard was built.
+     *
+     * @return true if the table of properties of the vCard was built.
+     */
+    boolean hasPropertyTable() {
+        return fields != null;
+    }
+
+    /**
+     * Returns the value of a property of the vCard, with the same semantics as
+     * {@link VCardManager#getVCardProperty(String, String)}.
+     *
+     * @param name the name of the property encoded with ':' to denote the path.
+     * @return the trimmed text of the property or <tt>null</tt> if it does not exist.
+     */
+    public String getProperty(String name) {
+        Map<String, String> table = fields;
+        if (table == null) {
+            Element vCard = toElement();
+            if (vCard == null) {
+                table = Collections.emptyMap();
+            }
+            else {
+                table = new HashMap<String, String>();
+                collectFields(vCard, null, table);
+            }
+            fields = table;
+        }
+        StringBuilder path = new StringBuilder();
+        StringTokenizer tokenizer = new StringTokenizer(name, ":");
+        while (tokenizer.hasMoreTokens()) {
+            if (path.length() > 0) {
+                path.append(':');
+            }
+            path.append(tokenizer.nextToken());
+        }
+        String value = table.get(path.toString());
+        if (value == OMITTED) {
+            // The value is too long to be kept in the table, read it from the bytes again
+            Element subElement = toElement();
+            tokenizer = new StringTokenizer(name, ":");
+            while (subElement != null && tokenizer.hasMoreTokens()) {
+                subElement = subElement.element(tokenizer.nextToken());
+            }
+            value = subElement == null ? null : subElement.getTextTrim();
+        }
+        return value;
+    }
+
+    /**
+     * Adds the text of the child elements of an element to the table of properties. As
+     * properties resolve to the first element of each name, only the first child element of
+     * each name is added along with its descendants.
+     */
+    private static void collectFields(Element element, String path, Map<String, String> table) {
+        Set<String> names = new HashSet<String>();
+        for (Iterator it = element.elementIterator(); it.hasNext();) {
+            Element child = (Element) it.next();
+            if (!names.add(child.getName())) {
+                continue;
+            }
+            String childPath = path == null ? child.getName() : path + ":" + child.getName();
+            String text = child.getTextTrim();
+            table.put(childPath, text.length() > MAX_FIELD_LENGTH ? OMITTED : text);
+            collectFields(child, childPath, table);
+        }
+    }
+
+    public int getCachedSize() {
+        // Approximate the size of the object in bytes by calculating the size of each field.
+        int size = 0;
+        size += CacheSizes.sizeOfObject();              // overhead of object
+        size += CacheSizes.sizeOfObject() + bytes.length; // bytes
+        size += CacheSizes.sizeOfString(photoHash);     // photoHash
+        size += CacheSizes.sizeOfReference();           // fields
+        Map<String, String> table = fields;
+        if (table != null) {
+            size += CacheSizes.sizeOfObject();          // table
+            for (Map.Entry<String, String> entry : table.entrySet()) {
+                size += CacheSizes.sizeOfObject();      // entry
+                size += CacheSizes.sizeOfString(entry.getKey());
+                size += entry.getValue() == OMITTED ? CacheSizes.sizeOfReference()
+                        : CacheSizes.sizeOfString(entry.getValue());
+            }
+        }
+        return size;
+    }
+
+    public void writeExternal(ObjectOutput out) throws IOException {
+        ExternalizableUtil.getInstance().writeByteArray(out, bytes);
+        ExternalizableUtil.getInstance().writeSafeUTF(out, photoHash);
+    }
+
+    public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+        bytes = ExternalizableUtil.getInstance().readByteArray(in);
+        photoHash = ExternalizableUtil.getInstance().readSafeUTF(in);
+    }
+}
@@ -20,7 +20,9 @@
 
 package org.jivesoftware.openfire.vcard;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.StringTokenizer;
@@ -44,7 +46,12 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Manages VCard information for users.
+ * Manages VCard information for users.<p>
+ *
+ * By default the cache keeps the element tree of each vCard. When the
+ * <tt>vcard.cache.serialized</tt> property is true the cache keeps a {@link SerializedVCard}
+ * instead, which holds the bytes of the vCard and the hash of its photo, and vCard responses
+ * are written from those bytes.
  *
  * @author Matt Tucker
  */
@@ -58,6 +65,9 @@ public class VCardManager extends BasicModule implements ServerFeaturesProvider
     private EventHandler eventHandler;
 
     private Cache<String, Element> vcardCache;
+    private Cache<String, SerializedVCard> serializedCache;
+    private volatile boolean serialized;
+
     public static VCardManager getInstance() {
         return instance;
     }
@@ -78,23 +88,25 @@ public class VCardManager extends BasicModule implements ServerFeaturesProvider
         super("VCard Manager");
         String cacheName = "VCard";
         vcardCache = CacheFactory.createCache(cacheName);
+        serializedCache = CacheFactory.createCache("Serialized VCard");
         this.eventHandler = new EventHandler();
 
         // Keeps the cache updated in case the vCard action was not performed by VCardManager
         VCardEventDispatcher.addListener(new VCardListener() {
             public void vCardCreated(String username, Element vCard) {
                 // Since the vCard could be created by the provider, add it to the cache.
-                vcardCache.put(username, vCard);
+                cacheVCard(username, vCard);
             }
 
             public void vCardUpdated(String username, Element vCard) {
                 // Since the vCard could be updated by the provider, update it to the cache.
-                vcardCache.put(username, vCard);
+                cacheVCard(username, vCard);
             }
 
             public void vCardDeleted(String username, Element vCard) {
                 // Since the vCard could be delated by the provider, remove it to the cache.
                 vcardCache.remove(username);
+                serializedCache.remove(username);
             }
         });
     }
@@ -117,6 +129,19 @@ public class VCardManager extends BasicModule implements ServerFeaturesProvider
      * @return The vCard value found
      */
     public String getVCardProperty(String username, String name) {
+        if (serialized) {
+            SerializedVCard vCard = getOrLoadSerializedVCard(username);
+            if (vCard == null) {
+                return null;
+            }
+            boolean tableBuilt = vCard.hasPropertyTable();
+            String value = vCard.getProperty(name);
+            if (!tableBuilt) {
+                // Account for the table of properties in the size of the cached vCard
+                updateCachedSize(username, vCard);
+            }
+            return value;
+        }
         String answer = null;
         Element vCardElement = getOrLoadVCard(username);
         if (vCardElement != null) {
@@ -158,21 +183,33 @@ public class VCardManager extends BasicModule implements ServerFeaturesProvider
         if (provider.isReadOnly()) {
             throw new UnsupportedOperationException("VCard provider is read-only.");
         }
-        Element oldVCard = getOrLoadVCard(username);
+        boolean exists;
+        boolean changed;
+        if (serialized) {
+            SerializedVCard oldVCard = getOrLoadSerializedVCard(username);
+            exists = oldVCard != null;
+            changed = exists && !Arrays.equals(oldVCard.getBytes(),
+                    SerializedVCard.create(vCardElement).getBytes());
+        }
+        else {
+            Element oldVCard = getOrLoadVCard(username);
+            exists = oldVCard != null;
+            changed = exists && !oldVCard.equals(vCardElement);
+        }
         Element newvCard = null;
         // See if we need to update the vCard or insert a new one.
-        if (oldVCard != null) {
+        if (exists) {
             // Only update the vCard in the database if the vCard has changed.
-            if (!oldVCard.equals(vCardElement)) {
+            if (changed) {
                 try {
                     newvCard = provider.updateVCard(username, vCardElement);
-                    vcardCache.put(username, newvCard);
+                    cacheVCard(username, newvCard);
                     updated = true;
                 }
                 catch (NotFoundException e) {
                     Log.warn("Tried to update a vCard that does not exist", e);
                     newvCard = provider.createVCard(username, vCardElement);
-                    vcardCache.put(username, newvCard);
+                    cacheVCard(username, newvCard);
                     created = true;
                 }
             }
@@ -180,13 +217,13 @@ public class VCardManager extends BasicModule implements ServerFeaturesProvider
         else {
             try {
                 newvCard = provider.createVCard(username, vCardElement);
-                vcardCache.put(username, newvCard);
+                cacheVCard(username, newvCard);
                 created = true;
             }
             catch (AlreadyExistsException e) {
                 Log.warn("Tried to create a vCard when one already exist", e);
                 newvCard = provider.updateVCard(username, vCardElement);
-                vcardCache.put(username, newvCard);
+                cacheVCard(username, newvCard);
                 updated = true;
             }
         }
@@ -211,9 +248,10 @@ public class VCardManager extends BasicModule implements ServerFeaturesProvider
         if (provider.isReadOnly()) {
             throw new UnsupportedOperationException("VCard provider is read-only.");
         }
-        Element oldVCard = getOrLoadVCard(username);
+        Element oldVCard = serialized ? getVCard(username) : getOrLoadVCard(username);
         if (oldVCard != null) {
             vcardCache.remove(username);
+            serializedCache.remove(username);
             // Delete the property from the DB if it was present in memory
             provider.deleteVCard(username);
             // Alert listeners that a vCard has been deleted
@@ -230,10 +268,125 @@ public class VCardManager extends BasicModule implements ServerFeaturesProvider
      * @return the vCard of a given user.
      */
     public Element getVCard(String username) {
+        if (serialized) {
+            SerializedVCard vCard = getOrLoadSerializedVCard(username);
+            return vCard == null ? null : vCard.toElement();
+        }
         Element vCardElement = getOrLoadVCard(username);
         return vCardElement == null ? null : vCardElement.createCopy();
     }
 
+    /**
+     * Returns the vCard of a given user as the bytes that are written in vCard responses, or
+     * null if none was defined before. Unless the cache keeps serialized vCards the vCard is
+     * serialized on every call.
+     *
+     * @param username Username (not full JID) whose vCard to retrieve.
+     * @return the serialized vCard of a given user.
+     */
+    public SerializedVCard getSerializedVCard(String username) {
+        if (serialized) {
+            return getOrLoadSerializedVCard(username);
+        }
+        Element vCardElement = getOrLoadVCard(username);
+        if (vCardElement == null) {
+            return null;
+        }
+        try {
+            return SerializedVCard.create(vCardElement);
+        }
+        catch (IOException e) {
+            Log.error("Error serializing vCard of username: " + username, e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the hex encoded SHA-1 hash of the photo of a given user, as advertised in
+     * <tt>vcard-temp:x:update</tt> presence extensions. When the cache keeps serialized vCards
+     * the hash is computed once when the vCard is cached.
+     *
+     * @param username Username (not full JID) whose photo hash to retrieve.
+     * @return the hash of the photo, an empty string if the vCard of the user has no photo, or
+     *         null if the user has no vCard.
+     */
+    public String getPhotoHash(String username) {
+        if (serialized) {
+            SerializedVCard vCard = getOrLoadSerializedVCard(username);
+            return vCard == null ? null : vCard.getPhotoHash();
+        }
+        Element vCardElement = getOrLoadVCard(username);
+        return vCardElement == null ? null : SerializedVCard.hashPhoto(vCardElement);
+    }
+
+    /**
+     * Returns true if the cache keeps serialized vCards, in which case vCard responses may be
+     * written from the bytes returned by {@link #getSerializedVCard(String)}.
+     *
+     * @return true if the cache keeps serialized vCards.
+     */
+    public boolean isSerializedCacheEnabled() {
+        return serialized;
+    }
+
+    private void setSerializedCacheEnabled(boolean enabled) {
+        if (serialized != enabled) {
+            serialized = enabled;
+            vcardCache.clear();
+            serializedCache.clear();
+        }
+    }
+
+    private void cacheVCard(String username, Element vCard) {
+        if (serialized) {
+            try {
+                serializedCache.put(username, SerializedVCard.create(vCard));
+            }
+            catch (IOException e) {
+                Log.error("Error serializing vCard of username: " + username, e);
+                serializedCache.remove(username);
+            }
+        }
+        else {
+            vcardCache.put(username, vCard);
+        }
+    }
+
+    private SerializedVCard getOrLoadSerializedVCard(String username) {
+        SerializedVCard vCard = serializedCache.get(username);
+        if (vCard == null) {
+            if (provider instanceof DefaultVCardProvider) {
+                // Keep the XML text of the database instead of parsing it into an element tree
+                vCard = ((DefaultVCardProvider) provider).loadSerializedVCard(username);
+            }
+            else {
+                Element vCardElement = provider.loadVCard(username);
+                if (vCardElement != null) {
+                    try {
+                        vCard = SerializedVCard.create(vCardElement);
+                    }
+                    catch (IOException e) {
+                        Log.error("Error serializing vCard of username: " + username, e);
+                    }
+                }
+            }
+            if (vCard != null) {
+                serializedCache.put(username, vCard);
+            }
+        }
+        return vCard;
+    }
+
+    /**
+     * Puts a cached vCard again so that a change of its size is accounted for by the cache,
+     * unless the vCard was replaced in the meantime.
+     */
+    private void updateCachedSize(String username, SerializedVCard vCard) {
+        if (serializedCache.get(username) == vCard) {
+            serializedCache.put(username, vCard);
+        }
+    }
+
     private Element getOrLoadVCard(String username) {
         Element vCardElement = vcardCache.get(username);
         if (vCardElement == null) {
@@ -248,6 +401,7 @@ public class VCardManager extends BasicModule implements ServerFeaturesProvider
     @Override
 	public void initialize(XMPPServer server) {
         instance = this;
+        setSerializedCacheEnabled(JiveGlobals.getBooleanProperty("vcard.cache.serialized", false));
 
         // Convert XML based provider setup to Database based
         JiveGlobals.migrateProperty("provider.vcard.className");
@@ -279,10 +433,15 @@ public class VCardManager extends BasicModule implements ServerFeaturesProvider
                 if ("provider.vcard.className".equals(property)) {
                     initialize(XMPPServer.getInstance());
                 }
+                else if ("vcard.cache.serialized".equals(property)) {
+                    setSerializedCacheEnabled(JiveGlobals.getBooleanProperty(property, false));
+                }
             }
 
             public void propertyDeleted(String property, Map params) {
-                //Ignore
+                if ("vcard.cache.serialized".equals(property)) {
+                    setSerializedCacheEnabled(false);
+                }
             }
 
             public void xmlPropertySet(String property, Map params) {
@@ -307,6 +466,7 @@ public class VCardManager extends BasicModule implements ServerFeaturesProvider
      */
     public void reset() {
         vcardCache.clear();
+        serializedCache.clear();
     }
 
     public Iterator<String> getFeatures() {
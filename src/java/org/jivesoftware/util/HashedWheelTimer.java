@@ -0,0 +1,352 @@
+/**
+ * Copyright (C) 2004-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.util;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Timer for large numbers of timeouts that are mostly cancelled before they expire, such as
+ * session inactivity or IQ result timeouts. Timeouts are kept in a wheel of buckets which a
+ * single thread advances one bucket per tick, so scheduling and cancelling a timeout take
+ * constant time and each tick only visits the timeouts that hash to its bucket. The price is
+ * precision: a timeout expires within one tick after its delay has elapsed.<p>
+ *
+ * Expired tasks are not run by the timer thread but handed to an executor, by default the
+ * thread pool of the {@link TaskEngine}, so they may take as long as they need.
+ */
+public class HashedWheelTimer {
+
+    private static final Logger Log = LoggerFactory.getLogger(HashedWheelTimer.class);
+
+    private static HashedWheelTimer instance = new HashedWheelTimer(100, TimeUnit.MILLISECONDS,
+            512, new Executor() {
+                public void execute(Runnable task) {
+                    TaskEngine.getInstance().submit(task);
+                }
+            });
+
+    /**
+     * Returns the timer shared by the server (singleton). It ticks every 100 milliseconds.
+     *
+     * @return the shared timer.
+     */
+    public static HashedWheelTimer getInstance() {
+        return instance;
+    }
+
+    private static final int STATE_PENDING = 0;
+    private static final int STATE_CANCELLED = 1;
+    private static final int STATE_EXPIRED = 2;
+
+    private final long tickDuration;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final Executor executor;
+    private final Queue<Timeout> newTimeouts = new ConcurrentLinkedQueue<Timeout>();
+    private final Queue<Timeout> cancelledTimeouts = new ConcurrentLinkedQueue<Timeout>();
+    private final AtomicInteger pendingCount = new AtomicInteger();
+
+    private final Object workerLock = new Object();
+    private Thread worker;
+    private volatile boolean shutdown;
+    private volatile long startTime;
+
+    /**
+     * Constructs a new timer. The timer thread is started when the first timeout is scheduled.
+     *
+     * @param tickDuration the duration of one tick.
+     * @param unit the unit of the tick duration.
+     * @param ticksPerWheel the number of buckets in the wheel, rounded up to a power of two.
+     * @param executor the executor that runs the tasks of expired timeouts.
+     */
+    public HashedWheelTimer(long tickDuration, TimeUnit unit, int ticksPerWheel, Executor executor) {
+        if (tickDuration <= 0) {
+            throw new IllegalArgumentException("Tick duration must be greater than 0: " + tickDuration);
+        }
+        if (ticksPerWheel <= 0 || ticksPerWheel > (1 << 30)) {
+            throw new IllegalArgumentException("Ticks per wheel out of range: " + ticksPerWheel);
+        }
+        int size = Integer.highestOneBit(ticksPerWheel);
+        if (size < ticksPerWheel) {
+            size <<= 1;
+        }
+        this.tickDuration = unit.toNanos(tickDuration);
+        this.wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new Bucket();
+        }
+        this.mask = size - 1;
+        this.executor = executor;
+    }
+
+    /**
+     * Schedules a task to be run once after the specified delay. The returned timeout can be
+     * used to cancel the task.
+     *
+     * @param task the task to run.
+     * @param delay the delay in milliseconds before the task is run.
+     * @return the timeout of the task.
+     * @throws IllegalStateException if the timer was shut down.
+     */
+    public Timeout schedule(Runnable task, long delay) {
+        if (task == null) {
+            throw new NullPointerException("Task cannot be null.");
+        }
+        start();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(delay, 0)) - startTime;
+        Timeout timeout = new Timeout(task, deadline);
+        pendingCount.incrementAndGet();
+        newTimeouts.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Returns the number of timeouts that neither expired nor were cancelled yet.
+     *
+     * @return the number of pending timeouts.
+     */
+    public int getPendingCount() {
+        return pendingCount.get();
+    }
+
+    /**
+     * Stops the timer thread. Pending timeouts are discarded without running their tasks.
+     */
+    public void shutdown() {
+        Thread thread;
+        synchronized (workerLock) {
+            shutdown = true;
+            thread = worker;
+        }
+        if (thread != null && thread != Thread.currentThread()) {
+            thread.interrupt();
+            try {
+                thread.join();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void start() {
+        if (worker != null && !shutdown) {
+            return;
+        }
+        synchronized (workerLock) {
+            if (shutdown) {
+                throw new IllegalStateException("Cannot schedule a timeout after shutdown.");
+            }
+            if (worker == null) {
+                startTime = System.nanoTime();
+                worker = new Thread(new Worker(), "HashedWheelTimer-" + Integer.toHexString(hashCode()));
+                worker.setDaemon(true);
+                worker.start();
+            }
+        }
+    }
+
+    /**
+     * A task scheduled on the timer.
+     */
+    public final class Timeout {
+
+        private final Runnable task;
+        private final long deadline;
+        private final AtomicInteger state = new AtomicInteger(STATE_PENDING);
+        private long remainingRounds;
+
+        // Linked list of the bucket, only used by the timer thread
+        private Bucket bucket;
+        private Timeout prev;
+        private Timeout next;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancels the timeout so that its task is not run. Has no effect if the timeout
+         * already expired.
+         *
+         * @return true if the timeout was cancelled by this call.
+         */
+        public boolean cancel() {
+            if (!state.compareAndSet(STATE_PENDING, STATE_CANCELLED)) {
+                return false;
+            }
+            pendingCount.decrementAndGet();
+            cancelledTimeouts.add(this);
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return state.get() == STATE_CANCELLED;
+        }
+
+        public boolean isExpired() {
+            return state.get() == STATE_EXPIRED;
+        }
+
+        private void expire() {
+            if (!state.compareAndSet(STATE_PENDING, STATE_EXPIRED)) {
+                return;
+            }
+            pendingCount.decrementAndGet();
+            try {
+                executor.execute(task);
+            }
+            catch (Exception e) {
+                Log.warn("Error running the task of an expired timeout.", e);
+            }
+        }
+    }
+
+    /**
+     * Doubly linked list of the timeouts of one bucket, so that a cancelled timeout is removed
+     * in constant time.
+     */
+    private static final class Bucket {
+
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout timeout) {
+            timeout.bucket = this;
+            if (head == null) {
+                head = tail = timeout;
+            }
+            else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        Timeout remove(Timeout timeout) {
+            Timeout next = timeout.next;
+            if (timeout.prev != null) {
+                timeout.prev.next = next;
+            }
+            if (next != null) {
+                next.prev = timeout.prev;
+            }
+            if (timeout == head) {
+                head = next;
+            }
+            if (timeout == tail) {
+                tail = timeout.prev;
+            }
+            timeout.prev = null;
+            timeout.next = null;
+            timeout.bucket = null;
+            return next;
+        }
+
+        /**
+         * Expires the timeouts of this bucket that are due in the current round.
+         */
+        void expireTimeouts(long deadline) {
+            Timeout timeout = head;
+            while (timeout != null) {
+                if (timeout.remainingRounds <= 0 && timeout.deadline <= deadline) {
+                    Timeout next = remove(timeout);
+                    timeout.expire();
+                    timeout = next;
+                }
+                else {
+                    timeout.remainingRounds--;
+                    timeout = timeout.next;
+                }
+            }
+        }
+    }
+
+    private final class Worker implements Runnable {
+
+        private long tick;
+
+        public void run() {
+            while (!shutdown) {
+                long deadline = waitForNextTick();
+                if (deadline < 0) {
+                    break;
+                }
+                removeCancelledTimeouts();
+                transferNewTimeouts();
+                wheel[(int) (tick & mask)].expireTimeouts(deadline);
+                tick++;
+            }
+        }
+
+        /**
+         * Sleeps until the end of the current tick.
+         *
+         * @return the time of the end of the tick relative to the start of the timer, or -1 if
+         *         the timer was shut down.
+         */
+        private long waitForNextTick() {
+            long deadline = tickDuration * (tick + 1);
+            while (true) {
+                long sleepNanos = deadline - (System.nanoTime() - startTime);
+                if (sleepNanos <= 0) {
+                    return deadline;
+                }
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                }
+                catch (InterruptedException e) {
+                    if (shutdown) {
+                        return -1;
+                    }
+                }
+            }
+        }
+
+        private void transferNewTimeouts() {
+            Timeout timeout;
+            while ((timeout = newTimeouts.poll()) != null) {
+                if (timeout.isCancelled()) {
+                    continue;
+                }
+                long expiryTick = timeout.deadline / tickDuration;
+                timeout.remainingRounds = (expiryTick - tick) / wheel.length;
+                // Timeouts that are already due go into the current bucket
+                long ticks = Math.max(expiryTick, tick);
+                wheel[(int) (ticks & mask)].add(timeout);
+            }
+        }
+
+        private void removeCancelledTimeouts() {
+            Timeout timeout;
+            while ((timeout = cancelledTimeouts.poll()) != null) {
+                // Timeouts cancelled before they were transferred are not in a bucket yet
+                if (timeout.bucket != null) {
+                    timeout.bucket.remove(timeout);
+                }
+            }
+        }
+    }
+}
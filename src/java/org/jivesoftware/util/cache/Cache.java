@@ -20,6 +20,9 @@
 
 package org.jivesoftware.util.cache;
 
+import java.util.Collection;
+import java.util.Map;
+
 /**
  * General purpose cache. It stores objects associated with unique keys in
  * memory for fast access. All keys and values added to the cache must
@@ -131,4 +134,15 @@ public interface Cache<K,V> extends java.util.Map<K,V> {
      */
     long getCacheMisses();
 
+    /**
+     * Returns the values of the specified keys. Clustered caches fetch all the values
+     * with a single request to each node owning some of the keys, which is much cheaper
+     * than getting the values one by one. Keys that are not in the cache are not
+     * included in the returned map.
+     *
+     * @param keys the keys of the values to return.
+     * @return the values of the keys that are in the cache.
+     */
+    Map<K, V> getAll(Collection<K> keys);
+
 }
@@ -108,9 +108,12 @@ public class CacheFactory {
         cacheNames.put("Privacy Lists", "listsCache");
         cacheNames.put("Remote Users Existence", "remoteUsersCache");
         cacheNames.put("Roster", "username2roster");
+        cacheNames.put("Shared Groups By User", "sharedGroupsByUser");
+        cacheNames.put("Shared Group Contacts", "sharedGroupContacts");
         cacheNames.put("User", "userCache");
         cacheNames.put("Locked Out Accounts", "lockOutCache");
         cacheNames.put("VCard", "vcardCache");
+        cacheNames.put("Serialized VCard", "serializedVCard");
         cacheNames.put("File Transfer Cache", "fileTransfer");
         cacheNames.put("File Transfer", "transferProxy");
         cacheNames.put("POP3 Authentication", "pop3");
@@ -134,6 +137,7 @@ public class CacheFactory {
         cacheNames.put("Entity Capabilities Users", "entityCapabilitiesUsers");
         cacheNames.put("Clearspace SSO Nonce", "clearspaceSSONonce");
         cacheNames.put("PEPServiceManager", "pepServiceManager");
+        cacheNames.put("PEP Last Published Items", "pepLastPublishedItems");
         cacheNames.put("Published Items", "publishedItems");
 
         cacheProps.put("cache.fileTransfer.size", 128 * 1024l);
@@ -152,6 +156,10 @@ public class CacheFactory {
         cacheProps.put("cache.lockOutCache.maxLifetime", JiveConstants.MINUTE * 15);
         cacheProps.put("cache.groupMeta.size", 512 * 1024l);
         cacheProps.put("cache.groupMeta.maxLifetime", JiveConstants.MINUTE * 15);
+        cacheProps.put("cache.sharedGroupsByUser.size", 512 * 1024l);
+        cacheProps.put("cache.sharedGroupsByUser.maxLifetime", JiveConstants.MINUTE * 15);
+        cacheProps.put("cache.sharedGroupContacts.size", 512 * 1024l);
+        cacheProps.put("cache.sharedGroupContacts.maxLifetime", JiveConstants.MINUTE * 15);
         cacheProps.put("cache.javascript.size", 128 * 1024l);
         cacheProps.put("cache.javascript.maxLifetime", 3600 * 24 * 10l);
         cacheProps.put("cache.ldap.size", 512 * 1024l);
@@ -164,6 +172,7 @@ public class CacheFactory {
         cacheProps.put("cache.remoteUsersCache.size", 512 * 1024l);
         cacheProps.put("cache.remoteUsersCache.maxLifetime", JiveConstants.MINUTE * 30);
         cacheProps.put("cache.vcardCache.size", 512 * 1024l);
+        cacheProps.put("cache.serializedVCard.size", 512 * 1024l);
         cacheProps.put("cache.faviconHits.size", 128 * 1024l);
         cacheProps.put("cache.faviconMisses.size", 128 * 1024l);
         cacheProps.put("cache.routeServer.size", -1l);
@@ -206,6 +215,8 @@ public class CacheFactory {
         cacheProps.put("cache.clearspaceSSONonce.maxLifetime", JiveConstants.MINUTE * 2);
         cacheProps.put("cache.pepServiceManager.size", 1024l * 1024 * 10);
         cacheProps.put("cache.pepServiceManager.maxLifetime", JiveConstants.MINUTE * 30);
+        cacheProps.put("cache.pepLastPublishedItems.size", 1024l * 1024 * 5);
+        cacheProps.put("cache.pepLastPublishedItems.maxLifetime", JiveConstants.MINUTE * 30);
         cacheProps.put("cache.publishedItems.size", 1024l * 1024 * 10);
         cacheProps.put("cache.publishedItems.maxLifetime", JiveConstants.MINUTE * 15);
     }
@@ -275,6 +286,28 @@ public class CacheFactory {
         return JiveGlobals.getProperty("cache." + cacheName + ".type");
     }
 
+    /**
+     * Returns true if the supplied cache should be a {@link ConcurrentCache} when caches
+     * are local. The <tt>cache.[name].concurrent</tt> property selects the implementation
+     * of each cache, using either the cache name without spaces or its short name. Caches
+     * without that property use the value of the <tt>cache.concurrent</tt> property, which
+     * is false by default.
+     *
+     * @param cacheName the name of the cache to look up a corresponding property for.
+     * @return true if the cache should be a ConcurrentCache.
+     */
+    public static boolean isConcurrentCache(String cacheName) {
+        String concurrentProp = JiveGlobals.getProperty("cache." + cacheName.replaceAll(" ", "") + ".concurrent");
+        if (concurrentProp == null && cacheNames.containsKey(cacheName)) {
+            // No system property was found for the cache name so try now with short name
+            concurrentProp = JiveGlobals.getProperty("cache." + cacheNames.get(cacheName) + ".concurrent");
+        }
+        if (concurrentProp == null) {
+            return JiveGlobals.getBooleanProperty("cache.concurrent", false);
+        }
+        return Boolean.valueOf(concurrentProp);
+    }
+
     public static void setMinCacheSize(String cacheName, long size) {
         cacheName = cacheName.replaceAll(" ", "");
         JiveGlobals.setProperty("cache." + cacheName + ".min", Long.toString(size));
@@ -48,6 +48,31 @@ public class CacheSizes {
         return 4;
     }
 
+    /**
+     * Returns the size in bytes of a reference to an object. Objects that are shared
+     * with other cached objects (e.g. interned strings) should be accounted for with
+     * this size only.
+     *
+     * @return the size of a reference.
+     */
+    public static int sizeOfReference() {
+        return 4;
+    }
+
+    /**
+     * Returns the size in bytes of a Collection whose elements are shared with other
+     * cached objects. Only the references to the elements are accounted for.
+     *
+     * @param list the Collection object to determine the size of.
+     * @return the size of the Collection object.
+     */
+    public static int sizeOfReferences(Collection list) {
+        if (list == null) {
+            return 0;
+        }
+        return 36 + list.size() * sizeOfReference();
+    }
+
     /**
      * Returns the size in bytes of a String.
      *
@@ -121,6 +121,10 @@ public class CacheWrapper<K, V> implements Cache<K, V> {
         return cache.get(key);
     }
 
+    public Map<K, V> getAll(Collection<K> keys) {
+        return cache.getAll(keys);
+    }
+
     public V remove(Object key) {
         return cache.remove(key);
     }
@@ -0,0 +1,587 @@
+/**
+ * Copyright (C) 2004-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.util.cache;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Non-distributed implementation of the Cache interface that does not serialize readers
+ * and writers on a single lock. It has the same size and lifetime semantics as
+ * {@link DefaultCache}, but it's tuned for caches that are read by many threads at the
+ * same time:<ul>
+ *
+ * <li> Objects are kept in a ConcurrentHashMap. Reading an object does not take any lock
+ * nor modify shared structures; it only records the time of the access in the object's
+ * wrapper (at most once per millisecond).
+ * <li> Instead of keeping a linked list in access order, the cache evicts by sampling: the
+ * least recently accessed of a few sampled objects is removed, and sampling is repeated
+ * until the cache is small enough. Samples are taken by a cursor that walks the map in
+ * hash order and skips a random number of objects between samples, so the cost of
+ * evicting an object does not depend on the size of the cache. As with DefaultCache, the
+ * cache is culled down to 90% of its max size once it is within 3% of it.
+ * <li> Expired objects are never returned. Expired objects are deleted in bulk when the
+ * oldest object of the cache has expired, instead of on every access.
+ * <li> Hits and misses are counted with striped counters.</ul>
+ *
+ * Use {@link CacheFactory#isConcurrentCache(String)} to select this implementation
+ * for a cache.
+ *
+ * @see DefaultCache
+ */
+public class ConcurrentCache<K, V> implements Cache<K, V> {
+
+	private static final Logger Log = LoggerFactory.getLogger(ConcurrentCache.class);
+
+    /**
+     * Minimum number of milliseconds between two deletions of expired entries that
+     * are triggered by adding objects to the cache.
+     */
+    private static final long EXPIRATION_CHECK_INTERVAL = 1000;
+
+    /**
+     * Number of objects sampled to pick each object to evict.
+     */
+    private static final int SAMPLE_SIZE = 8;
+
+    /**
+     * Maximum number of objects skipped between two samples, plus one.
+     */
+    private static final int SAMPLE_SKIP = 4;
+
+    /**
+     * The map the keys and values are stored in.
+     */
+    private final ConcurrentHashMap<K, CacheObject<V>> map;
+
+    /**
+     * Maximum size in bytes that the cache can grow to.
+     */
+    private volatile long maxCacheSize;
+
+    /**
+     * Maintains the current size of the cache in bytes.
+     */
+    private final AtomicLong cacheSize = new AtomicLong();
+
+    /**
+     * Maximum length of time objects can exist in cache before expiring.
+     */
+    private volatile long maxLifetime;
+
+    /**
+     * Creation time of the oldest object in cache, or Long.MAX_VALUE if unknown
+     * because the cache was empty after the last deletion of expired entries.
+     */
+    private final AtomicLong oldestCreationTime = new AtomicLong(Long.MAX_VALUE);
+
+    /**
+     * Time of the last deletion of expired entries triggered by adding objects.
+     */
+    private volatile long lastExpirationCheck;
+
+    /**
+     * Lock held while culling the cache or deleting expired entries so that a
+     * single thread does the work.
+     */
+    private final ReentrantLock maintenanceLock = new ReentrantLock();
+
+    /**
+     * Cursor over the map that eviction samples are taken from. Guarded by the
+     * maintenance lock.
+     */
+    private Iterator<Entry<K, CacheObject<V>>> sampler;
+
+    private final StripedCounter cacheHits = new StripedCounter();
+    private final StripedCounter cacheMisses = new StripedCounter();
+
+    /**
+     * The name of the cache.
+     */
+    private String name;
+
+    /**
+     * Create a new concurrent cache and specify the maximum size of for the cache in
+     * bytes, and the maximum lifetime of objects.
+     *
+     * @param name a name for the cache.
+     * @param maxSize the maximum size of the cache in bytes. -1 means the cache
+     *      has no max size.
+     * @param maxLifetime the maximum amount of time objects can exist in
+     *      cache before being deleted. -1 means objects never expire.
+     */
+    public ConcurrentCache(String name, long maxSize, long maxLifetime) {
+        this.name = name;
+        this.maxCacheSize = maxSize;
+        this.maxLifetime = maxLifetime;
+        map = new ConcurrentHashMap<K, CacheObject<V>>(103, 0.75f,
+                Math.max(16, Runtime.getRuntime().availableProcessors() * 4));
+    }
+
+    public V put(K key, V value) {
+        int objectSize = 1;
+        try {
+             objectSize = CacheSizes.sizeOfAnything(value);
+        }
+        catch (CannotCalculateSizeException e) {
+             Log.warn(e.getMessage(), e);
+        }
+
+        // If the object is bigger than the entire cache, simply don't add it.
+        if (maxCacheSize > 0 && objectSize > maxCacheSize * .90) {
+            Log.warn("Cache: " + name + " -- object with key " + key +
+                    " is too large to fit in cache. Size is " + objectSize);
+            remove(key);
+            return value;
+        }
+        CacheObject<V> cacheObject = new CacheObject<V>(value, objectSize, System.currentTimeMillis());
+        CacheObject<V> previous = map.put(key, cacheObject);
+        cacheSize.addAndGet(previous == null ? objectSize : objectSize - previous.size);
+        updateOldestCreationTime(cacheObject.creationTime);
+
+        // Delete expired entries from time to time so that they do not use memory
+        if (maxLifetime > 0 && cacheObject.creationTime - lastExpirationCheck > EXPIRATION_CHECK_INTERVAL) {
+            lastExpirationCheck = cacheObject.creationTime;
+            deleteExpiredEntries();
+        }
+        // If cache is too full, remove least used cache entries until it is
+        // not too full.
+        cullCache();
+
+        return previous == null || isExpired(previous, cacheObject.creationTime) ? null : previous.object;
+    }
+
+    public Map<K, V> getAll(Collection<K> keys) {
+        Map<K, V> values = new HashMap<K, V>();
+        for (K key : keys) {
+            V value = get(key);
+            if (value != null) {
+                values.put(key, value);
+            }
+        }
+        return values;
+    }
+
+    public V get(Object key) {
+        CacheObject<V> cacheObject = map.get(key);
+        if (cacheObject != null) {
+            if (maxLifetime > 0 && isExpired(cacheObject, System.currentTimeMillis())) {
+                // Delete the expired object unless it has been replaced in the meantime
+                if (map.remove(key, cacheObject)) {
+                    cacheSize.addAndGet(-cacheObject.size);
+                }
+            }
+            else {
+                // The object exists in cache, so increment cache hits.
+                cacheHits.increment();
+                cacheObject.accessed();
+                return cacheObject.object;
+            }
+        }
+        // The object didn't exist in cache, so increment cache misses.
+        cacheMisses.increment();
+        return null;
+    }
+
+    public V remove(Object key) {
+        CacheObject<V> cacheObject = map.remove(key);
+        // If the object is not in cache, stop trying to remove it.
+        if (cacheObject == null) {
+            return null;
+        }
+        // removed the object, so subtract its size from the total.
+        cacheSize.addAndGet(-cacheObject.size);
+        return cacheObject.object;
+    }
+
+    public void clear() {
+        for (K key : map.keySet()) {
+            remove(key);
+        }
+        cacheHits.reset();
+        cacheMisses.reset();
+    }
+
+    public int size() {
+        // First, clear all entries that have been in cache longer than the
+        // maximum defined age.
+        deleteExpiredEntries();
+
+        return map.size();
+    }
+
+    public boolean isEmpty() {
+        // First, clear all entries that have been in cache longer than the
+        // maximum defined age.
+        deleteExpiredEntries();
+
+        return map.isEmpty();
+    }
+
+    public Collection<V> values() {
+        // First, clear all entries that have been in cache longer than the
+        // maximum defined age.
+        deleteExpiredEntries();
+
+        List<V> values = new ArrayList<V>(map.size());
+        for (CacheObject<V> cacheObject : map.values()) {
+            values.add(cacheObject.object);
+        }
+        return Collections.unmodifiableList(values);
+    }
+
+    public boolean containsKey(Object key) {
+        CacheObject<V> cacheObject = map.get(key);
+        return cacheObject != null && !isExpired(cacheObject, System.currentTimeMillis());
+    }
+
+    public void putAll(Map<? extends K, ? extends V> map) {
+        for (Entry<? extends K, ? extends V> entry : map.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    public boolean containsValue(Object value) {
+        for (V object : values()) {
+            if (value == null ? object == null : value.equals(object)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public Set<Entry<K, V>> entrySet() {
+        // First, clear all entries that have been in cache longer than the
+        // maximum defined age.
+        deleteExpiredEntries();
+
+        final Map<K, V> result = new HashMap<K, V>();
+        for (final Entry<K, CacheObject<V>> entry : map.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().object);
+        }
+        return result.entrySet();
+    }
+
+    public Set<K> keySet() {
+        // First, clear all entries that have been in cache longer than the
+        // maximum defined age.
+        deleteExpiredEntries();
+
+        return new HashSet<K>(map.keySet());
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public long getCacheHits() {
+        return cacheHits.get();
+    }
+
+    public long getCacheMisses() {
+        return cacheMisses.get();
+    }
+
+    public int getCacheSize() {
+        return (int) cacheSize.get();
+    }
+
+    public long getMaxCacheSize() {
+        return maxCacheSize;
+    }
+
+    public void setMaxCacheSize(int maxCacheSize) {
+        this.maxCacheSize = maxCacheSize;
+        CacheFactory.setMaxSizeProperty(name, maxCacheSize);
+        // It's possible that the new max size is smaller than our current cache
+        // size. If so, we need to delete infrequently used items.
+        cullCache();
+    }
+
+    public long getMaxLifetime() {
+        return maxLifetime;
+    }
+
+    public void setMaxLifetime(long maxLifetime) {
+        this.maxLifetime = maxLifetime;
+        CacheFactory.setMaxLifetimeProperty(name, maxLifetime);
+    }
+
+    private boolean isExpired(CacheObject<V> cacheObject, long now) {
+        long lifetime = maxLifetime;
+        return lifetime > 0 && now - cacheObject.creationTime > lifetime;
+    }
+
+    private void updateOldestCreationTime(long creationTime) {
+        long oldest;
+        do {
+            oldest = oldestCreationTime.get();
+        }
+        while (creationTime < oldest && !oldestCreationTime.compareAndSet(oldest, creationTime));
+    }
+
+    /**
+     * Clears all entries out of cache where the entries are older than the
+     * maximum defined age. Nothing is done until the oldest object of the
+     * cache has expired.
+     */
+    protected void deleteExpiredEntries() {
+        // Check if expiration is turned on.
+        long lifetime = maxLifetime;
+        if (lifetime <= 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (now - oldestCreationTime.get() <= lifetime) {
+            return;
+        }
+        maintenanceLock.lock();
+        try {
+            // Check again since another thread may have just deleted the expired entries
+            if (now - oldestCreationTime.get() <= lifetime) {
+                return;
+            }
+            oldestCreationTime.set(Long.MAX_VALUE);
+            long oldest = Long.MAX_VALUE;
+            for (Entry<K, CacheObject<V>> entry : map.entrySet()) {
+                CacheObject<V> cacheObject = entry.getValue();
+                if (isExpired(cacheObject, now)) {
+                    if (map.remove(entry.getKey(), cacheObject)) {
+                        cacheSize.addAndGet(-cacheObject.size);
+                    }
+                }
+                else if (cacheObject.creationTime < oldest) {
+                    oldest = cacheObject.creationTime;
+                }
+            }
+            updateOldestCreationTime(oldest);
+        }
+        finally {
+            maintenanceLock.unlock();
+        }
+    }
+
+    /**
+     * Removes objects from cache if the cache is too full. "Too full" is
+     * defined as within 3% of the maximum cache size. Whenever the cache is
+     * is too big, the least recently used elements are deleted until the
+     * cache is at least 10% empty.<p>
+     *
+     * A single thread culls the cache at a time. Other threads keep on adding
+     * objects unless the max size of the cache has been reached, in which case
+     * they wait for the cache to be culled.
+     */
+    protected final void cullCache() {
+        // Check if a max cache size is defined.
+        long maxSize = maxCacheSize;
+        if (maxSize < 0) {
+            return;
+        }
+
+        // See if the cache size is within 3% of being too big. If so, clean out
+        // cache until it's 10% free.
+        if (cacheSize.get() < (long) (maxSize * .97)) {
+            return;
+        }
+        if (cacheSize.get() >= maxSize) {
+            maintenanceLock.lock();
+        }
+        else if (!maintenanceLock.tryLock()) {
+            return;
+        }
+        try {
+            if (cacheSize.get() < (long) (maxSize * .97)) {
+                return;
+            }
+            // First, delete any old entries to see how much memory that frees.
+            deleteExpiredEntries();
+            long desiredSize = (long) (maxSize * .90);
+            if (cacheSize.get() > desiredSize) {
+                long t = System.currentTimeMillis();
+                evict(desiredSize);
+                t = System.currentTimeMillis() - t;
+                Log.warn("Cache " + name + " was full, shrinked to 90% in " + t + "ms.");
+            }
+        }
+        finally {
+            maintenanceLock.unlock();
+        }
+    }
+
+    /**
+     * Removes sampled objects until the cache is not bigger than the specified size. Each
+     * removed object is the least recently accessed of {@link #SAMPLE_SIZE} samples. Must be
+     * called while holding the maintenance lock.
+     *
+     * @param desiredSize the size of the cache to reach.
+     */
+    private void evict(long desiredSize) {
+        // Objects removed by other threads while sampling are not counted as evictions; give
+        // up after as many misses as there are objects so that a wrong size cannot loop forever
+        int misses = 0;
+        while (cacheSize.get() > desiredSize && misses <= map.size()) {
+            K victimKey = null;
+            CacheObject<V> victim = null;
+            for (int i = 0; i < SAMPLE_SIZE; i++) {
+                Entry<K, CacheObject<V>> sample = nextSample();
+                if (sample == null) {
+                    break;
+                }
+                CacheObject<V> cacheObject = sample.getValue();
+                if (victim == null || cacheObject.lastAccessTime - victim.lastAccessTime < 0) {
+                    victimKey = sample.getKey();
+                    victim = cacheObject;
+                }
+            }
+            if (victim == null) {
+                return;
+            }
+            if (map.remove(victimKey, victim)) {
+                cacheSize.addAndGet(-victim.size);
+            }
+            else {
+                misses++;
+            }
+        }
+    }
+
+    /**
+     * Returns the next sample of the cursor over the map, skipping a random number of
+     * objects, or null if the map is empty.
+     */
+    private Entry<K, CacheObject<V>> nextSample() {
+        int skip = ThreadLocalRandom.current().nextInt(SAMPLE_SKIP);
+        Entry<K, CacheObject<V>> sample = null;
+        for (int i = 0; i <= skip; i++) {
+            if (sampler == null || !sampler.hasNext()) {
+                sampler = map.entrySet().iterator();
+                if (!sampler.hasNext()) {
+                    return null;
+                }
+            }
+            sample = sampler.next();
+        }
+        return sample;
+    }
+
+    /**
+     * Wrapper for all objects put into cache. It keeps the time when the object was
+     * added to the cache and the time when it was last accessed.
+     */
+    private static class CacheObject<V> {
+
+        /**
+         * Number of nanoseconds during which consecutive accesses are not recorded. This
+         * avoids having threads that read the same object write to the same memory.
+         */
+        private static final long ACCESS_RESOLUTION = TimeUnit.MILLISECONDS.toNanos(1);
+
+        /**
+         * Underlying object wrapped by the CacheObject.
+         */
+        final V object;
+
+        /**
+         * The size of the Cacheable object. The size of the Cacheable
+         * object is only computed once when it is added to the cache.
+         */
+        final int size;
+
+        /**
+         * Time when the object was added to the cache, in milliseconds.
+         */
+        final long creationTime;
+
+        /**
+         * Time of the last access to the object, as returned by System.nanoTime().
+         */
+        volatile long lastAccessTime;
+
+        CacheObject(V object, int size, long creationTime) {
+            this.object = object;
+            this.size = size;
+            this.creationTime = creationTime;
+            this.lastAccessTime = System.nanoTime();
+        }
+
+        void accessed() {
+            long time = System.nanoTime();
+            if (time - lastAccessTime > ACCESS_RESOLUTION) {
+                lastAccessTime = time;
+            }
+        }
+    }
+
+    /**
+     * Counter that is spread over several cache lines so that threads incrementing it
+     * at the same time rarely contend on the same memory.
+     */
+    private static class StripedCounter {
+
+        /**
+         * Number of longs between two stripes (i.e. 128 bytes).
+         */
+        private static final int PADDING = 16;
+
+        private final int mask;
+        private final AtomicLongArray counts;
+
+        StripedCounter() {
+            int stripes = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors()) * 2 - 1) * 2;
+            mask = stripes - 1;
+            counts = new AtomicLongArray(stripes * PADDING);
+        }
+
+        void increment() {
+            long id = Thread.currentThread().getId();
+            counts.getAndIncrement((int) ((id ^ (id >>> 16)) & mask) * PADDING);
+        }
+
+        long get() {
+            long sum = 0;
+            for (int i = 0; i < counts.length(); i += PADDING) {
+                sum += counts.get(i);
+            }
+            return sum;
+        }
+
+        void reset() {
+            for (int i = 0; i < counts.length(); i += PADDING) {
+                counts.set(i, 0);
+            }
+        }
+    }
+}
@@ -196,6 +196,17 @@ public class DefaultCache<K, V> implements Cache<K, V> {
         return cacheObject.object;
     }
 
+    public synchronized Map<K, V> getAll(Collection<K> keys) {
+        Map<K, V> values = new HashMap<K, V>();
+        for (K key : keys) {
+            V value = get(key);
+            if (value != null) {
+                values.put(key, value);
+            }
+        }
+        return values;
+    }
+
     public synchronized V remove(Object key) {
         DefaultCache.CacheObject<V> cacheObject = map.get(key);
         // If the object is not in cache, stop trying to remove it.
@@ -60,6 +60,9 @@ public class DefaultLocalCacheStrategy implements CacheFactoryStrategy {
         long maxSize = CacheFactory.getMaxCacheSize(name);
         long lifetime = CacheFactory.getMaxCacheLifetime(name);
         // Create cache with located properties
+        if (CacheFactory.isConcurrentCache(name)) {
+            return new ConcurrentCache(name, maxSize, lifetime);
+        }
         return new DefaultCache(name, maxSize, lifetime);
     }
 
@@ -26,6 +26,9 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import org.dom4j.Element;
+import org.xmpp.packet.JID;
+
 /**
  * Utility methods to assist in working with the Externalizable interfaces. This class
  * is only used when running inside of a Cluser. When using the open source version
@@ -216,6 +219,60 @@ public class ExternalizableUtil {
         return strategy.readSerializable(in);
     }
 
+    /**
+     * Writes an XML element (e.g. the element of a packet) with the compact binary
+     * encoding of {@link StanzaCodec}. This is much cheaper than writing the element
+     * with {@link #writeSerializable(DataOutput, Serializable)}.
+     *
+     * @param out     the output stream.
+     * @param element the element to write.
+     * @throws IOException if an error occurs.
+     */
+    public void writeElement(DataOutput out, Element element) throws IOException {
+        strategy.writeByteArray(out, StanzaCodec.encode(element));
+    }
+
+    /**
+     * Reads an XML element that was written with {@link #writeElement(DataOutput, Element)}.
+     *
+     * @param in the input stream.
+     * @return the read element.
+     * @throws IOException if an error occurs.
+     */
+    public Element readElement(DataInput in) throws IOException {
+        return StanzaCodec.decode(strategy.readByteArray(in));
+    }
+
+    /**
+     * Writes a JID as a string. This method handles the case when the JID is <tt>null</tt>.
+     *
+     * @param out the output stream.
+     * @param jid the JID to write.
+     * @throws IOException if an error occurs.
+     */
+    public void writeJID(DataOutput out, JID jid) throws IOException {
+        strategy.writeBoolean(out, jid != null);
+        if (jid != null) {
+            strategy.writeSafeUTF(out, jid.toString());
+        }
+    }
+
+    /**
+     * Reads a JID that was written with {@link #writeJID(DataOutput, JID)}. This method
+     * will return <tt>null</tt> if the JID written to the stream was <tt>null</tt>.
+     *
+     * @param in the input stream.
+     * @return the read JID.
+     * @throws IOException if an error occurs.
+     */
+    public JID readJID(DataInput in) throws IOException {
+        if (strategy.readBoolean(in)) {
+            // The JID was already validated by the node that wrote it
+            return new JID(strategy.readSafeUTF(in), true);
+        }
+        return null;
+    }
+
     public void writeSafeUTF(DataOutput out, String value) throws IOException {
         strategy.writeSafeUTF(out, value);
     }
@@ -0,0 +1,334 @@
+/**
+ * Copyright (C) 2004-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.util.cache;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.dom4j.Attribute;
+import org.dom4j.DocumentFactory;
+import org.dom4j.Element;
+import org.dom4j.Namespace;
+import org.dom4j.Node;
+import org.dom4j.QName;
+
+/**
+ * Compact binary encoding of XML elements (usually stanzas) to be sent between cluster
+ * nodes. Encoding an element is much cheaper than Java serialization of the dom4j tree,
+ * both in CPU and in bytes.<p>
+ *
+ * Element names, namespaces, attributes and text are written as references to strings.
+ * Strings that are common in stanzas (e.g. <tt>jabber:client</tt>, <tt>presence</tt> or
+ * <tt>type</tt>) are found in a static dictionary that both ends know. Other short strings
+ * are written once and then referenced by their position in a dictionary that is built
+ * while encoding (and decoding) a single element. Lengths and references are variable-length
+ * integers, so a typical presence is encoded in a few dozen bytes.<p>
+ *
+ * The static dictionary is part of the format. New strings may only be appended to it,
+ * together with an increment of the format version.
+ */
+public final class StanzaCodec {
+
+    private static final int VERSION = 1;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Strings longer than this are not added to the dictionary of an element.
+     */
+    private static final int MAX_DICTIONARY_LENGTH = 64;
+
+    private static final int END = 0;
+    private static final int ELEMENT = 1;
+    private static final int TEXT = 2;
+    private static final int CDATA = 3;
+
+    private static final String[] STATIC_DICTIONARY = {
+            "", "jabber:client", "presence", "message", "iq", "type", "to", "from", "id",
+            "xml", Namespace.XML_NAMESPACE.getURI(), "lang", "show", "status", "priority",
+            "body", "subject", "thread", "error", "code", "x", "query", "item", "jid", "role",
+            "affiliation", "nick", "reason", "actor",
+            "http://jabber.org/protocol/muc", "http://jabber.org/protocol/muc#user",
+            "http://jabber.org/protocol/muc#admin", "http://jabber.org/protocol/muc#owner",
+            "http://jabber.org/protocol/caps", "c", "node", "ver", "hash", "ext", "sha-1",
+            "urn:xmpp:delay", "delay", "stamp", "jabber:x:delay", "vcard-temp:x:update",
+            "photo", "http://jabber.org/protocol/pubsub", "http://jabber.org/protocol/pubsub#event",
+            "event", "items", "publish", "retract", "headers", "header", "name",
+            "http://jabber.org/protocol/shim", "available", "unavailable", "subscribe",
+            "subscribed", "unsubscribe", "unsubscribed", "probe", "chat", "groupchat", "normal",
+            "headline", "get", "set", "result", "away", "xa", "dnd", "none", "member",
+            "participant", "moderator", "visitor", "owner", "admin", "outcast",
+            "urn:ietf:params:xml:ns:xmpp-stanzas", "cancel", "modify", "auth", "wait", "en",
+            "urn:xmpp:receipts", "request", "received", "http://jabber.org/protocol/chatstates",
+            "active", "composing", "paused", "inactive", "gone", "urn:xmpp:carbons:2",
+            "urn:xmpp:forward:0", "forwarded", "private", "sent"
+    };
+
+    private static final Map<String, Integer> STATIC_CODES = new HashMap<String, Integer>();
+
+    static {
+        for (int i = 0; i < STATIC_DICTIONARY.length; i++) {
+            STATIC_CODES.put(STATIC_DICTIONARY[i], i);
+        }
+    }
+
+    private static final DocumentFactory factory = DocumentFactory.getInstance();
+
+    private StanzaCodec() {
+    }
+
+    /**
+     * Encodes the specified element, including all its attributes and children.
+     *
+     * @param element the element to encode.
+     * @return the encoded element.
+     */
+    public static byte[] encode(Element element) {
+        Encoder encoder = new Encoder();
+        encoder.writeVarInt(VERSION);
+        encoder.writeElement(element);
+        return encoder.toByteArray();
+    }
+
+    /**
+     * Decodes an element that was encoded with {@link #encode(Element)}.
+     *
+     * @param bytes the encoded element.
+     * @return the decoded element or <tt>null</tt> if <tt>bytes</tt> is null or empty.
+     * @throws IOException if the bytes are not a valid encoded element.
+     */
+    public static Element decode(byte[] bytes) throws IOException {
+        if (bytes == null || bytes.length == 0) {
+            return null;
+        }
+        Decoder decoder = new Decoder(bytes);
+        try {
+            int version = decoder.readVarInt();
+            if (version != VERSION) {
+                throw new StreamCorruptedException("Unsupported stanza encoding version: " + version);
+            }
+            return decoder.readElement();
+        }
+        catch (IndexOutOfBoundsException e) {
+            throw new StreamCorruptedException("Truncated encoded stanza");
+        }
+    }
+
+    private static class Encoder {
+
+        private byte[] buffer = new byte[256];
+        private int position;
+        private Map<String, Integer> dictionary;
+
+        void writeElement(Element element) {
+            QName qName = element.getQName();
+            writeString(qName.getName());
+            writeString(qName.getNamespacePrefix());
+            writeString(qName.getNamespaceURI());
+
+            // Namespaces declared by the element, other than its own namespace
+            List<Namespace> namespaces = element.declaredNamespaces();
+            int count = 0;
+            for (Namespace namespace : namespaces) {
+                if (!namespace.equals(qName.getNamespace())) {
+                    count++;
+                }
+            }
+            writeVarInt(count);
+            for (Namespace namespace : namespaces) {
+                if (!namespace.equals(qName.getNamespace())) {
+                    writeString(namespace.getPrefix());
+                    writeString(namespace.getURI());
+                }
+            }
+
+            writeVarInt(element.attributeCount());
+            for (int i = 0; i < element.attributeCount(); i++) {
+                Attribute attribute = element.attribute(i);
+                writeString(attribute.getName());
+                writeString(attribute.getNamespacePrefix());
+                writeString(attribute.getNamespaceURI());
+                writeString(attribute.getValue());
+            }
+
+            for (int i = 0, size = element.nodeCount(); i < size; i++) {
+                Node node = element.node(i);
+                switch (node.getNodeType()) {
+                    case Node.ELEMENT_NODE:
+                        writeVarInt(ELEMENT);
+                        writeElement((Element) node);
+                        break;
+                    case Node.TEXT_NODE:
+                    case Node.ENTITY_REFERENCE_NODE:
+                        writeVarInt(TEXT);
+                        writeString(node.getText());
+                        break;
+                    case Node.CDATA_SECTION_NODE:
+                        writeVarInt(CDATA);
+                        writeString(node.getText());
+                        break;
+                    default:
+                        // Comments and processing instructions are not part of stanzas
+                        break;
+                }
+            }
+            writeVarInt(END);
+        }
+
+        /**
+         * Writes a string as a reference: zero followed by the string itself if the string
+         * is not known yet, or one plus its position in the static dictionary, or one plus
+         * the size of the static dictionary plus its position in the element dictionary.
+         */
+        void writeString(String value) {
+            if (value == null) {
+                value = "";
+            }
+            Integer code = STATIC_CODES.get(value);
+            if (code == null && dictionary != null) {
+                code = dictionary.get(value);
+            }
+            if (code != null) {
+                writeVarInt(code + 1);
+                return;
+            }
+            writeVarInt(0);
+            byte[] bytes = value.getBytes(UTF8);
+            writeVarInt(bytes.length);
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, buffer, position, bytes.length);
+            position += bytes.length;
+            if (value.length() <= MAX_DICTIONARY_LENGTH) {
+                if (dictionary == null) {
+                    dictionary = new HashMap<String, Integer>();
+                }
+                dictionary.put(value, STATIC_DICTIONARY.length + dictionary.size());
+            }
+        }
+
+        void writeVarInt(int value) {
+            ensureCapacity(5);
+            while ((value & ~0x7F) != 0) {
+                buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[position++] = (byte) value;
+        }
+
+        private void ensureCapacity(int length) {
+            if (position + length > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + length));
+            }
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buffer, position);
+        }
+    }
+
+    private static class Decoder {
+
+        private final byte[] buffer;
+        private int position;
+        private final List<String> dictionary = new ArrayList<String>();
+
+        Decoder(byte[] buffer) {
+            this.buffer = buffer;
+        }
+
+        Element readElement() throws IOException {
+            String name = readString();
+            String prefix = readString();
+            String uri = readString();
+            Element element = factory.createElement(factory.createQName(name, prefix, uri));
+
+            for (int i = readVarInt(); i > 0; i--) {
+                element.addNamespace(readString(), readString());
+            }
+
+            for (int i = readVarInt(); i > 0; i--) {
+                String attributeName = readString();
+                String attributePrefix = readString();
+                String attributeURI = readString();
+                String value = readString();
+                element.addAttribute(
+                        factory.createQName(attributeName, attributePrefix, attributeURI), value);
+            }
+
+            int type;
+            while ((type = readVarInt()) != END) {
+                switch (type) {
+                    case ELEMENT:
+                        element.add(readElement());
+                        break;
+                    case TEXT:
+                        element.add(factory.createText(readString()));
+                        break;
+                    case CDATA:
+                        element.add(factory.createCDATA(readString()));
+                        break;
+                    default:
+                        throw new StreamCorruptedException("Unknown node type: " + type);
+                }
+            }
+            return element;
+        }
+
+        String readString() throws IOException {
+            int code = readVarInt();
+            if (code > 0) {
+                code--;
+                if (code < STATIC_DICTIONARY.length) {
+                    return STATIC_DICTIONARY[code];
+                }
+                code -= STATIC_DICTIONARY.length;
+                if (code >= dictionary.size()) {
+                    throw new StreamCorruptedException("Unknown string reference: " + code);
+                }
+                return dictionary.get(code);
+            }
+            int length = readVarInt();
+            if (length < 0 || position + length > buffer.length) {
+                throw new StreamCorruptedException("Invalid string length: " + length);
+            }
+            String value = new String(buffer, position, length, UTF8);
+            position += length;
+            if (value.length() <= MAX_DICTIONARY_LENGTH) {
+                dictionary.add(value);
+            }
+            return value;
+        }
+
+        int readVarInt() throws IOException {
+            int value = 0;
+            for (int shift = 0; shift < 32; shift += 7) {
+                byte b = buffer[position++];
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new StreamCorruptedException("Malformed variable-length integer");
+        }
+    }
+}
@@ -147,6 +147,10 @@ public class ClusteredCache implements Cache, QueryMap, InvocableMap {
         return map.get(key);
     }
 
+    public Map getAll(Collection keys) {
+        return map.getAll(keys);
+    }
+
     public Object remove(Object key) {
         return map.remove(key);
     }
@@ -19,12 +19,19 @@
 
 package com.jivesoftware.util.cluster;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
 import org.jivesoftware.openfire.RemotePacketRouter;
+import org.jivesoftware.openfire.cluster.NodeID;
 import org.jivesoftware.util.Log;
 import org.jivesoftware.util.cache.CacheFactory;
 import org.xmpp.packet.JID;
 import org.xmpp.packet.Message;
 import org.xmpp.packet.Packet;
+import org.xmpp.packet.Presence;
 
 /**
  * Route packets to other nodes of the cluster. If the remote node was not found or failed
@@ -57,4 +64,19 @@ public class CoherencePacketRouter implements RemotePacketRouter {
         // Execute the broadcast task across the cluster
         CacheFactory.doClusterTask(new BroadcastMessage(packet));
     }
+
+    public Collection<NodeID> broadcastPresence(Map<NodeID, List<JID>> recipients, Presence packet) {
+        // Route the presence to each recipient with the same 'to' the node would have set
+        List<NodeID> unreachable = new ArrayList<NodeID>();
+        for (Map.Entry<NodeID, List<JID>> entry : recipients.entrySet()) {
+            for (JID recipient : entry.getValue()) {
+                packet.setTo(recipient.asBareJID());
+                if (!routePacket(entry.getKey().toByteArray(), recipient, packet)) {
+                    unreachable.add(entry.getKey());
+                    break;
+                }
+            }
+        }
+        return unreachable;
+    }
 }
@@ -20,6 +20,7 @@ package com.jivesoftware.util.cache;
 
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
@@ -92,6 +93,11 @@ public class ClusteredCache implements Cache {
         return map.get(key);
     }
 
+    public Map getAll(Collection keys) {
+        numberOfGets += keys.size();
+        return map.getAll(keys instanceof Set ? (Set) keys : new HashSet(keys));
+    }
+
     public Object remove(Object key) {
         return map.remove(key);
     }
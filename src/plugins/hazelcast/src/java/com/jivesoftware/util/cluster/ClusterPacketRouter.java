@@ -19,13 +19,21 @@
 
 package com.jivesoftware.util.cluster;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
 import org.jivesoftware.openfire.RemotePacketRouter;
+import org.jivesoftware.openfire.cluster.NodeID;
 import org.jivesoftware.util.cache.CacheFactory;
+import org.jivesoftware.util.cache.StanzaCodec;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xmpp.packet.JID;
 import org.xmpp.packet.Message;
 import org.xmpp.packet.Packet;
+import org.xmpp.packet.Presence;
 
 /**
  * Route packets to other nodes of the cluster. If the remote node was not found or failed
@@ -55,4 +63,20 @@ public class ClusterPacketRouter implements RemotePacketRouter {
         // Execute the broadcast task across the cluster
         CacheFactory.doClusterTask(new BroadcastMessage(packet));
     }
+
+    public Collection<NodeID> broadcastPresence(Map<NodeID, List<JID>> recipients, Presence packet) {
+        // Encode the presence once and send one task with the same bytes to each node
+        byte[] presence = StanzaCodec.encode(packet.getElement());
+        List<NodeID> unreachable = new ArrayList<NodeID>();
+        for (Map.Entry<NodeID, List<JID>> entry : recipients.entrySet()) {
+            try {
+                CacheFactory.doClusterTask(new RemotePresenceBroadcast(entry.getValue(), presence),
+                        entry.getKey().toByteArray());
+            } catch (IllegalStateException  e) {
+                logger.warn("Error while broadcasting presence to remote node: " + e);
+                unreachable.add(entry.getKey());
+            }
+        }
+        return unreachable;
+    }
 }
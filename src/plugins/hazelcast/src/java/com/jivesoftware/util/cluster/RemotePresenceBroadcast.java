@@ -0,0 +1,108 @@
+/**
+ * Copyright (C) 1999-2009 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jivesoftware.util.cluster;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jivesoftware.openfire.RoutingTable;
+import org.jivesoftware.openfire.XMPPServer;
+import org.jivesoftware.util.cache.ClusterTask;
+import org.jivesoftware.util.cache.ExternalizableUtil;
+import org.jivesoftware.util.cache.StanzaCodec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Presence;
+
+/**
+ * Task to be executed by remote nodes to deliver a presence to the sessions of several
+ * users hosted by that node. The presence is encoded once by the node that broadcasts it
+ * and the same bytes are sent to every node.
+ */
+public class RemotePresenceBroadcast implements ClusterTask {
+
+    private static final Logger Log = LoggerFactory.getLogger(RemotePresenceBroadcast.class);
+
+    private List<JID> recipients;
+    private byte[] presence;
+
+    public RemotePresenceBroadcast() {
+    }
+
+    /**
+     * Creates a task that delivers a presence to the specified sessions.
+     *
+     * @param recipients the full JIDs of the sessions.
+     * @param presence the presence encoded with {@link StanzaCodec}.
+     */
+    public RemotePresenceBroadcast(List<JID> recipients, byte[] presence) {
+        this.recipients = recipients;
+        this.presence = presence;
+    }
+
+    public Object getResult() {
+        return null;
+    }
+
+    public void run() {
+        Presence packet;
+        try {
+            packet = new Presence(StanzaCodec.decode(presence), true);
+        }
+        catch (IOException e) {
+            Log.error("Unable to decode broadcasted presence", e);
+            return;
+        }
+        // Route the presence to each session hosted by this node. If delivery fails then the
+        // routing table will inform the proper router of the failure
+        RoutingTable routingTable = XMPPServer.getInstance().getRoutingTable();
+        for (JID recipient : recipients) {
+            packet.setTo(recipient.asBareJID());
+            try {
+                routingTable.routePacket(recipient, packet, false);
+            }
+            catch (Exception e) {
+                // Theoretically only happens if session has been closed.
+                Log.debug(e.getMessage(), e);
+            }
+        }
+    }
+
+    public void writeExternal(ObjectOutput out) throws IOException {
+        ExternalizableUtil.getInstance().writeInt(out, recipients.size());
+        for (JID recipient : recipients) {
+            ExternalizableUtil.getInstance().writeJID(out, recipient);
+        }
+        ExternalizableUtil.getInstance().writeByteArray(out, presence);
+    }
+
+    public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+        int size = ExternalizableUtil.getInstance().readInt(in);
+        recipients = new ArrayList<JID>(size);
+        for (int i = 0; i < size; i++) {
+            recipients.add(ExternalizableUtil.getInstance().readJID(in));
+        }
+        presence = ExternalizableUtil.getInstance().readByteArray(in);
+    }
+
+    public String toString() {
+        return super.toString() + " recipients: " + recipients.size();
+    }
+}
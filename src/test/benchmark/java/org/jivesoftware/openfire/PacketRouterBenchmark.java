@@ -0,0 +1,61 @@
+/**
+ * Copyright (C) 2004-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire;
+
+import java.util.concurrent.TimeUnit;
+
+import org.jivesoftware.openfire.benchmark.EmbeddedServer;
+import org.jivesoftware.openfire.benchmark.StanzaCorpus;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.xmpp.packet.Packet;
+
+/**
+ * Measures {@link PacketRouter#route(Packet)} for the packets that <tt>romeo</tt> sends to
+ * <tt>juliet</tt> and to the server. Packets are copied before being routed since IQ
+ * handlers and interceptors may modify them, just like a freshly parsed packet would be.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PacketRouterBenchmark {
+
+    @Param({"chat", "presence", "roster", "unicode"})
+    public StanzaCorpus corpus;
+
+    private Packet[] packets;
+    private PacketRouter router;
+
+    @Setup
+    public void setup(EmbeddedServer server) {
+        packets = corpus.getPackets(server.getDomain());
+        router = server.getServer().getPacketRouter();
+    }
+
+    @Benchmark
+    public void route() {
+        for (Packet packet : packets) {
+            router.route(packet.createCopy());
+        }
+    }
+}
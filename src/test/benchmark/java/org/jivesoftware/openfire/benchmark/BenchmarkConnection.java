@@ -0,0 +1,136 @@
+/**
+ * Copyright (C) 2004-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.benchmark;
+
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.mina.common.ByteBuffer;
+import org.dom4j.io.OutputFormat;
+import org.jivesoftware.openfire.auth.UnauthorizedException;
+import org.jivesoftware.openfire.net.VirtualConnection;
+import org.jivesoftware.openfire.nio.ByteBufferWriter;
+import org.jivesoftware.openfire.nio.SerializedStanza;
+import org.jivesoftware.openfire.session.LocalSession;
+import org.jivesoftware.util.XMLWriter;
+import org.xmpp.packet.Packet;
+
+/**
+ * Connection of the sessions created by the benchmarks. Delivered packets are serialized
+ * the same way {@link org.jivesoftware.openfire.nio.NIOConnection} does and the written
+ * bytes are then discarded, so that routing benchmarks include the cost of writing to a
+ * real connection but not the cost of the network.
+ */
+public class BenchmarkConnection extends VirtualConnection {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final ThreadLocal<CharsetEncoder> encoder = new ThreadLocal<CharsetEncoder>() {
+        @Override
+        protected CharsetEncoder initialValue() {
+            return UTF8.newEncoder();
+        }
+    };
+
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong deliveredBytes = new AtomicLong();
+
+    /**
+     * Returns the session that is using this connection.
+     *
+     * @return the session that is using this connection.
+     */
+    public LocalSession getSession() {
+        return session;
+    }
+
+    /**
+     * Returns the number of packets and raw texts delivered to this connection.
+     *
+     * @return the number of packets and raw texts delivered to this connection.
+     */
+    public long getDelivered() {
+        return delivered.get();
+    }
+
+    /**
+     * Returns the number of bytes written by this connection.
+     *
+     * @return the number of bytes written by this connection.
+     */
+    public long getDeliveredBytes() {
+        return deliveredBytes.get();
+    }
+
+    public void deliver(Packet packet) throws UnauthorizedException {
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        buffer.setAutoExpand(true);
+        try {
+            SerializedStanza fanout = SerializedStanza.getCurrent();
+            if (fanout != null && fanout.isSerializationOf(packet)) {
+                fanout.writeTo(buffer, packet.getTo());
+            }
+            else {
+                XMLWriter xmlSerializer =
+                        new XMLWriter(new ByteBufferWriter(buffer, encoder.get()), new OutputFormat());
+                xmlSerializer.write(packet.getElement());
+                xmlSerializer.flush();
+            }
+            buffer.flip();
+            written(buffer);
+        }
+        catch (Exception e) {
+            throw new IllegalStateException("Error serializing packet: " + packet, e);
+        }
+    }
+
+    public void deliverRawText(String text) {
+        ByteBuffer buffer = ByteBuffer.allocate(text.length());
+        buffer.setAutoExpand(true);
+        buffer.put(text.getBytes(UTF8));
+        buffer.flip();
+        written(buffer);
+    }
+
+    private void written(ByteBuffer buffer) {
+        delivered.incrementAndGet();
+        deliveredBytes.addAndGet(buffer.remaining());
+        buffer.release();
+    }
+
+    public byte[] getAddress() {
+        return new byte[] {127, 0, 0, 1};
+    }
+
+    public String getHostAddress() {
+        return "127.0.0.1";
+    }
+
+    public String getHostName() {
+        return "localhost";
+    }
+
+    public void systemShutdown() {
+        close();
+    }
+
+    @Override
+    public void closeVirtualConnection() {
+        // Nothing to release
+    }
+}
@@ -0,0 +1,138 @@
+/**
+ * Copyright (C) 2004-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.benchmark;
+
+import org.jivesoftware.openfire.XMPPServer;
+import org.jivesoftware.openfire.auth.AuthToken;
+import org.jivesoftware.openfire.session.LocalClientSession;
+import org.jivesoftware.openfire.user.UserAlreadyExistsException;
+import org.jivesoftware.openfire.user.UserManager;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Presence;
+
+/**
+ * Server shared by the benchmarks of the routing path. The server is started from the
+ * openfireHome directory specified by the <tt>openfireHome</tt> system property, which must
+ * have already been set up (e.g. with the embedded database). Users <tt>romeo</tt> and
+ * <tt>juliet</tt> are created if needed and get an available session each, with resources
+ * <tt>orchard</tt> and <tt>balcony</tt>, that uses a {@link BenchmarkConnection}.
+ */
+@State(Scope.Benchmark)
+public class EmbeddedServer {
+
+    /**
+     * Password of the users created by the benchmarks.
+     */
+    public static final String PASSWORD = "benchmark";
+
+    private XMPPServer server;
+    private String domain;
+    private LocalClientSession romeo;
+    private LocalClientSession juliet;
+
+    @Setup(Level.Trial)
+    public void start() throws Exception {
+        server = XMPPServer.getInstance();
+        if (server == null) {
+            server = new XMPPServer();
+        }
+        if (server.isSetupMode()) {
+            throw new IllegalStateException("The server at " + System.getProperty("openfireHome") +
+                    " has not been set up. Run the setup wizard before running the benchmarks.");
+        }
+        domain = server.getServerInfo().getXMPPDomain();
+        romeo = createSession("romeo", "orchard", new BenchmarkConnection());
+        juliet = createSession("juliet", "balcony", new BenchmarkConnection());
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() {
+        if (romeo != null) {
+            romeo.close();
+        }
+        if (juliet != null) {
+            juliet.close();
+        }
+        server.stop();
+    }
+
+    /**
+     * Creates an available session of the specified user that uses the specified connection.
+     * The user is created if it does not exist.
+     *
+     * @param username the username of the user.
+     * @param resource the resource of the session.
+     * @param connection the connection of the session.
+     * @return the new authenticated and available session.
+     */
+    public LocalClientSession createSession(String username, String resource,
+            BenchmarkConnection connection) {
+        UserManager userManager = UserManager.getInstance();
+        if (!userManager.isRegisteredUser(username)) {
+            try {
+                userManager.createUser(username, PASSWORD, username, null);
+            }
+            catch (UserAlreadyExistsException e) {
+                // Created by another benchmark thread in the meantime
+            }
+        }
+        LocalClientSession session = server.getSessionManager().createClientSession(connection);
+        authenticate(session, username, resource);
+        return session;
+    }
+
+    /**
+     * Authenticates the specified pre-authenticated session and makes it available.
+     *
+     * @param session the session to authenticate.
+     * @param username the username of the user.
+     * @param resource the resource of the session.
+     */
+    public void authenticate(LocalClientSession session, String username, String resource) {
+        session.setAuthToken(new AuthToken(username), resource);
+        session.setPresence(new Presence());
+    }
+
+    public XMPPServer getServer() {
+        return server;
+    }
+
+    public String getDomain() {
+        return domain;
+    }
+
+    public LocalClientSession getRomeo() {
+        return romeo;
+    }
+
+    public LocalClientSession getJuliet() {
+        return juliet;
+    }
+
+    public JID getRomeoAddress() {
+        return romeo.getAddress();
+    }
+
+    public JID getJulietAddress() {
+        return juliet.getAddress();
+    }
+}
@@ -0,0 +1,198 @@
+/**
+ * Copyright (C) 2004-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.benchmark;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.dom4j.DocumentException;
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+import org.xmpp.packet.IQ;
+import org.xmpp.packet.Message;
+import org.xmpp.packet.Packet;
+import org.xmpp.packet.Presence;
+import org.xmpp.packet.Roster;
+
+/**
+ * Sets of stanzas used by the benchmarks. Every corpus is loaded from
+ * <tt>/corpus/&lt;name&gt;.xml</tt> in the classpath, a file that holds one stanza per
+ * line. Stanzas are exchanged between <tt>romeo@example.com/orchard</tt> and
+ * <tt>juliet@example.com/balcony</tt>; benchmarks that run against a server may replace
+ * <tt>example.com</tt> with the domain of the server.
+ */
+public enum StanzaCorpus {
+
+    /**
+     * One to one chat messages with chat states, receipts and XHTML-IM bodies.
+     */
+    chat,
+    /**
+     * Available and unavailable presences with entity capabilities and avatar hashes.
+     */
+    presence,
+    /**
+     * Room messages, subject changes and occupant presences as delivered by a MUC service.
+     */
+    groupchat,
+    /**
+     * Roster gets and pushes and pings sent to the server.
+     */
+    roster,
+    /**
+     * PEP and pubsub event notifications.
+     */
+    pubsub,
+    /**
+     * Messages and presences with non ASCII text.
+     */
+    unicode,
+    /**
+     * All the other corpora together.
+     */
+    mixed;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final String DOMAIN = "example.com";
+
+    /**
+     * Returns the stanzas of this corpus.
+     *
+     * @return the stanzas of this corpus.
+     */
+    public String[] getStanzas() {
+        return getStanzas(DOMAIN);
+    }
+
+    /**
+     * Returns the stanzas of this corpus with all the addresses in the specified domain.
+     *
+     * @param domain the domain to use in the stanza addresses.
+     * @return the stanzas of this corpus.
+     */
+    public String[] getStanzas(String domain) {
+        List<String> stanzas = new ArrayList<String>();
+        if (this == mixed) {
+            for (StanzaCorpus corpus : values()) {
+                if (corpus != mixed) {
+                    corpus.load(stanzas);
+                }
+            }
+        }
+        else {
+            load(stanzas);
+        }
+        String[] result = new String[stanzas.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = DOMAIN.equals(domain) ? stanzas.get(i) : stanzas.get(i).replace(DOMAIN, domain);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the stanzas of this corpus encoded in UTF-8 one after the other, which is
+     * what a connection would read from the network.
+     *
+     * @return the stanzas of this corpus as received from the network.
+     */
+    public byte[] getBytes() {
+        StringBuilder sb = new StringBuilder();
+        for (String stanza : getStanzas()) {
+            sb.append(stanza);
+        }
+        return sb.toString().getBytes(UTF8);
+    }
+
+    /**
+     * Returns the parsed stanzas of this corpus with all the addresses in the specified
+     * domain.
+     *
+     * @param domain the domain to use in the stanza addresses.
+     * @return the parsed stanzas of this corpus.
+     */
+    public Packet[] getPackets(String domain) {
+        String[] stanzas = getStanzas(domain);
+        Packet[] packets = new Packet[stanzas.length];
+        for (int i = 0; i < stanzas.length; i++) {
+            packets[i] = parse(stanzas[i]);
+        }
+        return packets;
+    }
+
+    /**
+     * Returns the parsed stanzas of this corpus.
+     *
+     * @return the parsed stanzas of this corpus.
+     */
+    public Packet[] getPackets() {
+        return getPackets(DOMAIN);
+    }
+
+    private static Packet parse(String stanza) {
+        Element element;
+        try {
+            element = DocumentHelper.parseText(stanza).getRootElement();
+        }
+        catch (DocumentException e) {
+            throw new IllegalStateException("Invalid stanza in corpus: " + stanza, e);
+        }
+        String tag = element.getName();
+        if ("message".equals(tag)) {
+            return new Message(element, true);
+        }
+        else if ("presence".equals(tag)) {
+            return new Presence(element, true);
+        }
+        Element query = element.element("query");
+        if (query != null && "jabber:iq:roster".equals(query.getNamespaceURI())) {
+            return new Roster(element);
+        }
+        return new IQ(element, true);
+    }
+
+    private void load(List<String> stanzas) {
+        String resource = "/corpus/" + name() + ".xml";
+        InputStream in = StanzaCorpus.class.getResourceAsStream(resource);
+        if (in == null) {
+            throw new IllegalStateException("Corpus not found in the classpath: " + resource);
+        }
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in, UTF8));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    line = line.trim();
+                    if (line.length() > 0) {
+                        stanzas.add(line);
+                    }
+                }
+            }
+            finally {
+                reader.close();
+            }
+        }
+        catch (IOException e) {
+            throw new IllegalStateException("Error reading corpus " + resource, e);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/**
+ * Copyright (C) 2004-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.interceptor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.jivesoftware.openfire.benchmark.StanzaCorpus;
+import org.jivesoftware.openfire.session.Session;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.xmpp.packet.Message;
+import org.xmpp.packet.Packet;
+
+/**
+ * Measures {@link InterceptorManager#invokeInterceptors(Packet, Session, boolean, boolean)}
+ * for all the packets of a corpus with a varying number of global interceptors. The
+ * interceptors look at the packet like typical content filters do before letting it
+ * through.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class InterceptorManagerBenchmark {
+
+    @Param
+    public StanzaCorpus corpus;
+
+    @Param({"0", "1", "4"})
+    public int interceptors;
+
+    private Packet[] packets;
+    private InterceptorManager manager;
+    private List<PacketInterceptor> added = new ArrayList<PacketInterceptor>();
+
+    @Setup
+    public void setup() {
+        packets = corpus.getPackets();
+        manager = InterceptorManager.getInstance();
+        for (int i = 0; i < interceptors; i++) {
+            PacketInterceptor interceptor = new BodyInterceptor();
+            manager.addInterceptor(interceptor);
+            added.add(interceptor);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (PacketInterceptor interceptor : added) {
+            manager.removeInterceptor(interceptor);
+        }
+        added.clear();
+    }
+
+    @Benchmark
+    public void incoming() throws PacketRejectedException {
+        for (Packet packet : packets) {
+            manager.invokeInterceptors(packet, null, true, false);
+            manager.invokeInterceptors(packet, null, true, true);
+        }
+    }
+
+    private static class BodyInterceptor implements PacketInterceptor {
+
+        private volatile int length;
+
+        public void interceptPacket(Packet packet, Session session, boolean incoming, boolean processed)
+                throws PacketRejectedException {
+            if (!processed && packet instanceof Message) {
+                String body = ((Message) packet).getBody();
+                if (body != null) {
+                    length = body.length();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/**
+ * Copyright (C) 2004-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.net;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.dom4j.io.XMPPPacketReader;
+import org.jivesoftware.openfire.benchmark.BenchmarkConnection;
+import org.jivesoftware.openfire.benchmark.EmbeddedServer;
+import org.jivesoftware.openfire.benchmark.StanzaCorpus;
+import org.jivesoftware.openfire.session.LocalClientSession;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+/**
+ * Measures {@link StanzaHandler#process(String, XMPPPacketReader)} and
+ * {@link StanzaHandler#process(RawStanza, XMPPPacketReader)} for the stanzas that a client
+ * sends: every stanza is parsed, turned into a packet and routed by the server to the
+ * recipient's {@link BenchmarkConnection}. Each benchmark thread has its own client
+ * session of <tt>romeo</tt>.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class StanzaHandlerBenchmark {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final AtomicInteger sessions = new AtomicInteger();
+
+    @Param({"chat", "presence", "roster", "unicode"})
+    public StanzaCorpus corpus;
+
+    private String[] stanzas;
+    private RawStanza[] rawStanzas;
+    private XMPPPacketReader reader;
+    private StanzaHandler handler;
+    private LocalClientSession session;
+
+    @Setup
+    public void setup(EmbeddedServer server) throws Exception {
+        stanzas = corpus.getStanzas(server.getDomain());
+        rawStanzas = new RawStanza[stanzas.length];
+        for (int i = 0; i < stanzas.length; i++) {
+            byte[] bytes = stanzas[i].getBytes(UTF8);
+            rawStanzas[i] = new RawStanza(bytes, 0, bytes.length);
+        }
+
+        XmlPullParserFactory factory = XmlPullParserFactory.newInstance(MXParser.class.getName(), null);
+        factory.setNamespaceAware(true);
+        reader = new XMPPPacketReader();
+        reader.setXPPFactory(factory);
+
+        // Open the stream and authenticate the session created by the handler
+        BenchmarkConnection connection = new BenchmarkConnection();
+        handler = new ClientStanzaHandler(server.getServer().getPacketRouter(), server.getDomain(),
+                connection);
+        handler.process("<stream:stream to=\"" + server.getDomain() + "\" xmlns=\"jabber:client\" " +
+                "xmlns:stream=\"http://etherx.jabber.org/streams\" version=\"1.0\">", reader);
+        session = (LocalClientSession) connection.getSession();
+        server.authenticate(session, "romeo", "handler" + sessions.incrementAndGet());
+    }
+
+    @TearDown
+    public void tearDown() {
+        session.close();
+    }
+
+    @Benchmark
+    public void processString() throws Exception {
+        for (String stanza : stanzas) {
+            handler.process(stanza, reader);
+        }
+    }
+
+    @Benchmark
+    public void processRawStanza() throws Exception {
+        for (RawStanza stanza : rawStanzas) {
+            handler.process(stanza, reader);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/**
+ * Copyright (C) 2004-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.nio;
+
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.mina.common.ByteBuffer;
+import org.dom4j.io.OutputFormat;
+import org.jivesoftware.util.XMLWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Message;
+import org.xmpp.packet.Packet;
+
+/**
+ * Measures the serialization of a room message for all the occupants of a room: once
+ * per occupant with {@link XMLWriter}, as {@link NIOConnection#deliver(Packet)} does by
+ * default, and once for the room with a {@link SerializedStanza} whose bytes are copied
+ * for every occupant.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MUCBroadcastBenchmark {
+
+    @Param({"10", "100", "500", "2000"})
+    public int occupants;
+
+    private Message message;
+    private JID[] recipients;
+    private CharsetEncoder encoder;
+
+    @Setup
+    public void setup() {
+        recipients = new JID[occupants];
+        for (int i = 0; i < occupants; i++) {
+            recipients[i] = new JID("user" + i, "example.com", "game");
+        }
+        message = new Message();
+        message.setType(Message.Type.groupchat);
+        message.setFrom("lobby@conference.example.com/player");
+        message.setBody("The quick brown fox jumps over the lazy dog. " +
+                "The quick brown fox jumps over the lazy dog.");
+        message.addChildElement("x", "urn:example:game").addAttribute("turn", "42");
+        encoder = Charset.forName(NIOConnection.CHARSET).newEncoder();
+    }
+
+    @Benchmark
+    public void xmlWriter(Blackhole blackhole) throws Exception {
+        for (JID recipient : recipients) {
+            message.setTo(recipient);
+            ByteBuffer buffer = ByteBuffer.allocate(4096);
+            buffer.setAutoExpand(true);
+            XMLWriter xmlSerializer = new XMLWriter(new ByteBufferWriter(buffer, encoder), new OutputFormat());
+            xmlSerializer.write(message.getElement());
+            xmlSerializer.flush();
+            buffer.flip();
+            blackhole.consume(buffer.remaining());
+            buffer.release();
+        }
+    }
+
+    @Benchmark
+    public void serializedStanza(Blackhole blackhole) throws Exception {
+        SerializedStanza stanza = SerializedStanza.serialize(message);
+        for (JID recipient : recipients) {
+            ByteBuffer buffer = ByteBuffer.allocate(4096);
+            buffer.setAutoExpand(true);
+            stanza.writeTo(buffer, recipient);
+            buffer.flip();
+            blackhole.consume(buffer.remaining());
+            buffer.release();
+        }
+    }
+}
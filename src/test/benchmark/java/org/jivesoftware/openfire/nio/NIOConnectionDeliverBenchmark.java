@@ -0,0 +1,90 @@
+/**
+ * Copyright (C) 2004-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.nio;
+
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.mina.common.ByteBuffer;
+import org.dom4j.io.OutputFormat;
+import org.jivesoftware.openfire.benchmark.StanzaCorpus;
+import org.jivesoftware.util.XMLWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+import org.xmpp.packet.Packet;
+
+/**
+ * Measures the serialization done by {@link NIOConnection#deliver(Packet)} for all the
+ * packets of a corpus: serializing each packet with {@link XMLWriter} and copying the
+ * bytes shared by all the recipients of a {@link SerializedStanza}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class NIOConnectionDeliverBenchmark {
+
+    @Param
+    public StanzaCorpus corpus;
+
+    private Packet[] packets;
+    private SerializedStanza[] serialized;
+    private CharsetEncoder encoder;
+
+    @Setup
+    public void setup() throws Exception {
+        packets = corpus.getPackets();
+        serialized = new SerializedStanza[packets.length];
+        for (int i = 0; i < packets.length; i++) {
+            serialized[i] = SerializedStanza.serializeCopy(packets[i]);
+        }
+        encoder = Charset.forName(NIOConnection.CHARSET).newEncoder();
+    }
+
+    @Benchmark
+    public void xmlWriter(Blackhole blackhole) throws Exception {
+        for (Packet packet : packets) {
+            ByteBuffer buffer = ByteBuffer.allocate(4096);
+            buffer.setAutoExpand(true);
+            XMLWriter xmlSerializer = new XMLWriter(new ByteBufferWriter(buffer, encoder), new OutputFormat());
+            xmlSerializer.write(packet.getElement());
+            xmlSerializer.flush();
+            buffer.flip();
+            blackhole.consume(buffer.remaining());
+            buffer.release();
+        }
+    }
+
+    @Benchmark
+    public void serializedStanza(Blackhole blackhole) {
+        for (int i = 0; i < packets.length; i++) {
+            ByteBuffer buffer = ByteBuffer.allocate(4096);
+            buffer.setAutoExpand(true);
+            serialized[i].writeTo(buffer, packets[i].getTo());
+            buffer.flip();
+            blackhole.consume(buffer.remaining());
+            buffer.release();
+        }
+    }
+}
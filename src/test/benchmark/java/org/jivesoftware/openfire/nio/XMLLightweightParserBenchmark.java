@@ -0,0 +1,81 @@
+/**
+ * Copyright (C) 2004-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.nio;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.mina.common.ByteBuffer;
+import org.jivesoftware.openfire.benchmark.StanzaCorpus;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures how long it takes to frame all the stanzas of a corpus, as read from the
+ * network in chunks of <tt>readSize</tt> bytes, with {@link XMLLightweightParser} and
+ * with {@link XMLLightweightByteParser}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class XMLLightweightParserBenchmark {
+
+    @Param
+    public StanzaCorpus corpus;
+
+    @Param({"64", "1024", "8192"})
+    public int readSize;
+
+    private byte[] bytes;
+    private XMLLightweightParser charParser;
+    private XMLLightweightByteParser byteParser;
+
+    @Setup
+    public void setup() {
+        bytes = corpus.getBytes();
+        charParser = new XMLLightweightParser(NIOConnection.CHARSET);
+        byteParser = new XMLLightweightByteParser();
+    }
+
+    @Benchmark
+    public void chars(Blackhole blackhole) throws Exception {
+        for (int offset = 0; offset < bytes.length; offset += readSize) {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, Math.min(readSize, bytes.length - offset));
+            charParser.read(buffer);
+            if (charParser.areThereMsgs()) {
+                blackhole.consume(charParser.getMsgs());
+            }
+        }
+    }
+
+    @Benchmark
+    public void bytes(Blackhole blackhole) throws Exception {
+        for (int offset = 0; offset < bytes.length; offset += readSize) {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, Math.min(readSize, bytes.length - offset));
+            byteParser.read(buffer);
+            if (byteParser.areThereMsgs()) {
+                blackhole.consume(byteParser.getMsgs());
+            }
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/**
+ * Copyright (C) 2004-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.spi;
+
+import java.util.concurrent.TimeUnit;
+
+import org.jivesoftware.openfire.RoutingTable;
+import org.jivesoftware.openfire.benchmark.EmbeddedServer;
+import org.jivesoftware.openfire.benchmark.StanzaCorpus;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Packet;
+
+/**
+ * Measures {@link RoutingTableImpl#routePacket(JID, Packet, boolean)} for packets sent to
+ * the full JID of <tt>juliet</tt> and to her bare JID, in which case the routing table has
+ * to pick the session that should get the packet.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RoutingTableBenchmark {
+
+    @Param({"chat", "presence", "groupchat", "pubsub", "unicode"})
+    public StanzaCorpus corpus;
+
+    @Param({"full", "bare"})
+    public String recipient;
+
+    private Packet[] packets;
+    private RoutingTable routingTable;
+    private JID to;
+
+    @Setup
+    public void setup(EmbeddedServer server) {
+        packets = corpus.getPackets(server.getDomain());
+        routingTable = server.getServer().getRoutingTable();
+        to = "bare".equals(recipient) ? server.getJulietAddress().asBareJID() : server.getJulietAddress();
+        for (Packet packet : packets) {
+            packet.setTo(to);
+        }
+    }
+
+    @Benchmark
+    public void routePacket() {
+        for (Packet packet : packets) {
+            routingTable.routePacket(to, packet, false);
+        }
+    }
+}
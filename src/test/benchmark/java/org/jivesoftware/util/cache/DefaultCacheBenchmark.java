@@ -0,0 +1,138 @@
+/**
+ * Copyright (C) 2004-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.util.cache;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.jivesoftware.util.JiveConstants;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Measures the throughput of <tt>get</tt> and <tt>put</tt> on {@link DefaultCache} and
+ * {@link ConcurrentCache} when the keys are JIDs, as in the routing and session caches.
+ * The <tt>mixed</tt> benchmarks read random keys and replace one of them every ten
+ * operations, with 1, 8 and 32 threads. With a <tt>bounded</tt> max size the cache only
+ * holds three quarters of the keys, so writes keep culling it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DefaultCacheBenchmark {
+
+    @Param({"default", "concurrent"})
+    public String implementation;
+
+    @Param({"10000"})
+    public int size;
+
+    @Param({"unbounded", "bounded"})
+    public String maxSize;
+
+    private Cache<String, String> cache;
+    private String[] keys;
+
+    @Setup
+    public void setup() {
+        keys = new String[size];
+        for (int i = 0; i < size; i++) {
+            keys[i] = "user" + i + "@example.com/resource";
+        }
+        cache = createCache(-1);
+        if ("bounded".equals(maxSize)) {
+            fill();
+            cache = createCache(cache.getCacheSize() * 3 / 4);
+        }
+        fill();
+    }
+
+    private Cache<String, String> createCache(int maxCacheSize) {
+        if ("concurrent".equals(implementation)) {
+            return new ConcurrentCache<String, String>("benchmark", maxCacheSize, JiveConstants.MINUTE * 15);
+        }
+        return new DefaultCache<String, String>("benchmark", maxCacheSize, JiveConstants.MINUTE * 15);
+    }
+
+    private void fill() {
+        for (String key : keys) {
+            cache.put(key, key);
+        }
+    }
+
+    /**
+     * Random keys of a benchmark thread.
+     */
+    @State(Scope.Thread)
+    public static class Keys {
+
+        private final Random random = new Random();
+        private int operations;
+
+        public String next(String[] keys) {
+            return keys[random.nextInt(keys.length)];
+        }
+
+        public boolean write() {
+            return ++operations % 10 == 0;
+        }
+    }
+
+    @Benchmark
+    public String get(Keys random) {
+        return cache.get(random.next(keys));
+    }
+
+    @Benchmark
+    public String put(Keys random) {
+        String key = random.next(keys);
+        return cache.put(key, key);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public String mixed1(Keys random) {
+        return mixed(random);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public String mixed8(Keys random) {
+        return mixed(random);
+    }
+
+    @Benchmark
+    @Threads(32)
+    public String mixed32(Keys random) {
+        return mixed(random);
+    }
+
+    private String mixed(Keys random) {
+        String key = random.next(keys);
+        if (random.write()) {
+            return cache.put(key, key);
+        }
+        return cache.get(key);
+    }
+}
@@ -0,0 +1,188 @@
+package org.jivesoftware.openfire;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.dom4j.DocumentException;
+import org.dom4j.DocumentHelper;
+import org.jivesoftware.openfire.OfflineMessageStore.PendingMessage;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Verifies that messages queued by the write-behind {@link OfflineMessageStore} are written
+ * in order, are visible to reads as soon as they are queued, and that stored messages are
+ * parsed one at a time while they are streamed.
+ */
+public class OfflineMessageWriteBehindTest {
+
+    private final InMemoryStore store = new InMemoryStore();
+    private long messageID;
+
+    @After
+    public void tearDown() {
+        store.stop();
+    }
+
+    private PendingMessage message(String username, String body) {
+        long id = ++messageID;
+        return new PendingMessage(username, id, String.valueOf(1000 + id),
+                "<message to=\"" + username + "@example.com\"><body>" + body + "</body></message>");
+    }
+
+    private static String bodies(Collection<OfflineMessage> messages) {
+        StringBuilder sb = new StringBuilder();
+        for (OfflineMessage message : messages) {
+            sb.append(message.getBody());
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void testQueuedMessagesAreVisibleToReads() {
+        store.startWriteBehind(100, 1000, 3600000);
+        store.storeMessage(message("alice", "1"));
+        store.storeMessage(message("bob", "2"));
+        store.storeMessage(message("alice", "3"));
+        assertEquals("", store.writtenBodies());
+
+        // Nothing is queued for carol, so reading her messages does not write anything
+        store.flushPendingMessages("carol");
+        assertEquals("", store.writtenBodies());
+
+        assertEquals("13", bodies(store.getMessages("alice", false)));
+        assertEquals("123", store.writtenBodies());
+        assertEquals("2", bodies(store.getMessages("bob", true)));
+        assertEquals(0, store.getMessages("bob", false).size());
+    }
+
+    @Test
+    public void testFullQueueWritesQueuedMessagesFirst() {
+        store.startWriteBehind(100, 2, 3600000);
+        store.storeMessage(message("alice", "1"));
+        store.storeMessage(message("alice", "2"));
+        assertEquals("", store.writtenBodies());
+
+        // The queue is full, so the queued messages are written before the new one
+        store.storeMessage(message("alice", "3"));
+        assertEquals("123", store.writtenBodies());
+        assertEquals(Arrays.asList(2, 1), store.batches);
+
+        store.storeMessage(message("alice", "4"));
+        assertEquals("123", store.writtenBodies());
+        assertEquals("1234", bodies(store.getMessages("alice", false)));
+    }
+
+    @Test
+    public void testBatchesAreWrittenInOrder() {
+        store.startWriteBehind(2, 100, 3600000);
+        for (int i = 1; i <= 7; i++) {
+            store.storeMessage(message("alice", String.valueOf(i)));
+        }
+        assertEquals("1234567", bodies(store.getMessages("alice", false)));
+        for (int size : store.batches) {
+            assertTrue(size <= 2);
+        }
+    }
+
+    @Test
+    public void testMessagesAreParsedWhileStreaming() {
+        store.storeMessage(message("alice", "1"));
+        store.written.add(new PendingMessage("alice", ++messageID, "2000", "<message><body>"));
+        store.storeMessage(message("alice", "3"));
+
+        Iterator<OfflineMessage> it = store.streamMessages("alice", true);
+        assertEquals(0, store.parsed);
+        assertTrue(it.hasNext());
+        assertEquals(1, store.parsed);
+        assertTrue(it.hasNext());
+        assertEquals(1, store.parsed);
+        assertEquals("1", it.next().getBody());
+
+        // Stanzas that cannot be parsed are skipped
+        assertEquals("3", it.next().getBody());
+        assertEquals(3, store.parsed);
+        assertFalse(it.hasNext());
+        try {
+            it.next();
+            fail();
+        }
+        catch (NoSuchElementException e) {
+            // expected
+        }
+        try {
+            it.remove();
+            fail();
+        }
+        catch (UnsupportedOperationException e) {
+            // expected
+        }
+        assertEquals(0, store.getMessages("alice", false).size());
+    }
+
+    /**
+     * Offline message store that keeps the written messages in memory.
+     */
+    private static class InMemoryStore extends OfflineMessageStore {
+
+        final List<PendingMessage> written = Collections.synchronizedList(new ArrayList<PendingMessage>());
+        final List<Integer> batches = Collections.synchronizedList(new ArrayList<Integer>());
+        int parsed;
+
+        String writtenBodies() {
+            StringBuilder sb = new StringBuilder();
+            synchronized (written) {
+                for (PendingMessage message : written) {
+                    sb.append(message.msgXML.replaceAll(".*<body>(.*)</body>.*", "$1"));
+                }
+            }
+            return sb.toString();
+        }
+
+        @Override
+        void insertMessages(List<PendingMessage> messages) {
+            batches.add(messages.size());
+            written.addAll(messages);
+        }
+
+        @Override
+        void insertMessage(PendingMessage message) {
+            batches.add(1);
+            written.add(message);
+        }
+
+        @Override
+        List<String[]> loadMessages(String username, boolean delete) {
+            List<String[]> stanzas = new ArrayList<String[]>();
+            synchronized (written) {
+                for (Iterator<PendingMessage> it = written.iterator(); it.hasNext();) {
+                    PendingMessage message = it.next();
+                    if (message.username.equals(username)) {
+                        stanzas.add(new String[] {message.msgXML, message.creationDate});
+                        if (delete) {
+                            it.remove();
+                        }
+                    }
+                }
+            }
+            return stanzas;
+        }
+
+        @Override
+        OfflineMessage parseMessage(String msgXML, Date creationDate) throws DocumentException {
+            parsed++;
+            return new OfflineMessage(creationDate, DocumentHelper.parseText(msgXML).getRootElement());
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package org.jivesoftware.openfire.filetransfer.proxy;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Verifies that {@link ProxyRelay} relays everything the initiator sends to the target and
+ * stays within its rate limit.
+ */
+public class ProxyRelayTest {
+
+    private ServerSocketChannel server;
+    private ProxyRelay relay;
+
+    @Before
+    public void setUp() throws Exception {
+        server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (relay != null) {
+            relay.shutdown();
+        }
+        server.close();
+    }
+
+    @Test
+    public void testRelaysAllBytes() throws Exception {
+        relay = new ProxyRelay(2, 4096, 0, 0);
+        byte[] data = new byte[300000];
+        new Random(1).nextBytes(data);
+
+        DefaultProxyTransfer transfer = new DefaultProxyTransfer();
+        byte[] received = transfer(transfer, data);
+
+        assertArrayEquals(data, received);
+        assertEquals(data.length, transfer.getAmountTransfered());
+        assertEquals(data.length, relay.getBytesRelayed());
+        assertEquals(1, relay.getCompletedTransfers());
+        assertEquals(0, relay.getActiveTransfers());
+    }
+
+    @Test
+    public void testTransferRateIsLimited() throws Exception {
+        // The first second's worth of bytes may be sent as a burst, the rest is paced
+        relay = new ProxyRelay(1, 4096, 0, 64 * 1024);
+        byte[] data = new byte[96 * 1024];
+
+        long start = System.nanoTime();
+        byte[] received = transfer(new DefaultProxyTransfer(), data);
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertEquals(data.length, received.length);
+        assertTrue("Transfer took only " + elapsed + " ms", elapsed >= 400);
+        assertTrue(relay.getThrottles() > 0);
+    }
+
+    @Test
+    public void testShaperRefillsOverTime() {
+        ProxyRelay.Shaper shaper = new ProxyRelay.Shaper(1000);
+        long now = System.nanoTime();
+        assertEquals(1000, shaper.acquire(5000, now));
+        assertEquals(0, shaper.acquire(1, now));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(100), shaper.nanosUntil(100, now));
+
+        now += TimeUnit.MILLISECONDS.toNanos(250);
+        assertEquals(250, shaper.acquire(5000, now));
+        shaper.release(50);
+        assertEquals(50, shaper.acquire(5000, now));
+    }
+
+    private byte[] transfer(DefaultProxyTransfer transfer, byte[] data) throws Exception {
+        Socket initiator = new Socket(server.socket().getInetAddress(), server.socket().getLocalPort());
+        SocketChannel source = server.accept();
+        Socket target = new Socket(server.socket().getInetAddress(), server.socket().getLocalPort());
+        SocketChannel sink = server.accept();
+
+        final CountDownLatch completed = new CountDownLatch(1);
+        relay.relay(transfer, source, sink, new Runnable() {
+            public void run() {
+                completed.countDown();
+            }
+        });
+
+        OutputStream out = initiator.getOutputStream();
+        out.write(data);
+        initiator.shutdownOutput();
+
+        InputStream in = target.getInputStream();
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            received.write(buffer, 0, read);
+        }
+        assertTrue(completed.await(5, TimeUnit.SECONDS));
+        initiator.close();
+        target.close();
+        return received.toByteArray();
+    }
+}
@@ -0,0 +1,146 @@
+package org.jivesoftware.openfire.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Verifies that a held BOSH request gets exactly one response whatever the order in which
+ * the request is suspended, a body is delivered and the wait time elapses.
+ */
+public class HttpConnectionTest {
+
+    private static final String BODY = "<body xmlns='http://jabber.org/protocol/httpbind'>hello</body>";
+
+    private HttpSession session;
+
+    @Before
+    public void setUp() throws Exception {
+        HttpSessionTest.installServer();
+        session = HttpSessionTest.createSession(10, 1);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        HttpSessionTest.removeServer();
+    }
+
+    private static void assertResponse(StubAsyncContext context, String expected) {
+        List<String> responses = context.getResponses();
+        assertEquals(1, responses.size());
+        assertEquals(1, context.getCompleted());
+        assertTrue(responses.get(0), responses.get(0).contains(expected));
+    }
+
+    @Test
+    public void testDeliverBeforeSuspend() throws Exception {
+        HttpConnection connection = HttpSessionTest.request(session, 11);
+        connection.deliverBody(BODY);
+        assertFalse(connection.isSuspended());
+        StubAsyncContext context = new StubAsyncContext();
+        connection.setAsyncContext(context);
+        assertResponse(context, "hello");
+    }
+
+    @Test
+    public void testDeliverWhileSuspended() throws Exception {
+        HttpConnection connection = HttpSessionTest.request(session, 11);
+        StubAsyncContext context = new StubAsyncContext();
+        connection.setAsyncContext(context);
+        assertTrue(connection.isSuspended());
+        assertTrue(context.getResponses().isEmpty());
+        connection.deliverBody(BODY);
+        assertFalse(connection.isSuspended());
+        assertResponse(context, "hello");
+    }
+
+    @Test
+    public void testExpireWhileSuspended() throws Exception {
+        HttpConnection connection = HttpSessionTest.request(session, 11);
+        StubAsyncContext context = new StubAsyncContext();
+        connection.setAsyncContext(context);
+        connection.expire();
+        assertTrue(connection.isExpired());
+        assertResponse(context, "<body");
+        assertEquals(0, context.getErrors());
+        assertEquals(11, session.getLastAcknowledged());
+        try {
+            connection.deliverBody(BODY);
+            fail("An expired connection cannot deliver a body");
+        }
+        catch (HttpConnectionClosedException e) {
+            // Expected
+        }
+        // Expiring again or closing does not write another response
+        connection.expire();
+        connection.close();
+        assertEquals(1, context.getCompleted());
+    }
+
+    @Test
+    public void testDeliverAndExpireRace() throws Exception {
+        for (int i = 0; i < 200; i++) {
+            session = HttpSessionTest.createSession(10, 1);
+            final HttpConnection connection = HttpSessionTest.request(session, 11);
+            StubAsyncContext context = new StubAsyncContext();
+            connection.setAsyncContext(context);
+            final CyclicBarrier barrier = new CyclicBarrier(2);
+            Thread deliverer = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        barrier.await();
+                        connection.deliverBody(BODY);
+                    }
+                    catch (HttpConnectionClosedException e) {
+                        // The wait time elapsed first
+                    }
+                    catch (Exception e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            };
+            deliverer.start();
+            barrier.await();
+            connection.expire();
+            deliverer.join();
+            assertEquals(1, context.getResponses().size());
+            assertEquals(1, context.getCompleted());
+        }
+    }
+
+    @Test
+    public void testSuspendAndDeliverRace() throws Exception {
+        for (int i = 0; i < 200; i++) {
+            session = HttpSessionTest.createSession(10, 1);
+            final HttpConnection connection = HttpSessionTest.request(session, 11);
+            final StubAsyncContext context = new StubAsyncContext();
+            final CyclicBarrier barrier = new CyclicBarrier(2);
+            Thread suspender = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        barrier.await();
+                        connection.setAsyncContext(context);
+                    }
+                    catch (Exception e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            };
+            suspender.start();
+            barrier.await();
+            connection.deliverBody(BODY);
+            suspender.join();
+            assertResponse(context, "hello");
+        }
+    }
+}
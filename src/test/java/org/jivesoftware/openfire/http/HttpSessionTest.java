@@ -0,0 +1,200 @@
+package org.jivesoftware.openfire.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.Field;
+import java.net.InetAddress;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import org.dom4j.Element;
+import org.jivesoftware.openfire.XMPPServer;
+import org.jivesoftware.openfire.container.Module;
+import org.jivesoftware.openfire.spi.BasicStreamIDFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.objenesis.ObjenesisStd;
+import org.xmpp.packet.Message;
+
+/**
+ * Verifies that {@link HttpSession} acknowledges, holds and resends the requests of a
+ * BOSH client according to their request IDs.
+ */
+public class HttpSessionTest {
+
+    @Before
+    public void setUp() throws Exception {
+        installServer();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        removeServer();
+    }
+
+    /**
+     * Sessions look up the session manager of the server when they are created, so tests
+     * use a server without any modules.
+     */
+    static void installServer() throws Exception {
+        XMPPServer server = (XMPPServer) new ObjenesisStd().newInstance(XMPPServer.class);
+        Field modules = XMPPServer.class.getDeclaredField("modules");
+        modules.setAccessible(true);
+        modules.set(server, new LinkedHashMap<Class, Module>());
+        setServer(server);
+    }
+
+    static void removeServer() throws Exception {
+        setServer(null);
+    }
+
+    private static void setServer(XMPPServer server) throws Exception {
+        Field instance = XMPPServer.class.getDeclaredField("instance");
+        instance.setAccessible(true);
+        instance.set(null, server);
+    }
+
+    /**
+     * Creates a session whose session creation request had the specified request ID.
+     */
+    static HttpSession createSession(long rid, int hold) {
+        HttpSession session = new HttpSession(null, "example.com", InetAddress.getLoopbackAddress(),
+                new BasicStreamIDFactory().createStreamID(), rid, new HttpConnection(rid, false, null));
+        session.setWait(60);
+        session.setHold(hold);
+        session.setMaxRequests(hold + 2);
+        return session;
+    }
+
+    static HttpConnection request(HttpSession session, long rid) throws Exception {
+        return session.createConnection(rid, Collections.<Element>emptyList(), false, false);
+    }
+
+    private static String respond(HttpConnection connection) {
+        StubAsyncContext context = new StubAsyncContext();
+        connection.setAsyncContext(context);
+        List<String> responses = context.getResponses();
+        assertEquals(1, responses.size());
+        return responses.get(0);
+    }
+
+    private static Message message(String body) {
+        Message message = new Message();
+        message.setTo("juliet@example.com/balcony");
+        message.setBody(body);
+        return message;
+    }
+
+    @Test
+    public void testAcknowledgedStopsAtFirstGap() throws Exception {
+        HttpSession session = createSession(10, 2);
+        HttpConnection first = request(session, 11);
+        request(session, 12);
+        assertEquals(12, session.getLastAcknowledged());
+        // One request too many, so the oldest held request is answered
+        request(session, 14);
+        assertTrue(first.isClosed());
+        assertEquals(12, session.getLastAcknowledged());
+        // The answer acknowledges the requests received without a gap
+        assertTrue(respond(first).contains("ack=\"12\""));
+    }
+
+    @Test
+    public void testHoldOverflow() throws Exception {
+        HttpSession session = createSession(10, 1);
+        HttpConnection first = request(session, 11);
+        assertFalse(first.isClosed());
+        HttpConnection second = request(session, 12);
+        assertTrue(first.isClosed());
+        assertFalse(second.isClosed());
+        // Stanzas go to the request that is now held
+        session.deliver(message("hello"));
+        assertTrue(second.isClosed());
+        assertTrue(respond(second).contains("hello"));
+        assertFalse(respond(first).contains("hello"));
+    }
+
+    @Test
+    public void testOutOfOrderRequestsAreAnswered() throws Exception {
+        HttpSession session = createSession(10, 2);
+        HttpConnection first = request(session, 11);
+        HttpConnection second = request(session, 12);
+        HttpConnection fourth = request(session, 14);
+        assertTrue(first.isClosed());
+        assertFalse(second.isClosed());
+        assertFalse(fourth.isClosed());
+        // The missing request arrived late, so all the requests are answered
+        HttpConnection third = request(session, 13);
+        assertTrue(second.isClosed());
+        assertTrue(third.isClosed());
+        assertTrue(fourth.isClosed());
+        assertEquals(14, session.getLastAcknowledged());
+    }
+
+    @Test
+    public void testResendDeliveredResponse() throws Exception {
+        HttpSession session = createSession(10, 1);
+        HttpConnection connection = request(session, 11);
+        session.deliver(message("hello"));
+        String response = respond(connection);
+        assertTrue(response.contains("hello"));
+        assertNull(session.getConnection(11));
+        // The client did not get the response and repeats the request
+        assertEquals(response, respond(request(session, 11)));
+    }
+
+    @Test
+    public void testResendAfterHoldChange() throws Exception {
+        HttpSession session = createSession(10, 1);
+        for (long rid = 11; rid <= 12; rid++) {
+            HttpConnection connection = request(session, rid);
+            session.deliver(message("m" + rid));
+            respond(connection);
+        }
+        session.setHold(2);
+        assertTrue(respond(request(session, 11)).contains("m11"));
+        assertTrue(respond(request(session, 12)).contains("m12"));
+    }
+
+    @Test
+    public void testResendOfOverwrittenResponseFails() throws Exception {
+        HttpSession session = createSession(10, 1);
+        for (long rid = 11; rid <= 13; rid++) {
+            HttpConnection connection = request(session, rid);
+            session.deliver(message("m" + rid));
+            respond(connection);
+        }
+        // Only the last hold + 1 responses are kept
+        assertTrue(respond(request(session, 12)).contains("m12"));
+        try {
+            request(session, 11);
+            fail("The response of request 11 is no longer available");
+        }
+        catch (HttpBindException e) {
+            assertSame(BoshBindingError.itemNotFound, e.getBindingError());
+        }
+    }
+
+    @Test
+    public void testConsumeKeepsReplacingConnection() throws Exception {
+        HttpSession session = createSession(10, 1);
+        HttpConnection dropped = request(session, 11);
+        // The client repeats a request that is still held
+        HttpConnection repeated = request(session, 11);
+        assertTrue(dropped.isClosed());
+        assertTrue(repeated.isClosed());
+        assertSame(repeated, session.getConnection(11));
+        // Writing the response of the replaced connection keeps the new one
+        respond(dropped);
+        assertSame(repeated, session.getConnection(11));
+        respond(repeated);
+        assertNull(session.getConnection(11));
+    }
+}
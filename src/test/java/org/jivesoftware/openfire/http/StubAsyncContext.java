@@ -0,0 +1,165 @@
+package org.jivesoftware.openfire.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Asynchronous context of a BOSH request that records the responses written to it. Tasks
+ * started on the context are run by the calling thread and writes complete right away.
+ */
+class StubAsyncContext implements AsyncContext {
+
+    private final List<String> responses = new ArrayList<String>();
+    private final ByteArrayOutputStream content = new ByteArrayOutputStream();
+    private int completed;
+    private int errors;
+
+    /**
+     * Returns the responses that were written and completed.
+     *
+     * @return the responses that were written and completed.
+     */
+    synchronized List<String> getResponses() {
+        return new ArrayList<String>(responses);
+    }
+
+    /**
+     * Returns the number of times the request was completed.
+     *
+     * @return the number of times the request was completed.
+     */
+    synchronized int getCompleted() {
+        return completed;
+    }
+
+    /**
+     * Returns the number of HTTP errors that were sent.
+     *
+     * @return the number of HTTP errors that were sent.
+     */
+    synchronized int getErrors() {
+        return errors;
+    }
+
+    public ServletRequest getRequest() {
+        return (ServletRequest) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] {HttpServletRequest.class}, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if ("getMethod".equals(method.getName())) {
+                            return "POST";
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    public ServletResponse getResponse() {
+        return (ServletResponse) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] {HttpServletResponse.class}, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if ("getOutputStream".equals(method.getName())) {
+                            return new StubOutputStream();
+                        }
+                        if ("sendError".equals(method.getName())) {
+                            synchronized (StubAsyncContext.this) {
+                                errors++;
+                            }
+                        }
+                        return method.getReturnType() == boolean.class ? false : null;
+                    }
+                });
+    }
+
+    public boolean hasOriginalRequestAndResponse() {
+        return true;
+    }
+
+    public void dispatch() {
+        throw new UnsupportedOperationException();
+    }
+
+    public void dispatch(String path) {
+        throw new UnsupportedOperationException();
+    }
+
+    public void dispatch(ServletContext context, String path) {
+        throw new UnsupportedOperationException();
+    }
+
+    public synchronized void complete() {
+        completed++;
+        if (content.size() > 0) {
+            try {
+                responses.add(content.toString("UTF-8"));
+            }
+            catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            content.reset();
+        }
+    }
+
+    public void start(Runnable run) {
+        run.run();
+    }
+
+    public void addListener(AsyncListener listener) {
+    }
+
+    public void addListener(AsyncListener listener, ServletRequest request, ServletResponse response) {
+    }
+
+    public <T extends AsyncListener> T createListener(Class<T> type) {
+        throw new UnsupportedOperationException();
+    }
+
+    public void setTimeout(long timeout) {
+    }
+
+    public long getTimeout() {
+        return 0;
+    }
+
+    /**
+     * Output stream that is always ready to be written.
+     */
+    private class StubOutputStream extends ServletOutputStream {
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public void setWriteListener(WriteListener listener) {
+            try {
+                listener.onWritePossible();
+            }
+            catch (IOException e) {
+                listener.onError(e);
+            }
+        }
+
+        @Override
+        public void write(int b) {
+            synchronized (StubAsyncContext.this) {
+                content.write(b);
+            }
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package org.jivesoftware.openfire.mediaproxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Verifies that a {@link RelaySession} served by a {@link DatagramRelay} relays datagrams
+ * between both parties and releases its ports when stopped.
+ */
+public class DatagramRelayTest {
+
+    private InetAddress loopback;
+    private DatagramRelay relay;
+    private PortAllocator allocator;
+    private DatagramSocket partyA;
+    private DatagramSocket partyB;
+
+    @Before
+    public void setUp() throws Exception {
+        loopback = InetAddress.getByName("127.0.0.1");
+        relay = new DatagramRelay(1, 5000);
+        allocator = new PortAllocator(42000, 42999);
+        partyA = new DatagramSocket(0, loopback);
+        partyB = new DatagramSocket(0, loopback);
+        partyA.setSoTimeout(5000);
+        partyB.setSoTimeout(5000);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        partyA.close();
+        partyB.close();
+        relay.shutdown();
+    }
+
+    @Test
+    public void testRelaysBetweenParties() throws Exception {
+        RelaySession session = new RelaySession("sid", "test", "127.0.0.1", "127.0.0.1", 1,
+                "127.0.0.1", 1, allocator, relay);
+        session.run();
+        assertEquals(2, allocator.getAllocatedCount());
+
+        // Each party announces its address, the first datagram of A has nowhere to go yet
+        send(partyA, "hello from a", session.getLocalPortA());
+        awaitPackets(session, 1);
+        send(partyB, "hello from b", session.getLocalPortB());
+        assertEquals("hello from b", receive(partyA));
+
+        send(partyA, "media from a", session.getLocalPortA());
+        assertEquals("media from a", receive(partyB));
+
+        assertEquals(3, session.getPacketCount());
+        assertEquals(36, session.getByteCount());
+        assertTrue(relay.getPacketsRelayed() >= 2);
+        assertEquals(4, relay.getActiveChannels());
+
+        session.stopAgent();
+        assertEquals(0, allocator.getAllocatedCount());
+    }
+
+    private void awaitPackets(MediaProxySession session, long count) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (session.getPacketCount() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, session.getPacketCount());
+    }
+
+    private void send(DatagramSocket socket, String text, int port) throws Exception {
+        byte[] data = text.getBytes("UTF-8");
+        socket.send(new DatagramPacket(data, data.length, new InetSocketAddress(loopback, port)));
+    }
+
+    private String receive(DatagramSocket socket) throws Exception {
+        DatagramPacket packet = new DatagramPacket(new byte[100], 100);
+        socket.receive(packet);
+        return new String(packet.getData(), 0, packet.getLength(), "UTF-8");
+    }
+}
@@ -0,0 +1,46 @@
+package org.jivesoftware.openfire.mediaproxy;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Verifies that {@link PortAllocator} hands out every pair of ports of its range once.
+ */
+public class PortAllocatorTest {
+
+    @Test
+    public void testAllocatesEvenPortsWithinRange() {
+        PortAllocator allocator = new PortAllocator(10001, 10008);
+        assertEquals(3, allocator.getCapacity());
+        assertEquals(10002, allocator.allocate());
+        assertEquals(10004, allocator.allocate());
+        assertEquals(10006, allocator.allocate());
+        assertEquals(-1, allocator.allocate());
+        assertEquals(3, allocator.getAllocatedCount());
+    }
+
+    @Test
+    public void testReleasedPairIsReusedAfterTheOthers() {
+        PortAllocator allocator = new PortAllocator(10000, 10007);
+        assertEquals(10000, allocator.allocate());
+        assertEquals(10002, allocator.allocate());
+        allocator.release(10000);
+        assertEquals(10004, allocator.allocate());
+        assertEquals(10006, allocator.allocate());
+        assertEquals(10000, allocator.allocate());
+        assertEquals(-1, allocator.allocate());
+    }
+
+    @Test
+    public void testReleaseIgnoresPortsOutsideOfRange() {
+        PortAllocator allocator = new PortAllocator(10000, 10003);
+        assertEquals(10000, allocator.allocate());
+        allocator.release(9998);
+        allocator.release(10001);
+        allocator.release(10004);
+        assertEquals(1, allocator.getAllocatedCount());
+        allocator.release(10000);
+        assertEquals(0, allocator.getAllocatedCount());
+    }
+}
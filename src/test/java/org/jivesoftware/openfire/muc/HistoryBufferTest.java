@@ -0,0 +1,124 @@
+package org.jivesoftware.openfire.muc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Date;
+import java.util.Iterator;
+import java.util.ListIterator;
+
+import org.jivesoftware.util.XMPPDateTimeFormat;
+import org.junit.Test;
+import org.xmpp.packet.Message;
+
+/**
+ * Verifies that {@link HistoryBuffer} keeps the room history sorted and bounded while
+ * snapshots are being read.
+ */
+public class HistoryBufferTest {
+
+    private static Message message(String body, long time) {
+        Message message = new Message();
+        message.setType(Message.Type.groupchat);
+        message.setBody(body);
+        message.addChildElement("x", "jabber:x:delay")
+                .addAttribute("stamp", XMPPDateTimeFormat.formatOld(new Date(time)));
+        return message;
+    }
+
+    private static String bodies(Iterator<Message> it) {
+        StringBuilder sb = new StringBuilder();
+        while (it.hasNext()) {
+            sb.append(it.next().getBody());
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void testOldestMessagesAreRemoved() {
+        HistoryBuffer buffer = new HistoryBuffer();
+        for (int i = 0; i < 100; i++) {
+            buffer.add(message(Integer.toString(i % 10), i * 1000L), 5, null);
+        }
+        assertEquals(5, buffer.size());
+        assertEquals("56789", bodies(buffer.snapshot().iterator()));
+    }
+
+    @Test
+    public void testRoomSubjectIsPreserved() {
+        HistoryBuffer buffer = new HistoryBuffer();
+        Message subject = message("s", 0);
+        subject.setSubject("subject");
+        buffer.add(subject, 3, subject);
+        for (int i = 1; i < 10; i++) {
+            buffer.add(message(Integer.toString(i), i * 1000L), 3, subject);
+        }
+        assertEquals("s89", bodies(buffer.snapshot().iterator()));
+
+        // The old subject may be removed once the subject changes
+        Message newSubject = message("t", 10000);
+        newSubject.setSubject("new subject");
+        buffer.add(newSubject, 3, newSubject);
+        assertEquals("89t", bodies(buffer.snapshot().iterator()));
+    }
+
+    @Test
+    public void testMessagesAreSorted() {
+        HistoryBuffer buffer = new HistoryBuffer();
+        buffer.add(message("a", 1000), -1, null);
+        buffer.add(message("c", 3000), -1, null);
+        buffer.add(message("b", 2000), -1, null);
+        buffer.add(message("d", 4000), -1, null);
+        assertEquals("abcd", bodies(buffer.snapshot().iterator()));
+        assertEquals(2000, buffer.snapshot().get(1).getTime());
+    }
+
+    @Test
+    public void testSnapshotIsNotAffectedByNewMessages() {
+        HistoryBuffer buffer = new HistoryBuffer();
+        for (int i = 0; i < 4; i++) {
+            buffer.add(message(Integer.toString(i), i * 1000L), 4, null);
+        }
+        HistoryBuffer.Snapshot snapshot = buffer.snapshot();
+        buffer.add(message("4", 4000), 4, null);
+        buffer.add(message("5", 5000), 4, null);
+        assertEquals(4, snapshot.size());
+        // The two oldest messages were removed after taking the snapshot
+        assertNull(snapshot.get(0));
+        assertNull(snapshot.get(1));
+        assertEquals("23", bodies(snapshot.iterator()));
+
+        ListIterator<Message> reverse = snapshot.reverseIterator();
+        assertEquals("3", reverse.previous().getBody());
+        assertEquals("2", reverse.previous().getBody());
+        assertFalse(reverse.hasPrevious());
+    }
+
+    @Test
+    public void testGrowthKeepsSnapshots() {
+        HistoryBuffer buffer = new HistoryBuffer();
+        buffer.add(message("a", 0), -1, null);
+        HistoryBuffer.Snapshot snapshot = buffer.snapshot();
+        for (int i = 1; i < 100; i++) {
+            buffer.add(message("b", i * 1000L), -1, null);
+        }
+        assertEquals(100, buffer.size());
+        assertEquals(1, snapshot.size());
+        assertEquals("a", snapshot.get(0).getMessage().getBody());
+    }
+
+    @Test
+    public void testSerializedStanzaIsCached() {
+        HistoryBuffer buffer = new HistoryBuffer();
+        buffer.add(message("a", 0), -1, null);
+        HistoryBuffer.Entry entry = buffer.snapshot().get(0);
+        assertSame(entry.getSerializedStanza(), entry.getSerializedStanza());
+        assertTrue(entry.getSerializedStanza().isSerializationOf(entry.getMessage()));
+        Object serialized = entry.getSerializedStanza();
+        buffer.clearSerializations();
+        assertFalse(serialized == entry.getSerializedStanza());
+    }
+}
@@ -0,0 +1,162 @@
+package org.jivesoftware.openfire.muc.spi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.jivesoftware.openfire.muc.MUCRoom;
+import org.junit.Test;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Message;
+
+/**
+ * Verifies that {@link ConversationLogQueue} logs sooner as messages are queued, queues
+ * again the messages of a batch that could not be saved, and drops them once the queue is
+ * full.
+ */
+public class ConversationLogQueueTest {
+
+    private static ConversationLogEntry entry(final long roomID) {
+        MUCRoom room = (MUCRoom) Proxy.newProxyInstance(MUCRoom.class.getClassLoader(),
+                new Class<?>[] {MUCRoom.class}, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        return method.getName().equals("getID") ? roomID : null;
+                    }
+                });
+        Message message = new Message();
+        message.setFrom("room@conference.example.com/nick");
+        message.setBody("message " + roomID);
+        return new ConversationLogEntry(new Date(), room, message, new JID("user@example.com"));
+    }
+
+    /**
+     * Queue that records the saved batches and fails to save while <tt>failing</tt> is true.
+     */
+    private static class RecordingQueue extends ConversationLogQueue {
+
+        final List<Long> saved = new ArrayList<Long>();
+        int batches;
+        boolean failing;
+
+        RecordingQueue(int capacity) {
+            super(capacity);
+        }
+
+        @Override
+        boolean save(List<ConversationLogEntry> batch) {
+            batches++;
+            if (failing) {
+                return false;
+            }
+            for (ConversationLogEntry entry : batch) {
+                saved.add(entry.getRoomID());
+            }
+            return true;
+        }
+    }
+
+    @Test
+    public void testDelayShrinksWithQueueDepth() {
+        RecordingQueue queue = new RecordingQueue(1000);
+        assertEquals(300000, queue.getDelay(300000, 50));
+        for (int i = 0; i < 25; i++) {
+            queue.add(entry(i));
+        }
+        assertEquals(300000 - (300000 - ConversationLogQueue.MIN_LOG_TIMEOUT) / 2, queue.getDelay(300000, 50));
+        long previous = queue.getDelay(300000, 50);
+        for (int i = 25; i < 50; i++) {
+            queue.add(entry(i));
+            long delay = queue.getDelay(300000, 50);
+            assertTrue(delay <= previous);
+            previous = delay;
+        }
+        assertEquals(ConversationLogQueue.MIN_LOG_TIMEOUT, queue.getDelay(300000, 50));
+
+        // A queue bigger than a batch does not go below the minimum
+        queue.add(entry(50));
+        assertEquals(ConversationLogQueue.MIN_LOG_TIMEOUT, queue.getDelay(300000, 50));
+        // Timeouts shorter than the minimum are not changed
+        assertEquals(500, queue.getDelay(500, 50));
+    }
+
+    @Test
+    public void testQueuedMessagesAreSavedInBatches() {
+        RecordingQueue queue = new RecordingQueue(1000);
+        for (long i = 0; i < 5; i++) {
+            queue.add(entry(i));
+        }
+        queue.logQueued(2);
+        assertEquals(3, queue.batches);
+        assertEquals(0, queue.size());
+        assertEquals("[0, 1, 2, 3, 4]", queue.saved.toString());
+    }
+
+    @Test
+    public void testFailedBatchIsQueuedAgain() {
+        RecordingQueue queue = new RecordingQueue(1000);
+        for (long i = 0; i < 5; i++) {
+            queue.add(entry(i));
+        }
+        queue.failing = true;
+        queue.logQueued(2);
+        // Logging stops at the failed batch
+        assertEquals(1, queue.batches);
+        assertEquals(5, queue.size());
+
+        queue.failing = false;
+        queue.logQueued(2);
+        assertEquals("[2, 3, 4, 0, 1]", queue.saved.toString());
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void testFailedBatchIsDroppedWhenQueueIsFull() {
+        RecordingQueue queue = new RecordingQueue(3) {
+            @Override
+            boolean save(List<ConversationLogEntry> batch) {
+                if (failing) {
+                    // Messages sent to rooms while saving fill up the queue
+                    for (long i = 100; size() < 3; i++) {
+                        add(entry(i));
+                    }
+                }
+                return super.save(batch);
+            }
+        };
+        for (long i = 0; i < 3; i++) {
+            queue.add(entry(i));
+        }
+        queue.failing = true;
+        queue.logQueued(2);
+        assertEquals(3, queue.size());
+
+        // The messages of the failed batch were dropped
+        queue.failing = false;
+        queue.logQueued(3);
+        assertEquals("[2, 100, 101]", queue.saved.toString());
+    }
+
+    @Test
+    public void testLogAllIncludesMessagesQueuedWhileLogging() {
+        final int[] added = {0};
+        RecordingQueue queue = new RecordingQueue(1000) {
+            @Override
+            boolean save(List<ConversationLogEntry> batch) {
+                if (added[0]++ == 0) {
+                    add(entry(9));
+                }
+                return super.save(batch);
+            }
+        };
+        queue.add(entry(0));
+        queue.add(entry(1));
+        queue.logAll(2);
+        assertEquals("[0, 1, 9]", queue.saved.toString());
+    }
+}
@@ -0,0 +1,239 @@
+package org.jivesoftware.openfire.net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.mina.common.IoSession;
+import org.jivesoftware.openfire.Connection;
+import org.jivesoftware.openfire.PacketRouter;
+import org.jivesoftware.openfire.nio.ComponentConnectionHandler;
+import org.jivesoftware.openfire.session.LocalComponentSession;
+import org.jivesoftware.openfire.session.Session;
+import org.junit.Before;
+import org.junit.Test;
+import org.objenesis.ObjenesisStd;
+import org.xmpp.packet.IQ;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Message;
+import org.xmpp.packet.Packet;
+import org.xmpp.packet.Presence;
+
+/**
+ * Verifies that {@link ComponentStanzaHandler} routes the packets of an external component
+ * through an {@link OrderedPacketDispatcher} when parallel dispatching is enabled, without
+ * replacing the close listener of the connection, and that the dispatcher is closed with
+ * the connection.
+ */
+public class ComponentStanzaHandlerTest {
+
+    private final Map<String, List<String>> routed = new HashMap<String, List<String>>();
+    private final List<Thread> routingThreads = new ArrayList<Thread>();
+    private final AtomicInteger closedDispatchers = new AtomicInteger();
+    private final AtomicInteger closedConnections = new AtomicInteger();
+    private CountDownLatch expected;
+    private Connection connection;
+    private PacketRouter router;
+
+    @Before
+    public void setUp() {
+        expected = new CountDownLatch(0);
+        // A component connection already has the close listener of the session manager,
+        // so a second listener is rejected like NIOConnection does
+        connection = (Connection) proxy(Connection.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if ("registerCloseListener".equals(method.getName())) {
+                    throw new IllegalStateException("Close listener already configured");
+                }
+                if ("close".equals(method.getName())) {
+                    closedConnections.incrementAndGet();
+                }
+                return defaultValue(method);
+            }
+        });
+        router = (PacketRouter) proxy(PacketRouter.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if ("route".equals(method.getName())) {
+                    Packet packet = (Packet) args[0];
+                    synchronized (routed) {
+                        String to = packet.getTo().toBareJID();
+                        List<String> ids = routed.get(to);
+                        if (ids == null) {
+                            ids = new ArrayList<String>();
+                            routed.put(to, ids);
+                        }
+                        ids.add(packet.getID());
+                        routingThreads.add(Thread.currentThread());
+                    }
+                    expected.countDown();
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Returns a handler for an authenticated component that dispatches packets in parallel
+     * as if <tt>xmpp.component.dispatch.parallel</tt> was set to true.
+     */
+    private ComponentStanzaHandler parallelHandler() throws Exception {
+        ComponentStanzaHandler handler = new ComponentStanzaHandler(router, "example.com", connection) {
+            @Override
+            OrderedPacketDispatcher createDispatcher(String subdomain) {
+                return new OrderedPacketDispatcher(subdomain) {
+                    @Override
+                    public void close() {
+                        closedDispatchers.incrementAndGet();
+                        super.close();
+                    }
+                };
+            }
+        };
+        handler.session = authenticatedSession();
+        return handler;
+    }
+
+    /**
+     * Creates an authenticated component session without the session manager of a
+     * running server.
+     */
+    private LocalComponentSession authenticatedSession() throws Exception {
+        LocalComponentSession session = (LocalComponentSession)
+                new ObjenesisStd().newInstance(LocalComponentSession.class);
+        Field component = LocalComponentSession.class.getDeclaredField("component");
+        component.setAccessible(true);
+        component.set(session, new LocalComponentSession.LocalExternalComponent(session, connection));
+        session.setStatus(Session.STATUS_AUTHENTICATED);
+        return session;
+    }
+
+    private static Packet packet(int sequence, String to) {
+        Packet packet;
+        switch (sequence % 3) {
+            case 0:
+                packet = new Message();
+                break;
+            case 1:
+                packet = new Presence();
+                break;
+            default:
+                packet = new IQ(IQ.Type.get);
+                ((IQ) packet).setChildElement("query", "jabber:iq:version");
+        }
+        packet.setID(String.valueOf(sequence));
+        packet.setFrom(new JID("game.example.com"));
+        packet.setTo(new JID(to));
+        return packet;
+    }
+
+    private static void process(ComponentStanzaHandler handler, Packet packet) throws Exception {
+        if (packet instanceof Message) {
+            handler.processMessage((Message) packet);
+        }
+        else if (packet instanceof Presence) {
+            handler.processPresence((Presence) packet);
+        }
+        else {
+            handler.processIQ((IQ) packet);
+        }
+    }
+
+    @Test
+    public void testPacketsAreRoutedInOrderPerUser() throws Exception {
+        ComponentStanzaHandler handler = parallelHandler();
+        expected = new CountDownLatch(10 * 100);
+        for (int i = 0; i < 100; i++) {
+            for (int user = 0; user < 10; user++) {
+                process(handler, packet(i, "user" + user + "@example.com/game"));
+            }
+        }
+        assertTrue(expected.await(10, TimeUnit.SECONDS));
+        assertEquals(10, routed.size());
+        for (List<String> ids : routed.values()) {
+            assertEquals(100, ids.size());
+            for (int i = 0; i < ids.size(); i++) {
+                assertEquals(String.valueOf(i), ids.get(i));
+            }
+        }
+        synchronized (routed) {
+            for (Thread thread : routingThreads) {
+                assertNotSame(Thread.currentThread(), thread);
+            }
+        }
+        assertEquals(0, closedConnections.get());
+        assertEquals(0, closedDispatchers.get());
+    }
+
+    @Test
+    public void testDispatcherIsClosedWithConnection() throws Exception {
+        ComponentStanzaHandler handler = parallelHandler();
+        expected = new CountDownLatch(1);
+        process(handler, packet(0, "juliet@example.com/balcony"));
+        assertTrue(expected.await(10, TimeUnit.SECONDS));
+
+        final Map<String, Object> attributes = new HashMap<String, Object>();
+        attributes.put("CONNECTION", connection);
+        attributes.put("HANDLER", handler);
+        IoSession ioSession = (IoSession) proxy(IoSession.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if ("getAttribute".equals(method.getName())) {
+                    return attributes.get(args[0]);
+                }
+                return defaultValue(method);
+            }
+        });
+        new ComponentConnectionHandler("example.com").sessionClosed(ioSession);
+        assertEquals(1, closedConnections.get());
+        assertEquals(1, closedDispatchers.get());
+    }
+
+    @Test
+    public void testDisabledDispatchRoutesOnReadingThread() throws Exception {
+        // Parallel dispatching is disabled by default
+        ComponentStanzaHandler handler = new ComponentStanzaHandler(router, "example.com", connection);
+        handler.session = authenticatedSession();
+        expected = new CountDownLatch(3);
+        for (int i = 0; i < 3; i++) {
+            process(handler, packet(i, "juliet@example.com/balcony"));
+        }
+        assertEquals(0, expected.getCount());
+        assertEquals(1, routed.size());
+        for (Thread thread : routingThreads) {
+            assertSame(Thread.currentThread(), thread);
+        }
+        handler.closeDispatcher();
+        assertFalse(closedDispatchers.get() > 0);
+    }
+
+    private static Object proxy(Class<?> type, InvocationHandler handler) {
+        return Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, handler);
+    }
+
+    private static Object defaultValue(Method method) {
+        Class<?> type = method.getReturnType();
+        if (type == boolean.class) {
+            return false;
+        }
+        if (type == int.class) {
+            return 0;
+        }
+        if (type == long.class) {
+            return 0L;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,139 @@
+package org.jivesoftware.openfire.net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Message;
+
+/**
+ * Verifies that {@link OrderedPacketDispatcher} keeps the order of the packets of each
+ * user and limits the number of queued packets.
+ */
+public class OrderedPacketDispatcherTest {
+
+    @Test
+    public void testPartitionKey() {
+        Message message = new Message();
+        message.setFrom(new JID("game.example.com"));
+        message.setTo(new JID("juliet@example.com/balcony"));
+        assertEquals("juliet@example.com", OrderedPacketDispatcher.getPartitionKey(message));
+        message.setFrom(new JID("romeo@game.example.com/orchard"));
+        message.setTo(new JID("example.com"));
+        assertEquals("romeo@game.example.com", OrderedPacketDispatcher.getPartitionKey(message));
+    }
+
+    @Test
+    public void testOrderPerUser() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            OrderedPacketDispatcher dispatcher =
+                    new OrderedPacketDispatcher("game", 4, 16, executor);
+            final Map<String, List<Integer>> received = new HashMap<String, List<Integer>>();
+            final CountDownLatch done = new CountDownLatch(10 * 500);
+            for (int i = 0; i < 500; i++) {
+                for (int user = 0; user < 10; user++) {
+                    final String to = "user" + user + "@example.com";
+                    final int sequence = i;
+                    Message message = new Message();
+                    message.setTo(new JID(to));
+                    dispatcher.dispatch(message, new Runnable() {
+                        public void run() {
+                            synchronized (received) {
+                                List<Integer> list = received.get(to);
+                                if (list == null) {
+                                    list = new ArrayList<Integer>();
+                                    received.put(to, list);
+                                }
+                                list.add(sequence);
+                            }
+                            done.countDown();
+                        }
+                    });
+                }
+            }
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+            assertEquals(10, received.size());
+            for (List<Integer> list : received.values()) {
+                List<Integer> sorted = new ArrayList<Integer>(list);
+                Collections.sort(sorted);
+                assertEquals(500, list.size());
+                assertEquals(sorted, list);
+            }
+            // The lanes update their counters after the task returned
+            awaitProcessed(dispatcher, 5000);
+            assertEquals(0, dispatcher.getQueuedPackets());
+            assertEquals(5000, dispatcher.getProcessedPackets());
+            assertTrue(dispatcher.getMaxQueuedPackets() <= 16);
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void awaitProcessed(OrderedPacketDispatcher dispatcher, long count)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while ((dispatcher.getProcessedPackets() < count || dispatcher.getQueuedPackets() > 0)
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    public void testThrottling() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            OrderedPacketDispatcher dispatcher =
+                    new OrderedPacketDispatcher("game", 2, 1, executor);
+            final CountDownLatch release = new CountDownLatch(1);
+            Message message = new Message();
+            message.setTo(new JID("juliet@example.com"));
+            dispatcher.dispatch(message, new Runnable() {
+                public void run() {
+                    try {
+                        release.await();
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        Thread.sleep(50);
+                    }
+                    catch (InterruptedException e) {
+                        // Ignore
+                    }
+                    release.countDown();
+                }
+            }.start();
+            // The queue is full so this waits until the first packet was processed
+            final CountDownLatch done = new CountDownLatch(1);
+            dispatcher.dispatch(message, new Runnable() {
+                public void run() {
+                    done.countDown();
+                }
+            });
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+            assertEquals(1, dispatcher.getThrottledCount());
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+}
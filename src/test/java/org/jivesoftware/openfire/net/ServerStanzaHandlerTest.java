@@ -0,0 +1,63 @@
+package org.jivesoftware.openfire.net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.io.StringReader;
+
+import org.dom4j.Element;
+import org.dom4j.io.XMPPPacketReader;
+import org.junit.Test;
+
+/**
+ * Verifies that stanzas received from remote servers can be parsed on their own.
+ */
+public class ServerStanzaHandlerTest {
+
+    private static Element parse(String stanza) throws Exception {
+        XMPPPacketReader reader = new XMPPPacketReader();
+        return reader.read(new StringReader(stanza)).getRootElement();
+    }
+
+    @Test
+    public void testDialbackPrefixIsDeclared() throws Exception {
+        String stanza = ServerStanzaHandler.declareNamespaces(
+                "<db:result from=\"a.example\" to=\"b.example\">key</db:result>");
+        Element doc = parse(stanza);
+        assertEquals("db", doc.getNamespacePrefix());
+        assertEquals("jabber:server:dialback", doc.getNamespaceURI());
+        assertEquals("result", doc.getName());
+        assertEquals("a.example", doc.attributeValue("from"));
+        assertEquals("key", doc.getText());
+    }
+
+    @Test
+    public void testEmptyElements() throws Exception {
+        Element doc = parse(ServerStanzaHandler.declareNamespaces("<db:verify/>"));
+        assertEquals("jabber:server:dialback", doc.getNamespaceURI());
+        doc = parse(ServerStanzaHandler.declareNamespaces("<stream:features/>"));
+        assertEquals("http://etherx.jabber.org/streams", doc.getNamespaceURI());
+    }
+
+    @Test
+    public void testStreamPrefixIsDeclared() throws Exception {
+        String stanza = ServerStanzaHandler.declareNamespaces(
+                "<stream:features><starttls xmlns=\"urn:ietf:params:xml:ns:xmpp-tls\"/></stream:features>");
+        Element doc = parse(stanza);
+        assertEquals("http://etherx.jabber.org/streams", doc.getNamespaceURI());
+        assertEquals("starttls", ((Element) doc.elements().get(0)).getName());
+    }
+
+    @Test
+    public void testUntouchedStanzas() {
+        String[] stanzas = {
+                "<stream:stream xmlns:stream=\"http://etherx.jabber.org/streams\" xmlns=\"jabber:server\">",
+                "<db:result xmlns:db=\"jabber:server:dialback\" type=\"valid\"/>",
+                "<message to=\"a@b.example\" from=\"c@d.example\"><body>hi</body></message>",
+                "</stream:stream>"
+        };
+        for (String stanza : stanzas) {
+            assertSame(stanza, ServerStanzaHandler.declareNamespaces(stanza));
+        }
+    }
+}
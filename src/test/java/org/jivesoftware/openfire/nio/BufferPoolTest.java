@@ -0,0 +1,73 @@
+package org.jivesoftware.openfire.nio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.nio.charset.Charset;
+
+import org.apache.mina.common.ByteBuffer;
+import org.junit.Test;
+
+/**
+ * Verifies that {@link BufferPool} reuses released buffers and keeps the content of
+ * buffers that expand.
+ */
+public class BufferPoolTest {
+
+    @Test
+    public void testReleasedBufferIsReused() {
+        BufferPool pool = new BufferPool(true, false, 65536, 1024 * 1024, false);
+        ByteBuffer first = pool.allocate(1000);
+        assertEquals(1024, first.capacity());
+        java.nio.ByteBuffer buf = first.buf();
+        first.release();
+
+        ByteBuffer second = pool.allocate(600);
+        assertSame(buf, second.buf());
+        assertEquals(0, second.position());
+        assertEquals(1, pool.getReused());
+        assertEquals(1, pool.getCreated());
+        assertEquals(0, pool.getIdleBuffers());
+
+        // Buffers larger than the largest size class are not kept
+        ByteBuffer large = pool.allocate(100000);
+        large.release();
+        assertEquals(1, pool.getDiscarded());
+    }
+
+    @Test
+    public void testExpandKeepsContent() throws Exception {
+        BufferPool pool = new BufferPool(true, false, 65536, 1024 * 1024, false);
+        ByteBuffer buffer = pool.allocate(16);
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 300; i++) {
+            text.append("<message to='juliet@example.com'/>");
+        }
+        ByteBufferWriter writer = new ByteBufferWriter(buffer, Charset.forName("UTF-8").newEncoder());
+        writer.write(text.toString());
+        buffer.flip();
+        assertEquals(text.toString(), buffer.getString(Charset.forName("UTF-8").newDecoder()));
+        // The initial buffer was returned to the pool while expanding
+        assertEquals(1, pool.getIdleBuffers());
+        buffer.release();
+        assertEquals(2, pool.getIdleBuffers());
+    }
+
+    @Test
+    public void testReleaseTwiceFails() {
+        BufferPool pool = new BufferPool(true, false, 65536, 1024 * 1024, false);
+        ByteBuffer buffer = pool.allocate(100);
+        buffer.acquire();
+        buffer.release();
+        buffer.release();
+        try {
+            buffer.release();
+            fail("Buffer was released too many times");
+        }
+        catch (IllegalStateException e) {
+            // Expected
+        }
+        assertEquals(1, pool.getReleased());
+    }
+}
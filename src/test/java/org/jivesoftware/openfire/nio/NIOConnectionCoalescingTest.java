@@ -0,0 +1,280 @@
+package org.jivesoftware.openfire.nio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.net.ssl.SSLContext;
+
+import org.apache.mina.common.ByteBuffer;
+import org.apache.mina.common.IoFilter;
+import org.apache.mina.common.IoFilterChain;
+import org.apache.mina.common.IoSession;
+import org.apache.mina.common.WriteFuture;
+import org.apache.mina.filter.CompressionFilter;
+import org.apache.mina.filter.SSLFilter;
+import org.jivesoftware.util.PropertyEventDispatcher;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.xmpp.packet.Message;
+
+/**
+ * Verifies that {@link NIOConnection} writes coalesced stanzas in order, once the outermost
+ * {@link WriteCoalescing} batch ends, and that pending stanzas are written before TLS or
+ * compression changes what is written to the socket.
+ */
+public class NIOConnectionCoalescingTest {
+
+    private static final String ENABLED_PROPERTY = "xmpp.connection.coalesce.enabled";
+
+    /**
+     * Writes and filter changes of the connection, in order.
+     */
+    private final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+    private final Map<String, IoFilter> filters = new HashMap<String, IoFilter>();
+    private NIOConnection connection;
+
+    @Before
+    public void setUp() {
+        // Load the class so that it listens to property changes
+        WriteCoalescing.isCoalescing();
+        Map<String, Object> params = new HashMap<String, Object>();
+        params.put("value", "true");
+        PropertyEventDispatcher.dispatchEvent(ENABLED_PROPERTY,
+                PropertyEventDispatcher.EventType.property_set, params);
+        connection = new NIOConnection(recordingSession(), null);
+    }
+
+    @After
+    public void tearDown() {
+        PropertyEventDispatcher.dispatchEvent(ENABLED_PROPERTY,
+                PropertyEventDispatcher.EventType.property_deleted, new HashMap<String, Object>());
+    }
+
+    private static Message message(String body) {
+        Message message = new Message();
+        message.setTo("user@example.com/resource");
+        message.setBody(body);
+        return message;
+    }
+
+    @Test
+    public void testNestedBatchesAreWrittenOnceInOrder() throws Exception {
+        WriteCoalescing.startBatch();
+        try {
+            connection.deliverRawText("<a/>");
+            WriteCoalescing.startBatch();
+            try {
+                connection.deliver(message("b"));
+                connection.deliverRawText("<c/>");
+            }
+            finally {
+                WriteCoalescing.endBatch();
+            }
+            // The outer batch has not ended yet
+            assertEquals(0, events.size());
+            connection.deliverRawText("<d/>");
+        }
+        finally {
+            WriteCoalescing.endBatch();
+        }
+        assertEquals(1, events.size());
+        String written = events.get(0);
+        assertTrue(written, written.startsWith("write:<a/><message"));
+        assertTrue(written, written.endsWith("<body>b</body></message><c/><d/>"));
+    }
+
+    @Test
+    public void testTextOutsideBatchIsWrittenByTimer() throws Exception {
+        connection.deliverRawText("<a/>");
+        connection.deliverRawText("<b/>");
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!written().equals("<a/><b/>") && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        // The timer may have expired between the texts, but they are written in order
+        assertEquals("<a/><b/>", written());
+    }
+
+    private String written() {
+        StringBuilder sb = new StringBuilder();
+        synchronized (events) {
+            for (String event : events) {
+                sb.append(event.substring("write:".length()));
+            }
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void testLargeBufferIsWrittenBeforeBatchEnds() {
+        char[] chars = new char[WriteCoalescing.getThreshold()];
+        Arrays.fill(chars, 'x');
+        String large = "<a>" + new String(chars) + "</a>";
+        WriteCoalescing.startBatch();
+        try {
+            connection.deliverRawText("<b/>");
+            connection.deliverRawText(large);
+            assertEquals(Arrays.asList("write:<b/>" + large), events);
+            connection.deliverRawText("<c/>");
+        }
+        finally {
+            WriteCoalescing.endBatch();
+        }
+        assertEquals(Arrays.asList("write:<b/>" + large, "write:<c/>"), events);
+    }
+
+    @Test
+    public void testPendingStanzasAreWrittenBeforeProceed() throws Exception {
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, null, null);
+        WriteCoalescing.startBatch();
+        try {
+            connection.deliverRawText("<a/>");
+            connection.addTLSFilter(new SSLFilter(context), false);
+        }
+        finally {
+            WriteCoalescing.endBatch();
+        }
+        assertEquals(Arrays.asList(
+                "write:<a/>",
+                "add:tls",
+                "setAttribute:" + SSLFilter.DISABLE_ENCRYPTION_ONCE,
+                "write:<proceed xmlns=\"urn:ietf:params:xml:ns:xmpp-tls\"/>"), events);
+    }
+
+    @Test
+    public void testClientModeDoesNotDisableEncryption() throws Exception {
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, null, null);
+        WriteCoalescing.startBatch();
+        try {
+            connection.deliverRawText("<a/>");
+            connection.addTLSFilter(new SSLFilter(context), true);
+            // The new stream header goes through the TLS filter
+            connection.deliverRawText("<stream:stream>");
+        }
+        finally {
+            WriteCoalescing.endBatch();
+        }
+        assertEquals(Arrays.asList(
+                "write:<a/>",
+                "add:tls",
+                "write:<stream:stream>"), events);
+    }
+
+    @Test
+    public void testPendingStanzasAreWrittenBeforeCompression() {
+        WriteCoalescing.startBatch();
+        try {
+            connection.deliverRawText("<a/>");
+            connection.addCompression();
+            connection.deliverRawText("<compressed xmlns=\"http://jabber.org/protocol/compress\"/>");
+            connection.startCompression();
+            connection.deliverRawText("<b/>");
+        }
+        finally {
+            WriteCoalescing.endBatch();
+        }
+        assertEquals(Arrays.asList(
+                "write:<a/>",
+                "add:compression",
+                "write:<compressed xmlns=\"http://jabber.org/protocol/compress\"/>",
+                "compressOutbound",
+                "write:<b/>"), events);
+    }
+
+    /**
+     * Returns an IoSession that records the writes and the filters added to its chain.
+     */
+    private IoSession recordingSession() {
+        final WriteFuture future = (WriteFuture) proxy(WriteFuture.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                return defaultValue(method);
+            }
+        });
+        final IoFilterChain chain = (IoFilterChain) proxy(IoFilterChain.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                String name = method.getName();
+                if (name.equals("addBefore") || name.equals("addAfter")) {
+                    IoFilter filter = (IoFilter) args[2];
+                    if (filter instanceof CompressionFilter) {
+                        filter = new RecordingCompressionFilter();
+                    }
+                    filters.put((String) args[1], filter);
+                    events.add("add:" + args[1]);
+                    return null;
+                }
+                if (name.equals("get")) {
+                    return filters.get(args[0]);
+                }
+                if (name.equals("contains") && args[0] instanceof String) {
+                    return filters.containsKey(args[0]);
+                }
+                return defaultValue(method);
+            }
+        });
+        return (IoSession) proxy(IoSession.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                String name = method.getName();
+                if (name.equals("write")) {
+                    ByteBuffer buffer = (ByteBuffer) args[0];
+                    byte[] bytes = new byte[buffer.remaining()];
+                    buffer.get(bytes);
+                    events.add("write:" + new String(bytes));
+                    return future;
+                }
+                if (name.equals("setAttribute")) {
+                    events.add("setAttribute:" + args[0]);
+                    return null;
+                }
+                if (name.equals("isConnected")) {
+                    return true;
+                }
+                if (name.equals("getFilterChain")) {
+                    return chain;
+                }
+                return defaultValue(method);
+            }
+        });
+    }
+
+    private static Object proxy(Class<?> type, InvocationHandler handler) {
+        return Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, handler);
+    }
+
+    private static Object defaultValue(Method method) {
+        Class<?> type = method.getReturnType();
+        if (type == boolean.class) {
+            return false;
+        }
+        if (type == int.class) {
+            return 0;
+        }
+        if (type == long.class) {
+            return 0L;
+        }
+        return null;
+    }
+
+    /**
+     * Compression filter that records when outbound compression starts.
+     */
+    private class RecordingCompressionFilter extends CompressionFilter {
+        @Override
+        public void setCompressOutbound(boolean compressOutbound) {
+            events.add("compressOutbound");
+            super.setCompressOutbound(compressOutbound);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package org.jivesoftware.openfire.nio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.LinkedHashMap;
+
+import org.jivesoftware.openfire.XMPPServer;
+import org.jivesoftware.openfire.container.Module;
+import org.jivesoftware.openfire.server.OutgoingServerSocketReader;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.objenesis.ObjenesisStd;
+
+/**
+ * Verifies that {@link OutgoingServerConnectionHandler#shutdown()} closes the connections to
+ * remote servers and that remote servers can be connected to again afterwards.
+ */
+public class OutgoingServerConnectionHandlerTest {
+
+    private ServerSocket remoteServer;
+
+    @Before
+    public void setUp() throws Exception {
+        // Connections look up the packet deliverer of the server
+        XMPPServer server = (XMPPServer) new ObjenesisStd().newInstance(XMPPServer.class);
+        setField(server, "modules", new LinkedHashMap<Class, Module>());
+        setField(null, "instance", server);
+        remoteServer = new ServerSocket(0, 5, InetAddress.getLoopbackAddress());
+        remoteServer.setSoTimeout(5000);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        OutgoingServerConnectionHandler.shutdown();
+        remoteServer.close();
+        setField(null, "instance", null);
+    }
+
+    private static void setField(XMPPServer server, String name, Object value) throws Exception {
+        Field field = XMPPServer.class.getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(server, value);
+    }
+
+    private NIOConnection connect() throws Exception {
+        OutgoingServerConnectionHandler handler =
+                new OutgoingServerConnectionHandler("example.com", new OutgoingServerSocketReader());
+        return handler.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                remoteServer.getLocalPort()), 5000);
+    }
+
+    /**
+     * Returns what the remote server reads until the connection is closed.
+     */
+    private static String readUntilClosed(Socket socket) throws Exception {
+        socket.setSoTimeout(5000);
+        InputStream in = socket.getInputStream();
+        ByteArrayOutputStream read = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1) {
+            read.write(b);
+        }
+        return read.toString("UTF-8");
+    }
+
+    @Test
+    public void testShutdownClosesConnections() throws Exception {
+        NIOConnection connection = connect();
+        Socket socket = remoteServer.accept();
+        assertFalse(connection.isClosed());
+        OutgoingServerConnectionHandler.shutdown();
+        assertTrue(connection.isClosed());
+        assertEquals("</stream:stream>", readUntilClosed(socket));
+        socket.close();
+    }
+
+    @Test
+    public void testConnectAfterShutdown() throws Exception {
+        connect();
+        remoteServer.accept().close();
+        OutgoingServerConnectionHandler.shutdown();
+        // Shutting down again does nothing
+        OutgoingServerConnectionHandler.shutdown();
+        NIOConnection connection = connect();
+        Socket socket = remoteServer.accept();
+        assertFalse(connection.isClosed());
+        connection.deliverRawText("<stream:stream>");
+        socket.setSoTimeout(5000);
+        byte[] header = new byte["<stream:stream>".length()];
+        int read = 0;
+        while (read < header.length) {
+            int count = socket.getInputStream().read(header, read, header.length - read);
+            assertTrue(count != -1);
+            read += count;
+        }
+        assertEquals("<stream:stream>", new String(header, "UTF-8"));
+        socket.close();
+    }
+}
@@ -0,0 +1,97 @@
+package org.jivesoftware.openfire.nio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringReader;
+
+import org.apache.mina.common.ByteBuffer;
+import org.dom4j.Document;
+import org.dom4j.io.SAXReader;
+import org.junit.Test;
+import org.xmpp.packet.IQ;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Message;
+
+/**
+ * Verifies that the shared serialization of a broadcast stanza is equivalent to
+ * serializing the stanza once per recipient.
+ */
+public class SerializedStanzaTest {
+
+    private static String write(SerializedStanza stanza, JID to) throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        buffer.setAutoExpand(true);
+        stanza.writeTo(buffer, to);
+        buffer.flip();
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return new String(bytes, NIOConnection.CHARSET);
+    }
+
+    private static Message createMessage() {
+        Message message = new Message();
+        message.setType(Message.Type.groupchat);
+        message.setFrom("room@conference.example.com/nick");
+        message.setTo("room@conference.example.com");
+        message.setBody("Hello <all> & \"everyone\"");
+        return message;
+    }
+
+    @Test
+    public void testRecipientIsPatched() throws Exception {
+        Message message = createMessage();
+        SerializedStanza stanza = SerializedStanza.serialize(message);
+
+        JID to = new JID("user", "example.com", "res & \"1\"");
+        Document document = new SAXReader().read(new StringReader(write(stanza, to)));
+
+        Message received = new Message(document.getRootElement());
+        assertEquals(to, received.getTo());
+        assertEquals(message.getFrom(), received.getFrom());
+        assertEquals(message.getType(), received.getType());
+        assertEquals(message.getBody(), received.getBody());
+    }
+
+    @Test
+    public void testPacketIsNotModified() throws Exception {
+        Message message = createMessage();
+        String before = message.toXML();
+        SerializedStanza.serialize(message);
+        assertEquals(before, message.toXML());
+    }
+
+    @Test
+    public void testNoRecipient() throws Exception {
+        Message message = createMessage();
+        SerializedStanza stanza = SerializedStanza.serialize(message);
+        assertFalse(write(stanza, null).contains(" to="));
+    }
+
+    @Test
+    public void testContentIsInserted() throws Exception {
+        IQ result = new IQ(IQ.Type.result, "v1");
+        result.setFrom("example.com");
+        result.setTo("user@example.com/home");
+        result.setChildElement("vCard", "vcard-temp");
+        byte[] content = "<vCard xmlns=\"vcard-temp\"><FN>Jane</FN></vCard>".getBytes(NIOConnection.CHARSET);
+        SerializedStanza stanza = SerializedStanza.serialize(result, content);
+
+        Document document = new SAXReader().read(new StringReader(write(stanza, result.getTo())));
+        IQ received = new IQ(document.getRootElement());
+        assertEquals(result.getTo(), received.getTo());
+        assertEquals("v1", received.getID());
+        assertEquals("Jane", received.getChildElement().elementText("FN"));
+        assertEquals(1, received.getElement().elements().size());
+        assertTrue(stanza.isSerializationOf(result));
+    }
+
+    @Test
+    public void testSerializationOf() throws Exception {
+        Message message = createMessage();
+        SerializedStanza stanza = SerializedStanza.serialize(message);
+        assertTrue(stanza.isSerializationOf(message));
+        assertFalse(stanza.isSerializationOf(message.createCopy()));
+    }
+}
@@ -0,0 +1,100 @@
+package org.jivesoftware.openfire.nio;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.mina.common.ByteBuffer;
+import org.jivesoftware.openfire.net.RawStanza;
+import org.junit.Test;
+
+/**
+ * Verifies that {@link XMLLightweightByteParser} frames the same stanzas as
+ * {@link XMLLightweightParser}, regardless of how the received bytes are split.
+ */
+public class XMLLightweightByteParserTest {
+
+    private static final String STREAM =
+            "<?xml version='1.0'?><stream:stream to='example.com' xmlns='jabber:client' " +
+            "xmlns:stream='http://etherx.jabber.org/streams' version='1.0'>" +
+            "<message to=\"juliet@example.com\" type=\"chat\"><body>Wherefore art thou, é中😀?</body></message>" +
+            "<presence/>" +
+            "<iq type=\"get\" id=\"1\"><query xmlns=\"jabber:iq:roster\"/></iq>" +
+            "<message><body><![CDATA[</message> <b>]]></body></message>" +
+            "</stream:stream>";
+
+    private static List<String> frameChars(byte[] bytes, int chunk) throws Exception {
+        XMLLightweightParser parser = new XMLLightweightParser("UTF-8");
+        List<String> stanzas = new ArrayList<String>();
+        ByteBuffer pending = ByteBuffer.allocate(bytes.length);
+        for (int i = 0; i < bytes.length; i += chunk) {
+            pending.put(bytes, i, Math.min(chunk, bytes.length - i));
+            pending.flip();
+            parser.read(pending);
+            pending.compact();
+            if (parser.areThereMsgs()) {
+                for (String stanza : parser.getMsgs()) {
+                    stanzas.add(stanza);
+                }
+            }
+        }
+        return stanzas;
+    }
+
+    private static List<String> frameBytes(byte[] bytes, int chunk) throws Exception {
+        XMLLightweightByteParser parser = new XMLLightweightByteParser();
+        List<String> stanzas = new ArrayList<String>();
+        for (int i = 0; i < bytes.length; i += chunk) {
+            parser.read(ByteBuffer.wrap(bytes, i, Math.min(chunk, bytes.length - i)));
+            if (parser.areThereMsgs()) {
+                for (RawStanza stanza : parser.getMsgs()) {
+                    stanzas.add(read(stanza.getReader()));
+                }
+            }
+        }
+        return stanzas;
+    }
+
+    private static String read(Reader reader) throws Exception {
+        StringBuilder sb = new StringBuilder();
+        char[] buf = new char[3];
+        int read;
+        while ((read = reader.read(buf, 0, buf.length)) != -1) {
+            sb.append(buf, 0, read);
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void testSameFramingForAnyChunkSize() throws Exception {
+        byte[] bytes = STREAM.getBytes("UTF-8");
+        String[] expected = frameChars(bytes, bytes.length).toArray(new String[0]);
+        for (int chunk = 1; chunk <= bytes.length; chunk++) {
+            assertArrayEquals("Chunk size " + chunk, expected, frameBytes(bytes, chunk).toArray());
+        }
+    }
+
+    @Test
+    public void testIllegalCharacterReferences() throws Exception {
+        XmlNumericCharacterReferenceTest references = new XmlNumericCharacterReferenceTest();
+        for (String reference : references.illegalNumericCharacterReferences) {
+            assertTrue(reference, XMLLightweightByteParser.hasIllegalCharacterReferences(reference.getBytes("UTF-8")));
+        }
+        for (String reference : references.legalNumericCharacterReferences) {
+            assertFalse(reference, XMLLightweightByteParser.hasIllegalCharacterReferences(reference.getBytes("UTF-8")));
+        }
+        for (String reference : references.notNumericCharacterRefrences) {
+            assertFalse(reference, XMLLightweightByteParser.hasIllegalCharacterReferences(reference.getBytes("UTF-8")));
+        }
+    }
+
+    @Test(expected = XMLNotWellFormedException.class)
+    public void testIllegalCharacterReferenceInStanza() throws Exception {
+        XMLLightweightByteParser parser = new XMLLightweightByteParser();
+        parser.read(ByteBuffer.wrap("<message><body>&#x01;</body></message>".getBytes("UTF-8")));
+    }
+}
@@ -0,0 +1,358 @@
+package org.jivesoftware.openfire.pep;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+import org.jivesoftware.database.ConnectionProvider;
+import org.jivesoftware.database.DbConnectionManager;
+import org.jivesoftware.openfire.PacketRouter;
+import org.jivesoftware.openfire.XMPPServer;
+import org.jivesoftware.openfire.container.Module;
+import org.jivesoftware.openfire.pubsub.CollectionNode;
+import org.jivesoftware.openfire.pubsub.LeafNode;
+import org.jivesoftware.openfire.pubsub.Node;
+import org.jivesoftware.openfire.pubsub.PubSubModule;
+import org.jivesoftware.openfire.pubsub.PubSubPersistenceManager;
+import org.jivesoftware.openfire.pubsub.models.AccessModel;
+import org.jivesoftware.openfire.spi.PacketRouterImpl;
+import org.jivesoftware.util.JiveGlobals;
+import org.jivesoftware.util.XMLProperties;
+import org.jivesoftware.util.cache.CacheFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.objenesis.ObjenesisStd;
+import org.xmpp.forms.DataForm;
+import org.xmpp.forms.FormField;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Message;
+import org.xmpp.packet.Packet;
+
+/**
+ * Verifies that a {@link PEPService} restored from the database loads its nodes the first
+ * time they are looked up, and that the {@link PEPServiceManager} sends the last items
+ * published before a restart to the subscribers of the service.
+ */
+public class PEPServiceManagerTest {
+
+    private static final String OWNER = "juliet@example.com";
+    private static final String TUNE = "http://jabber.org/protocol/tune";
+    private static final JID ROMEO = new JID("romeo@example.com/orchard");
+
+    /**
+     * Property and pubsub tables of openfire_hsqldb.sql.
+     */
+    private static final String[] TABLES = {
+        "CREATE TABLE ofProperty (name VARCHAR(100) NOT NULL, propValue VARCHAR(4000) NOT NULL, " +
+                "CONSTRAINT ofProperty_pk PRIMARY KEY (name))",
+        "CREATE TABLE ofPubsubNode (serviceID VARCHAR(100) NOT NULL, nodeID VARCHAR(100) NOT NULL, " +
+                "leaf INTEGER NOT NULL, creationDate CHAR(15) NOT NULL, modificationDate CHAR(15) NOT NULL, " +
+                "parent VARCHAR(100) NULL, deliverPayloads INTEGER NOT NULL, maxPayloadSize INTEGER NULL, " +
+                "persistItems INTEGER NULL, maxItems INTEGER NULL, notifyConfigChanges INTEGER NOT NULL, " +
+                "notifyDelete INTEGER NOT NULL, notifyRetract INTEGER NOT NULL, presenceBased INTEGER NOT NULL, " +
+                "sendItemSubscribe INTEGER NOT NULL, publisherModel VARCHAR(15) NOT NULL, " +
+                "subscriptionEnabled INTEGER NOT NULL, configSubscription INTEGER NOT NULL, " +
+                "accessModel VARCHAR(10) NOT NULL, payloadType VARCHAR(100) NULL, bodyXSLT VARCHAR(100) NULL, " +
+                "dataformXSLT VARCHAR(100) NULL, creator VARCHAR(1024) NOT NULL, description VARCHAR(255) NULL, " +
+                "language VARCHAR(255) NULL, name VARCHAR(50) NULL, replyPolicy VARCHAR(15) NULL, " +
+                "associationPolicy VARCHAR(15) NULL, maxLeafNodes INTEGER NULL, " +
+                "CONSTRAINT ofPubsubNode_pk PRIMARY KEY (serviceID, nodeID))",
+        "CREATE TABLE ofPubsubNodeJIDs (serviceID VARCHAR(100) NOT NULL, nodeID VARCHAR(100) NOT NULL, " +
+                "jid VARCHAR(1024) NOT NULL, associationType VARCHAR(20) NOT NULL, " +
+                "CONSTRAINT ofPubsubNodeJIDs_pk PRIMARY KEY (serviceID, nodeID, jid))",
+        "CREATE TABLE ofPubsubNodeGroups (serviceID VARCHAR(100) NOT NULL, nodeID VARCHAR(100) NOT NULL, " +
+                "rosterGroup VARCHAR(100) NOT NULL)",
+        "CREATE TABLE ofPubsubAffiliation (serviceID VARCHAR(100) NOT NULL, nodeID VARCHAR(100) NOT NULL, " +
+                "jid VARCHAR(1024) NOT NULL, affiliation VARCHAR(10) NOT NULL, " +
+                "CONSTRAINT ofPubsubAffiliation_pk PRIMARY KEY (serviceID, nodeID, jid))",
+        "CREATE TABLE ofPubsubItem (serviceID VARCHAR(100) NOT NULL, nodeID VARCHAR(100) NOT NULL, " +
+                "id VARCHAR(100) NOT NULL, jid VARCHAR(1024) NOT NULL, creationDate CHAR(15) NOT NULL, " +
+                "payload VARCHAR(4000) NULL, CONSTRAINT ofPubsubItem_pk PRIMARY KEY (serviceID, nodeID, id))",
+        "CREATE TABLE ofPubsubSubscription (serviceID VARCHAR(100) NOT NULL, nodeID VARCHAR(100) NOT NULL, " +
+                "id VARCHAR(100) NOT NULL, jid VARCHAR(1024) NOT NULL, owner VARCHAR(1024) NOT NULL, " +
+                "state VARCHAR(15) NOT NULL, deliver INTEGER NOT NULL, digest INTEGER NOT NULL, " +
+                "digest_frequency INTEGER NOT NULL, expire CHAR(15) NULL, includeBody INTEGER NOT NULL, " +
+                "showValues VARCHAR(30) NOT NULL, subscriptionType VARCHAR(10) NOT NULL, " +
+                "subscriptionDepth INTEGER NOT NULL, keyword VARCHAR(200) NULL, " +
+                "CONSTRAINT ofPubsubSubscription_pk PRIMARY KEY (serviceID, nodeID, id))",
+        "CREATE TABLE ofPubsubDefaultConf (serviceID VARCHAR(100) NOT NULL, leaf INTEGER NOT NULL, " +
+                "deliverPayloads INTEGER NOT NULL, maxPayloadSize INTEGER NOT NULL, " +
+                "persistItems INTEGER NOT NULL, maxItems INTEGER NOT NULL, " +
+                "notifyConfigChanges INTEGER NOT NULL, notifyDelete INTEGER NOT NULL, " +
+                "notifyRetract INTEGER NOT NULL, presenceBased INTEGER NOT NULL, " +
+                "sendItemSubscribe INTEGER NOT NULL, publisherModel VARCHAR(15) NOT NULL, " +
+                "subscriptionEnabled INTEGER NOT NULL, accessModel VARCHAR(10) NOT NULL, " +
+                "language VARCHAR(255) NULL, replyPolicy VARCHAR(15) NULL, " +
+                "associationPolicy VARCHAR(15) NOT NULL, maxLeafNodes INTEGER NOT NULL, " +
+                "CONSTRAINT ofPubsubDefaultConf_pk PRIMARY KEY (serviceID, leaf))"
+    };
+
+    private static final AtomicInteger databases = new AtomicInteger();
+
+    private final List<Packet> routed = Collections.synchronizedList(new ArrayList<Packet>());
+    private final Map<Class, Module> modules = new LinkedHashMap<Class, Module>();
+    private XMPPServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        MemoryConnectionProvider provider = new MemoryConnectionProvider();
+        Connection con = provider.getConnection();
+        try {
+            Statement stmt = con.createStatement();
+            for (String table : TABLES) {
+                stmt.execute(table);
+            }
+            stmt.close();
+        }
+        finally {
+            con.close();
+        }
+        // Setting the provider through DbConnectionManager would write it to openfire.xml
+        setField(DbConnectionManager.class, "connectionProvider", provider);
+        // Properties are loaded from the database once it is available, and the security
+        // configuration is needed to decrypt them
+        if (getField(JiveGlobals.class, "securityProperties") == null) {
+            setField(JiveGlobals.class, "securityProperties", new XMLProperties());
+        }
+
+        server = (XMPPServer) new ObjenesisStd().newInstance(XMPPServer.class);
+        // Nodes look up the service ID of the pubsub module when their class is loaded
+        modules.put(PubSubModule.class, (Module) new ObjenesisStd().newInstance(PubSubModule.class));
+        modules.put(PacketRouterImpl.class, router());
+        setField(server, "modules", modules);
+        setField(server, "name", "example.com");
+        // Presences are probed when nodes are restored, rather than once the server started
+        setField(server, "started", true);
+        setField(XMPPServer.class, "instance", server);
+        CacheFactory.initialize();
+        clearCaches();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        clearCaches();
+        DbConnectionManager.destroyConnectionProvider();
+        // Back to the setup mode of the other tests
+        setField(JiveGlobals.class, "properties", null);
+        setField(XMPPServer.class, "instance", null);
+    }
+
+    private static Object getField(Class<?> type, String name) throws Exception {
+        Field field = type.getDeclaredField(name);
+        field.setAccessible(true);
+        return field.get(null);
+    }
+
+    /**
+     * Sets a static field of a class.
+     */
+    private static void setField(Class<?> type, String name, Object value) throws Exception {
+        Field field = type.getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(null, value);
+    }
+
+    private static void setField(XMPPServer server, String name, Object value) throws Exception {
+        Field field = XMPPServer.class.getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(server, value);
+    }
+
+    /**
+     * Clears the caches of the PEP services, as a restart of the server does.
+     */
+    private static void clearCaches() {
+        CacheFactory.createLocalCache("PEPServiceManager").clear();
+        CacheFactory.createLocalCache("PEP Last Published Items").clear();
+        CacheFactory.createCache("Published Items").clear();
+    }
+
+    /**
+     * Returns a packet router that records the packets it gets.
+     */
+    private Module router() {
+        return (Module) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] {PacketRouter.class, Module.class}, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if ("route".equals(method.getName())) {
+                            routed.add((Packet) args[0]);
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    /**
+     * Starts a PEP service manager and makes it the manager of the PEP handler of the server.
+     */
+    private PEPServiceManager startManager() throws Exception {
+        PEPServiceManager manager = new PEPServiceManager();
+        manager.start();
+        IQPEPHandler handler = (IQPEPHandler) new ObjenesisStd().newInstance(IQPEPHandler.class);
+        Field field = IQPEPHandler.class.getDeclaredField("pepServiceManager");
+        field.setAccessible(true);
+        field.set(handler, manager);
+        modules.put(IQPEPHandler.class, handler);
+        return manager;
+    }
+
+    /**
+     * Publishes an item to the tune node of the service of the owner, subscribes a contact
+     * to the items of the service, flushes the item to the database as a shutdown does and
+     * then restarts with empty caches.
+     */
+    private PEPServiceManager publishAndRestart() throws Exception {
+        startManager();
+        JID owner = new JID(OWNER);
+        PEPService service = new PEPService(server, OWNER);
+        service.getDefaultNodeConfiguration(true).setPersistPublishedItems(true);
+        service.getDefaultNodeConfiguration(true).setAccessModel(AccessModel.open);
+        CollectionNode root = service.getRootCollectionNode();
+        LeafNode tune = new LeafNode(service, root, TUNE, owner);
+        tune.addOwner(owner);
+        tune.saveToDB();
+
+        Element item = DocumentHelper.createElement("item");
+        item.addAttribute("id", "current");
+        item.addElement("tune", TUNE).addElement("title").setText("Yes");
+        tune.publishItems(owner, Collections.singletonList(item));
+
+        DataForm options = new DataForm(DataForm.Type.submit);
+        FormField field = options.addField();
+        field.setVariable("pubsub#subscription_type");
+        field.addValue("items");
+        field = options.addField();
+        field.setVariable("pubsub#subscription_depth");
+        field.addValue("all");
+        root.createSubscription(null, new JID(ROMEO.toBareJID()), ROMEO, false, options);
+
+        PubSubPersistenceManager.flushPendingItems(false);
+        routed.clear();
+        clearCaches();
+        return startManager();
+    }
+
+    private static boolean isNodesLoaded(PEPService service) throws Exception {
+        Field field = PEPService.class.getDeclaredField("nodesLoaded");
+        field.setAccessible(true);
+        return (Boolean) field.get(service);
+    }
+
+    @Test
+    public void testRestoredServiceLoadsNodesOnLookup() throws Exception {
+        PEPServiceManager manager = publishAndRestart();
+        PEPService service = manager.getPEPService(OWNER);
+        assertNotNull(service);
+        assertFalse(isNodesLoaded(service));
+
+        Node tune = service.getNode(TUNE);
+        assertTrue(isNodesLoaded(service));
+        assertNotNull(tune);
+        assertEquals(2, service.getNodes().size());
+        CollectionNode root = service.getRootCollectionNode();
+        assertEquals(OWNER, root.getNodeID());
+        assertSame(root, tune.getParent());
+        assertTrue(root.getNodes().contains(tune));
+        assertNotNull(root.getSubscription(ROMEO));
+        // The service is looked up in the cache from now on
+        assertSame(service, manager.getPEPService(OWNER));
+    }
+
+    @Test
+    public void testLastPublishedItemSentAfterRestart() throws Exception {
+        PEPServiceManager manager = publishAndRestart();
+        manager.sendLastPublishedItems(OWNER, ROMEO);
+        assertEquals(1, routed.size());
+        Message notification = (Message) routed.get(0);
+        assertEquals(ROMEO, notification.getTo());
+        assertEquals(new JID(OWNER), notification.getFrom());
+        Element items = notification.getChildElement("event", "http://jabber.org/protocol/pubsub#event")
+                .element("items");
+        assertEquals(TUNE, items.attributeValue("node"));
+        Element item = items.element("item");
+        assertEquals("current", item.attributeValue("id"));
+        assertEquals("Yes", item.element("tune").elementText("title"));
+
+        // The cached items are sent the next time the contact becomes available
+        manager.sendLastPublishedItems(OWNER, ROMEO);
+        assertEquals(2, routed.size());
+        assertEquals(notification.getChildElement("event", "http://jabber.org/protocol/pubsub#event").asXML(),
+                ((Message) routed.get(1)).getChildElement("event", "http://jabber.org/protocol/pubsub#event").asXML());
+    }
+
+    @Test
+    public void testNothingSentWithoutService() throws Exception {
+        PEPServiceManager manager = publishAndRestart();
+        manager.sendLastPublishedItems("nurse@example.com", ROMEO);
+        assertTrue(routed.isEmpty());
+        assertNull(manager.getPEPService("nurse@example.com"));
+        // Contacts without a subscription do not get the items of an existing service
+        manager.sendLastPublishedItems(OWNER, new JID("tybalt@example.com/street"));
+        assertTrue(routed.isEmpty());
+    }
+
+    /**
+     * Provides connections to an in-memory HSQLDB database that is dropped when the
+     * provider is destroyed.
+     */
+    private static class MemoryConnectionProvider implements ConnectionProvider {
+
+        private final String url = "jdbc:hsqldb:mem:pep" + databases.incrementAndGet();
+
+        public boolean isPooled() {
+            return false;
+        }
+
+        public Connection getConnection() throws SQLException {
+            try {
+                Class.forName("org.hsqldb.jdbcDriver");
+            }
+            catch (ClassNotFoundException e) {
+                throw new SQLException(e);
+            }
+            return DriverManager.getConnection(url, "sa", "");
+        }
+
+        public void start() {
+        }
+
+        public void restart() {
+        }
+
+        public void destroy() {
+            try {
+                Connection con = getConnection();
+                try {
+                    con.createStatement().execute("SHUTDOWN");
+                }
+                finally {
+                    con.close();
+                }
+            }
+            catch (SQLException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package org.jivesoftware.openfire.privacy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+import org.junit.Test;
+import org.xmpp.packet.IQ;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Message;
+import org.xmpp.packet.Packet;
+import org.xmpp.packet.Presence;
+
+/**
+ * Verifies that {@link PrivacyRules} takes the same decisions as analyzing the items
+ * of a privacy list one by one.
+ */
+public class PrivacyRulesTest {
+
+    private static final JID OWNER = new JID("juliet@example.com");
+
+    private static final String[] VALUES = {"romeo@example.com", "romeo@example.com/orchard",
+            "nurse@example.com", "example.com", "montague.net", "tybalt@montague.net",
+            "tybalt@montague.net/street"};
+
+    private static final String[] STANZAS = {"iq", "message", "presence-in", "presence-out"};
+
+    @Test
+    public void testFirstMatchDecides() throws Exception {
+        List<PrivacyItem> items = new ArrayList<PrivacyItem>();
+        items.add(item(1, "allow", "romeo@example.com/orchard"));
+        items.add(item(2, "deny", "example.com"));
+        items.add(item(3, "allow", null));
+        PrivacyRules rules = new PrivacyRules(OWNER, items);
+
+        assertFalse(rules.shouldBlockPacket(message("romeo@example.com/orchard"), null));
+        assertTrue(rules.shouldBlockPacket(message("romeo@example.com/balcony"), null));
+        assertTrue(rules.shouldBlockPacket(message("nurse@example.com"), null));
+        assertFalse(rules.shouldBlockPacket(message("tybalt@montague.net"), null));
+    }
+
+    @Test
+    public void testSameDecisionsAsItems() throws Exception {
+        Random random = new Random(42);
+        for (int list = 0; list < 200; list++) {
+            List<PrivacyItem> items = new ArrayList<PrivacyItem>();
+            int size = 1 + random.nextInt(8);
+            for (int order = 0; order < size; order++) {
+                Element element = DocumentHelper.createElement("item");
+                element.addAttribute("action", random.nextBoolean() ? "allow" : "deny");
+                element.addAttribute("order", Integer.toString(random.nextInt(20)));
+                if (random.nextInt(6) > 0) {
+                    element.addAttribute("type", "jid");
+                    element.addAttribute("value", VALUES[random.nextInt(VALUES.length)]);
+                }
+                for (String stanza : STANZAS) {
+                    if (random.nextInt(3) == 0) {
+                        element.addElement(stanza);
+                    }
+                }
+                items.add(new PrivacyItem(element));
+            }
+            Collections.sort(items);
+            PrivacyRules rules = new PrivacyRules(OWNER, items);
+
+            for (Packet packet : packets()) {
+                assertEquals(packet.toXML(), shouldBlockPacket(items, packet),
+                        rules.shouldBlockPacket(packet, null));
+            }
+        }
+    }
+
+    private static boolean shouldBlockPacket(List<PrivacyItem> items, Packet packet) {
+        for (PrivacyItem item : items) {
+            if (item.matchesCondition(packet, null, OWNER)) {
+                return !item.isAllow();
+            }
+        }
+        return false;
+    }
+
+    private static List<Packet> packets() {
+        List<Packet> packets = new ArrayList<Packet>();
+        for (String value : VALUES) {
+            JID contact = new JID(value);
+            packets.add(message(value));
+            IQ iq = new IQ();
+            iq.setFrom(contact);
+            iq.setTo(OWNER);
+            packets.add(iq);
+            Presence in = new Presence();
+            in.setFrom(contact);
+            in.setTo(OWNER);
+            packets.add(in);
+            Presence out = new Presence(Presence.Type.unavailable);
+            out.setFrom(new JID("juliet@example.com/balcony"));
+            out.setTo(contact);
+            packets.add(out);
+            Presence subscribe = new Presence(Presence.Type.subscribe);
+            subscribe.setFrom(contact);
+            subscribe.setTo(OWNER);
+            packets.add(subscribe);
+            Message sent = new Message();
+            sent.setFrom(OWNER);
+            sent.setTo(contact);
+            packets.add(sent);
+        }
+        return packets;
+    }
+
+    private static Message message(String from) {
+        Message message = new Message();
+        message.setFrom(new JID(from));
+        message.setTo(OWNER);
+        return message;
+    }
+
+    private static PrivacyItem item(int order, String action, String jid) {
+        Element element = DocumentHelper.createElement("item");
+        element.addAttribute("action", action);
+        element.addAttribute("order", Integer.toString(order));
+        if (jid != null) {
+            element.addAttribute("type", "jid");
+            element.addAttribute("value", jid);
+        }
+        return new PrivacyItem(element);
+    }
+}
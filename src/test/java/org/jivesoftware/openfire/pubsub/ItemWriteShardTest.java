@@ -0,0 +1,155 @@
+package org.jivesoftware.openfire.pubsub;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.jivesoftware.openfire.pubsub.ItemWriteShard.RetryWrapper;
+import org.junit.Test;
+import org.xmpp.packet.JID;
+
+/**
+ * Verifies that {@link ItemWriteShard} only writes the latest version of the pending
+ * items: publishing again replaces a pending item, deleting cancels a pending add, and
+ * retrying a failed write never brings back an item that was deleted or published again.
+ */
+public class ItemWriteShardTest {
+
+    private static final JID PUBLISHER = new JID("user@example.com/resource");
+
+    private final ItemWriteShard shard = new ItemWriteShard();
+    private final List<RetryWrapper> added = new ArrayList<RetryWrapper>();
+    private final List<PublishedItem> deleted = new ArrayList<PublishedItem>();
+
+    private static PublishedItem item(String serviceID, String nodeID, String id) {
+        return new PublishedItem(serviceID, nodeID, PUBLISHER, id, new Date());
+    }
+
+    private static PublishedItem item(String id) {
+        return item("pubsub", "node", id);
+    }
+
+    private boolean drain() {
+        added.clear();
+        deleted.clear();
+        return shard.drainTo(added, deleted);
+    }
+
+    private String addedIDs() {
+        StringBuilder sb = new StringBuilder();
+        for (RetryWrapper wrapper : added) {
+            sb.append(wrapper.get().getID());
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void testItemsAreWrittenInPublishingOrder() {
+        assertEquals(1, shard.add(new RetryWrapper(item("a"))));
+        assertEquals(2, shard.add(new RetryWrapper(item("b"))));
+        assertEquals(3, shard.add(new RetryWrapper(item("c"))));
+        assertTrue(drain());
+        assertEquals("abc", addedIDs());
+        assertFalse(drain());
+    }
+
+    @Test
+    public void testRepublishReplacesPendingItem() {
+        shard.add(new RetryWrapper(item("a")));
+        shard.add(new RetryWrapper(item("b")));
+        PublishedItem republished = item("a");
+        assertEquals(2, shard.add(new RetryWrapper(republished)));
+        drain();
+        assertEquals("ba", addedIDs());
+        assertSame(republished, added.get(1).get());
+    }
+
+    @Test
+    public void testDeleteCancelsPendingAdd() {
+        PublishedItem item = item("a");
+        shard.add(new RetryWrapper(item));
+        shard.add(new RetryWrapper(item("b")));
+        shard.remove(item);
+        drain();
+        assertEquals("b", addedIDs());
+        assertEquals(1, deleted.size());
+        assertSame(item, deleted.get(0));
+    }
+
+    @Test
+    public void testPublishCancelsPendingDelete() {
+        shard.remove(item("a"));
+        assertEquals(1, shard.add(new RetryWrapper(item("a"))));
+        drain();
+        assertEquals("a", addedIDs());
+        assertTrue(deleted.isEmpty());
+    }
+
+    @Test
+    public void testItemsOfOtherServicesAreKeptApart() {
+        shard.add(new RetryWrapper(item("pubsub", "node", "a")));
+        shard.add(new RetryWrapper(item("user@example.com", "node", "a")));
+        shard.remove(item("pubsub", "node", "a"));
+        drain();
+        assertEquals(1, added.size());
+        assertEquals("user@example.com", added.get(0).get().getServiceID());
+    }
+
+    @Test
+    public void testRetryRestoresFailedItem() {
+        RetryWrapper wrapper = new RetryWrapper(item("a"));
+        shard.add(wrapper);
+        drain();
+        shard.retry(wrapper);
+        drain();
+        assertEquals(1, added.size());
+        assertSame(wrapper, added.get(0));
+    }
+
+    @Test
+    public void testRetryDoesNotRestoreDeletedItem() {
+        PublishedItem item = item("a");
+        RetryWrapper wrapper = new RetryWrapper(item);
+        shard.add(wrapper);
+        drain();
+        shard.remove(item);
+        shard.retry(wrapper);
+        drain();
+        assertTrue(added.isEmpty());
+        assertEquals(1, deleted.size());
+    }
+
+    @Test
+    public void testRetryDoesNotReplaceNewerItem() {
+        RetryWrapper failed = new RetryWrapper(item("a"));
+        shard.add(failed);
+        drain();
+        RetryWrapper newer = new RetryWrapper(item("a"));
+        shard.add(newer);
+        shard.retry(failed);
+        drain();
+        assertEquals(1, added.size());
+        assertSame(newer, added.get(0));
+    }
+
+    @Test
+    public void testPurgeDropsPendingItemsOfNode() {
+        shard.add(new RetryWrapper(item("pubsub", "node", "a")));
+        shard.add(new RetryWrapper(item("pubsub", "other", "b")));
+        shard.add(new RetryWrapper(item("user@example.com", "node", "c")));
+        shard.add(new RetryWrapper(item("pubsub", "node", "d")));
+        PublishedItem deletedItem = item("pubsub", "node", "e");
+        shard.remove(deletedItem);
+        shard.purge("pubsub", "node");
+        drain();
+        assertEquals("bc", addedIDs());
+        // Deletes of purged items are still written
+        assertEquals(1, deleted.size());
+        assertSame(deletedItem, deleted.get(0));
+    }
+}
@@ -0,0 +1,103 @@
+package org.jivesoftware.openfire.pubsub;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Test;
+import org.xmpp.packet.JID;
+
+/**
+ * Verifies that {@link PublishedItemRing} keeps the newest items of a node in publishing
+ * order when items are published beyond its capacity, deleted or published again.
+ */
+public class PublishedItemRingTest {
+
+    private static final JID PUBLISHER = new JID("user@example.com/resource");
+
+    private static PublishedItem item(String id) {
+        return new PublishedItem("pubsub", "node", PUBLISHER, id, new Date());
+    }
+
+    private static PublishedItemRing ring(int capacity) {
+        PublishedItemRing ring = new PublishedItemRing(null, capacity);
+        // An empty ring is loaded, so the database is never read
+        ring.clear();
+        return ring;
+    }
+
+    private static String ids(List<PublishedItem> items) {
+        StringBuilder sb = new StringBuilder();
+        for (PublishedItem item : items) {
+            sb.append(item.getID());
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void testOldestItemsAreDroppedBeyondCapacity() {
+        PublishedItemRing ring = ring(3);
+        for (String id : new String[] {"a", "b", "c", "d", "e"}) {
+            ring.add(item(id));
+        }
+        assertEquals("cde", ids(ring.getItems(-1)));
+        assertEquals("de", ids(ring.getItems(2)));
+        assertEquals("e", ring.getLast().getID());
+        assertNull(ring.get("a"));
+        assertNull(ring.get("b"));
+        assertEquals("c", ring.get("c").getID());
+    }
+
+    @Test
+    public void testRemoveFromTheMiddle() {
+        PublishedItemRing ring = ring(3);
+        ring.add(item("a"));
+        ring.add(item("b"));
+        ring.add(item("c"));
+        ring.remove("b");
+        assertEquals("ac", ids(ring.getItems(-1)));
+        assertNull(ring.get("b"));
+
+        // The gap was closed, so the ring is full again after one more item
+        ring.add(item("d"));
+        assertEquals("acd", ids(ring.getItems(-1)));
+        ring.add(item("e"));
+        assertEquals("cde", ids(ring.getItems(-1)));
+    }
+
+    @Test
+    public void testRemoveAfterWrappingAround() {
+        PublishedItemRing ring = ring(3);
+        for (String id : new String[] {"a", "b", "c", "d", "e"}) {
+            ring.add(item(id));
+        }
+        ring.remove("d");
+        assertEquals("ce", ids(ring.getItems(-1)));
+        ring.remove("x");
+        assertEquals("ce", ids(ring.getItems(-1)));
+        ring.remove("e");
+        ring.remove("c");
+        assertEquals(0, ring.getItems(-1).size());
+        assertNull(ring.getLast());
+    }
+
+    @Test
+    public void testReaddedItemBecomesTheNewest() {
+        PublishedItemRing ring = ring(3);
+        ring.add(item("a"));
+        ring.add(item("b"));
+        ring.add(item("c"));
+        PublishedItem republished = item("a");
+        ring.add(republished);
+        assertEquals("bca", ids(ring.getItems(-1)));
+        assertSame(republished, ring.get("a"));
+        assertSame(republished, ring.getLast());
+
+        // The replaced item no longer takes a slot
+        ring.add(item("d"));
+        assertEquals("cad", ids(ring.getItems(-1)));
+    }
+}
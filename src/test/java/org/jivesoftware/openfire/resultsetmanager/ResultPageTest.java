@@ -0,0 +1,80 @@
+package org.jivesoftware.openfire.resultsetmanager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import org.dom4j.Element;
+import org.junit.Test;
+
+/**
+ * Verifies that {@link ResultPage} reads the requested pages out of a sorted index.
+ */
+public class ResultPageTest {
+
+    /**
+     * Returns the value of the entries whose value is even.
+     */
+    private static final ResultPage.Mapper<Integer, Integer> EVEN = new ResultPage.Mapper<Integer, Integer>() {
+        public Integer map(String key, Integer value) {
+            return value % 2 == 0 ? value : null;
+        }
+    };
+
+    private static NavigableMap<String, Integer> index() {
+        NavigableMap<String, Integer> index = new TreeMap<String, Integer>();
+        for (int i = 0; i < 20; i++) {
+            index.put(String.format("room%02d", i), i);
+        }
+        return index;
+    }
+
+    @Test
+    public void testForward() {
+        ResultPage<Integer> page = ResultPage.fromIndex(index(), new PageRequest(3, null, null, -1), EVEN);
+        assertEquals(Arrays.asList(0, 2, 4), page.getItems());
+        assertEquals("room00", page.getFirst());
+        assertEquals("room04", page.getLast());
+        assertEquals(0, page.getFirstIndex());
+
+        page = ResultPage.fromIndex(index(), new PageRequest(3, page.getLast(), null, -1), EVEN);
+        assertEquals(Arrays.asList(6, 8, 10), page.getItems());
+        assertEquals(-1, page.getFirstIndex());
+
+        // Cursors that are not in the index are still valid
+        page = ResultPage.fromIndex(index(), new PageRequest(2, "room15", null, -1), EVEN);
+        assertEquals(Arrays.asList(16, 18), page.getItems());
+    }
+
+    @Test
+    public void testBackward() {
+        ResultPage<Integer> page = ResultPage.fromIndex(index(), new PageRequest(3, null, "", -1), EVEN);
+        assertEquals(Arrays.asList(14, 16, 18), page.getItems());
+        assertEquals("room14", page.getFirst());
+        assertEquals("room18", page.getLast());
+
+        page = ResultPage.fromIndex(index(), new PageRequest(3, null, page.getFirst(), -1), EVEN);
+        assertEquals(Arrays.asList(8, 10, 12), page.getItems());
+
+        page = ResultPage.fromIndex(index(), new PageRequest(3, null, "room02", -1), EVEN);
+        assertEquals(Arrays.asList(0), page.getItems());
+    }
+
+    @Test
+    public void testIndexAndCount() {
+        ResultPage<Integer> page = ResultPage.fromIndex(index(), new PageRequest(2, null, null, 3), EVEN);
+        assertEquals(Arrays.asList(6, 8), page.getItems());
+        assertEquals(3, page.getFirstIndex());
+        Element set = page.createSetElement();
+        assertEquals("3", set.element("first").attributeValue("index"));
+        assertNull(set.element("count"));
+
+        page = ResultPage.fromIndex(index(), new PageRequest(0, null, null, -1), EVEN);
+        assertEquals(0, page.getItems().size());
+        assertEquals(10, page.getCount());
+        assertEquals("10", page.createSetElement().elementText("count"));
+    }
+}
@@ -0,0 +1,66 @@
+package org.jivesoftware.openfire.roster;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.xmpp.packet.JID;
+
+/**
+ * Verifies the compact representation of {@link RosterItem}.
+ */
+public class RosterItemTest {
+
+    private static final RosterItem.SubType[] SUB_TYPES = {RosterItem.SUB_REMOVE,
+            RosterItem.SUB_NONE, RosterItem.SUB_TO, RosterItem.SUB_FROM, RosterItem.SUB_BOTH};
+    private static final RosterItem.AskType[] ASK_TYPES = {RosterItem.ASK_NONE,
+            RosterItem.ASK_SUBSCRIBE, RosterItem.ASK_UNSUBSCRIBE};
+    private static final RosterItem.RecvType[] RECV_TYPES = {RosterItem.RECV_NONE,
+            RosterItem.RECV_SUBSCRIBE, RosterItem.RECV_UNSUBSCRIBE};
+
+    @Test
+    public void testPackedStatus() {
+        for (RosterItem.SubType sub : SUB_TYPES) {
+            for (RosterItem.AskType ask : ASK_TYPES) {
+                for (RosterItem.RecvType recv : RECV_TYPES) {
+                    RosterItem item = new RosterItem(1, new JID("juliet@example.com"), sub, ask,
+                            recv, "Juliet", null);
+                    assertSame(sub, item.getSubStatus());
+                    assertSame(ask, item.getAskStatus());
+                    assertSame(recv, item.getRecvStatus());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testSettersKeepOtherStatus() {
+        RosterItem item = new RosterItem(1, new JID("juliet@example.com"), RosterItem.SUB_TO,
+                RosterItem.ASK_SUBSCRIBE, RosterItem.RECV_UNSUBSCRIBE, "Juliet", null);
+        item.setAskStatus(RosterItem.ASK_NONE);
+        assertSame(RosterItem.SUB_TO, item.getSubStatus());
+        assertSame(RosterItem.RECV_UNSUBSCRIBE, item.getRecvStatus());
+        item.setRecvStatus(RosterItem.RECV_NONE);
+        assertSame(RosterItem.SUB_TO, item.getSubStatus());
+        assertSame(RosterItem.ASK_NONE, item.getAskStatus());
+        assertSame(RosterItem.RECV_NONE, item.getRecvStatus());
+    }
+
+    @Test
+    public void testSharedDictionaries() {
+        RosterItem first = new RosterItem(1, new JID("juliet@example.com"), RosterItem.SUB_BOTH,
+                RosterItem.ASK_NONE, RosterItem.RECV_NONE, null,
+                Arrays.asList(new String("Friends"), new String("Capulet")));
+        RosterItem second = new RosterItem(2, new JID("juliet@example.com"), RosterItem.SUB_TO,
+                RosterItem.ASK_NONE, RosterItem.RECV_NONE, null,
+                Arrays.asList(new String("Friends")));
+        assertSame(first.getJid(), second.getJid());
+        assertEquals(Arrays.asList("Friends", "Capulet"), first.getGroups());
+        assertSame(first.getGroups().get(0), second.getGroups().get(0));
+        assertFalse(first.isShared());
+        assertEquals(0, first.getInvisibleSharedGroupsNames().size());
+    }
+}
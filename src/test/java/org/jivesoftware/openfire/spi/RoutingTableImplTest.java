@@ -0,0 +1,240 @@
+package org.jivesoftware.openfire.spi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.jivesoftware.openfire.PresenceRouter;
+import org.jivesoftware.openfire.RemotePacketRouter;
+import org.jivesoftware.openfire.RoutableChannelHandler;
+import org.jivesoftware.openfire.XMPPServer;
+import org.jivesoftware.openfire.cluster.ClusterManager;
+import org.jivesoftware.openfire.cluster.NodeID;
+import org.jivesoftware.openfire.container.Module;
+import org.jivesoftware.openfire.handler.PresenceUpdateHandler;
+import org.jivesoftware.util.cache.Cache;
+import org.jivesoftware.util.cache.CacheFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.objenesis.ObjenesisStd;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Packet;
+import org.xmpp.packet.Presence;
+
+/**
+ * Verifies that {@link RoutingTableImpl#broadcastPresence(Collection, Presence)} reaches the
+ * same sessions, with the same 'to' attribute, as routing the presence to each route of each
+ * recipient.
+ */
+public class RoutingTableImplTest {
+
+    private static final NodeID OTHER_NODE = NodeID.getInstance(new byte[] {1});
+
+    private final List<String> deliveries = new ArrayList<String>();
+    private boolean otherNodeReachable = true;
+    private RoutingTableImpl routingTable;
+    private LocalRoutingTable localRoutes;
+    private Cache<String, ClientRoute> usersCache;
+    private Cache<String, Collection<String>> usersSessions;
+    private Cache<String, Set<NodeID>> componentsCache;
+    private Cache<String, byte[]> serversCache;
+
+    @Before
+    public void setUp() throws Exception {
+        XMPPServer server = (XMPPServer) new ObjenesisStd().newInstance(XMPPServer.class);
+        Map<Class, Module> modules = new LinkedHashMap<Class, Module>();
+        // Without a requester the handler does not look for directed presences
+        modules.put(PresenceUpdateHandler.class,
+                (Module) new ObjenesisStd().newInstance(PresenceUpdateHandler.class));
+        // Presences that cannot be routed are dropped
+        modules.put(PresenceRouter.class, (Module) new ObjenesisStd().newInstance(PresenceRouter.class));
+        setField(server, "modules", modules);
+        setField(server, "xmppServerInfo", new XMPPServerInfoImpl("example.com", "localhost", null, null));
+        setField(server, "initialized", true);
+        setField(null, "instance", server);
+
+        routingTable = new RoutingTableImpl();
+        routingTable.initialize(server);
+        routingTable.setRemotePacketRouter(remoteRouter());
+        Field field = RoutingTableImpl.class.getDeclaredField("localRoutingTable");
+        field.setAccessible(true);
+        localRoutes = (LocalRoutingTable) field.get(routingTable);
+        usersCache = CacheFactory.createCache(RoutingTableImpl.C2S_CACHE_NAME);
+        usersSessions = CacheFactory.createCache(RoutingTableImpl.C2S_SESSION_NAME);
+        componentsCache = CacheFactory.createCache(RoutingTableImpl.COMPONENT_CACHE_NAME);
+        serversCache = CacheFactory.createCache(RoutingTableImpl.S2S_CACHE_NAME);
+        usersCache.clear();
+        usersSessions.clear();
+
+        NodeID localNode = server.getNodeID();
+        addSession("juliet@example.com/balcony", localNode, true);
+        addSession("juliet@example.com/chamber", localNode, false);
+        addSession("nurse@example.com/kitchen", localNode, true);
+        addSession("romeo@example.com/orchard", OTHER_NODE, true);
+        addSession("romeo@example.com/garden", OTHER_NODE, false);
+        componentsCache.put("game.example.com", new HashSet<NodeID>(Arrays.asList(localNode)));
+        localRoutes.addRoute("game.example.com", handler("game.example.com"));
+        serversCache.put("remote.example", localNode.toByteArray());
+        localRoutes.addRoute("remote.example", handler("remote.example"));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ClusterManager.removeListener(routingTable);
+        usersCache.clear();
+        usersSessions.clear();
+        componentsCache.remove("game.example.com");
+        serversCache.remove("remote.example");
+        setField(null, "instance", null);
+    }
+
+    private static void setField(XMPPServer server, String name, Object value) throws Exception {
+        Field field = XMPPServer.class.getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(server, value);
+    }
+
+    private void addSession(String fullJID, NodeID nodeID, boolean available) {
+        JID jid = new JID(fullJID);
+        usersCache.put(fullJID, new ClientRoute(nodeID, available));
+        Collection<String> sessions = usersSessions.get(jid.toBareJID());
+        if (sessions == null) {
+            sessions = new ArrayList<String>();
+        }
+        sessions.add(fullJID);
+        usersSessions.put(jid.toBareJID(), sessions);
+        if (!OTHER_NODE.equals(nodeID)) {
+            localRoutes.addRoute(fullJID, handler(fullJID));
+        }
+    }
+
+    /**
+     * Returns a local route that records the packets it gets.
+     */
+    private RoutableChannelHandler handler(final String address) {
+        return (RoutableChannelHandler) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] {RoutableChannelHandler.class}, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if ("process".equals(method.getName())) {
+                            deliveries.add(address + " to " + ((Packet) args[0]).getTo());
+                        }
+                        else if ("getAddress".equals(method.getName())) {
+                            return new JID(address);
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    /**
+     * Returns a router to the other node of the cluster that records the packets it gets.
+     */
+    private RemotePacketRouter remoteRouter() {
+        return (RemotePacketRouter) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] {RemotePacketRouter.class}, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if ("routePacket".equals(method.getName())) {
+                            assertTrue(OTHER_NODE.equals((byte[]) args[0]));
+                            if (otherNodeReachable) {
+                                deliveries.add("node " + args[1] + " to " + ((Packet) args[2]).getTo());
+                            }
+                            return otherNodeReachable;
+                        }
+                        if ("broadcastPresence".equals(method.getName())) {
+                            @SuppressWarnings("unchecked")
+                            Map<NodeID, List<JID>> recipients = (Map<NodeID, List<JID>>) args[0];
+                            assertEquals(Collections.singleton(OTHER_NODE), recipients.keySet());
+                            if (!otherNodeReachable) {
+                                return recipients.keySet();
+                            }
+                            // The other node sets the 'to' attribute to the bare JID
+                            for (JID jid : recipients.get(OTHER_NODE)) {
+                                deliveries.add("node " + jid + " to " + jid.toBareJID());
+                            }
+                            return Collections.emptyList();
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    private static List<JID> recipients() {
+        return Arrays.asList(new JID("juliet@example.com"), new JID("nurse@example.com/kitchen"),
+                new JID("romeo@example.com"), new JID("tybalt@example.com"),
+                new JID("game.example.com"), new JID("mercutio@remote.example"));
+    }
+
+    private static Presence presence() {
+        Presence presence = new Presence();
+        presence.setFrom("benvolio@example.com/street");
+        return presence;
+    }
+
+    /**
+     * Routes a presence the way rosters did before presences were broadcast in bulk.
+     */
+    private List<String> routeOneByOne() {
+        deliveries.clear();
+        Presence presence = presence();
+        for (JID recipient : recipients()) {
+            presence.setTo(recipient);
+            for (JID jid : routingTable.getRoutes(recipient, null)) {
+                routingTable.routePacket(jid, presence, false);
+            }
+        }
+        return sorted(deliveries);
+    }
+
+    private List<String> broadcast() {
+        deliveries.clear();
+        routingTable.broadcastPresence(recipients(), presence());
+        return sorted(deliveries);
+    }
+
+    private static List<String> sorted(List<String> list) {
+        List<String> sorted = new ArrayList<String>(list);
+        Collections.sort(sorted);
+        return sorted;
+    }
+
+    @Test
+    public void testBroadcastReachesSameSessions() {
+        List<String> expected = Arrays.asList(
+                "game.example.com to game.example.com",
+                "juliet@example.com/balcony to juliet@example.com",
+                "node romeo@example.com/orchard to romeo@example.com",
+                "nurse@example.com/kitchen to nurse@example.com/kitchen",
+                "remote.example to mercutio@remote.example");
+        assertEquals(expected, routeOneByOne());
+        assertEquals(expected, broadcast());
+    }
+
+    @Test
+    public void testUnreachableNodeDropsRoutes() {
+        otherNodeReachable = false;
+        List<String> reached = broadcast();
+        assertFalse(reached.contains("node romeo@example.com/orchard to romeo@example.com"));
+        assertEquals(4, reached.size());
+        assertNull(usersCache.get("romeo@example.com/orchard"));
+        // Routing one by one drops the same route
+        addSession("romeo@example.com/orchard", OTHER_NODE, true);
+        assertEquals(reached, routeOneByOne());
+        assertNull(usersCache.get("romeo@example.com/orchard"));
+    }
+}
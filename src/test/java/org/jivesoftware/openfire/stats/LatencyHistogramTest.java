@@ -0,0 +1,55 @@
+package org.jivesoftware.openfire.stats;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Verifies the buckets and percentiles of {@link LatencyHistogram}.
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void testBucketsCoverAllValues() {
+        int previous = -1;
+        for (long value = 0; value < 100000; value++) {
+            int bucket = LatencyHistogram.bucket(value);
+            assertTrue(bucket == previous || bucket == previous + 1);
+            assertTrue(LatencyHistogram.lowestValue(bucket) <= value);
+            assertTrue(LatencyHistogram.lowestValue(bucket + 1) > value);
+            previous = bucket;
+        }
+        int last = LatencyHistogram.bucket(Long.MAX_VALUE);
+        assertTrue(LatencyHistogram.lowestValue(last) > 0);
+    }
+
+    @Test
+    public void testRelativeError() {
+        for (long value = 16; value < Long.MAX_VALUE / 3; value = value * 3 + 1) {
+            int bucket = LatencyHistogram.bucket(value);
+            long width = LatencyHistogram.lowestValue(bucket + 1) - LatencyHistogram.lowestValue(bucket);
+            assertTrue(width <= value / 16 + 1);
+        }
+    }
+
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentile99(), 0);
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(500.5, histogram.getMean(), 0.001);
+        assertEquals(1000, histogram.getMax(), 0);
+        assertEquals(500, histogram.getPercentile50(), 500 / 16d);
+        assertEquals(990, histogram.getPercentile99(), 990 / 16d);
+        assertEquals(1000, histogram.getValueAtPercentile(100), 0);
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax(), 0);
+        assertEquals(0, histogram.getPercentile50(), 0);
+    }
+}
@@ -0,0 +1,106 @@
+package org.jivesoftware.openfire.vcard;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringReader;
+import java.util.Arrays;
+
+import org.dom4j.Element;
+import org.dom4j.io.SAXReader;
+import org.jivesoftware.util.Base64;
+import org.jivesoftware.util.StringUtils;
+import org.junit.Test;
+
+/**
+ * Verifies that a {@link SerializedVCard} keeps the content of the vCard, hashes its photo and
+ * resolves properties the same way as the element tree of the vCard.
+ */
+public class SerializedVCardTest {
+
+    private static final byte[] PHOTO = {(byte) 0x89, 'P', 'N', 'G', 0, 1, 2, 3, (byte) 0xff};
+
+    private static String createXML(String photo) {
+        return "<vCard xmlns=\"vcard-temp\"><FN>Jane Doe</FN>"
+                + "<ADR><HOME/></ADR><ADR><STREET>Main Street</STREET></ADR>"
+                + "<EMAIL><USERID> jane@example.com </USERID></EMAIL>"
+                + photo + "</vCard>";
+    }
+
+    private static Element parse(String xml) throws Exception {
+        return new SAXReader().read(new StringReader(xml)).getRootElement();
+    }
+
+    @Test
+    public void testBytesRoundTrip() throws Exception {
+        Element vCard = parse(createXML(""));
+        SerializedVCard serialized = SerializedVCard.create(vCard);
+        Element copy = serialized.toElement();
+        assertEquals("vcard-temp", copy.getNamespaceURI());
+        assertEquals(vCard.asXML(), copy.asXML());
+    }
+
+    @Test
+    public void testPhotoHash() throws Exception {
+        String photo = "<PHOTO><TYPE>image/png</TYPE><BINVAL>" + Base64.encodeBytes(PHOTO)
+                + "</BINVAL></PHOTO>";
+        String expected = StringUtils.hash(PHOTO, "SHA-1");
+        assertEquals(expected, SerializedVCard.create(parse(createXML(photo))).getPhotoHash());
+        assertEquals(expected, SerializedVCard.create(createXML(photo)).getPhotoHash());
+        assertEquals("", SerializedVCard.create(createXML("")).getPhotoHash());
+        assertEquals("", SerializedVCard.create(createXML("<PHOTO/>")).getPhotoHash());
+    }
+
+    @Test
+    public void testStoredTextIsKept() throws Exception {
+        String xml = createXML("");
+        SerializedVCard serialized = SerializedVCard.create(xml);
+        assertEquals(xml, new String(serialized.getBytes(), "UTF-8"));
+    }
+
+    @Test
+    public void testOtherTextIsSerializedAgain() throws Exception {
+        String xml = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" + createXML("");
+        SerializedVCard serialized = SerializedVCard.create(xml);
+        assertEquals(parse(xml).asXML(), new String(serialized.getBytes(), "UTF-8"));
+    }
+
+    @Test
+    public void testProperties() throws Exception {
+        SerializedVCard serialized = SerializedVCard.create(createXML(""));
+        assertEquals("Jane Doe", serialized.getProperty("FN"));
+        assertEquals("jane@example.com", serialized.getProperty("EMAIL:USERID"));
+        assertEquals("jane@example.com", serialized.getProperty("EMAIL::USERID"));
+        assertEquals("", serialized.getProperty("ADR"));
+        // Like the element tree, the path resolves to the first ADR element
+        assertNull(serialized.getProperty("ADR:STREET"));
+        assertNull(serialized.getProperty("NICKNAME"));
+        assertNull(serialized.getProperty(""));
+    }
+
+    @Test
+    public void testCachedSizeCountsPropertyTable() throws Exception {
+        SerializedVCard serialized = SerializedVCard.create(createXML(""));
+        int size = serialized.getCachedSize();
+        assertFalse(serialized.hasPropertyTable());
+        serialized.getProperty("FN");
+        assertTrue(serialized.hasPropertyTable());
+        int withTable = serialized.getCachedSize();
+        assertTrue(withTable > size);
+        // The table is built once
+        serialized.getProperty("EMAIL:USERID");
+        assertEquals(withTable, serialized.getCachedSize());
+    }
+
+    @Test
+    public void testLongPropertyIsReadAgain() throws Exception {
+        char[] chars = new char[5000];
+        Arrays.fill(chars, 'a');
+        String note = new String(chars);
+        SerializedVCard serialized = SerializedVCard.create(createXML("<NOTE>" + note + "</NOTE>"));
+        assertEquals("Jane Doe", serialized.getProperty("FN"));
+        assertEquals(note, serialized.getProperty("NOTE"));
+    }
+}
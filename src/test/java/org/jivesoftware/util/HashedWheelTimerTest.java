@@ -0,0 +1,83 @@
+package org.jivesoftware.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Verifies that {@link HashedWheelTimer} runs expired tasks, including ones that wrap around
+ * the wheel, and never runs cancelled ones.
+ */
+public class HashedWheelTimerTest {
+
+    private HashedWheelTimer timer;
+
+    @Before
+    public void setUp() {
+        // A small wheel so that the delays below take several rounds
+        timer = new HashedWheelTimer(10, TimeUnit.MILLISECONDS, 4, new Executor() {
+            public void execute(Runnable task) {
+                task.run();
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        timer.shutdown();
+    }
+
+    @Test
+    public void testExpiredTasksAreRun() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(3);
+        Runnable task = new Runnable() {
+            public void run() {
+                latch.countDown();
+            }
+        };
+        long start = System.currentTimeMillis();
+        HashedWheelTimer.Timeout immediate = timer.schedule(task, 0);
+        timer.schedule(task, 25);
+        timer.schedule(task, 150);
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertTrue(System.currentTimeMillis() - start >= 150);
+        assertTrue(immediate.isExpired());
+        assertEquals(0, timer.getPendingCount());
+    }
+
+    @Test
+    public void testCancelledTasksAreNotRun() throws Exception {
+        final AtomicInteger runs = new AtomicInteger();
+        final CountDownLatch latch = new CountDownLatch(1);
+        HashedWheelTimer.Timeout cancelled = timer.schedule(new Runnable() {
+            public void run() {
+                runs.incrementAndGet();
+            }
+        }, 50);
+        timer.schedule(new Runnable() {
+            public void run() {
+                latch.countDown();
+            }
+        }, 100);
+        assertEquals(2, timer.getPendingCount());
+
+        assertTrue(cancelled.cancel());
+        assertFalse(cancelled.cancel());
+        assertTrue(cancelled.isCancelled());
+        assertEquals(1, timer.getPendingCount());
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals(0, runs.get());
+        assertFalse(cancelled.isExpired());
+    }
+}
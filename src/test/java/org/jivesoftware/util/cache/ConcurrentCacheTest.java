@@ -0,0 +1,122 @@
+package org.jivesoftware.util.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Verifies that {@link ConcurrentCache} keeps the size and lifetime semantics of
+ * {@link DefaultCache}.
+ */
+public class ConcurrentCacheTest {
+
+    private static final String VALUE = "0123456789";
+
+    @Test
+    public void testPutGetRemove() {
+        ConcurrentCache<String, String> cache = new ConcurrentCache<String, String>("test", -1, -1);
+        assertNull(cache.put("a", "1"));
+        assertEquals("1", cache.put("a", "2"));
+        assertEquals("2", cache.get("a"));
+        assertNull(cache.get("b"));
+        assertEquals(1, cache.getCacheHits());
+        assertEquals(1, cache.getCacheMisses());
+        assertTrue(cache.containsKey("a"));
+        assertTrue(cache.containsValue("2"));
+        assertEquals(CacheSizes.sizeOfString("2"), cache.getCacheSize());
+
+        assertEquals("2", cache.remove("a"));
+        assertNull(cache.remove("a"));
+        assertTrue(cache.isEmpty());
+        assertEquals(0, cache.getCacheSize());
+    }
+
+    @Test
+    public void testClear() {
+        ConcurrentCache<String, String> cache = new ConcurrentCache<String, String>("test", -1, -1);
+        for (int i = 0; i < 10; i++) {
+            cache.put("key" + i, VALUE);
+        }
+        cache.get("key1");
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getCacheSize());
+        assertEquals(0, cache.getCacheHits());
+    }
+
+    @Test
+    public void testExpiration() throws Exception {
+        ConcurrentCache<String, String> cache = new ConcurrentCache<String, String>("test", -1, 50);
+        cache.put("old", VALUE);
+        Thread.sleep(100);
+        cache.put("new", VALUE);
+        assertNull(cache.get("old"));
+        assertFalse(cache.containsKey("old"));
+        assertEquals("new", cache.keySet().iterator().next());
+        assertEquals(1, cache.size());
+        assertEquals(CacheSizes.sizeOfString(VALUE), cache.getCacheSize());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedAreCulled() throws Exception {
+        int objectSize = CacheSizes.sizeOfString(VALUE);
+        ConcurrentCache<String, String> cache =
+                new ConcurrentCache<String, String>("test", 100 * objectSize, -1);
+        for (int i = 0; i < 90; i++) {
+            cache.put("key" + i, VALUE);
+        }
+        Thread.sleep(5);
+        // Read keys that are spread over the map, so that every sample also holds unread ones
+        for (int i = 0; i < 90; i += 9) {
+            assertEquals(VALUE, cache.get("key" + i));
+        }
+        for (int i = 90; i < 100; i++) {
+            cache.put("key" + i, VALUE);
+        }
+        assertTrue(cache.getCacheSize() < 97 * objectSize);
+        assertEquals(cache.size() * objectSize, cache.getCacheSize());
+        int culled = 0;
+        for (int i = 0; i < 90; i++) {
+            if (i % 9 == 0) {
+                assertTrue(cache.containsKey("key" + i));
+            }
+            else if (!cache.containsKey("key" + i)) {
+                culled++;
+            }
+        }
+        assertTrue(culled > 0);
+    }
+
+    @Test
+    public void testGetAllSkipsMissingKeys() throws Exception {
+        ConcurrentCache<String, String> cache = new ConcurrentCache<String, String>("test", -1, 50);
+        cache.put("old", VALUE);
+        Thread.sleep(100);
+        cache.put("a", "1");
+        cache.put("b", "2");
+        Map<String, String> values = cache.getAll(Arrays.asList("a", "missing", "old", "b"));
+        assertEquals(2, values.size());
+        assertEquals("1", values.get("a"));
+        assertEquals("2", values.get("b"));
+        assertFalse(values.containsKey("missing"));
+        assertFalse(values.containsKey("old"));
+        assertEquals(2, cache.getCacheHits());
+        assertEquals(2, cache.getCacheMisses());
+        assertTrue(cache.getAll(Collections.<String>emptyList()).isEmpty());
+    }
+
+    @Test
+    public void testTooLargeObjectsAreNotCached() {
+        ConcurrentCache<String, String> cache = new ConcurrentCache<String, String>("test", 10, -1);
+        cache.put("a", VALUE);
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.getCacheSize());
+    }
+}
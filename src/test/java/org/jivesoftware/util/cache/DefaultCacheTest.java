@@ -0,0 +1,45 @@
+package org.jivesoftware.util.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Verifies that {@link DefaultCache#getAll(java.util.Collection)} only returns the keys
+ * that are in the cache.
+ */
+public class DefaultCacheTest {
+
+    @Test
+    public void testGetAllSkipsMissingKeys() throws Exception {
+        DefaultCache<String, String> cache = new DefaultCache<String, String>("test", -1, 50);
+        cache.put("old", "0");
+        Thread.sleep(100);
+        cache.put("a", "1");
+        cache.put("b", "2");
+        Map<String, String> values = cache.getAll(Arrays.asList("a", "missing", "old", "b"));
+        assertEquals(2, values.size());
+        assertEquals("1", values.get("a"));
+        assertEquals("2", values.get("b"));
+        assertFalse(values.containsKey("missing"));
+        assertFalse(values.containsKey("old"));
+        assertEquals(2, cache.getCacheHits());
+        assertEquals(2, cache.getCacheMisses());
+        assertTrue(cache.getAll(Collections.<String>emptyList()).isEmpty());
+    }
+
+    @Test
+    public void testGetAllThroughWrapper() {
+        Cache<String, String> cache = new CacheWrapper<String, String>(
+                new DefaultCache<String, String>("test", -1, -1));
+        cache.put("a", "1");
+        Map<String, String> values = cache.getAll(Arrays.asList("a", "missing"));
+        assertEquals(Collections.singletonMap("a", "1"), values);
+    }
+}
@@ -0,0 +1,79 @@
+package org.jivesoftware.util.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.StreamCorruptedException;
+import java.util.Arrays;
+
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+import org.junit.Test;
+
+/**
+ * Verifies that {@link StanzaCodec} preserves elements and is more compact than
+ * Java serialization.
+ */
+public class StanzaCodecTest {
+
+    private static final String PRESENCE =
+            "<presence xmlns=\"jabber:client\" from=\"juliet@example.com/balcony\" " +
+            "to=\"room@conference.example.com/juliet\" xml:lang=\"en\">" +
+            "<show>away</show><status>Wherefore art thou, Romeo? ❤</status>" +
+            "<priority>5</priority>" +
+            "<c xmlns=\"http://jabber.org/protocol/caps\" hash=\"sha-1\" " +
+            "node=\"http://psi-im.org\" ver=\"q07IKJEyjvHSyhy//CH0CxmKi8w=\"/>" +
+            "<x xmlns=\"http://jabber.org/protocol/muc#user\">" +
+            "<item affiliation=\"member\" role=\"participant\" jid=\"juliet@example.com/balcony\"/>" +
+            "</x></presence>";
+
+    private static final String MESSAGE =
+            "<message xmlns=\"jabber:client\" xmlns:ext=\"urn:example:ext\" type=\"chat\" " +
+            "to=\"romeo@example.com\"><body><![CDATA[<b>bold</b>]]> &amp; more</body>" +
+            "<ext:data ext:flag=\"true\">payload</ext:data></message>";
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        for (String xml : Arrays.asList(PRESENCE, MESSAGE)) {
+            Element element = DocumentHelper.parseText(xml).getRootElement();
+            Element decoded = StanzaCodec.decode(StanzaCodec.encode(element));
+            // Parsed elements keep their namespace declarations as nodes, which only
+            // changes how empty elements are written
+            assertEquals(element.asXML(), DocumentHelper.parseText(decoded.asXML()).getRootElement().asXML());
+        }
+    }
+
+    @Test
+    public void testSmallerThanSerialization() throws Exception {
+        Element element = DocumentHelper.parseText(PRESENCE).getRootElement();
+        ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(serialized);
+        out.writeObject(element);
+        out.close();
+        int encoded = StanzaCodec.encode(element).length;
+        assertTrue(encoded < PRESENCE.length());
+        assertTrue(encoded * 4 < serialized.size());
+    }
+
+    @Test
+    public void testEmptyAndTruncated() throws Exception {
+        assertNull(StanzaCodec.decode(new byte[0]));
+        byte[] bytes = StanzaCodec.encode(DocumentHelper.parseText(PRESENCE).getRootElement());
+        try {
+            StanzaCodec.decode(Arrays.copyOf(bytes, bytes.length / 2));
+            throw new AssertionError("Truncated bytes were decoded");
+        }
+        catch (StreamCorruptedException e) {
+            // Expected
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testUnknownVersion() throws Exception {
+        StanzaCodec.decode(new byte[] {99, 0});
+    }
+}
@@ -0,0 +1,200 @@
+<%--
+  -
+  - Copyright (C) 2004-2008 Jive Software. All rights reserved.
+  -
+  - Licensed under the Apache License, Version 2.0 (the "License");
+  - you may not use this file except in compliance with the License.
+  - You may obtain a copy of the License at
+  -
+  -     http://www.apache.org/licenses/LICENSE-2.0
+  -
+  - Unless required by applicable law or agreed to in writing, software
+  - distributed under the License is distributed on an "AS IS" BASIS,
+  - WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  - See the License for the specific language governing permissions and
+  - limitations under the License.
+--%>
+
+<%@ page import="java.text.*"
+    errorPage="error.jsp"
+%>
+<%@ page import="org.jivesoftware.openfire.stats.LatencyHistogram"%>
+<%@ page import="org.jivesoftware.openfire.stats.PacketLatency"%>
+<%@ page import="org.jivesoftware.util.JiveGlobals"%>
+<%@ page import="org.jivesoftware.util.ParamUtils"%>
+<%@ page import="org.jivesoftware.util.LocaleUtils"%>
+
+<%@ taglib uri="http://java.sun.com/jstl/core_rt" prefix="c" %>
+<%@ taglib uri="http://java.sun.com/jstl/fmt_rt" prefix="fmt" %>
+
+<jsp:useBean id="webManager" class="org.jivesoftware.util.WebManager"  />
+<% webManager.init(request, response, session, application, out ); %>
+
+<%! // Global methods, vars
+
+    // Default refresh values
+    static final int[] REFRESHES = {10,30,60,90};
+%>
+
+<%
+    // Get parameters
+    boolean doClear = request.getParameter("doClear") != null;
+    String enableStats = ParamUtils.getParameter(request,"enableStats");
+    int sampleInterval = ParamUtils.getIntParameter(request,"sampleInterval", -1);
+    int refresh = ParamUtils.getIntParameter(request,"refresh", -1);
+
+    // Clear the statistics
+    if (doClear) {
+        PacketLatency.reset();
+        // Reload the page without params.
+        response.sendRedirect("server-latency.jsp");
+        return;
+    }
+
+    // Enable/disable stats
+    if ("true".equals(enableStats) && !PacketLatency.isEnabled()) {
+        PacketLatency.setEnabled(true);
+        // Log the event
+        webManager.logEvent("enabled packet latency statistics", null);
+    }
+    else if ("false".equals(enableStats) && PacketLatency.isEnabled()) {
+        PacketLatency.setEnabled(false);
+        // Log the event
+        webManager.logEvent("disabled packet latency statistics", null);
+    }
+    if (sampleInterval > 0 && sampleInterval != PacketLatency.getSampleInterval()) {
+        PacketLatency.setSampleInterval(sampleInterval);
+        // Log the event
+        webManager.logEvent("set packet latency sample interval", "interval = " + sampleInterval);
+    }
+
+    boolean showStats = PacketLatency.isEnabled();
+
+    // Number formats for pretty printing of counts and latencies
+    NumberFormat intFormat = NumberFormat.getInstance(JiveGlobals.getLocale());
+    DecimalFormat decFormat = new DecimalFormat("#,##0.0");
+%>
+
+<html>
+    <head>
+        <title><fmt:message key="server.latency.title" /></title>
+        <meta name="pageID" content="server-latency"/>
+    <%  // Enable refreshing if specified
+        if (refresh >= 10) {
+    %>
+        <meta http-equiv="refresh" content="<%= refresh %>;URL=server-latency.jsp?refresh=<%= refresh %>">
+
+    <%  } %>
+</head>
+<body>
+
+<p>
+<fmt:message key="server.latency.description" />
+</p>
+
+<div class="jive-contentBox jive-contentBoxGrey" style="width: 732px;">
+<h3><fmt:message key="server.latency.status" /></h3>
+
+<form action="server-latency.jsp">
+    <table cellpadding="3" cellspacing="1" border="0">
+    <tr>
+        <td>
+            <input type="radio" name="enableStats" value="true" id="rb01" <%= ((showStats) ? "checked":"") %>>
+            <label for="rb01"><%= ((showStats) ? "<b>" +
+                    LocaleUtils.getLocalizedString("server.latency.enabled") + "</b>": LocaleUtils.getLocalizedString("server.latency.enabled")) %></label>
+        </td>
+        <td>
+            <input type="radio" name="enableStats" value="false" id="rb02" <%= ((!showStats) ? "checked":"") %>>
+            <label for="rb02"><%= ((!showStats) ? "<b>" +
+                     LocaleUtils.getLocalizedString("server.latency.disabled") + "</b>":  LocaleUtils.getLocalizedString("server.latency.disabled")) %></label>
+        </td>
+        <td>
+            <label for="sampleInterval"><fmt:message key="server.latency.sample_interval" /></label>
+            <input type="text" name="sampleInterval" id="sampleInterval" size="5" maxlength="6"
+                   value="<%= PacketLatency.getSampleInterval() %>">
+        </td>
+        <td>
+            <input type="submit" name="" value="<fmt:message key="server.latency.update" />">
+        </td>
+    </tr>
+    </table>
+</form>
+
+<%  if (showStats) { %>
+	<br>
+	<h3><fmt:message key="server.latency.settings" /></h3>
+
+    <form action="server-latency.jsp">
+        <table cellpadding="3" cellspacing="5" border="0">
+        <tr>
+            <td>
+                <fmt:message key="server.latency.refresh" />:
+                <select size="1" name="refresh" onchange="this.form.submit();">
+                <option value="none"><fmt:message key="server.latency.none" />
+
+                <%  for(int aREFRESHES: REFRESHES){
+                        String selected = ((aREFRESHES == refresh) ? " selected" : "");
+                %>
+                    <option value="<%= aREFRESHES %>"<%= selected %>
+                     ><%= aREFRESHES
+                            %> <fmt:message key="server.latency.seconds" />
+
+                <%  } %>
+                </select>
+            </td>
+            <td>
+                <input type="submit" name="" value="<fmt:message key="server.latency.set" />">
+            </td>
+            <td>|</td>
+            <td>
+                <input type="submit" name="doClear" value="<fmt:message key="server.latency.clear_stats" />">
+            </td>
+        </tr>
+        </table>
+    </form>
+<%  } %>
+
+</div>
+
+<%  for (PacketLatency.Type type : PacketLatency.Type.values()) { %>
+
+    <br>
+    <b><%= LocaleUtils.getLocalizedString("server.latency.type." + type) %></b>
+    <br><br>
+
+    <div class="jive-table">
+    <table cellpadding="0" cellspacing="0" border="0" width="100%">
+    <thead>
+        <tr>
+            <th nowrap><fmt:message key="server.latency.stage" /></th>
+            <th nowrap><fmt:message key="server.latency.count" /></th>
+            <th nowrap><fmt:message key="server.latency.mean" /></th>
+            <th nowrap>50%</th>
+            <th nowrap>90%</th>
+            <th nowrap>99%</th>
+            <th nowrap>99.9%</th>
+            <th nowrap><fmt:message key="server.latency.max" /></th>
+        </tr>
+    </thead>
+    <tbody>
+    <%  for (PacketLatency.Stage stage : PacketLatency.Stage.values()) {
+            LatencyHistogram histogram = PacketLatency.getHistogram(stage, type);
+    %>
+        <tr>
+            <td><%= LocaleUtils.getLocalizedString("server.latency.stage." + stage) %></td>
+            <td><%= intFormat.format(histogram.getCount()) %></td>
+            <td><%= decFormat.format(histogram.getMean()) %></td>
+            <td><%= decFormat.format(histogram.getPercentile50()) %></td>
+            <td><%= decFormat.format(histogram.getPercentile90()) %></td>
+            <td><%= decFormat.format(histogram.getPercentile99()) %></td>
+            <td><%= decFormat.format(histogram.getPercentile999()) %></td>
+            <td><%= decFormat.format(histogram.getMax()) %></td>
+        </tr>
+    <%  } %>
+    </tbody>
+    </table>
+    </div>
+
+<%  } %>
+
+</body></html>